@@ -5,7 +5,6 @@ import com.github.netguard.vpn.PortRedirector;
 import com.github.netguard.vpn.tcp.RootCert;
 import eu.faircode.netguard.Allowed;
 import eu.faircode.netguard.Packet;
-import eu.faircode.netguard.ServiceSinkhole;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import tech.httptoolkit.android.vpn.ClientPacketWriter;
@@ -14,7 +13,6 @@ import tech.httptoolkit.android.vpn.SessionManager;
 import tech.httptoolkit.android.vpn.socket.SocketNIODataService;
 
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
@@ -55,7 +53,7 @@ class ProxyVpnRunnable extends ProxyVpn implements PortRedirector {
 
         // Packets from upstream servers, received by this VPN
         OutputStream vpnWriteStream = socket.getOutputStream();
-        this.vpnPacketWriter = new ClientPacketWriter(new DataOutputStream(vpnWriteStream), packetCapture);
+        this.vpnPacketWriter = new ClientPacketWriter(vpnWriteStream, packetCapture);
 
         this.vpnPacketWriterThread = new Thread(vpnPacketWriter);
         this.nioService = new SocketNIODataService(vpnPacketWriter);
@@ -96,9 +94,7 @@ class ProxyVpnRunnable extends ProxyVpn implements PortRedirector {
                 if (length > 0) {
                     try {
                         packet.limit(length);
-                        for (int i = 0; i < length; i++) {
-                            data[i] ^= ServiceSinkhole.VPN_MAGIC;
-                        }
+                        ClientPacketWriter.scramble(data, 0, data, 0, length);
                         handler.handlePacket(packet);
                     } catch (Exception e) {
                         log.trace("handlePacket", e);
@@ -6,6 +6,9 @@ import com.github.netguard.transparent.TransparentSocketProxying;
 import com.github.netguard.vpn.VpnListener;
 import com.github.netguard.vpn.tcp.RootCert;
 import com.github.netguard.vpn.udp.UDPRelay;
+import com.github.netguard.vpn.udp.UDProxy;
+import com.github.netguard.vpn.udp.quic.QuicProxyProvider;
+import com.twitter.http2.Http2UpstreamPool;
 import eu.faircode.netguard.ServiceSinkhole;
 import name.neykov.secrets.AgentAttach;
 import org.apache.commons.io.IOUtils;
@@ -104,6 +107,14 @@ public class VpnServer {
         this.enableUdpRelay = true;
     }
 
+    /**
+     * {@link #start()} 之后可用，没有启用时返回 <code>null</code>
+     */
+    @SuppressWarnings("unused")
+    public UDPRelay getUdpRelay() {
+        return udpRelay;
+    }
+
     public void start() {
         if (thread != null) {
             throw new IllegalStateException("Already started.");
@@ -214,6 +225,9 @@ public class VpnServer {
         IoUtil.close(serverSocket);
         IoUtil.close(transparentProxyingSocketServer);
         IoUtil.close(udpRelay);
+        Http2UpstreamPool.getDefault().closeAll();
+        QuicProxyProvider.netty().shutdown();
+        UDProxy.shutdown();
         for (ProxyVpn vpn : clients.toArray(new ProxyVpn[0])) {
             vpn.stop();
         }
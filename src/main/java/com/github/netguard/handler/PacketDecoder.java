@@ -15,6 +15,7 @@ import com.github.netguard.vpn.IPacketCapture;
 import com.github.netguard.vpn.tcp.ConnectRequest;
 import com.github.netguard.vpn.tcp.h2.Http2Filter;
 import com.github.netguard.vpn.udp.DNSFilter;
+import com.github.netguard.vpn.udp.DnsCache;
 import com.github.netguard.vpn.udp.PacketRequest;
 import com.github.netguard.vpn.udp.quic.QuicProxyProvider;
 import org.krakenapps.pcap.Protocol;
@@ -390,6 +391,11 @@ public class PacketDecoder implements IPacketCapture, HttpProcessor {
         return null;
     }
 
+    @Override
+    public DnsCache getDnsCache() {
+        return null;
+    }
+
     @Override
     public QuicProxyProvider getQuicProxyProvider() {
         return QuicProxyProvider.netty();
@@ -34,11 +34,20 @@ public class AcceptTcpResult {
             this.sslContext = context;
             return this;
         }
+        private boolean shareUpstreamH2;
+        /**
+         * 仅对 {@link AllowRule#FILTER_H2} 有效：同一目标的多个客户端连接共享上游 h2 连接，按流重新映射 streamId，
+         * 减少上游的 TLS 握手和连接数。共享模式下请求体会完整缓存后再发送。
+         */
+        public AcceptResultBuilder shareUpstreamH2() {
+            this.shareUpstreamH2 = true;
+            return this;
+        }
         public AcceptTcpResult build() {
             return build(null);
         }
         public AcceptTcpResult build(String redirectHost) {
-            return new AcceptTcpResult(rule, proxy, redirectAddress, redirectPort, redirectHost, sslContext);
+            return new AcceptTcpResult(rule, proxy, redirectAddress, redirectPort, redirectHost, sslContext, shareUpstreamH2);
         }
     }
 
@@ -56,15 +65,17 @@ public class AcceptTcpResult {
     private final int redirectPort;
     private final String redirectHost;
     private final SSLContext context;
+    private final boolean shareUpstreamH2;
 
     private AcceptTcpResult(AllowRule rule, Proxy socketProxy, String redirectAddress, int redirectPort, String redirectHost,
-                            SSLContext context) {
+                            SSLContext context, boolean shareUpstreamH2) {
         this.rule = rule;
         this.socketProxy = socketProxy;
         this.redirectAddress = redirectAddress;
         this.redirectPort = redirectPort;
         this.redirectHost = redirectHost;
         this.context = context;
+        this.shareUpstreamH2 = shareUpstreamH2;
     }
 
     public AllowRule getRule() {
@@ -87,6 +98,14 @@ public class AcceptTcpResult {
         return redirectHost;
     }
 
+    public boolean isShareUpstreamH2() {
+        return shareUpstreamH2;
+    }
+
+    public SSLContext getClientSSLContext() {
+        return context;
+    }
+
     public static SSLContext newSSLContext(AcceptTcpResult result) {
         if (result != null && result.context != null) {
             return result.context;
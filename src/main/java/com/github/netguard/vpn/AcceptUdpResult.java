@@ -12,6 +12,10 @@ public class AcceptUdpResult {
 
     public final AcceptRule acceptRule;
     public InetSocketAddress udpProxy;
+    /**
+     * 使用 v2 中继协议，同一 selector 线程上的流共用一个到中继的 socket，要求中继是支持 v2 的 UDPRelay
+     */
+    public boolean multiplex;
 
     private AcceptUdpResult(AcceptRule acceptRule, InetSocketAddress udpProxy) {
         this.acceptRule = acceptRule;
@@ -19,7 +23,12 @@ public class AcceptUdpResult {
     }
 
     public void setUdpProxy(InetSocketAddress udpProxy) {
+        setUdpProxy(udpProxy, false);
+    }
+
+    public void setUdpProxy(InetSocketAddress udpProxy, boolean multiplex) {
         this.udpProxy = udpProxy;
+        this.multiplex = multiplex;
     }
 
 }
@@ -3,6 +3,7 @@ package com.github.netguard.vpn;
 import com.github.netguard.vpn.tcp.ConnectRequest;
 import com.github.netguard.vpn.tcp.h2.Http2Filter;
 import com.github.netguard.vpn.udp.DNSFilter;
+import com.github.netguard.vpn.udp.DnsCache;
 import com.github.netguard.vpn.udp.PacketRequest;
 import com.github.netguard.vpn.udp.quic.QuicProxyProvider;
 
@@ -33,6 +34,11 @@ public interface IPacketCapture {
 
     Http2Filter getH2Filter();
     DNSFilter getDNSFilter();
+
+    /**
+     * 返回 <code>null</code> 表示 DNS 查询都发往上游
+     */
+    DnsCache getDnsCache();
     QuicProxyProvider getQuicProxyProvider();
 
 }
@@ -7,7 +7,10 @@ import com.github.netguard.vpn.IPacketCapture;
 import com.github.netguard.vpn.InspectorVpn;
 import com.github.netguard.vpn.tcp.h2.Http2Filter;
 import com.github.netguard.vpn.tcp.h2.Http2Session;
+import com.twitter.http2.Http2UpstreamConnection;
+import com.twitter.http2.Http2UpstreamPool;
 import com.twitter.http2.HttpFrameForward;
+import com.twitter.http2.SharedHttpFrameForward;
 import eu.faircode.netguard.Allowed;
 import eu.faircode.netguard.Application;
 import eu.faircode.netguard.Packet;
@@ -86,6 +89,10 @@ public class SSLProxyV2 implements Runnable {
     private final int timeout;
     private final ServerSocket serverSocket;
     private final SSLSocket secureSocket;
+    /**
+     * 共享的上游 h2 连接，不为 <code>null</code> 时 secureSocket 为 <code>null</code>
+     */
+    private final Http2UpstreamConnection upstream;
     private final Socket acceptedSocket;
 
     private SSLProxyV2(InspectorVpn vpn, Packet packet, int timeout, Socket socket) throws IOException {
@@ -94,6 +101,7 @@ public class SSLProxyV2 implements Runnable {
         this.packet = packet;
         this.timeout = timeout;
         this.secureSocket = null;
+        this.upstream = null;
         this.hostName = null;
         this.applicationProtocol = null;
         this.allowFilterH2 = false;
@@ -114,6 +122,7 @@ public class SSLProxyV2 implements Runnable {
         this.packet = packet;
         this.timeout = timeout;
         this.secureSocket = null;
+        this.upstream = null;
         this.hostName = null;
         this.applicationProtocol = null;
         this.allowFilterH2 = false;
@@ -135,13 +144,14 @@ public class SSLProxyV2 implements Runnable {
     private final boolean allowFilterH2;
     private final List<String> applicationLayerProtocols;
 
-    private SSLProxyV2(InspectorVpn vpn, Packet packet, int timeout, SSLContext context, SSLSocket secureSocket,
+    private SSLProxyV2(InspectorVpn vpn, Packet packet, int timeout, SSLContext context, SSLSocket secureSocket, Http2UpstreamConnection upstream,
                        ClientHelloRecord record, String applicationProtocol, boolean allowFilterH2) throws IOException {
         this.vpn = vpn;
 
         this.packet = packet;
         this.timeout = timeout;
         this.secureSocket = secureSocket;
+        this.upstream = upstream;
         this.hostName = record.hostName;
         this.applicationProtocol = applicationProtocol;
         this.allowFilterH2 = allowFilterH2;
@@ -166,7 +176,7 @@ public class SSLProxyV2 implements Runnable {
                 if (packet.isInstallRootCert()) {
                     downloadRootCert(localIn, localOut);
                 } else {
-                    if (secureSocket != null) {
+                    if (secureSocket != null || upstream != null) {
                         handleSSLSocket(remote, localIn, localOut, local, secureSocket, hostName);
                     } else {
                         handleSocket(remote, localIn, localOut, local);
@@ -255,6 +265,10 @@ public class SSLProxyV2 implements Runnable {
                 });
             }
         }
+        if (upstream != null) {
+            doSharedForward(localIn, localOut, local, upstream, vpn, hostName, applicationLayerProtocols, packet);
+            return;
+        }
         try (InputStream socketIn = socket.getInputStream(); OutputStream socketOut = socket.getOutputStream()) {
             IPacketCapture packetCapture = vpn.getPacketCapture();
             Http2Filter filter = packetCapture == null ? null : packetCapture.getH2Filter();
@@ -275,24 +289,16 @@ public class SSLProxyV2 implements Runnable {
         IPacketCapture packetCapture = vpn == null ? null : vpn.getPacketCapture();
         if (packetCapture != null) {
             if (isSSL) {
-                String application = null;
-                Application[] applications = vpn.queryApplications(packet.hashCode());
-                if (applications != null) {
-                    List<String> list = new ArrayList<>(applications.length);
-                    for (Application app : applications) {
-                        list.add(app.getPackageName());
-                    }
-                    application = String.join(",", list);
-                }
-                packetCapture.onSSLProxyEstablish(client, server, hostName, applicationProtocols, applicationProtocol, application);
+                packetCapture.onSSLProxyEstablish(client, server, hostName, applicationProtocols, applicationProtocol, queryApplication(vpn, packet));
             } else {
                 packetCapture.onSocketEstablish(client, server);
             }
         }
         CountDownLatch countDownLatch = new CountDownLatch(2);
         StreamForward inbound, outbound;
+        Http2Session session = null;
         if (filterHttp2) {
-            Http2Session session = new Http2Session(client.getAddress().getHostAddress(), server.getAddress().getHostAddress(), client.getPort(), server.getPort(), hostName);
+            session = new Http2Session(client.getAddress().getHostAddress(), server.getAddress().getHostAddress(), client.getPort(), server.getPort(), hostName);
             HttpFrameForward inboundForward = new HttpFrameForward(localIn, socketOut, true, client, server, countDownLatch, local, vpn, hostName,
                     session, packet);
             outbound = new HttpFrameForward(socketIn, localOut, false, client, server, countDownLatch, socket, vpn, hostName,
@@ -307,6 +313,10 @@ public class SSLProxyV2 implements Runnable {
         outbound.startThread();
         countDownLatch.await();
 
+        Http2Filter filter = packetCapture == null ? null : packetCapture.getH2Filter();
+        if (session != null && filter != null) {
+            filter.onSessionClosed(session);
+        }
         if (packetCapture != null) {
             if (isSSL) {
                 packetCapture.onSSLProxyFinish(client, server, hostName);
@@ -316,6 +326,44 @@ public class SSLProxyV2 implements Runnable {
         }
     }
 
+    private static String queryApplication(InspectorVpn vpn, Packet packet) {
+        String application = null;
+        Application[] applications = vpn.queryApplications(packet.hashCode());
+        if (applications != null) {
+            List<String> list = new ArrayList<>(applications.length);
+            for (Application app : applications) {
+                list.add(app.getPackageName());
+            }
+            application = String.join(",", list);
+        }
+        return application;
+    }
+
+    private static void doSharedForward(InputStream localIn, OutputStream localOut, Socket local, Http2UpstreamConnection upstream, InspectorVpn vpn,
+                                        String hostName, Collection<String> applicationProtocols, Packet packet) throws InterruptedException {
+        log.debug("doSharedForward local={}, upstream={}, hostName={}", local, upstream, hostName);
+        InetSocketAddress client = (InetSocketAddress) local.getRemoteSocketAddress();
+        InetSocketAddress server = upstream.getRemoteAddress();
+        IPacketCapture packetCapture = vpn.getPacketCapture();
+        if (packetCapture != null) {
+            packetCapture.onSSLProxyEstablish(client, server, hostName, applicationProtocols, "h2", queryApplication(vpn, packet));
+        }
+        CountDownLatch countDownLatch = new CountDownLatch(1);
+        Http2Session session = new Http2Session(client.getAddress().getHostAddress(), server.getAddress().getHostAddress(), client.getPort(), server.getPort(), hostName);
+        StreamForward forward = new SharedHttpFrameForward(localIn, localOut, client, server, countDownLatch, local, vpn, hostName,
+                session, packet, Http2UpstreamPool.getDefault(), upstream.getKey(), upstream);
+        forward.startThread();
+        countDownLatch.await();
+
+        Http2Filter filter = packetCapture == null ? null : packetCapture.getH2Filter();
+        if (filter != null) {
+            filter.onSessionClosed(session);
+        }
+        if (packetCapture != null) {
+            packetCapture.onSSLProxyFinish(client, server, hostName);
+        }
+    }
+
     private void handleSocket(InetSocketAddress remote, InputStream localIn, OutputStream localOut, Socket local) throws Exception {
         DataInputStream dataInput = new DataInputStream(localIn);
         final ClientHelloRecord record = ExtensionServerName.parseServerNames(dataInput, remote);
@@ -366,11 +414,28 @@ public class SSLProxyV2 implements Runnable {
         } else {
             SSLContext context = AcceptTcpResult.newSSLContext(result);
             SSLSocketFactory factory = context.getSocketFactory();
+            InetSocketAddress address = createSocketAddress(socketProxy, redirectAddress, redirectPort, redirectHost);
+            Http2UpstreamPool.Key upstreamKey = null;
+            Http2UpstreamConnection upstream = null;
+            Http2Filter filter = packetCapture == null ? null : packetCapture.getH2Filter();
+            if (allowRule == AllowRule.FILTER_H2 && result.isShareUpstreamH2() && filter != null &&
+                    record.applicationLayerProtocols.contains("h2") && filter.filterHost(record.hostName, false)) {
+                upstreamKey = new Http2UpstreamPool.Key(record.hostName, address, socketProxy, result.getClientSSLContext());
+                upstream = Http2UpstreamPool.getDefault().lookup(upstreamKey, timeout);
+            }
+            if (upstream != null) {
+                log.debug("reuse upstream connection: {}, remote={}", upstream, remote);
+                ServerCertificate serverCertificate = new ServerCertificate(upstream.getPeerCertificate());
+                SSLContext serverContext = serverCertificate.getServerContext(vpn.getRootCert()).newSSLContext();
+                SSLProxyV2 proxy = new SSLProxyV2(vpn, packet, timeout, serverContext, null, upstream,
+                        record, "h2", true);
+                forwardToProxy(proxy, record, localIn, localOut, local);
+                return;
+            }
             Socket app = null;
             SSLSocket secureSocket = null;
             try {
                 app = new Socket(socketProxy);
-                InetSocketAddress address = createSocketAddress(socketProxy, redirectAddress, redirectPort, redirectHost);
                 app.connect(address, timeout);
                 secureSocket = (SSLSocket) factory.createSocket(app, record.hostName, redirectPort, true);
                 if (!record.applicationLayerProtocols.isEmpty()) {
@@ -401,25 +466,43 @@ public class SSLProxyV2 implements Runnable {
                     throw new IOException("Handshake failed with: " + record.hostName + ", remote=" + remote);
                 }
 
+                if (upstreamKey != null) {
+                    if (isHttp2(applicationProtocol)) {
+                        // 连接交给连接池管理，不再由 SSLProxyV2 关闭
+                        upstream = Http2UpstreamPool.getDefault().register(upstreamKey, secureSocket, peerCertificate);
+                        secureSocket = null;
+                    } else {
+                        Http2UpstreamPool.getDefault().release(upstreamKey);
+                    }
+                    upstreamKey = null;
+                }
+
                 ServerCertificate serverCertificate = new ServerCertificate(peerCertificate);
                 SSLContext serverContext = serverCertificate.getServerContext(vpn.getRootCert()).newSSLContext();
-                SSLProxyV2 proxy = new SSLProxyV2(vpn, packet, timeout, serverContext, secureSocket,
+                SSLProxyV2 proxy = new SSLProxyV2(vpn, packet, timeout, serverContext, secureSocket, upstream,
                         record, applicationProtocol, allowRule == AllowRule.FILTER_H2);
-                try (Socket socket = SocketFactory.getDefault().createSocket("127.0.0.1", proxy.serverSocket.getLocalPort())) {
-                    try (InputStream socketIn = socket.getInputStream(); OutputStream socketOut = socket.getOutputStream()) {
-                        socketOut.write(record.prologue);
-                        socketOut.flush();
-                        doForward(localIn, localOut, local, socketIn, socketOut, socket, null, null, false, null, null, false, packet);
-                    }
-                }
+                forwardToProxy(proxy, record, localIn, localOut, local);
             } catch (IOException e) {
                 IoUtil.close(app);
                 IoUtil.close(secureSocket);
+                if (upstreamKey != null) {
+                    Http2UpstreamPool.getDefault().release(upstreamKey);
+                }
                 throw e;
             }
         }
     }
 
+    private void forwardToProxy(SSLProxyV2 proxy, ClientHelloRecord record, InputStream localIn, OutputStream localOut, Socket local) throws IOException, InterruptedException {
+        try (Socket socket = SocketFactory.getDefault().createSocket("127.0.0.1", proxy.serverSocket.getLocalPort())) {
+            try (InputStream socketIn = socket.getInputStream(); OutputStream socketOut = socket.getOutputStream()) {
+                socketOut.write(record.prologue);
+                socketOut.flush();
+                doForward(localIn, localOut, local, socketIn, socketOut, socket, null, null, false, null, null, false, packet);
+            }
+        }
+    }
+
     private InetSocketAddress createSocketAddress(Proxy socketProxy, String redirectAddress, int redirectPort, String redirectHost) {
         InetSocketAddress address;
         if (socketProxy != Proxy.NO_PROXY && socketProxy.type() == Proxy.Type.SOCKS && redirectHost != null) {
@@ -1,23 +1,21 @@
 package com.github.netguard.vpn.tcp.h2;
 
-import cn.hutool.core.io.IORuntimeException;
-import cn.hutool.core.io.IoUtil;
-import cn.hutool.core.util.ZipUtil;
 import com.alibaba.fastjson.JSONObject;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponse;
-import org.apache.commons.compress.compressors.brotli.BrotliCompressorInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashMap;
+import java.io.OutputStream;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 @SuppressWarnings("unused")
 public abstract class AbstractHttp2Filter implements Http2Filter {
@@ -33,7 +31,43 @@ public abstract class AbstractHttp2Filter implements Http2Filter {
         }
     }
 
-    private final Map<Http2SessionKey, RequestData> requestMap = new HashMap<>();
+    private final RequestCorrelationStore<RequestData> requestMap;
+
+    protected AbstractHttp2Filter() {
+        this(RequestCorrelationStore.DEFAULT_MAX_ENTRIES, RequestCorrelationStore.DEFAULT_MAX_AGE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param maxPendingRequests 最多保留多少个等待响应的请求
+     * @param maxAge 请求等待响应的最长时间
+     */
+    protected AbstractHttp2Filter(int maxPendingRequests, long maxAge, TimeUnit unit) {
+        this.requestMap = new RequestCorrelationStore<>(maxPendingRequests, maxAge, unit);
+    }
+
+    /**
+     * @return 当前等待响应的请求数
+     */
+    public final int getPendingRequestCount() {
+        return requestMap.size();
+    }
+
+    public final RequestCorrelationStore<?> getRequestStore() {
+        return requestMap;
+    }
+
+    @Override
+    public void onStreamClosed(Http2SessionKey sessionKey) {
+        requestMap.remove(sessionKey);
+    }
+
+    @Override
+    public void onSessionClosed(Http2Session session) {
+        int count = requestMap.removeSession(session);
+        if (count > 0) {
+            log.debug("onSessionClosed session={}, pending={}, store={}", session, count, requestMap);
+        }
+    }
 
     @Override
     public final byte[] filterRequest(Http2SessionKey sessionKey, HttpRequest request, HttpHeaders headers, byte[] requestData) {
@@ -131,30 +165,58 @@ public abstract class AbstractHttp2Filter implements Http2Filter {
         return true;
     }
 
+    /**
+     * @return 解压响应内容时允许的最大长度
+     */
+    protected long getMaxDecodedContentLength() {
+        return ContentCodecs.DEFAULT_MAX_DECODED_LENGTH;
+    }
+
+    /**
+     * 流式解压，适合只需要检查内容的大响应，不会在堆上同时保留压缩与解压后的两份完整数据
+     *
+     * @throws UnsupportedOperationException 不支持的编码
+     */
+    protected final InputStream openContent(String contentEncoding, byte[] data) throws IOException {
+        return ContentCodecs.newDecoder(contentEncoding, new ByteArrayInputStream(data), getMaxDecodedContentLength());
+    }
+
+    /**
+     * 解压失败或者超过 {@link #getMaxDecodedContentLength()} 时返回原数据
+     *
+     * @throws UnsupportedOperationException 不支持的编码
+     */
     protected final byte[] decodeContent(String contentEncoding, byte[] data) {
         if (contentEncoding == null) {
             return data;
         }
-        try {
-            switch (contentEncoding) {
-                case "deflate": {
-                    return ZipUtil.unZlib(data);
-                }
-                case "gzip": {
-                    return ZipUtil.unGzip(data);
-                }
-                case "br": {
-                    try (InputStream inputStream = new BrotliCompressorInputStream(new ByteArrayInputStream(data))) {
-                        return IoUtil.readBytes(inputStream);
-                    }
-                }
-                default:
-                    throw new UnsupportedOperationException("contentEncoding=" + contentEncoding);
-            }
-        } catch (IOException | IORuntimeException e) {
+        try (InputStream inputStream = openContent(contentEncoding, data)) {
+            return inputStream.readAllBytes();
+        } catch (ContentTooLargeException e) {
+            log.warn("decodeContent failed: contentEncoding={}, length={}, maxDecodedLength={}", contentEncoding, data.length, e.getMaxLength());
+            return data;
+        } catch (IOException e) {
             log.debug("decodeContent failed: contentEncoding={}", contentEncoding, e);
             return data;
         }
     }
 
+    /**
+     * 修改解压后的内容后重新压缩，<code>br</code> 不支持编码，可以先用 {@link ContentCodecs#canEncode(String)} 判断并改用 gzip
+     *
+     * @throws UnsupportedOperationException 不支持的编码
+     */
+    protected final byte[] encodeContent(String contentEncoding, byte[] data) {
+        if (contentEncoding == null) {
+            return data;
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(Math.max(32, data.length / 4));
+        try (OutputStream outputStream = ContentCodecs.newEncoder(contentEncoding, baos)) {
+            outputStream.write(data);
+        } catch (IOException e) {
+            throw new IllegalStateException("encodeContent contentEncoding=" + contentEncoding, e);
+        }
+        return baos.toByteArray();
+    }
+
 }
@@ -0,0 +1,165 @@
+package com.github.netguard.vpn.tcp.h2;
+
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * 在任意 {@link Http2Filter} 外层加上响应缓存：新鲜的缓存通过 {@link CancelResult#fake} 直接应答，
+ * 过期但带校验器的缓存向服务器发送条件请求，服务器返回 304 时由缓存补全为完整响应再交给被包装的 filter。
+ * 只有 {@link #filterHost} 返回 <code>true</code> 的主机才会经过缓存，被包装的 filter 的 cancelRequest 优先。
+ */
+public class CachingHttp2Filter implements Http2Filter {
+
+    private static class PendingRequest {
+        final HttpRequest request;
+        final long requestTime;
+        /**
+         * 由缓存添加了条件请求头时的缓存条目及其响应体
+         */
+        final HttpResponseCache.Entry entry;
+        final byte[] body;
+
+        PendingRequest(HttpRequest request, long requestTime, HttpResponseCache.Entry entry, byte[] body) {
+            this.request = request;
+            this.requestTime = requestTime;
+            this.entry = entry;
+            this.body = body;
+        }
+    }
+
+    private final Http2Filter delegate;
+    private final HttpResponseCache cache;
+    private final RequestCorrelationStore<PendingRequest> pendingMap = new RequestCorrelationStore<>();
+
+    public CachingHttp2Filter(Http2Filter delegate, HttpResponseCache cache) {
+        if (delegate == null || cache == null) {
+            throw new NullPointerException();
+        }
+        this.delegate = delegate;
+        this.cache = cache;
+    }
+
+    public HttpResponseCache getCache() {
+        return cache;
+    }
+
+    @Override
+    public boolean filterHost(String hostName, boolean h3) {
+        return delegate.filterHost(hostName, h3);
+    }
+
+    @Override
+    public CancelResult cancelRequest(HttpRequest request, byte[] requestData, boolean polling) {
+        CancelResult result = delegate.cancelRequest(request, requestData, polling);
+        if (result != null || polling) {
+            return result;
+        }
+        result = cache.serve(request);
+        if (result != null) {
+            // 同一个 request 对象随后会传给 filterRequest，标记为缓存应答
+            request.headers().set(HttpResponseCache.CACHE_HEADER, "HIT");
+        }
+        return result;
+    }
+
+    @Override
+    public byte[] filterRequest(Http2SessionKey sessionKey, HttpRequest request, HttpHeaders headers, byte[] requestData) {
+        HttpMethod method = request.method();
+        if (request.headers().contains(HttpResponseCache.CACHE_HEADER)) {
+            return delegate.filterRequest(sessionKey, request, headers, requestData);
+        }
+        if (HttpResponseCache.isCacheableRequest(request)) {
+            long requestTime = cache.now();
+            HttpResponseCache.Entry entry = null;
+            byte[] body = null;
+            if (!headers.contains(HttpHeaderNames.IF_NONE_MATCH) && !headers.contains(HttpHeaderNames.IF_MODIFIED_SINCE)) {
+                entry = cache.findValidatable(request);
+                body = entry == null ? null : cache.readBody(entry);
+                if (body == null) {
+                    entry = null;
+                } else if (entry.etag != null) {
+                    headers.set(HttpHeaderNames.IF_NONE_MATCH.toString(), entry.etag);
+                } else {
+                    headers.set(HttpHeaderNames.IF_MODIFIED_SINCE.toString(), entry.lastModified);
+                }
+            }
+            pendingMap.put(sessionKey, new PendingRequest(request, requestTime, entry, body));
+        } else if (!HttpMethod.GET.equals(method) && !HttpMethod.HEAD.equals(method) && !HttpMethod.OPTIONS.equals(method)) {
+            cache.invalidate(request);
+        }
+        return delegate.filterRequest(sessionKey, request, headers, requestData);
+    }
+
+    @Override
+    public byte[] filterResponse(Http2SessionKey sessionKey, HttpResponse response, HttpHeaders headers, byte[] responseData) {
+        PendingRequest pending = pendingMap.remove(sessionKey);
+        if (pending == null) {
+            return delegate.filterResponse(sessionKey, response, headers, responseData);
+        }
+        int status = response.status().code();
+        if (status == HttpResponseStatus.NOT_MODIFIED.code() && pending.entry != null) {
+            cache.freshen(pending.entry, response.headers(), pending.requestTime);
+            HttpResponse cached = cache.createResponse(pending.entry, pending.entry.status, "REVALIDATED");
+            response.setStatus(cached.status());
+            if (headers.contains(":status")) {
+                headers.setInt(":status", cached.status().code());
+            }
+            for (Iterator<Map.Entry<String, String>> iterator = cached.headers().iteratorAsString(); iterator.hasNext(); ) {
+                String name = iterator.next().getKey();
+                headers.remove(name);
+                response.headers().remove(name);
+            }
+            for (Iterator<Map.Entry<String, String>> iterator = cached.headers().iteratorAsString(); iterator.hasNext(); ) {
+                Map.Entry<String, String> entry = iterator.next();
+                headers.add(entry.getKey(), entry.getValue());
+                response.headers().add(entry.getKey(), entry.getValue());
+            }
+            return delegate.filterResponse(sessionKey, response, headers, pending.body);
+        }
+        // 被包装的 filter 可能修改响应，先复制保存服务器的原始响应
+        cache.store(pending.request, status, headers, responseData, pending.requestTime);
+        return delegate.filterResponse(sessionKey, response, headers, responseData);
+    }
+
+    @Override
+    public byte[] filterPollingRequest(Http2SessionKey sessionKey, HttpRequest request, byte[] requestData, boolean newStream) {
+        return delegate.filterPollingRequest(sessionKey, request, requestData, newStream);
+    }
+
+    @Override
+    public byte[] filterPollingResponse(Http2SessionKey sessionKey, HttpResponse response, byte[] responseData, boolean endStream) {
+        return delegate.filterPollingResponse(sessionKey, response, responseData, endStream);
+    }
+
+    @Override
+    public int getMaxBufferedContentLength() {
+        return delegate.getMaxBufferedContentLength();
+    }
+
+    @Override
+    public void onStreamClosed(Http2SessionKey sessionKey) {
+        pendingMap.remove(sessionKey);
+        delegate.onStreamClosed(sessionKey);
+    }
+
+    @Override
+    public void onSessionClosed(Http2Session session) {
+        pendingMap.removeSession(session);
+        delegate.onSessionClosed(session);
+    }
+
+    @Override
+    public String toString() {
+        return "CachingHttp2Filter{" +
+                "delegate=" + delegate +
+                ", cache=" + cache +
+                '}';
+    }
+}
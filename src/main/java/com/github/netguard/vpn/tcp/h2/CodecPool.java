@@ -0,0 +1,70 @@
+package com.github.netguard.vpn.tcp.h2;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * {@link Inflater}/{@link Deflater} 持有原生内存，创建和 end 的代价都不小，这里按类型缓存少量实例复用。
+ */
+final class CodecPool {
+
+    private static final int MAX_POOLED = 32;
+
+    private static final Pool<Inflater> ZLIB_INFLATERS = new Pool<>();
+    private static final Pool<Inflater> RAW_INFLATERS = new Pool<>();
+    private static final Pool<Deflater> ZLIB_DEFLATERS = new Pool<>();
+    private static final Pool<Deflater> RAW_DEFLATERS = new Pool<>();
+
+    /**
+     * @param nowrap <code>true</code> 表示不带 zlib 头，用于 gzip 和裸 deflate
+     */
+    static Inflater borrowInflater(boolean nowrap) {
+        Inflater inflater = (nowrap ? RAW_INFLATERS : ZLIB_INFLATERS).poll();
+        return inflater == null ? new Inflater(nowrap) : inflater;
+    }
+
+    static void releaseInflater(Inflater inflater, boolean nowrap) {
+        inflater.reset();
+        if (!(nowrap ? RAW_INFLATERS : ZLIB_INFLATERS).offer(inflater)) {
+            inflater.end();
+        }
+    }
+
+    static Deflater borrowDeflater(boolean nowrap) {
+        Deflater deflater = (nowrap ? RAW_DEFLATERS : ZLIB_DEFLATERS).poll();
+        return deflater == null ? new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap) : deflater;
+    }
+
+    static void releaseDeflater(Deflater deflater, boolean nowrap) {
+        deflater.reset();
+        if (!(nowrap ? RAW_DEFLATERS : ZLIB_DEFLATERS).offer(deflater)) {
+            deflater.end();
+        }
+    }
+
+    private static class Pool<T> {
+        private final Queue<T> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+        T poll() {
+            T obj = queue.poll();
+            if (obj != null) {
+                size.decrementAndGet();
+            }
+            return obj;
+        }
+        boolean offer(T obj) {
+            if (size.incrementAndGet() > MAX_POOLED) {
+                size.decrementAndGet();
+                return false;
+            }
+            return queue.offer(obj);
+        }
+    }
+
+    private CodecPool() {
+    }
+
+}
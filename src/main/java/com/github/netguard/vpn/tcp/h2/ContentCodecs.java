@@ -0,0 +1,200 @@
+package com.github.netguard.vpn.tcp.h2;
+
+import io.airlift.compress.zstd.ZstdInputStream;
+import io.airlift.compress.zstd.ZstdOutputStream;
+import org.apache.commons.compress.compressors.brotli.BrotliCompressorInputStream;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+
+/**
+ * 流式的 Content-Encoding 解码/编码，支持 gzip、deflate、br 与 zstd，以及 <code>gzip, br</code> 这样的多重编码。
+ * 解码不会一次性生成完整的解压数组，并限制解压后的总长度，防止压缩炸弹。
+ */
+public final class ContentCodecs {
+
+    /**
+     * 默认解压后的最大长度
+     */
+    public static final long DEFAULT_MAX_DECODED_LENGTH = 64 * 1024 * 1024;
+
+    private static final String[] IDENTITY = {};
+
+    /**
+     * @return 是否能解码，<code>null</code> 与 <code>identity</code> 也算支持
+     */
+    public static boolean canDecode(String contentEncoding) {
+        for (String coding : split(contentEncoding)) {
+            switch (coding) {
+                case "identity":
+                case "gzip":
+                case "x-gzip":
+                case "deflate":
+                case "br":
+                case "zstd":
+                    break;
+                default:
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * brotli 只有解码实现，不能重新编码
+     *
+     * @return 是否能编码
+     */
+    public static boolean canEncode(String contentEncoding) {
+        for (String coding : split(contentEncoding)) {
+            switch (coding) {
+                case "identity":
+                case "gzip":
+                case "x-gzip":
+                case "deflate":
+                case "zstd":
+                    break;
+                default:
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 创建解码流，关闭返回的流会关闭 <code>in</code> 并归还池化的 {@link java.util.zip.Inflater}；创建失败时 <code>in</code> 已经关闭
+     *
+     * @param contentEncoding Content-Encoding 头，可以为 <code>null</code>
+     * @param maxDecodedLength 解压后的最大长度，超过时读取会抛出 {@link ContentTooLargeException}
+     * @throws UnsupportedOperationException 不支持的编码
+     */
+    public static InputStream newDecoder(String contentEncoding, InputStream in, long maxDecodedLength) throws IOException {
+        String[] codings = split(contentEncoding);
+        // 编码按应用顺序排列，解码时倒序
+        for (int i = codings.length - 1; i >= 0; i--) {
+            try {
+                in = newCodingDecoder(codings[i], in);
+            } catch (IOException | RuntimeException e) {
+                // 已经创建的解码器持有池化的 Inflater 或 zstd 的上下文
+                try {
+                    in.close();
+                } catch (IOException closeException) {
+                    e.addSuppressed(closeException);
+                }
+                throw e;
+            }
+        }
+        return new LimitedInputStream(in, contentEncoding, maxDecodedLength);
+    }
+
+    /**
+     * 创建编码流，必须关闭返回的流才会写出完整的压缩数据
+     *
+     * @throws UnsupportedOperationException 不支持的编码
+     */
+    public static OutputStream newEncoder(String contentEncoding, OutputStream out) throws IOException {
+        String[] codings = split(contentEncoding);
+        // 最先应用的编码最先接收数据，所以包在最外层
+        for (int i = codings.length - 1; i >= 0; i--) {
+            out = newCodingEncoder(codings[i], out);
+        }
+        return out;
+    }
+
+    private static InputStream newCodingDecoder(String coding, InputStream in) throws IOException {
+        switch (coding) {
+            case "identity":
+                return in;
+            case "gzip":
+            case "x-gzip":
+                return PooledInflaterInputStream.gzip(in);
+            case "deflate":
+                return PooledInflaterInputStream.deflate(in);
+            case "br":
+                return new BrotliCompressorInputStream(in);
+            case "zstd":
+                return new ZstdInputStream(in);
+            default:
+                throw new UnsupportedOperationException("contentEncoding=" + coding);
+        }
+    }
+
+    private static OutputStream newCodingEncoder(String coding, OutputStream out) throws IOException {
+        switch (coding) {
+            case "identity":
+                return out;
+            case "gzip":
+            case "x-gzip":
+                return PooledDeflaterOutputStream.gzip(out);
+            case "deflate":
+                return PooledDeflaterOutputStream.deflate(out);
+            case "zstd":
+                return new ZstdOutputStream(out);
+            default:
+                throw new UnsupportedOperationException("contentEncoding=" + coding);
+        }
+    }
+
+    private static String[] split(String contentEncoding) {
+        if (contentEncoding == null || contentEncoding.trim().isEmpty()) {
+            return IDENTITY;
+        }
+        String[] codings = contentEncoding.split(",");
+        for (int i = 0; i < codings.length; i++) {
+            codings[i] = codings[i].trim().toLowerCase(Locale.ROOT);
+        }
+        return codings;
+    }
+
+    private static class LimitedInputStream extends FilterInputStream {
+        private final String contentEncoding;
+        private final long maxLength;
+        private long length;
+        LimitedInputStream(InputStream in, String contentEncoding, long maxLength) {
+            super(in);
+            this.contentEncoding = contentEncoding;
+            this.maxLength = maxLength;
+        }
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count(1);
+            }
+            return b;
+        }
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count(n);
+            }
+            return n;
+        }
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            if (skipped > 0) {
+                count(skipped);
+            }
+            return skipped;
+        }
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+        private void count(long n) throws ContentTooLargeException {
+            length += n;
+            if (length > maxLength) {
+                throw new ContentTooLargeException(contentEncoding, maxLength);
+            }
+        }
+    }
+
+    private ContentCodecs() {
+    }
+
+}
@@ -0,0 +1,21 @@
+package com.github.netguard.vpn.tcp.h2;
+
+import java.io.IOException;
+
+/**
+ * 解压后的内容超过了限制，通常是压缩炸弹
+ */
+public class ContentTooLargeException extends IOException {
+
+    private final long maxLength;
+
+    public ContentTooLargeException(String contentEncoding, long maxLength) {
+        super("Decoded content exceeds " + maxLength + " bytes: contentEncoding=" + contentEncoding);
+        this.maxLength = maxLength;
+    }
+
+    public long getMaxLength() {
+        return maxLength;
+    }
+
+}
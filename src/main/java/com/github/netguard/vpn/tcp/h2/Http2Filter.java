@@ -6,6 +6,8 @@ import io.netty.handler.codec.http.HttpResponse;
 
 public interface Http2Filter {
 
+    int DEFAULT_MAX_BUFFERED_CONTENT_LENGTH = 8 * 1024 * 1024;
+
     /**
      * 是否过滤对应 hostName 的 http2 请求与响应
      * @return <code>true</code>才会针对特定主机名的请求与响应执行 filter_* 过滤
@@ -26,4 +28,24 @@ public interface Http2Filter {
      */
     CancelResult cancelRequest(HttpRequest request, byte[] requestData, boolean polling);
 
+    /**
+     * 需要过滤的 http3 请求或响应体、共享上游连接的 http2 响应体最多缓冲多少字节再整体交给 filterRequest/filterResponse，
+     * 超过后已缓冲的部分与后续数据按到达顺序交给 filterPollingRequest/filterPollingResponse 增量过滤，不再整体缓冲
+     */
+    default int getMaxBufferedContentLength() {
+        return DEFAULT_MAX_BUFFERED_CONTENT_LENGTH;
+    }
+
+    /**
+     * stream 被 RST_STREAM 重置或关闭，之后不会再有对应的响应
+     */
+    default void onStreamClosed(Http2SessionKey sessionKey) {
+    }
+
+    /**
+     * 连接关闭，该连接上未完成的请求都不会再有响应
+     */
+    default void onSessionClosed(Http2Session session) {
+    }
+
 }
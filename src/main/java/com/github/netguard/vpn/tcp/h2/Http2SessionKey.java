@@ -18,6 +18,10 @@ public class Http2SessionKey {
         return session;
     }
 
+    public int getStreamId() {
+        return streamId;
+    }
+
     public boolean isH3() {
         return h3;
     }
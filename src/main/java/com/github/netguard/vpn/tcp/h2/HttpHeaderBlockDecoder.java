@@ -17,11 +17,11 @@ package com.github.netguard.vpn.tcp.h2;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 import com.twitter.http2.HttpHeaderBlockFrame;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufInputStream;
-import io.netty.buffer.Unpooled;
 import io.netty.handler.codec.http.HttpHeaders;
 
 import com.twitter.hpack.Decoder;
@@ -35,7 +35,19 @@ public final class HttpHeaderBlockDecoder {
 
     private static final HeaderListener NULL_HEADER_LISTENER = new NullHeaderListener();
 
+    private static final int STRING_CACHE_SIZE = 64; // power of two
+    private static final int MAX_CACHED_NAME_LENGTH = 64;
+
     private final Decoder decoder;
+
+    /**
+     * Indexed fields come back as the very same arrays held by the decoder's static and dynamic table,
+     * so strings decoded from them are reused instead of being decoded again for every header block.
+     */
+    private final byte[][] cachedNames = new byte[STRING_CACHE_SIZE][];
+    private final String[] cachedNameStrings = new String[STRING_CACHE_SIZE];
+    private final byte[][] cachedValues = new byte[STRING_CACHE_SIZE][];
+    private final String[] cachedValueStrings = new String[STRING_CACHE_SIZE];
     private ByteBuf cumulation;
 
     public HttpHeaderBlockDecoder(int maxHeaderSize, int maxHeaderTableSize) {
@@ -55,14 +67,14 @@ public final class HttpHeaderBlockDecoder {
     public void decode(ByteBuf headerBlock, final HttpHeaderBlockFrame frame) throws IOException {
         HeaderListener headerListener = NULL_HEADER_LISTENER;
         if (frame != null) {
-            headerListener = new HeaderListenerImpl(frame.headers());
+            headerListener = new HeaderListenerImpl(frame.headers(), this);
         }
 
         if (cumulation == null) {
             decodeInputStream(new ByteBufInputStream(headerBlock), headerListener);
             log.debug("decode headerBlock={}", headerBlock);
             if (headerBlock.isReadable()) {
-                cumulation = Unpooled.buffer(headerBlock.readableBytes());
+                cumulation = PooledBuffers.ALLOCATOR.heapBuffer(headerBlock.readableBytes());
                 cumulation.writeBytes(headerBlock);
             }
         } else {
@@ -108,6 +120,44 @@ public final class HttpHeaderBlockDecoder {
         }
     }
 
+    /**
+     * Names are matched by content, literal names of a connection repeat as well.
+     */
+    private String nameString(byte[] name) {
+        if (name.length > MAX_CACHED_NAME_LENGTH) {
+            return new String(name, StandardCharsets.UTF_8);
+        }
+        int h = 0;
+        for (byte b : name) {
+            h = 31 * h + b;
+        }
+        int slot = (h ^ (h >>> 16)) & (STRING_CACHE_SIZE - 1);
+        byte[] cached = cachedNames[slot];
+        if (cached != null && Arrays.equals(cached, name)) {
+            return cachedNameStrings[slot];
+        }
+        String str = new String(name, StandardCharsets.UTF_8);
+        cachedNames[slot] = name;
+        cachedNameStrings[slot] = str;
+        return str;
+    }
+
+    /**
+     * Values are matched by identity only: literal values are fresh arrays and rarely repeat.
+     *
+     * @return <code>null</code> if not cached
+     */
+    private String cachedValueString(byte[] value) {
+        int slot = System.identityHashCode(value) & (STRING_CACHE_SIZE - 1);
+        return cachedValues[slot] == value ? cachedValueStrings[slot] : null;
+    }
+
+    private void cacheValueString(byte[] value, String str) {
+        int slot = System.identityHashCode(value) & (STRING_CACHE_SIZE - 1);
+        cachedValues[slot] = value;
+        cachedValueStrings[slot] = str;
+    }
+
     private static final class NullHeaderListener implements HeaderListener {
         @Override
         public void addHeader(byte[] name, byte[] value, boolean sensitive) {
@@ -118,14 +168,16 @@ public final class HttpHeaderBlockDecoder {
     private static final class HeaderListenerImpl implements HeaderListener {
 
         private final HttpHeaders headers;
+        private final HttpHeaderBlockDecoder stringCache;
 
-        HeaderListenerImpl(HttpHeaders headers) {
+        HeaderListenerImpl(HttpHeaders headers, HttpHeaderBlockDecoder stringCache) {
             this.headers = headers;
+            this.stringCache = stringCache;
         }
 
         @Override
         public void addHeader(byte[] name, byte[] value, boolean sensitive) {
-            String nameStr = new String(name, StandardCharsets.UTF_8);
+            String nameStr = stringCache.nameString(name);
 
             // check for empty value
             if (value.length == 0) {
@@ -133,6 +185,12 @@ public final class HttpHeaderBlockDecoder {
                 return;
             }
 
+            String cached = stringCache.cachedValueString(value);
+            if (cached != null) {
+                addHeader(nameStr, cached);
+                return;
+            }
+
             // Sec. 8.1.3.3. Header Field Ordering
             int index = 0;
             int offset = 0;
@@ -144,6 +202,9 @@ public final class HttpHeaderBlockDecoder {
                     addHeader(nameStr, "");
                 } else {
                     String valueStr = new String(value, offset, index - offset, StandardCharsets.UTF_8);
+                    if (offset == 0 && index == value.length) {
+                        stringCache.cacheValueString(value, valueStr);
+                    }
                     addHeader(nameStr, valueStr);
                 }
                 index++;
@@ -19,13 +19,14 @@ import com.twitter.hpack.NetGuardEncoder;
 import com.twitter.http2.HttpHeaderBlockFrame;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufOutputStream;
-import io.netty.buffer.Unpooled;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.util.List;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Locale;
 
 public class HttpHeaderBlockEncoder {
@@ -35,10 +36,16 @@ public class HttpHeaderBlockEncoder {
     private static final byte[] COOKIE = {'c', 'o', 'o', 'k', 'i', 'e'};
     private static final byte[] EMPTY = {};
 
+    /**
+     * Upper bound of {@link #nameCache}, a connection normally sees a few dozen distinct names.
+     */
+    private static final int MAX_CACHED_NAMES = 256;
+
     private int encoderMaxHeaderTableSize;
     private int decoderMaxHeaderTableSize;
     private int maxHeaderTableSize;
     private final NetGuardEncoder encoder;
+    private final Map<String, byte[]> nameCache = new HashMap<>();
 
     /**
      * Create a new instance.
@@ -79,34 +86,38 @@ public class HttpHeaderBlockEncoder {
      * Encode the header block frame.
      */
     public synchronized ByteBuf encode(HttpHeaderBlockFrame frame) throws IOException {
-        ByteBuf buf = Unpooled.buffer();
-        ByteBufOutputStream out = new ByteBufOutputStream(buf);
-
-        // The current allowable max header table size is the
-        // minimum of the encoder and decoder allowable sizes
-        int allowableHeaderTableSize = Math.min(encoderMaxHeaderTableSize, decoderMaxHeaderTableSize);
-
-        // maxHeaderTableSize will hold the smallest size seen the
-        // last call to encode. This might be smaller than the
-        // current allowable max header table size
-        if (maxHeaderTableSize < allowableHeaderTableSize) {
-            encoder.setMaxHeaderTableSize(out, maxHeaderTableSize);
-        }
-
-        // Check if the current allowable size is equal to the encoder's
-        // capacity and set the new size if necessary
-        if (allowableHeaderTableSize != encoder.getMaxHeaderTableSize()) {
-            encoder.setMaxHeaderTableSize(out, allowableHeaderTableSize);
-        }
+        ByteBuf buf = PooledBuffers.ALLOCATOR.heapBuffer();
+        try {
+            ByteBufOutputStream out = new ByteBufOutputStream(buf);
+
+            // The current allowable max header table size is the
+            // minimum of the encoder and decoder allowable sizes
+            int allowableHeaderTableSize = Math.min(encoderMaxHeaderTableSize, decoderMaxHeaderTableSize);
+
+            // maxHeaderTableSize will hold the smallest size seen the
+            // last call to encode. This might be smaller than the
+            // current allowable max header table size
+            if (maxHeaderTableSize < allowableHeaderTableSize) {
+                encoder.setMaxHeaderTableSize(out, maxHeaderTableSize);
+            }
 
-        // Store the current allowable size for the next call
-        maxHeaderTableSize = allowableHeaderTableSize;
+            // Check if the current allowable size is equal to the encoder's
+            // capacity and set the new size if necessary
+            if (allowableHeaderTableSize != encoder.getMaxHeaderTableSize()) {
+                encoder.setMaxHeaderTableSize(out, allowableHeaderTableSize);
+            }
 
-        // Now we can encode headers
-        for (String name : frame.headers().names()) {
-            if ("cookie".equalsIgnoreCase(name)) {
-                // Sec. 8.1.3.4. Cookie Header Field
-                for (String value : frame.headers().getAll(name)) {
+            // Store the current allowable size for the next call
+            maxHeaderTableSize = allowableHeaderTableSize;
+
+            // Now we can encode headers, in insertion order and without the names()/getAll() copies
+            Iterator<Map.Entry<CharSequence, CharSequence>> iterator = frame.headers().iteratorCharSequence();
+            while (iterator.hasNext()) {
+                Map.Entry<CharSequence, CharSequence> entry = iterator.next();
+                String name = entry.getKey().toString();
+                String value = entry.getValue().toString();
+                if ("cookie".equalsIgnoreCase(name)) {
+                    // Sec. 8.1.3.4. Cookie Header Field
                     for (String crumb : value.split(";")) {
                         byte[] valueBytes = crumb.trim().getBytes(StandardCharsets.UTF_8);
                         if (log.isDebugEnabled()) {
@@ -114,28 +125,35 @@ public class HttpHeaderBlockEncoder {
                         }
                         encoder.encodeHeader(out, COOKIE, valueBytes, true);
                     }
-                }
-            } else {
-                byte[] nameBytes = name.toLowerCase(Locale.ENGLISH).getBytes(StandardCharsets.UTF_8);
-                // Sec. 8.1.3.3. Header Field Ordering
-                List<String> values = frame.headers().getAll(name);
-                if (values.size() == 0) {
-                    if (log.isDebugEnabled()) {
-                        log.debug("encodeEmptyHeader name={}", name.toLowerCase(Locale.ENGLISH));
-                    }
-                    encoder.encodeHeader(out, nameBytes, EMPTY, false);
                 } else {
-                    for (String value : values) {
-                        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
-                        if (log.isDebugEnabled()) {
-                            log.debug("encodeHeader name={}, value={}", name.toLowerCase(Locale.ENGLISH), value);
-                        }
-                        encoder.encodeHeader(out, nameBytes, valueBytes, false);
+                    byte[] nameBytes = getNameBytes(name);
+                    byte[] valueBytes = value.isEmpty() ? EMPTY : value.getBytes(StandardCharsets.UTF_8);
+                    if (log.isDebugEnabled()) {
+                        log.debug("encodeHeader name={}, value={}", new String(nameBytes, StandardCharsets.UTF_8), value);
                     }
+                    encoder.encodeHeader(out, nameBytes, valueBytes, false);
                 }
             }
+        } catch (IOException | RuntimeException e) {
+            buf.release();
+            throw e;
         }
 
         return buf;
     }
+
+    /**
+     * Lower cased name bytes, shared across header blocks. The encoder copies them before indexing, so sharing is safe.
+     */
+    private byte[] getNameBytes(String name) {
+        byte[] nameBytes = nameCache.get(name);
+        if (nameBytes == null) {
+            nameBytes = name.toLowerCase(Locale.ENGLISH).getBytes(StandardCharsets.UTF_8);
+            if (nameCache.size() >= MAX_CACHED_NAMES) {
+                nameCache.clear();
+            }
+            nameCache.put(name, nameBytes);
+        }
+        return nameBytes;
+    }
 }
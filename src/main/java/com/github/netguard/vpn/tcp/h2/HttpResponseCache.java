@@ -0,0 +1,722 @@
+package com.github.netguard.vpn.tcp.h2;
+
+import io.netty.handler.codec.DateFormatter;
+import io.netty.handler.codec.http.DefaultHttpHeadersFactory;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * 拦截到的 http 响应的共享缓存，按 Cache-Control/Expires、ETag/Last-Modified 与 Vary 的语义保存 GET 请求的响应。
+ * 最近使用的响应按 LRU 保留在内存中，超出内存上限时转存到内存映射的磁盘文件，文件写满后从最早写入的位置循环覆盖。
+ * 磁盘文件只作为当前进程的二级缓存，索引不落盘。配合 {@link CachingHttp2Filter} 使用。
+ */
+public class HttpResponseCache implements Closeable {
+
+    /**
+     * 缓存命中的响应带有该头：<code>HIT</code> 直接由缓存应答，<code>REVALIDATED</code> 经服务器 304 确认后由缓存应答
+     */
+    public static final String CACHE_HEADER = "X-Netguard-Cache";
+
+    private static final Set<Integer> CACHEABLE_STATUS = new HashSet<>(Arrays.asList(200, 203, 204, 300, 301, 308, 404, 410));
+    private static final long MAX_HEURISTIC_LIFETIME = TimeUnit.DAYS.toMillis(1);
+    private static final Set<String> EXCLUDED_HEADERS = new HashSet<>(Arrays.asList(
+            "connection", "keep-alive", "proxy-connection", "transfer-encoding", "te", "trailer", "upgrade",
+            "proxy-authenticate", "proxy-authorization", "age", CACHE_HEADER.toLowerCase(Locale.ROOT)));
+
+    static final class Entry {
+        final String key;
+        /**
+         * Vary 中列出的请求头及保存时请求中的取值，未携带的请求头取值为 <code>null</code>
+         */
+        final Map<String, String> varyValues;
+        final int length;
+        int status;
+        HttpHeaders headers;
+        /**
+         * 在内存中时不为 <code>null</code>，否则在 {@link #region} 中
+         */
+        byte[] body;
+        Region region;
+        long responseTime;
+        long initialAge;
+        long lifetime;
+        String etag;
+        String lastModified;
+        boolean noCache;
+        boolean mustRevalidate;
+        boolean shared;
+
+        Entry(String key, Map<String, String> varyValues, byte[] body) {
+            this.key = key;
+            this.varyValues = varyValues;
+            this.body = body;
+            this.length = body.length;
+        }
+
+        boolean hasValidator() {
+            return etag != null || lastModified != null;
+        }
+    }
+
+    static final class Region {
+        final Entry entry;
+        final int offset;
+
+        Region(Entry entry, int offset) {
+            this.entry = entry;
+            this.offset = offset;
+        }
+    }
+
+    private final long maxMemoryBytes;
+    private final long maxEntryBytes;
+    private final LongSupplier clock;
+
+    private final Map<String, List<Entry>> index = new HashMap<>();
+    private final LinkedHashMap<Entry, Entry> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes;
+
+    private final File diskFile;
+    private final MappedByteBuffer disk;
+    /**
+     * 按写入顺序排列的磁盘条目，即按文件偏移循环递增
+     */
+    private final ArrayDeque<Region> regions = new ArrayDeque<>();
+    private int writePosition;
+    private long diskBytes;
+
+    private long hitCount;
+    private long missCount;
+    private long revalidatedCount;
+    private long storeCount;
+    private long bytesSaved;
+
+    /**
+     * 只使用内存缓存
+     */
+    public HttpResponseCache(long maxMemoryBytes) {
+        this(maxMemoryBytes, null, null, System::currentTimeMillis);
+    }
+
+    /**
+     * @param diskFile 二级缓存文件，会被截断为 <code>maxDiskBytes</code> 并映射到内存
+     */
+    public HttpResponseCache(long maxMemoryBytes, File diskFile, int maxDiskBytes) throws IOException {
+        this(maxMemoryBytes, diskFile, map(diskFile, maxDiskBytes), System::currentTimeMillis);
+    }
+
+    HttpResponseCache(long maxMemoryBytes, File diskFile, MappedByteBuffer disk, LongSupplier clock) {
+        if (maxMemoryBytes <= 0) {
+            throw new IllegalArgumentException("maxMemoryBytes=" + maxMemoryBytes);
+        }
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.diskFile = diskFile;
+        this.disk = disk;
+        this.clock = clock;
+        this.maxEntryBytes = Math.max(maxMemoryBytes, disk == null ? 0 : disk.capacity()) / 4;
+    }
+
+    static MappedByteBuffer map(File diskFile, int maxDiskBytes) throws IOException {
+        if (maxDiskBytes <= 0) {
+            throw new IllegalArgumentException("maxDiskBytes=" + maxDiskBytes);
+        }
+        // 映射建立后与 channel 无关，关闭文件不影响映射
+        try (RandomAccessFile file = new RandomAccessFile(diskFile, "rw")) {
+            file.setLength(maxDiskBytes);
+            return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, maxDiskBytes);
+        }
+    }
+
+    long now() {
+        return clock.getAsLong();
+    }
+
+    static String cacheKey(HttpRequest request) {
+        String host = request.headers().get(HttpHeaderNames.HOST);
+        if (host == null) {
+            host = request.headers().get(":authority");
+        }
+        return host == null ? null : host.toLowerCase(Locale.ROOT) + request.uri();
+    }
+
+    /**
+     * @return 可以由缓存应答的请求：GET、非 Range、没有 no-store
+     */
+    static boolean isCacheableRequest(HttpRequest request) {
+        HttpHeaders headers = request.headers();
+        return HttpMethod.GET.equals(request.method()) &&
+                !headers.contains(HttpHeaderNames.RANGE) &&
+                !CacheControl.parse(headers).has("no-store");
+    }
+
+    /**
+     * 新鲜的缓存直接应答，由 {@link Http2Filter#cancelRequest} 返回
+     */
+    synchronized CancelResult serve(HttpRequest request) {
+        if (!isCacheableRequest(request)) {
+            return null;
+        }
+        Entry entry = find(request);
+        if (entry == null || !isFresh(entry, request.headers())) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        bytesSaved += entry.length;
+        touch(entry);
+        HttpHeaders requestHeaders = request.headers();
+        if (entry.status == 200 && isNotModified(entry, requestHeaders)) {
+            HttpResponse response = createResponse(entry, HttpResponseStatus.NOT_MODIFIED.code(), "HIT");
+            response.headers().remove(HttpHeaderNames.CONTENT_LENGTH);
+            return CancelResult.fake(response, new byte[0]);
+        }
+        return CancelResult.fake(createResponse(entry, entry.status, "HIT"), readBody(entry));
+    }
+
+    /**
+     * @return 已过期但带有 ETag 或 Last-Modified、可以向服务器条件请求确认的缓存
+     */
+    synchronized Entry findValidatable(HttpRequest request) {
+        if (!isCacheableRequest(request)) {
+            return null;
+        }
+        Entry entry = find(request);
+        return entry != null && entry.hasValidator() ? entry : null;
+    }
+
+    /**
+     * 服务器返回 304 后更新缓存的响应头与新鲜度
+     */
+    synchronized void freshen(Entry entry, HttpHeaders notModifiedHeaders, long requestTime) {
+        HttpHeaders headers = entry.headers;
+        for (Iterator<Map.Entry<String, String>> iterator = notModifiedHeaders.iteratorAsString(); iterator.hasNext(); ) {
+            Map.Entry<String, String> header = iterator.next();
+            String name = header.getKey();
+            if (isStoredHeader(name) && !HttpHeaderNames.CONTENT_LENGTH.contentEqualsIgnoreCase(name)) {
+                headers.remove(name);
+            }
+        }
+        for (Iterator<Map.Entry<String, String>> iterator = notModifiedHeaders.iteratorAsString(); iterator.hasNext(); ) {
+            Map.Entry<String, String> header = iterator.next();
+            String name = header.getKey();
+            if (isStoredHeader(name) && !HttpHeaderNames.CONTENT_LENGTH.contentEqualsIgnoreCase(name)) {
+                headers.add(name, header.getValue());
+            }
+        }
+        updateFreshness(entry, requestTime, clock.getAsLong());
+        revalidatedCount++;
+        bytesSaved += entry.length;
+        if (index.getOrDefault(entry.key, Collections.emptyList()).contains(entry)) {
+            touch(entry);
+        }
+    }
+
+    /**
+     * 保存上游响应，不可缓存的响应会被忽略
+     *
+     * @param requestTime 请求发往服务器的时间
+     * @return 是否保存
+     */
+    synchronized boolean store(HttpRequest request, int status, HttpHeaders responseHeaders, byte[] body, long requestTime) {
+        if (!isCacheableRequest(request) || !CACHEABLE_STATUS.contains(status) || body == null || body.length > maxEntryBytes) {
+            return false;
+        }
+        String key = cacheKey(request);
+        if (key == null) {
+            return false;
+        }
+        CacheControl responseControl = CacheControl.parse(responseHeaders);
+        if (responseControl.has("no-store") || responseControl.has("private") ||
+                responseHeaders.contains(HttpHeaderNames.SET_COOKIE)) {
+            return false;
+        }
+        boolean shared = responseControl.has("public") || responseControl.has("s-maxage") || responseControl.has("must-revalidate");
+        if (request.headers().contains(HttpHeaderNames.AUTHORIZATION) && !shared) {
+            return false;
+        }
+        Map<String, String> varyValues = new HashMap<>();
+        for (String vary : responseHeaders.getAll(HttpHeaderNames.VARY)) {
+            for (String name : vary.split(",")) {
+                name = name.trim().toLowerCase(Locale.ROOT);
+                if ("*".equals(name)) {
+                    return false;
+                }
+                if (!name.isEmpty()) {
+                    varyValues.put(name, requestHeaderValue(request.headers(), name));
+                }
+            }
+        }
+
+        Entry entry = new Entry(key, varyValues, body.clone());
+        entry.status = status;
+        entry.shared = shared;
+        entry.headers = DefaultHttpHeadersFactory.headersFactory().withValidation(false).newHeaders();
+        for (Iterator<Map.Entry<String, String>> iterator = responseHeaders.iteratorAsString(); iterator.hasNext(); ) {
+            Map.Entry<String, String> header = iterator.next();
+            if (isStoredHeader(header.getKey())) {
+                entry.headers.add(header.getKey(), header.getValue());
+            }
+        }
+        updateFreshness(entry, requestTime, clock.getAsLong());
+        if (entry.lifetime <= 0 && !entry.hasValidator()) {
+            return false;
+        }
+
+        List<Entry> variants = index.computeIfAbsent(key, k -> new ArrayList<>(1));
+        for (Iterator<Entry> iterator = variants.iterator(); iterator.hasNext(); ) {
+            Entry old = iterator.next();
+            if (old.varyValues.equals(varyValues)) {
+                iterator.remove();
+                discard(old);
+            }
+        }
+        variants.add(entry);
+        memory.put(entry, entry);
+        memoryBytes += entry.length;
+        storeCount++;
+        trimMemory();
+        return true;
+    }
+
+    /**
+     * 同一 URL 上的非安全方法请求使该 URL 的缓存失效
+     */
+    synchronized void invalidate(HttpRequest request) {
+        String key = cacheKey(request);
+        List<Entry> variants = key == null ? null : index.remove(key);
+        if (variants != null) {
+            for (Entry entry : variants) {
+                discard(entry);
+            }
+        }
+    }
+
+    synchronized byte[] readBody(Entry entry) {
+        if (entry.body != null) {
+            return entry.body.clone();
+        }
+        Region region = entry.region;
+        if (region == null) {
+            return null;
+        }
+        byte[] data = new byte[entry.length];
+        ByteBuffer buffer = disk.duplicate();
+        buffer.position(region.offset);
+        buffer.get(data);
+        return data;
+    }
+
+    synchronized HttpResponse createResponse(Entry entry, int status, String cacheStatus) {
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.valueOf(status),
+                DefaultHttpHeadersFactory.headersFactory().withValidation(false));
+        response.headers().set(entry.headers);
+        response.headers().set(HttpHeaderNames.AGE, TimeUnit.MILLISECONDS.toSeconds(currentAge(entry)));
+        response.headers().set(CACHE_HEADER, cacheStatus);
+        return response;
+    }
+
+    private Entry find(HttpRequest request) {
+        String key = cacheKey(request);
+        List<Entry> variants = key == null ? null : index.get(key);
+        if (variants == null) {
+            return null;
+        }
+        boolean authorization = request.headers().contains(HttpHeaderNames.AUTHORIZATION);
+        for (Entry entry : variants) {
+            if (authorization && !entry.shared) {
+                continue;
+            }
+            boolean match = true;
+            for (Map.Entry<String, String> vary : entry.varyValues.entrySet()) {
+                String value = requestHeaderValue(request.headers(), vary.getKey());
+                if (value == null ? vary.getValue() != null : !value.equals(vary.getValue())) {
+                    match = false;
+                    break;
+                }
+            }
+            if (match) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private boolean isFresh(Entry entry, HttpHeaders requestHeaders) {
+        if (entry.noCache) {
+            return false;
+        }
+        CacheControl requestControl = CacheControl.parse(requestHeaders);
+        if (requestControl.has("no-cache") ||
+                (!requestControl.has("cache-control") && "no-cache".equalsIgnoreCase(requestHeaders.get(HttpHeaderNames.PRAGMA)))) {
+            return false;
+        }
+        long age = currentAge(entry);
+        long maxAge = requestControl.getSeconds("max-age");
+        if (maxAge >= 0 && age > TimeUnit.SECONDS.toMillis(maxAge)) {
+            return false;
+        }
+        long minFresh = requestControl.getSeconds("min-fresh");
+        if (minFresh > 0) {
+            age += TimeUnit.SECONDS.toMillis(minFresh);
+        }
+        return age < entry.lifetime;
+    }
+
+    private static boolean isNotModified(Entry entry, HttpHeaders requestHeaders) {
+        String ifNoneMatch = requestHeaders.get(HttpHeaderNames.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            if (entry.etag == null) {
+                return false;
+            }
+            String etag = weakTag(entry.etag);
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if ("*".equals(tag) || weakTag(tag).equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        String ifModifiedSince = requestHeaders.get(HttpHeaderNames.IF_MODIFIED_SINCE);
+        if (ifModifiedSince != null && entry.lastModified != null) {
+            Date since = DateFormatter.parseHttpDate(ifModifiedSince);
+            Date lastModified = DateFormatter.parseHttpDate(entry.lastModified);
+            return since != null && lastModified != null && !lastModified.after(since);
+        }
+        return false;
+    }
+
+    private static String weakTag(String tag) {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+
+    /**
+     * RFC 9111 4.2：新鲜期依次取 s-maxage、max-age、Expires，都没有时对带 Last-Modified 的响应取其距今时长的 1/10
+     */
+    private static void updateFreshness(Entry entry, long requestTime, long responseTime) {
+        HttpHeaders headers = entry.headers;
+        CacheControl control = CacheControl.parse(headers);
+        Date date = parseDate(headers.get(HttpHeaderNames.DATE));
+        long dateValue = date == null ? responseTime : date.getTime();
+        long ageValue = Math.max(0, parseLong(headers.get(HttpHeaderNames.AGE)));
+        long apparentAge = Math.max(0, responseTime - dateValue);
+        long correctedAge = TimeUnit.SECONDS.toMillis(ageValue) + Math.max(0, responseTime - requestTime);
+        entry.responseTime = responseTime;
+        entry.initialAge = Math.max(apparentAge, correctedAge);
+        entry.etag = headers.get(HttpHeaderNames.ETAG);
+        entry.lastModified = headers.get(HttpHeaderNames.LAST_MODIFIED);
+        entry.noCache = control.has("no-cache");
+        entry.mustRevalidate = control.has("must-revalidate") || control.has("proxy-revalidate");
+
+        long sMaxAge = control.getSeconds("s-maxage");
+        long maxAge = control.getSeconds("max-age");
+        String expires = headers.get(HttpHeaderNames.EXPIRES);
+        if (sMaxAge >= 0) {
+            entry.lifetime = TimeUnit.SECONDS.toMillis(sMaxAge);
+        } else if (maxAge >= 0) {
+            entry.lifetime = TimeUnit.SECONDS.toMillis(maxAge);
+        } else if (expires != null) {
+            Date expiresDate = parseDate(expires);
+            entry.lifetime = expiresDate == null ? 0 : Math.max(0, expiresDate.getTime() - dateValue);
+        } else {
+            Date lastModified = parseDate(entry.lastModified);
+            if (lastModified != null && !entry.mustRevalidate && lastModified.getTime() < dateValue) {
+                entry.lifetime = Math.min(MAX_HEURISTIC_LIFETIME, (dateValue - lastModified.getTime()) / 10);
+            } else {
+                entry.lifetime = 0;
+            }
+        }
+    }
+
+    private long currentAge(Entry entry) {
+        return entry.initialAge + Math.max(0, clock.getAsLong() - entry.responseTime);
+    }
+
+    private static boolean isStoredHeader(String name) {
+        if (name.isEmpty() || name.charAt(0) == ':') {
+            return false;
+        }
+        String lower = name.toLowerCase(Locale.ROOT);
+        return !EXCLUDED_HEADERS.contains(lower) &&
+                !lower.startsWith("x-netguard-") &&
+                !lower.startsWith("x-http2-") &&
+                !lower.startsWith("x-akamai-");
+    }
+
+    private static String requestHeaderValue(HttpHeaders headers, String name) {
+        List<String> values = headers.getAll(name);
+        if (values.isEmpty()) {
+            return null;
+        }
+        return values.size() == 1 ? values.get(0).trim() : String.join(",", values).trim();
+    }
+
+    private static Date parseDate(String value) {
+        return value == null ? null : DateFormatter.parseHttpDate(value);
+    }
+
+    private static long parseLong(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void touch(Entry entry) {
+        if (entry.body != null) {
+            memory.get(entry);
+        } else if (entry.region != null && entry.length <= maxMemoryBytes / 4) {
+            // 磁盘上再次命中的响应提升回内存
+            entry.body = readBody(entry);
+            entry.region = null;
+            memory.put(entry, entry);
+            memoryBytes += entry.length;
+            trimMemory();
+        }
+    }
+
+    /**
+     * 内存超出上限时按 LRU 淘汰，有磁盘文件时转存到磁盘
+     */
+    private void trimMemory() {
+        for (Iterator<Entry> iterator = memory.keySet().iterator(); memoryBytes > maxMemoryBytes && iterator.hasNext(); ) {
+            Entry entry = iterator.next();
+            iterator.remove();
+            memoryBytes -= entry.length;
+            if (disk != null && writeDisk(entry)) {
+                entry.body = null;
+            } else {
+                entry.body = null;
+                removeIndex(entry);
+            }
+        }
+    }
+
+    private boolean writeDisk(Entry entry) {
+        int capacity = disk.capacity();
+        int length = entry.length;
+        if (length > capacity) {
+            return false;
+        }
+        if (writePosition + length > capacity) {
+            // 文件尾部放不下，丢弃尾部上一轮写入的条目后从头开始写
+            while (!regions.isEmpty() && regions.peekFirst().offset >= writePosition) {
+                evictRegion(regions.pollFirst());
+            }
+            writePosition = 0;
+        }
+        int end = writePosition + length;
+        while (!regions.isEmpty() && regions.peekFirst().offset >= writePosition && regions.peekFirst().offset < end) {
+            evictRegion(regions.pollFirst());
+        }
+        ByteBuffer buffer = disk.duplicate();
+        buffer.position(writePosition);
+        buffer.put(entry.body);
+        Region region = new Region(entry, writePosition);
+        regions.addLast(region);
+        entry.region = region;
+        diskBytes += length;
+        writePosition = end;
+        return true;
+    }
+
+    private void evictRegion(Region region) {
+        Entry entry = region.entry;
+        diskBytes -= entry.length;
+        if (entry.region == region) {
+            entry.region = null;
+            if (entry.body == null) {
+                removeIndex(entry);
+            }
+        }
+    }
+
+    private void discard(Entry entry) {
+        if (entry.body != null && memory.remove(entry) != null) {
+            memoryBytes -= entry.length;
+        }
+        entry.body = null;
+        // 磁盘区域保留在 regions 中，循环覆盖时才真正回收
+        entry.region = null;
+    }
+
+    private void removeIndex(Entry entry) {
+        List<Entry> variants = index.get(entry.key);
+        if (variants != null && variants.remove(entry) && variants.isEmpty()) {
+            index.remove(entry.key);
+        }
+    }
+
+    public synchronized void clear() {
+        for (List<Entry> variants : index.values()) {
+            for (Entry entry : variants) {
+                entry.body = null;
+                entry.region = null;
+            }
+        }
+        index.clear();
+        memory.clear();
+        memoryBytes = 0;
+        regions.clear();
+        writePosition = 0;
+        diskBytes = 0;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        clear();
+        if (diskFile != null) {
+            if (!diskFile.delete()) {
+                diskFile.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * @return 由缓存直接应答的次数
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return 可缓存的请求未命中或缓存已过期的次数
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return 服务器返回 304 后由缓存补全响应的次数
+     */
+    public synchronized long getRevalidatedCount() {
+        return revalidatedCount;
+    }
+
+    public synchronized long getStoreCount() {
+        return storeCount;
+    }
+
+    /**
+     * @return 直接命中与 304 确认后由缓存提供的响应体字节数
+     */
+    public synchronized long getBytesSaved() {
+        return bytesSaved;
+    }
+
+    /**
+     * @return 可缓存请求中直接命中的比例
+     */
+    public synchronized double getHitRatio() {
+        long total = hitCount + missCount;
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    public synchronized long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    public synchronized long getDiskBytes() {
+        return diskBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "HttpResponseCache{" +
+                "urls=" + index.size() +
+                ", memoryBytes=" + memoryBytes +
+                ", diskBytes=" + diskBytes +
+                ", hitRatio=" + String.format(Locale.ROOT, "%.3f", getHitRatio()) +
+                ", hits=" + hitCount +
+                ", misses=" + missCount +
+                ", revalidated=" + revalidatedCount +
+                ", bytesSaved=" + bytesSaved +
+                '}';
+    }
+
+    /**
+     * Cache-Control 指令，名称小写，没有参数的指令取值为空串
+     */
+    static final class CacheControl {
+        private static final CacheControl EMPTY = new CacheControl(Collections.emptyMap());
+
+        private final Map<String, String> directives;
+
+        private CacheControl(Map<String, String> directives) {
+            this.directives = directives;
+        }
+
+        static CacheControl parse(HttpHeaders headers) {
+            List<String> values = headers.getAll(HttpHeaderNames.CACHE_CONTROL);
+            if (values.isEmpty()) {
+                return EMPTY;
+            }
+            Map<String, String> directives = new HashMap<>();
+            directives.put("cache-control", "");
+            for (String value : values) {
+                for (String directive : value.split(",")) {
+                    int index = directive.indexOf('=');
+                    String name = (index == -1 ? directive : directive.substring(0, index)).trim().toLowerCase(Locale.ROOT);
+                    String argument = index == -1 ? "" : directive.substring(index + 1).trim();
+                    if (argument.length() >= 2 && argument.charAt(0) == '"' && argument.charAt(argument.length() - 1) == '"') {
+                        argument = argument.substring(1, argument.length() - 1);
+                    }
+                    if (!name.isEmpty()) {
+                        directives.putIfAbsent(name, argument);
+                    }
+                }
+            }
+            return new CacheControl(directives);
+        }
+
+        boolean has(String name) {
+            return directives.containsKey(name);
+        }
+
+        /**
+         * @return 指令的秒数，没有该指令时为 -1，无法解析时为 0
+         */
+        long getSeconds(String name) {
+            String value = directives.get(name);
+            if (value == null) {
+                return -1;
+            }
+            long seconds = parseLong(value);
+            return seconds < 0 ? 0 : seconds;
+        }
+    }
+
+}
@@ -0,0 +1,21 @@
+package com.github.netguard.vpn.tcp.h2;
+
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocatorMetric;
+
+/**
+ * http2 过滤链路共享的池化分配器。
+ * 两端都是阻塞的 {@link java.net.Socket} 流，读写只接受 <code>byte[]</code>，所以使用池化的堆内存，避免直接内存到数组的额外拷贝。
+ */
+public final class PooledBuffers {
+
+    public static final PooledByteBufAllocator ALLOCATOR = new PooledByteBufAllocator(false);
+
+    public static PooledByteBufAllocatorMetric metric() {
+        return ALLOCATOR.metric();
+    }
+
+    private PooledBuffers() {
+    }
+
+}
@@ -0,0 +1,87 @@
+package com.github.netguard.vpn.tcp.h2;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * 使用 {@link CodecPool} 中的 {@link Deflater} 压缩 deflate(zlib)/gzip，关闭时归还
+ */
+class PooledDeflaterOutputStream extends DeflaterOutputStream {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    static OutputStream deflate(OutputStream out) {
+        return new PooledDeflaterOutputStream(out, false);
+    }
+
+    static OutputStream gzip(OutputStream out) throws IOException {
+        return new Gzip(out);
+    }
+
+    private final boolean nowrap;
+    private boolean closed;
+
+    private PooledDeflaterOutputStream(OutputStream out, boolean nowrap) {
+        super(out, CodecPool.borrowDeflater(nowrap), BUFFER_SIZE);
+        this.nowrap = nowrap;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            try {
+                super.close();
+            } finally {
+                CodecPool.releaseDeflater(def, nowrap);
+            }
+        }
+    }
+
+    private static class Gzip extends PooledDeflaterOutputStream {
+
+        private static final byte[] HEADER = {
+                (byte) 0x1f, (byte) 0x8b, // magic
+                8, // compression method
+                0, // flags
+                0, 0, 0, 0, // modification time
+                0, // extra flags
+                (byte) 0xff // operating system: unknown
+        };
+
+        private final CRC32 crc = new CRC32();
+
+        Gzip(OutputStream out) throws IOException {
+            super(out, true);
+            out.write(HEADER);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            super.write(b, off, len);
+            crc.update(b, off, len);
+        }
+
+        @Override
+        public void finish() throws IOException {
+            if (!def.finished()) {
+                super.finish();
+                byte[] trailer = new byte[8];
+                writeInt((int) crc.getValue(), trailer, 0);
+                writeInt((int) def.getBytesRead(), trailer, 4);
+                out.write(trailer);
+            }
+        }
+
+        private static void writeInt(int i, byte[] buf, int offset) {
+            buf[offset] = (byte) i;
+            buf[offset + 1] = (byte) (i >> 8);
+            buf[offset + 2] = (byte) (i >> 16);
+            buf[offset + 3] = (byte) (i >> 24);
+        }
+    }
+
+}
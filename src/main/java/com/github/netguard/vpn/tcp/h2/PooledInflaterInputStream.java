@@ -0,0 +1,200 @@
+package com.github.netguard.vpn.tcp.h2;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.io.SequenceInputStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * 使用 {@link CodecPool} 中的 {@link Inflater} 解压 deflate/gzip，关闭时归还
+ */
+class PooledInflaterInputStream extends InflaterInputStream {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * deflate 在实际中既有 zlib 格式也有裸 deflate，按 RFC 1950 检查头部来区分
+     */
+    static InputStream deflate(InputStream in) throws IOException {
+        PushbackInputStream pushback = new PushbackInputStream(in, 2);
+        int b0 = pushback.read();
+        int b1 = b0 == -1 ? -1 : pushback.read();
+        if (b1 != -1) {
+            pushback.unread(b1);
+        }
+        if (b0 != -1) {
+            pushback.unread(b0);
+        }
+        boolean zlib = b1 != -1 && (b0 & 0x0f) == Deflater.DEFLATED && ((b0 << 8) | b1) % 31 == 0;
+        return new PooledInflaterInputStream(pushback, !zlib);
+    }
+
+    static InputStream gzip(InputStream in) throws IOException {
+        return new Gzip(in);
+    }
+
+    private final boolean nowrap;
+    private boolean closed;
+
+    private PooledInflaterInputStream(InputStream in, boolean nowrap) {
+        super(in, CodecPool.borrowInflater(nowrap), BUFFER_SIZE);
+        this.nowrap = nowrap;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            try {
+                super.close();
+            } finally {
+                CodecPool.releaseInflater(inf, nowrap);
+            }
+        }
+    }
+
+    /**
+     * {@link java.util.zip.GZIPInputStream} 总是自己创建 {@link Inflater}，所以这里按 RFC 1952 重新实现一遍，支持多个 member。
+     */
+    private static class Gzip extends PooledInflaterInputStream {
+
+        private static final int GZIP_MAGIC = 0x8b1f;
+
+        private static final int FHCRC = 2;
+        private static final int FEXTRA = 4;
+        private static final int FNAME = 8;
+        private static final int FCOMMENT = 16;
+
+        private final CRC32 crc = new CRC32();
+        private boolean eos;
+
+        Gzip(InputStream in) throws IOException {
+            super(in, true);
+            try {
+                readHeader(in);
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (eos) {
+                return -1;
+            }
+            int n = super.read(b, off, len);
+            if (n == -1) {
+                if (readTrailer()) {
+                    eos = true;
+                } else {
+                    return read(b, off, len);
+                }
+            } else {
+                crc.update(b, off, n);
+            }
+            return n;
+        }
+
+        private int readHeader(InputStream this_in) throws IOException {
+            CheckedInputStream in = new CheckedInputStream(this_in, crc);
+            crc.reset();
+            if (readUShort(in) != GZIP_MAGIC) {
+                throw new ZipException("Not in GZIP format");
+            }
+            if (readUByte(in) != Deflater.DEFLATED) {
+                throw new ZipException("Unsupported compression method");
+            }
+            int flg = readUByte(in);
+            skipBytes(in, 6);
+            int n = 2 + 2 + 6;
+            if ((flg & FEXTRA) == FEXTRA) {
+                int m = readUShort(in);
+                skipBytes(in, m);
+                n += m + 2;
+            }
+            if ((flg & FNAME) == FNAME) {
+                do {
+                    n++;
+                } while (readUByte(in) != 0);
+            }
+            if ((flg & FCOMMENT) == FCOMMENT) {
+                do {
+                    n++;
+                } while (readUByte(in) != 0);
+            }
+            if ((flg & FHCRC) == FHCRC) {
+                int v = (int) crc.getValue() & 0xffff;
+                if (readUShort(in) != v) {
+                    throw new ZipException("Corrupt GZIP header");
+                }
+                n += 2;
+            }
+            crc.reset();
+            return n;
+        }
+
+        /**
+         * @return <code>true</code> if this is the last member
+         */
+        private boolean readTrailer() throws IOException {
+            InputStream in = this.in;
+            int n = inf.getRemaining();
+            if (n > 0) {
+                in = new SequenceInputStream(new ByteArrayInputStream(buf, len - n, n), in);
+            }
+            if ((readUInt(in) != crc.getValue()) ||
+                    (readUInt(in) != (inf.getBytesWritten() & 0xffffffffL))) {
+                throw new ZipException("Corrupt GZIP trailer");
+            }
+            if (this.in.available() > 0 || n > 26) {
+                int m = 8;
+                try {
+                    m += readHeader(in);
+                } catch (IOException e) {
+                    return true; // ignore trailing garbage
+                }
+                inf.reset();
+                if (n > m) {
+                    inf.setInput(buf, len - n + m, n - m);
+                }
+                return false;
+            }
+            return true;
+        }
+
+        private static long readUInt(InputStream in) throws IOException {
+            long s = readUShort(in);
+            return ((long) readUShort(in) << 16) | s;
+        }
+
+        private static int readUShort(InputStream in) throws IOException {
+            int b = readUByte(in);
+            return (readUByte(in) << 8) | b;
+        }
+
+        private static int readUByte(InputStream in) throws IOException {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException();
+            }
+            return b;
+        }
+
+        private static void skipBytes(InputStream in, int n) throws IOException {
+            while (n > 0) {
+                readUByte(in);
+                n--;
+            }
+        }
+    }
+
+}
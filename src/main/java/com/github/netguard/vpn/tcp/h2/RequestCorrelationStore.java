@@ -0,0 +1,212 @@
+package com.github.netguard.vpn.tcp.h2;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 请求与响应的关联表：按连接分组，限制条目数与存活时间，支持 stream reset 与连接关闭时清理
+ */
+public class RequestCorrelationStore<V> {
+
+    public static final int DEFAULT_MAX_ENTRIES = 4096;
+    public static final long DEFAULT_MAX_AGE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private static class Entry<V> {
+        final int streamId;
+        final V value;
+        final long createTime;
+        Entry(int streamId, V value, long createTime) {
+            this.streamId = streamId;
+            this.value = value;
+            this.createTime = createTime;
+        }
+    }
+
+    private final ConcurrentMap<Http2Session, ConcurrentMap<Integer, Entry<V>>> sessionMap = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong evictedCount = new AtomicLong();
+    private final AtomicLong expiredCount = new AtomicLong();
+    private final AtomicLong lastExpungeTime = new AtomicLong(System.currentTimeMillis());
+
+    private final int maxEntries;
+    private final long maxAgeMillis;
+
+    public RequestCorrelationStore() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_AGE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public RequestCorrelationStore(int maxEntries, long maxAge, TimeUnit unit) {
+        if (maxEntries <= 0 || maxAge <= 0) {
+            throw new IllegalArgumentException("maxEntries=" + maxEntries + ", maxAge=" + maxAge);
+        }
+        this.maxEntries = maxEntries;
+        this.maxAgeMillis = unit.toMillis(maxAge);
+    }
+
+    public void put(Http2SessionKey key, V value) {
+        long now = System.currentTimeMillis();
+        Entry<V> entry = new Entry<>(key.getStreamId(), value, now);
+        sessionMap.compute(key.getSession(), (session, streams) -> {
+            if (streams == null) {
+                streams = new ConcurrentHashMap<>();
+            }
+            if (streams.put(entry.streamId, entry) == null) {
+                size.incrementAndGet();
+            }
+            return streams;
+        });
+        long last = lastExpungeTime.get();
+        if (size.get() > maxEntries ||
+                (now - last > maxAgeMillis && lastExpungeTime.compareAndSet(last, now))) {
+            expunge(now);
+        }
+    }
+
+    public V get(Http2SessionKey key) {
+        Map<Integer, Entry<V>> streams = sessionMap.get(key.getSession());
+        Entry<V> entry = streams == null ? null : streams.get(key.getStreamId());
+        if (entry == null) {
+            return null;
+        }
+        if (isExpired(entry, System.currentTimeMillis())) {
+            if (removeEntry(key.getSession(), entry)) {
+                expiredCount.incrementAndGet();
+            }
+            return null;
+        }
+        return entry.value;
+    }
+
+    public V remove(Http2SessionKey key) {
+        Entry<V> entry = removeStream(key.getSession(), key.getStreamId());
+        if (entry == null) {
+            return null;
+        }
+        if (isExpired(entry, System.currentTimeMillis())) {
+            expiredCount.incrementAndGet();
+            return null;
+        }
+        return entry.value;
+    }
+
+    /**
+     * 移除该连接上所有未完成的请求
+     * @return 被移除的条目数
+     */
+    public int removeSession(Http2Session session) {
+        Map<Integer, Entry<V>> streams = sessionMap.remove(session);
+        if (streams == null) {
+            return 0;
+        }
+        int count = streams.size();
+        size.addAndGet(-count);
+        return count;
+    }
+
+    private Entry<V> removeStream(Http2Session session, int streamId) {
+        @SuppressWarnings("unchecked")
+        Entry<V>[] removed = new Entry[1];
+        sessionMap.computeIfPresent(session, (s, streams) -> {
+            Entry<V> entry = streams.remove(streamId);
+            if (entry != null) {
+                size.decrementAndGet();
+                removed[0] = entry;
+            }
+            return streams.isEmpty() ? null : streams;
+        });
+        return removed[0];
+    }
+
+    private boolean removeEntry(Http2Session session, Entry<V> entry) {
+        boolean[] removed = new boolean[1];
+        sessionMap.computeIfPresent(session, (s, streams) -> {
+            if (streams.remove(entry.streamId, entry)) {
+                size.decrementAndGet();
+                removed[0] = true;
+            }
+            return streams.isEmpty() ? null : streams;
+        });
+        return removed[0];
+    }
+
+    private boolean isExpired(Entry<V> entry, long now) {
+        return now - entry.createTime > maxAgeMillis;
+    }
+
+    private static class Candidate<V> {
+        final Http2Session session;
+        final Entry<V> entry;
+        Candidate(Http2Session session, Entry<V> entry) {
+            this.session = session;
+            this.entry = entry;
+        }
+    }
+
+    /**
+     * 清理过期条目，超出容量时按创建时间淘汰最旧的 1/8，避免每次 put 都全量扫描
+     */
+    private synchronized void expunge(long now) {
+        List<Candidate<V>> candidates = new ArrayList<>();
+        for (Map.Entry<Http2Session, ConcurrentMap<Integer, Entry<V>>> sessionEntry : sessionMap.entrySet()) {
+            for (Entry<V> entry : sessionEntry.getValue().values()) {
+                if (isExpired(entry, now)) {
+                    if (removeEntry(sessionEntry.getKey(), entry)) {
+                        expiredCount.incrementAndGet();
+                    }
+                } else {
+                    candidates.add(new Candidate<>(sessionEntry.getKey(), entry));
+                }
+            }
+        }
+        int overflow = size.get() - maxEntries;
+        if (overflow <= 0) {
+            return;
+        }
+        int evict = Math.min(candidates.size(), overflow + maxEntries / 8);
+        candidates.sort(Comparator.comparingLong(candidate -> candidate.entry.createTime));
+        for (int i = 0; i < evict; i++) {
+            Candidate<V> candidate = candidates.get(i);
+            if (removeEntry(candidate.session, candidate.entry)) {
+                evictedCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @return 当前等待响应的请求数
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * @return 因容量限制被淘汰的请求数
+     */
+    public long getEvictedCount() {
+        return evictedCount.get();
+    }
+
+    /**
+     * @return 因超时被丢弃的请求数
+     */
+    public long getExpiredCount() {
+        return expiredCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "RequestCorrelationStore{" +
+                "size=" + size.get() +
+                ", sessions=" + sessionMap.size() +
+                ", evicted=" + evictedCount.get() +
+                ", expired=" + expiredCount.get() +
+                '}';
+    }
+}
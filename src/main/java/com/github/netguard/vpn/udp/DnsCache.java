@@ -0,0 +1,505 @@
+package com.github.netguard.vpn.udp;
+
+import org.xbill.DNS.ExtendedFlags;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.OPTRecord;
+import org.xbill.DNS.Opcode;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.SOARecord;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 进程内 DNS 缓存，由 {@link com.github.netguard.vpn.IPacketCapture#getDnsCache()} 提供，在 {@link DNSFilter#cancelDnsQuery(Message)}
+ * 与 acceptUdp 之后、发往上游之前查询：按 (上游 DNS 服务器, qname, qtype, qclass) 保存上游的原始应答，命中时改写 ID 与剩余 TTL 直接回复，
+ * 回复前仍经过 {@link DNSFilter#filterDnsResponse(Message, Message)}。
+ * <p>
+ * 支持 RFC 2308 否定缓存，RFC 8767 上游失败或超时时使用过期应答，以及多次命中的记录临近过期时预取。
+ * <p>
+ * 未命中时发往同一服务器的相同问题的查询合并：第一个查询发往上游，其他流的查询等待它的应答，各自改写 ID 后回复。
+ * 不同服务器的应答可能不同（分流解析、过滤），缓存与合并都不跨服务器。
+ */
+public class DnsCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    /**
+     * RFC 8767 建议过期应答的 TTL
+     */
+    private static final long STALE_ANSWER_TTL = 30;
+
+    /**
+     * 剩余 TTL 低于原 TTL 的该比例时预取
+     */
+    private static final int PREFETCH_PERCENT = 10;
+
+    /**
+     * 命中达到该次数才预取
+     */
+    private static final int PREFETCH_MIN_HITS = 2;
+
+    /**
+     * 上游查询在这段时间内没有应答，相同问题的新查询不再等待它
+     */
+    private static final long FLIGHT_TIMEOUT_MILLIS = 5000;
+
+    /**
+     * 单个上游查询最多合并的等待者
+     */
+    private static final int MAX_WAITERS = 1024;
+
+    private final Map<Question, Entry> entries;
+    private final Map<Question, Flight> flights = new HashMap<>();
+
+    private volatile long maxTtlMillis = TimeUnit.DAYS.toMillis(1);
+    private volatile long maxNegativeTtlMillis = TimeUnit.MINUTES.toMillis(15);
+    private volatile long maxStaleMillis = TimeUnit.HOURS.toMillis(1);
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong staleHitCount = new AtomicLong();
+    private final AtomicLong prefetchCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    public DnsCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    public DnsCache(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries=" + maxEntries);
+        }
+        this.entries = new LinkedHashMap<Question, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Question, DnsCache.Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * 正向应答的最长缓存时间，默认 1 天
+     */
+    public DnsCache setMaxTtl(Duration maxTtl) {
+        this.maxTtlMillis = maxTtl.toMillis();
+        return this;
+    }
+
+    /**
+     * NXDOMAIN/NODATA 应答的最长缓存时间，默认 15 分钟
+     */
+    public DnsCache setMaxNegativeTtl(Duration maxNegativeTtl) {
+        this.maxNegativeTtlMillis = maxNegativeTtl.toMillis();
+        return this;
+    }
+
+    /**
+     * 过期后还可以在上游失败时使用的时间，默认 1 小时，0 表示不使用过期应答
+     */
+    public DnsCache setMaxStale(Duration maxStale) {
+        this.maxStaleMillis = maxStale.toMillis();
+        return this;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * 上游失败时回复的过期应答数，同时计入 {@link #getMissCount()}
+     */
+    public long getStaleHitCount() {
+        return staleHitCount.get();
+    }
+
+    public long getPrefetchCount() {
+        return prefetchCount.get();
+    }
+
+    /**
+     * 等待其他查询的上游应答、没有单独发往上游的未命中查询数
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    public double getHitRate() {
+        long hits = hitCount.get();
+        long total = hits + missCount.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    Lookup lookup(InetSocketAddress resolver, Message query, byte[] wire, int length) {
+        return lookup(resolver, query, wire, length, System.currentTimeMillis());
+    }
+
+    /**
+     * @return <code>null</code> 表示该查询不使用缓存
+     */
+    Lookup lookup(InetSocketAddress resolver, Message query, byte[] wire, int length, long now) {
+        Question question = Question.of(resolver, query);
+        if (question == null) {
+            return null;
+        }
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(question);
+            if (entry != null && now >= entry.expiresAt + maxStaleMillis) {
+                entries.remove(question);
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            missCount.incrementAndGet();
+            return new Lookup(question, null, false, false);
+        }
+        if (now < entry.expiresAt) {
+            byte[] response = toResponse(entry.response, wire, length, (entry.expiresAt - now) / 1000, (now - entry.storedAt) / 1000);
+            if (response != null) {
+                hitCount.incrementAndGet();
+                int hits = entry.hits.incrementAndGet();
+                boolean prefetch = hits >= PREFETCH_MIN_HITS &&
+                        (entry.expiresAt - now) * 100 <= (entry.expiresAt - entry.storedAt) * PREFETCH_PERCENT &&
+                        entry.prefetching.compareAndSet(false, true);
+                if (prefetch) {
+                    prefetchCount.incrementAndGet();
+                }
+                return new Lookup(question, response, true, prefetch);
+            }
+        }
+        missCount.incrementAndGet();
+        byte[] stale = maxStaleMillis > 0 ? toResponse(entry.response, wire, length, STALE_ANSWER_TTL, Long.MIN_VALUE) : null;
+        return new Lookup(question, stale, false, false);
+    }
+
+    /**
+     * 未命中的查询加入相同问题正在进行的上游查询
+     *
+     * @return <code>false</code> 表示没有可等待的上游查询，调用方自己发往上游，相同问题的后续查询等待它的应答
+     */
+    boolean join(Question question, Waiter waiter, long now) {
+        synchronized (flights) {
+            Flight flight = flights.get(question);
+            if (flight == null || now >= flight.deadline) {
+                flights.put(question, new Flight(now + FLIGHT_TIMEOUT_MILLIS));
+                return false;
+            }
+            if (flight.waiters.size() >= MAX_WAITERS) {
+                return false;
+            }
+            flight.waiters.add(waiter);
+        }
+        coalescedCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * 等待超时，不再接收应答
+     */
+    void leave(Question question, Waiter waiter) {
+        synchronized (flights) {
+            Flight flight = flights.get(question);
+            if (flight != null) {
+                flight.waiters.remove(waiter);
+            }
+        }
+    }
+
+    /**
+     * 上游应答分发给等待相同问题的查询，任何 rcode 都分发
+     */
+    void complete(InetSocketAddress resolver, Message response, byte[] wire, int length) {
+        Question question = Question.of(resolver, response);
+        if (question == null || !response.getHeader().getFlag(Flags.QR)) {
+            return;
+        }
+        Flight flight;
+        synchronized (flights) {
+            flight = flights.remove(question);
+        }
+        if (flight == null || flight.waiters.isEmpty()) {
+            return;
+        }
+        byte[] data = length == wire.length ? wire : Arrays.copyOf(wire, length);
+        int rcode = response.getRcode();
+        for (Waiter waiter : flight.waiters) {
+            byte[] query = waiter.getQuery();
+            byte[] patched = toResponse(data, query, query.length, Long.MAX_VALUE, 0);
+            if (patched != null) {
+                waiter.onResponse(patched, rcode);
+            }
+        }
+    }
+
+    void recordStaleHit() {
+        staleHitCount.incrementAndGet();
+    }
+
+    void store(InetSocketAddress resolver, Message response, byte[] wire, int length) {
+        store(resolver, response, wire, length, System.currentTimeMillis());
+    }
+
+    /**
+     * 只缓存 NOERROR/NXDOMAIN 且未截断的标准查询应答
+     */
+    void store(InetSocketAddress resolver, Message response, byte[] wire, int length, long now) {
+        Question question = Question.of(resolver, response);
+        if (question == null ||
+                !response.getHeader().getFlag(Flags.QR) ||
+                response.getHeader().getFlag(Flags.TC)) {
+            return;
+        }
+        int rcode = response.getRcode();
+        if (rcode != Rcode.NOERROR && rcode != Rcode.NXDOMAIN) {
+            return;
+        }
+        long ttlMillis;
+        List<Record> answers = response.getSection(Section.ANSWER);
+        if (rcode == Rcode.NOERROR && !answers.isEmpty()) {
+            long ttl = Long.MAX_VALUE;
+            for (Record record : answers) {
+                ttl = Math.min(ttl, record.getTTL());
+            }
+            ttlMillis = Math.min(TimeUnit.SECONDS.toMillis(ttl), maxTtlMillis);
+        } else {
+            // RFC 2308 Section 5: 否定应答的 TTL 取 SOA 的 TTL 与 MINIMUM 中较小者，没有 SOA 不缓存
+            long ttl = -1;
+            for (Record record : response.getSection(Section.AUTHORITY)) {
+                if (record instanceof SOARecord) {
+                    ttl = Math.min(record.getTTL(), ((SOARecord) record).getMinimum());
+                    break;
+                }
+            }
+            if (ttl < 0) {
+                return;
+            }
+            ttlMillis = Math.min(TimeUnit.SECONDS.toMillis(ttl), maxNegativeTtlMillis);
+        }
+        if (ttlMillis <= 0) {
+            return;
+        }
+        byte[] data = new byte[length];
+        System.arraycopy(wire, 0, data, 0, length);
+        Entry entry = new Entry(data, now, now + ttlMillis);
+        synchronized (entries) {
+            entries.put(question, entry);
+        }
+    }
+
+    static final class Lookup {
+        final Question question;
+        /**
+         * 已改写 ID 与 TTL 的应答：fresh 时直接回复，否则是上游失败时使用的过期应答
+         */
+        final byte[] response;
+        final boolean fresh;
+        /**
+         * 命中但临近过期，仍需把查询发往上游刷新缓存
+         */
+        final boolean prefetch;
+
+        private Lookup(Question question, byte[] response, boolean fresh, boolean prefetch) {
+            this.question = question;
+            this.response = response;
+            this.fresh = fresh;
+            this.prefetch = prefetch;
+        }
+    }
+
+    private static final class Entry {
+        private final byte[] response;
+        private final long storedAt;
+        private final long expiresAt;
+        private final AtomicInteger hits = new AtomicInteger();
+        private final AtomicBoolean prefetching = new AtomicBoolean();
+
+        Entry(byte[] response, long storedAt, long expiresAt) {
+            this.response = response;
+            this.storedAt = storedAt;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * 在 wire 格式上改写缓存或上游的应答：ID 与查询相同，问题段按查询原样复制以保留 0x20 大小写，
+     * 各记录 TTL 减去 age 并不超过 maxTtl；age 为 {@link Long#MIN_VALUE} 时 TTL 统一设为 maxTtl
+     *
+     * @return <code>null</code> 表示缓存的应答无法解析
+     */
+    private static byte[] toResponse(byte[] response, byte[] query, int queryLength, long maxTtl, long age) {
+        byte[] data = response.clone();
+        try {
+            data[0] = query[0];
+            data[1] = query[1];
+            int queryEnd = skipQuestion(query, 12);
+            int offset = skipQuestion(data, 12);
+            if (queryEnd <= queryLength && queryEnd == offset) {
+                System.arraycopy(query, 12, data, 12, queryEnd - 12);
+            }
+            int records = readShort(data, 6) + readShort(data, 8) + readShort(data, 10);
+            for (int i = 0; i < records; i++) {
+                offset = skipName(data, offset);
+                int type = readShort(data, offset);
+                if (type != Type.OPT) {
+                    long ttl = readInt(data, offset + 4) & 0xffffffffL;
+                    ttl = age == Long.MIN_VALUE ? maxTtl : Math.max(0, Math.min(ttl - age, maxTtl));
+                    writeInt(data, offset + 4, (int) ttl);
+                }
+                offset += 10 + readShort(data, offset + 8);
+            }
+            if (offset > data.length) {
+                return null;
+            }
+            return data;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    private static int skipQuestion(byte[] data, int offset) {
+        return skipName(data, offset) + 4;
+    }
+
+    private static int skipName(byte[] data, int offset) {
+        while (true) {
+            int length = data[offset] & 0xff;
+            if (length == 0) {
+                return offset + 1;
+            }
+            if ((length & 0xc0) == 0xc0) {
+                return offset + 2;
+            }
+            offset += length + 1;
+        }
+    }
+
+    private static int readShort(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (readShort(data, offset) << 16) | readShort(data, offset + 2);
+    }
+
+    private static void writeInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+    /**
+     * 合并到同一上游查询的未命中查询
+     */
+    interface Waiter {
+        /**
+         * 该查询的 wire 格式，用于改写应答的 ID 与问题段
+         */
+        byte[] getQuery();
+
+        /**
+         * 由收到上游应答的流的线程调用
+         */
+        void onResponse(byte[] response, int rcode);
+    }
+
+    private static final class Flight {
+        private final long deadline;
+        private final List<Waiter> waiters = new ArrayList<>(2);
+
+        Flight(long deadline) {
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * 缓存键，{@link Name} 比较时忽略大小写
+     */
+    static final class Question {
+        /**
+         * 客户端查询的 DNS 服务器
+         */
+        private final InetSocketAddress resolver;
+        private final Name name;
+        private final int type;
+        private final int dclass;
+
+        private Question(InetSocketAddress resolver, Name name, int type, int dclass) {
+            this.resolver = resolver;
+            this.name = name;
+            this.type = type;
+            this.dclass = dclass;
+        }
+
+        /**
+         * 只处理单个问题的标准查询，要求 DNSSEC 记录的查询（DO 位）不经过缓存
+         */
+        static Question of(InetSocketAddress resolver, Message message) {
+            if (message.getHeader().getOpcode() != Opcode.QUERY) {
+                return null;
+            }
+            List<Record> questions = message.getSection(Section.QUESTION);
+            if (questions.size() != 1) {
+                return null;
+            }
+            OPTRecord opt = message.getOPT();
+            if (opt != null && (opt.getFlags() & ExtendedFlags.DO) != 0) {
+                return null;
+            }
+            Record question = questions.get(0);
+            return new Question(resolver, question.getName(), question.getType(), question.getDClass());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Question question = (Question) o;
+            return type == question.type && dclass == question.dclass && name.equals(question.name) && resolver.equals(question.resolver);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(resolver, name, type, dclass);
+        }
+
+        @Override
+        public String toString() {
+            return name + " " + Type.string(type) + " @" + resolver;
+        }
+    }
+
+}
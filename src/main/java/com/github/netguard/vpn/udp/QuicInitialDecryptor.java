@@ -0,0 +1,406 @@
+package com.github.netguard.vpn.udp;
+
+import net.luminis.tls.TlsConstants;
+import net.luminis.tls.TlsProtocolException;
+import net.luminis.tls.handshake.ClientHello;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 只解密客户端 QUIC v1 Initial 包并重组其中的 ClientHello，替代每个数据报都新建 kwik 的 ConnectionSecrets、InitialPacket 与 ReceiveBuffer：
+ * <ul>
+ *     <li>Initial 密钥按目标连接 ID 缓存，同一连接重传或分片的 Initial 包不再重复 HKDF</li>
+ *     <li>实例对应一个 UDP 流，保存跨数据报的 CRYPTO 重组状态</li>
+ *     <li>CRYPTO 帧直接在解密缓冲区中解析，ClientHello 在单个帧内完整时不复制，否则只复制一次到重组缓冲区的对应偏移</li>
+ * </ul>
+ * 非线程安全，每个 UDP 流一个实例。
+ *
+ * @see <a href="https://www.rfc-editor.org/rfc/rfc9001#section-5">RFC 9001 Packet Protection</a>
+ */
+class QuicInitialDecryptor {
+
+    private static final Logger log = LoggerFactory.getLogger(QuicInitialDecryptor.class);
+
+    static final int QUIC_VERSION_1 = 0x00000001;
+
+    private static final byte[] INITIAL_SALT_V1 = {
+            0x38, 0x76, 0x2c, (byte) 0xf7, (byte) 0xf5, 0x59, 0x34, (byte) 0xb3, 0x4d, 0x17,
+            (byte) 0x9a, (byte) 0xe6, (byte) 0xa4, (byte) 0xc8, 0x0c, (byte) 0xad, (byte) 0xcc, (byte) 0xbb, 0x7f, 0x0a
+    };
+
+    /**
+     * ClientHello 的上限，超过时不再重组
+     */
+    static final int MAX_CRYPTO_LENGTH = 0x10000;
+
+    private static final int MAX_CACHED_KEYS = 256;
+    private static final int MAX_DATAGRAM_SIZE = 0x10000;
+    private static final int GCM_TAG_LENGTH = 16;
+    private static final int HP_SAMPLE_LENGTH = 16;
+
+    private static final int FRAME_PADDING = 0x00;
+    private static final int FRAME_PING = 0x01;
+    private static final int FRAME_ACK = 0x02;
+    private static final int FRAME_ACK_ECN = 0x03;
+    private static final int FRAME_CRYPTO = 0x06;
+    private static final int FRAME_CONNECTION_CLOSE = 0x1c;
+
+    static class InitialKeys {
+        final SecretKeySpec key;
+        final byte[] iv;
+        final SecretKeySpec hp;
+
+        InitialKeys(byte[] key, byte[] iv, byte[] hp) {
+            this.key = new SecretKeySpec(key, "AES");
+            this.iv = iv;
+            this.hp = new SecretKeySpec(hp, "AES");
+        }
+    }
+
+    private static final Map<ByteBuffer, InitialKeys> KEY_CACHE = new LinkedHashMap<ByteBuffer, InitialKeys>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, InitialKeys> eldest) {
+            return size() > MAX_CACHED_KEYS;
+        }
+    };
+
+    private static class Crypto {
+        final Cipher aead;
+        final Cipher hp;
+        final Mac hmac;
+        final byte[] header = new byte[MAX_DATAGRAM_SIZE];
+        final byte[] plaintext = new byte[MAX_DATAGRAM_SIZE];
+        final byte[] nonce = new byte[12];
+        final byte[] mask = new byte[HP_SAMPLE_LENGTH];
+
+        Crypto() throws GeneralSecurityException {
+            aead = Cipher.getInstance("AES/GCM/NoPadding");
+            hp = Cipher.getInstance("AES/ECB/NoPadding");
+            hmac = Mac.getInstance("HmacSHA256");
+        }
+    }
+
+    /**
+     * Cipher 与解密缓冲区按线程复用
+     */
+    private static final ThreadLocal<Crypto> CRYPTO = ThreadLocal.withInitial(() -> {
+        try {
+            return new Crypto();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    /**
+     * 按 dcid 查找或计算客户端的 Initial 密钥
+     */
+    static InitialKeys getClientInitialKeys(byte[] buffer, int dcidOffset, int dcidLength) throws GeneralSecurityException {
+        ByteBuffer dcid = ByteBuffer.wrap(buffer, dcidOffset, dcidLength);
+        synchronized (KEY_CACHE) {
+            InitialKeys keys = KEY_CACHE.get(dcid);
+            if (keys != null) {
+                return keys;
+            }
+        }
+        byte[] id = Arrays.copyOfRange(buffer, dcidOffset, dcidOffset + dcidLength);
+        Mac hmac = CRYPTO.get().hmac;
+        hmac.init(new SecretKeySpec(INITIAL_SALT_V1, "HmacSHA256"));
+        byte[] initialSecret = hmac.doFinal(id);
+        byte[] clientSecret = expandLabel(hmac, initialSecret, "client in", 32);
+        InitialKeys keys = new InitialKeys(expandLabel(hmac, clientSecret, "quic key", 16),
+                expandLabel(hmac, clientSecret, "quic iv", 12),
+                expandLabel(hmac, clientSecret, "quic hp", 16));
+        synchronized (KEY_CACHE) {
+            KEY_CACHE.put(ByteBuffer.wrap(id), keys);
+        }
+        return keys;
+    }
+
+    /**
+     * TLS 1.3 HKDF-Expand-Label，上下文为空且长度不超过一个 SHA-256 块
+     */
+    private static byte[] expandLabel(Mac hmac, byte[] secret, String label, int length) throws GeneralSecurityException {
+        byte[] fullLabel = ("tls13 " + label).getBytes(StandardCharsets.US_ASCII);
+        hmac.init(new SecretKeySpec(secret, "HmacSHA256"));
+        hmac.update((byte) (length >>> 8));
+        hmac.update((byte) length);
+        hmac.update((byte) fullLabel.length);
+        hmac.update(fullLabel);
+        hmac.update((byte) 0);
+        hmac.update((byte) 1);
+        return Arrays.copyOf(hmac.doFinal(), length);
+    }
+
+    private byte[] cryptoData;
+    /**
+     * 已收到的 CRYPTO 区间，按起点排序且互不相交：[start0, end0, start1, end1, ...]
+     */
+    private int[] ranges = new int[8];
+    private int rangeCount;
+    private boolean reassembling;
+
+    /**
+     * @return ClientHello 跨多个 Initial 包，需要继续接收
+     */
+    boolean isReassembling() {
+        return reassembling;
+    }
+
+    /**
+     * 解密数据报中的第一个 Initial 包并重组 ClientHello，不修改 <code>buffer</code>
+     *
+     * @return 完整的 ClientHello；不是可解密的 Initial 包或者 ClientHello 尚不完整时返回 <code>null</code>，后者 {@link #isReassembling()} 为 <code>true</code>
+     */
+    ClientHello decrypt(byte[] buffer, int length) throws GeneralSecurityException, TlsProtocolException {
+        // long header: flags(1) version(4) dcid_len(1) dcid scid_len(1) scid token_len(i) token length(i) pn(1-4) payload
+        if (length < 7 || (buffer[0] & 0xf0) != 0xc0 || readInt(buffer, 1) != QUIC_VERSION_1) {
+            return null;
+        }
+        int offset = 5;
+        int dcidLength = buffer[offset++] & 0xff;
+        if (dcidLength > 20 || offset + dcidLength + 1 > length) {
+            return null;
+        }
+        int dcidOffset = offset;
+        offset += dcidLength;
+        int scidLength = buffer[offset++] & 0xff;
+        offset += scidLength;
+        long tokenLength = readVarInt(buffer, offset, length);
+        if (tokenLength < 0) {
+            return null;
+        }
+        offset += varIntLength(buffer[offset]) + (int) Math.min(tokenLength, length);
+        long payloadLength = readVarInt(buffer, offset, length);
+        if (payloadLength < 0) {
+            return null;
+        }
+        int pnOffset = offset + varIntLength(buffer[offset]);
+        if (pnOffset + payloadLength > length || payloadLength < 4 + HP_SAMPLE_LENGTH) {
+            return null;
+        }
+        int packetEnd = (int) (pnOffset + payloadLength);
+
+        InitialKeys keys = getClientInitialKeys(buffer, dcidOffset, dcidLength);
+        Crypto crypto = CRYPTO.get();
+
+        // 去掉头部保护，在副本上进行
+        crypto.hp.init(Cipher.ENCRYPT_MODE, keys.hp);
+        byte[] mask = crypto.mask;
+        crypto.hp.doFinal(buffer, pnOffset + 4, HP_SAMPLE_LENGTH, mask, 0);
+        byte[] header = crypto.header;
+        int flags = (buffer[0] ^ (mask[0] & 0x0f)) & 0xff;
+        int pnLength = (flags & 0x03) + 1;
+        int headerLength = pnOffset + pnLength;
+        System.arraycopy(buffer, 0, header, 0, headerLength);
+        header[0] = (byte) flags;
+        long packetNumber = 0;
+        for (int i = 0; i < pnLength; i++) {
+            header[pnOffset + i] ^= mask[1 + i];
+            packetNumber = (packetNumber << 8) | (header[pnOffset + i] & 0xff);
+        }
+
+        byte[] nonce = crypto.nonce;
+        System.arraycopy(keys.iv, 0, nonce, 0, nonce.length);
+        for (int i = 0; i < 8; i++) {
+            nonce[nonce.length - 1 - i] ^= (byte) (packetNumber >>> (8 * i));
+        }
+        crypto.aead.init(Cipher.DECRYPT_MODE, keys.key, new GCMParameterSpec(GCM_TAG_LENGTH * 8, nonce));
+        crypto.aead.updateAAD(header, 0, headerLength);
+        int plaintextLength = crypto.aead.doFinal(buffer, headerLength, packetEnd - headerLength, crypto.plaintext, 0);
+        return readFrames(crypto.plaintext, plaintextLength);
+    }
+
+    private ClientHello readFrames(byte[] payload, int length) throws TlsProtocolException {
+        int offset = 0;
+        while (offset < length) {
+            int type = payload[offset++] & 0xff;
+            switch (type) {
+                case FRAME_PADDING:
+                case FRAME_PING:
+                    break;
+                case FRAME_ACK:
+                case FRAME_ACK_ECN: {
+                    // largest, delay, range count, first range
+                    int[] position = {offset};
+                    skipVarInt(payload, position, length);
+                    skipVarInt(payload, position, length);
+                    long rangeCount = readVarInt(payload, position, length);
+                    skipVarInt(payload, position, length);
+                    for (long i = 0; i < rangeCount * 2 && position[0] <= length; i++) {
+                        skipVarInt(payload, position, length);
+                    }
+                    if (type == FRAME_ACK_ECN) {
+                        skipVarInt(payload, position, length);
+                        skipVarInt(payload, position, length);
+                        skipVarInt(payload, position, length);
+                    }
+                    offset = position[0];
+                    break;
+                }
+                case FRAME_CRYPTO: {
+                    int[] position = {offset};
+                    long cryptoOffset = readVarInt(payload, position, length);
+                    long cryptoLength = readVarInt(payload, position, length);
+                    offset = position[0];
+                    if (cryptoOffset < 0 || cryptoLength < 0 || offset + cryptoLength > length) {
+                        return null;
+                    }
+                    if (cryptoOffset + cryptoLength > MAX_CRYPTO_LENGTH) {
+                        // 在转换为 int 之前检查，过大的 varint 截断后可能通过检查
+                        reassembling = false;
+                        return null;
+                    }
+                    ClientHello clientHello = onCryptoFrame(payload, offset, (int) cryptoOffset, (int) cryptoLength);
+                    if (clientHello != null) {
+                        return clientHello;
+                    }
+                    offset += (int) cryptoLength;
+                    break;
+                }
+                case FRAME_CONNECTION_CLOSE: {
+                    int[] position = {offset};
+                    skipVarInt(payload, position, length);
+                    skipVarInt(payload, position, length);
+                    long reasonLength = readVarInt(payload, position, length);
+                    offset = reasonLength < 0 ? length + 1 : position[0] + (int) Math.min(reasonLength, length);
+                    break;
+                }
+                default:
+                    log.debug("Unexpected frame in initial packet: type=0x{}", Integer.toHexString(type));
+                    return null;
+            }
+            if (offset > length) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private ClientHello onCryptoFrame(byte[] payload, int dataOffset, int cryptoOffset, int cryptoLength) throws TlsProtocolException {
+        if (rangeCount == 0 && cryptoOffset == 0) {
+            int messageLength = handshakeMessageLength(payload, dataOffset, cryptoLength);
+            if (messageLength < 0) {
+                reassembling = false;
+                return null;
+            }
+            if (messageLength > 0 && messageLength <= cryptoLength) {
+                // 常见情况：整个 ClientHello 在第一个 CRYPTO 帧中，直接在解密缓冲区中解析
+                return parseClientHello(payload, dataOffset, messageLength);
+            }
+        }
+        if (cryptoData == null) {
+            cryptoData = new byte[MAX_CRYPTO_LENGTH];
+        }
+        System.arraycopy(payload, dataOffset, cryptoData, cryptoOffset, cryptoLength);
+        addRange(cryptoOffset, cryptoOffset + cryptoLength);
+        int contiguous = rangeCount > 0 && ranges[0] == 0 ? ranges[1] : 0;
+        int messageLength = handshakeMessageLength(cryptoData, 0, contiguous);
+        if (messageLength > 0 && messageLength <= contiguous) {
+            return parseClientHello(cryptoData, 0, messageLength);
+        }
+        reassembling = messageLength >= 0;
+        return null;
+    }
+
+    /**
+     * @return 握手消息的总长度；数据不足 4 字节时为 0；不是 ClientHello 时为 -1
+     */
+    private static int handshakeMessageLength(byte[] data, int offset, int available) {
+        if (available < 1) {
+            return 0;
+        }
+        if (data[offset] != TlsConstants.HandshakeType.client_hello.value) {
+            log.warn("Unexpected handshake message in initial packet: type={}", data[offset] & 0xff);
+            return -1;
+        }
+        if (available < 4) {
+            return 0;
+        }
+        int length = 4 + (((data[offset + 1] & 0xff) << 16) | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff));
+        return length > MAX_CRYPTO_LENGTH ? -1 : length;
+    }
+
+    private ClientHello parseClientHello(byte[] data, int offset, int length) throws TlsProtocolException {
+        reassembling = false;
+        rangeCount = 0;
+        cryptoData = null;
+        return new ClientHello(ByteBuffer.wrap(data, offset, length).slice(), null);
+    }
+
+    private void addRange(int start, int end) {
+        if (start >= end) {
+            return;
+        }
+        int i = 0;
+        while (i < rangeCount && ranges[2 * i + 1] < start) {
+            i++;
+        }
+        int j = i;
+        while (j < rangeCount && ranges[2 * j] <= end) {
+            start = Math.min(start, ranges[2 * j]);
+            end = Math.max(end, ranges[2 * j + 1]);
+            j++;
+        }
+        int removed = j - i;
+        if (removed == 0) {
+            if (2 * (rangeCount + 1) > ranges.length) {
+                ranges = Arrays.copyOf(ranges, ranges.length * 2);
+            }
+            System.arraycopy(ranges, 2 * i, ranges, 2 * i + 2, 2 * (rangeCount - i));
+            rangeCount++;
+        } else if (removed > 1) {
+            System.arraycopy(ranges, 2 * j, ranges, 2 * i + 2, 2 * (rangeCount - j));
+            rangeCount -= removed - 1;
+        }
+        ranges[2 * i] = start;
+        ranges[2 * i + 1] = end;
+    }
+
+    private static int readInt(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xff) << 24) | ((buffer[offset + 1] & 0xff) << 16) | ((buffer[offset + 2] & 0xff) << 8) | (buffer[offset + 3] & 0xff);
+    }
+
+    private static int varIntLength(byte first) {
+        return 1 << ((first & 0xff) >>> 6);
+    }
+
+    /**
+     * @return 变长整数，越界时为 -1
+     */
+    private static long readVarInt(byte[] buffer, int offset, int limit) {
+        if (offset >= limit) {
+            return -1;
+        }
+        int length = varIntLength(buffer[offset]);
+        if (offset + length > limit) {
+            return -1;
+        }
+        long value = buffer[offset] & 0x3f;
+        for (int i = 1; i < length; i++) {
+            value = (value << 8) | (buffer[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    private static long readVarInt(byte[] buffer, int[] position, int limit) {
+        long value = readVarInt(buffer, position[0], limit);
+        position[0] = value < 0 ? limit + 1 : position[0] + varIntLength(buffer[position[0]]);
+        return value;
+    }
+
+    private static void skipVarInt(byte[] buffer, int[] position, int limit) {
+        readVarInt(buffer, position, limit);
+    }
+
+}
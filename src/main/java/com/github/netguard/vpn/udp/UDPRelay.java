@@ -17,62 +17,258 @@ import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
-import java.net.SocketException;
 import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * UDP 中继：客户端先发送 <code>UDPR</code> 连接请求指定目标地址，之后该客户端地址的数据报都转发到目标。
+ * <p>
+ * v2 以 <code>UDP2</code> 开头，一个客户端地址通过流 ID 复用多个流，一个数据报可以携带多个记录：
+ * <pre>
+ * record = flowId(2) flags(1) [addressLength(1) address port(2) receiveTimeoutSeconds(1)] length(2) payload
+ * </pre>
+ * 带 {@link #FLAG_DESTINATION} 的记录打开流，目标地址与已有的流不同时重新打开，{@link #FLAG_CLOSE} 关闭流，应答以同样格式按流 ID 返回。
+ * 中继收到不存在的流的数据记录（中继重启、流已超时或被拒绝）时回复该流 ID 的 {@link #FLAG_CLOSE} 记录，客户端之后的记录重新带上目标地址。
+ * <p>
+ * 所有中继的 channel 在一个 selector 线程上处理，空闲超时由时间轮检查。
+ */
 public class UDPRelay implements Runnable, Closeable {
 
     private static final Logger log = LoggerFactory.getLogger(UDPRelay.class);
 
-    private final ExecutorService executorService = Executors.newCachedThreadPool(
-            ThreadUtil.newNamedThreadFactory("udp-relay", true)
-    );
-    private final DatagramSocket serverSocket;
+    public static final int DEFAULT_MAX_RELAYS_PER_SOURCE = 1024;
 
-    public UDPRelay(int port) throws SocketException {
-        this.serverSocket = new DatagramSocket(port);
-        this.executorService.submit(this);
+    /**
+     * 一个 v2 客户端地址承载一个代理线程上所有设备的流，单独计数
+     */
+    public static final int DEFAULT_MAX_MUX_FLOWS_PER_CLIENT = 4096;
+
+    private static final int MAX_RECEIVE_TIMEOUT_SECONDS = 60;
+
+    /**
+     * 时间轮每格 1 秒，一圈覆盖最长的空闲超时
+     */
+    private static final long TICK_MILLIS = 1000;
+    private static final int WHEEL_SIZE = 64;
+
+    /**
+     * 每次就绪最多读取的数据报数
+     */
+    private static final int MAX_READS_PER_EVENT = 32;
+
+    static final byte[] MUX_MAGIC = "UDP2".getBytes();
+    static final int FLAG_DESTINATION = 0x01;
+    static final int FLAG_CLOSE = 0x02;
+    static final int MUX_RECORD_HEADER_LENGTH = 5;
+    static final int MUX_DESTINATION_MAX_LENGTH = 1 + 16 + 2 + 1;
+
+    /**
+     * 多个记录合并到一个数据报的上限，单个记录超过时单独发送
+     */
+    static final int MUX_BATCH_LIMIT = 1400;
+
+    private final Selector selector;
+    private final DatagramChannel serverChannel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(Receiver.MAX_DATAGRAM_SIZE);
+    private final ByteBuffer muxBuffer = ByteBuffer.allocate(MUX_MAGIC.length + MUX_RECORD_HEADER_LENGTH + Receiver.MAX_DATAGRAM_SIZE);
+
+    /**
+     * 以下只在 selector 线程访问
+     */
+    private final Map<SocketAddress, Relay> relayMap = new HashMap<>();
+    private final Map<MuxKey, Relay> muxRelayMap = new HashMap<>();
+    private final Map<InetAddress, Integer> sourceRelayCount = new HashMap<>();
+    private final Map<SocketAddress, Integer> muxFlowCount = new HashMap<>();
+    private final ArrayDeque<Relay>[] wheel;
+    private long wheelTick;
+
+    private volatile int maxRelaysPerSource = DEFAULT_MAX_RELAYS_PER_SOURCE;
+    private volatile int maxMuxFlowsPerClient = DEFAULT_MAX_MUX_FLOWS_PER_CLIENT;
+    private volatile boolean closed;
+
+    private final AtomicInteger activeRelayCount = new AtomicInteger();
+    private final AtomicLong rejectedRelayCount = new AtomicLong();
+    private final AtomicLong datagramCount = new AtomicLong();
+    private final AtomicLong byteCount = new AtomicLong();
+
+    @SuppressWarnings("unchecked")
+    public UDPRelay(int port) throws IOException {
+        this.selector = Selector.open();
+        this.serverChannel = DatagramChannel.open();
+        try {
+            this.serverChannel.bind(new InetSocketAddress(port)).configureBlocking(false);
+            this.serverChannel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            IoUtil.close(serverChannel);
+            IoUtil.close(selector);
+            throw e;
+        }
+        this.wheel = new ArrayDeque[WHEEL_SIZE];
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel[i] = new ArrayDeque<>();
+        }
+        this.wheelTick = System.currentTimeMillis() / TICK_MILLIS;
+        ThreadUtil.newThread(this, "udp-relay", true).start();
+    }
+
+    /**
+     * 同一来源 IP 同时存在的 v1 中继上限，超过时忽略新的连接请求
+     */
+    public void setMaxRelaysPerSource(int maxRelaysPerSource) {
+        if (maxRelaysPerSource < 1) {
+            throw new IllegalArgumentException("maxRelaysPerSource=" + maxRelaysPerSource);
+        }
+        this.maxRelaysPerSource = maxRelaysPerSource;
+    }
+
+    /**
+     * 同一 v2 客户端地址同时打开的流上限，超过时新的流被拒绝
+     */
+    public void setMaxMuxFlowsPerClient(int maxMuxFlowsPerClient) {
+        if (maxMuxFlowsPerClient < 1) {
+            throw new IllegalArgumentException("maxMuxFlowsPerClient=" + maxMuxFlowsPerClient);
+        }
+        this.maxMuxFlowsPerClient = maxMuxFlowsPerClient;
     }
 
-    private class Relay implements Runnable {
-        private final DatagramSocket clientSocket;
+    public int getActiveRelayCount() {
+        return activeRelayCount.get();
+    }
+
+    /**
+     * 因超过 {@link #setMaxRelaysPerSource(int)} 或 {@link #setMaxMuxFlowsPerClient(int)} 被拒绝的连接请求数
+     */
+    public long getRejectedRelayCount() {
+        return rejectedRelayCount.get();
+    }
+
+    /**
+     * 两个方向转发的数据报数，不含连接请求
+     */
+    public long getDatagramCount() {
+        return datagramCount.get();
+    }
+
+    /**
+     * 两个方向转发的字节数，不含连接请求
+     */
+    public long getByteCount() {
+        return byteCount.get();
+    }
+
+    private static final class MuxKey {
         private final SocketAddress clientAddress;
-        private final SocketAddress serverAddress;
-        public Relay(SocketAddress clientAddress, SocketAddress serverAddress, int receiveTimeoutSeconds) throws SocketException {
-            this.clientSocket = new DatagramSocket();
-            this.clientSocket.setSoTimeout((receiveTimeoutSeconds > 60 || receiveTimeoutSeconds <= 0 ? 60 : receiveTimeoutSeconds) * 1000);
+        private final int flowId;
+        MuxKey(SocketAddress clientAddress, int flowId) {
             this.clientAddress = clientAddress;
-            this.serverAddress = serverAddress;
+            this.flowId = flowId;
+        }
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            MuxKey muxKey = (MuxKey) o;
+            return flowId == muxKey.flowId && clientAddress.equals(muxKey.clientAddress);
         }
         @Override
-        public void run() {
-            byte[] buffer = new byte[Receiver.MAX_DATAGRAM_SIZE];
-            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        public int hashCode() {
+            return 31 * clientAddress.hashCode() + flowId;
+        }
+    }
+
+    private class Relay {
+        private final DatagramChannel channel;
+        private final SelectionKey key;
+        private final InetSocketAddress clientAddress;
+        private final InetSocketAddress serverAddress;
+        /**
+         * v2 流 ID，v1 中继为 -1
+         */
+        private final int flowId;
+        private final long timeoutMillis;
+        private long expiresAt;
+        private boolean closed;
+        Relay(InetSocketAddress clientAddress, InetSocketAddress serverAddress, int receiveTimeoutSeconds, int flowId) throws IOException {
+            this.channel = DatagramChannel.open();
             try {
-                while (true) {
-                    try {
-                        clientSocket.receive(packet);
-                        packet.setSocketAddress(clientAddress);
-                        serverSocket.send(packet);
-                    } catch (IOException e) {
-                        log.debug("relay {} => {}", clientAddress, serverAddress, e);
-                        break;
+                this.channel.bind(null).configureBlocking(false);
+                this.key = channel.register(selector, SelectionKey.OP_READ, this);
+            } catch (IOException e) {
+                IoUtil.close(channel);
+                throw e;
+            }
+            this.clientAddress = clientAddress;
+            this.serverAddress = serverAddress;
+            this.flowId = flowId;
+            this.timeoutMillis = (receiveTimeoutSeconds > MAX_RECEIVE_TIMEOUT_SECONDS || receiveTimeoutSeconds <= 0 ? MAX_RECEIVE_TIMEOUT_SECONDS : receiveTimeoutSeconds) * 1000L;
+            this.expiresAt = System.currentTimeMillis() + timeoutMillis;
+        }
+        private void onReadable() throws IOException {
+            for (int i = 0; i < MAX_READS_PER_EVENT; i++) {
+                buffer.clear();
+                if (channel.receive(buffer) == null) {
+                    break;
+                }
+                buffer.flip();
+                int length = buffer.remaining();
+                if (flowId < 0) {
+                    serverChannel.send(buffer, clientAddress);
+                } else {
+                    // 同一次就绪读到的小数据报合并成一个 v2 数据报
+                    if (muxBuffer.position() > 0 && muxBuffer.position() + MUX_RECORD_HEADER_LENGTH + length > MUX_BATCH_LIMIT) {
+                        flushMux();
                     }
+                    if (muxBuffer.position() == 0) {
+                        muxBuffer.put(MUX_MAGIC);
+                    }
+                    muxBuffer.putShort((short) flowId).put((byte) 0).putShort((short) length).put(buffer);
                 }
-            } finally {
-                IoUtil.close(clientSocket);
-                relayMap.remove(clientAddress);
-                log.debug("exit relay: {}", clientAddress);
+                touch(length);
             }
+            if (muxBuffer.position() > 0) {
+                flushMux();
+            }
+        }
+        private void flushMux() throws IOException {
+            muxBuffer.flip();
+            serverChannel.send(muxBuffer, clientAddress);
+            muxBuffer.clear();
+        }
+        private void forward(ByteBuffer packet) throws IOException {
+            int length = packet.remaining();
+            channel.send(packet, serverAddress);
+            touch(length);
+        }
+        private void touch(int length) {
+            expiresAt = System.currentTimeMillis() + timeoutMillis;
+            datagramCount.incrementAndGet();
+            byteCount.addAndGet(length);
         }
-        private void forward(DatagramPacket packet) throws IOException {
-            packet.setSocketAddress(serverAddress);
-            clientSocket.send(packet);
+        private void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            key.cancel();
+            IoUtil.close(channel);
+            if (flowId < 0) {
+                relayMap.remove(clientAddress);
+                sourceRelayCount.computeIfPresent(clientAddress.getAddress(), (address, count) -> count > 1 ? count - 1 : null);
+            } else {
+                muxRelayMap.remove(new MuxKey(clientAddress, flowId));
+                muxFlowCount.computeIfPresent(clientAddress, (address, count) -> count > 1 ? count - 1 : null);
+            }
+            activeRelayCount.decrementAndGet();
+            log.debug("exit relay: {}, flowId={}", clientAddress, flowId);
         }
         @Override
         public String toString() {
@@ -83,7 +279,6 @@ public class UDPRelay implements Runnable, Closeable {
         }
     }
 
-    private final Map<SocketAddress, Relay> relayMap = new ConcurrentHashMap<>();
     private static final byte[] CONNECT_MAGIC = "UDPR".getBytes();
 
     public static DatagramSocket createRelayProxySocket(InetSocketAddress udpProxy, InetSocketAddress serverAddress, long receiveTimeoutSeconds) throws IOException {
@@ -117,75 +312,329 @@ public class UDPRelay implements Runnable, Closeable {
 
     @Override
     public void run() {
-        byte[] buffer = new byte[Receiver.MAX_DATAGRAM_SIZE];
-        final DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-        byte[] magic = new byte[4];
-        byte[] ipv4 = new byte[4];
-        byte[] ipv6 = new byte[6];
-        log.debug("start udp relay serverSocket={}", serverSocket);
-        while (true) {
+        log.debug("start udp relay serverChannel={}", serverChannel);
+        while (!closed) {
             try {
-                serverSocket.receive(packet);
-                int length = packet.getLength();
-                SocketAddress clientAddress = packet.getSocketAddress();
-                Relay relay = relayMap.get(clientAddress);
-                log.debug("receive packet={}, clientAddress={}, relay={}, relaySize={}", packet, clientAddress, relay, relayMap.size());
-                if (log.isDebugEnabled()) {
-                    log.debug("{}", Inspector.inspectString(Arrays.copyOf(buffer, length), "receive packet"));
-                }
-                if (relay != null) {
-                    try {
-                        relay.forward(packet);
-                    } catch (Exception e) {
-                        log.debug("relay forward", e);
+                selector.select(TICK_MILLIS);
+                for (SelectionKey key : selector.selectedKeys()) {
+                    Relay relay = (Relay) key.attachment();
+                    if (relay == null) {
+                        try {
+                            onServerReadable();
+                        } catch (IOException e) {
+                            if (!serverChannel.isOpen()) {
+                                throw e;
+                            }
+                            // 单个数据报的错误不影响其他客户端
+                            log.debug("receive udp relay", e);
+                        }
+                        continue;
                     }
-                } else if(length > 4) {
                     try {
-                        ByteBuffer bb = ByteBuffer.wrap(buffer);
-                        bb.limit(length);
-                        bb.get(magic);
-                        if (!Arrays.equals(magic, CONNECT_MAGIC)) {
-                            continue;
+                        if (key.isValid() && key.isReadable()) {
+                            relay.onReadable();
                         }
-                        int type = bb.get() & 0xff;
-                        InetAddress address;
-                        if (type == 4) {
-                            bb.get(ipv4);
-                            address = InetAddress.getByAddress(ipv4);
-                        } else if (type == 6) {
-                            bb.get(ipv6);
-                            address = InetAddress.getByAddress(ipv6);
-                        } else {
-                            continue;
-                        }
-                        int port = bb.getShort() & 0xffff;
-                        int receiveTimeoutInSeconds = bb.get() & 0xff;
-                        if (bb.hasRemaining()) {
-                            log.warn("bb={}", bb);
-                        }
-                        InetSocketAddress serverAddress = new InetSocketAddress(address, port);
-                        relay = new Relay(clientAddress, new InetSocketAddress(address, port), receiveTimeoutInSeconds);
-                        relayMap.put(clientAddress, relay);
-                        executorService.submit(relay);
-                        log.debug("connect relay serverAddress={}, relayMap={}", serverAddress, relayMap);
-                    } catch (Exception e) {
-                        log.debug("handle connect udp relay", e);
+                    } catch (IOException e) {
+                        log.debug("relay {} => {}", relay.clientAddress, relay.serverAddress, e);
+                        relay.close();
                     }
                 }
+                selector.selectedKeys().clear();
+                expire(System.currentTimeMillis());
             } catch (IOException e) {
                 log.debug("run udp replay", e);
-                break;
+                if (!selector.isOpen() || !serverChannel.isOpen()) {
+                    break;
+                }
             } catch (Exception e) {
                 log.warn("run udp replay", e);
             }
         }
+        for (Relay relay : new ArrayList<>(relayMap.values())) {
+            relay.close();
+        }
+        for (Relay relay : new ArrayList<>(muxRelayMap.values())) {
+            relay.close();
+        }
+        IoUtil.close(serverChannel);
+        IoUtil.close(selector);
         log.debug("exit udp replay");
     }
 
+    private void onServerReadable() throws IOException {
+        for (int i = 0; i < MAX_READS_PER_EVENT; i++) {
+            buffer.clear();
+            InetSocketAddress clientAddress = (InetSocketAddress) serverChannel.receive(buffer);
+            if (clientAddress == null) {
+                break;
+            }
+            buffer.flip();
+            int length = buffer.remaining();
+            Relay relay = relayMap.get(clientAddress);
+            if (log.isDebugEnabled()) {
+                log.debug("receive length={}, clientAddress={}, relay={}, relaySize={}", length, clientAddress, relay, relayMap.size());
+                log.debug("{}", Inspector.inspectString(Arrays.copyOf(buffer.array(), length), "receive packet"));
+            }
+            if (relay != null) {
+                try {
+                    relay.forward(buffer);
+                } catch (IOException e) {
+                    log.debug("relay forward", e);
+                }
+            } else if (length > 4) {
+                try {
+                    if (startsWith(buffer, MUX_MAGIC)) {
+                        buffer.position(MUX_MAGIC.length);
+                        handleMux(clientAddress);
+                        continue;
+                    }
+                    connect(clientAddress);
+                } catch (Exception e) {
+                    log.debug("handle connect udp relay", e);
+                }
+            }
+        }
+    }
+
+    static boolean startsWith(ByteBuffer buffer, byte[] magic) {
+        if (buffer.remaining() < magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (buffer.get(buffer.position() + i) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void connect(InetSocketAddress clientAddress) throws IOException {
+        if (!startsWith(buffer, CONNECT_MAGIC)) {
+            return;
+        }
+        buffer.position(buffer.position() + CONNECT_MAGIC.length);
+        InetSocketAddress serverAddress = readAddress(buffer);
+        if (serverAddress == null || !buffer.hasRemaining()) {
+            return;
+        }
+        int receiveTimeoutInSeconds = buffer.get() & 0xff;
+        if (buffer.hasRemaining()) {
+            log.warn("buffer={}", buffer);
+        }
+        Relay relay = openRelay(clientAddress, serverAddress, receiveTimeoutInSeconds, -1);
+        if (relay != null) {
+            relayMap.put(clientAddress, relay);
+            log.debug("connect relay serverAddress={}, relaySize={}", serverAddress, relayMap.size());
+        }
+    }
+
+    /**
+     * @return <code>null</code> 表示地址类型不支持或数据不完整
+     */
+    private static InetSocketAddress readAddress(ByteBuffer buffer) throws IOException {
+        if (!buffer.hasRemaining()) {
+            return null;
+        }
+        int type = buffer.get() & 0xff;
+        if ((type != 4 && type != 16) || buffer.remaining() < type + 2) {
+            return null;
+        }
+        byte[] ip = new byte[type];
+        buffer.get(ip);
+        InetAddress address = InetAddress.getByAddress(ip);
+        int port = buffer.getShort() & 0xffff;
+        return new InetSocketAddress(address, port);
+    }
+
+    /**
+     * @return <code>null</code> 表示超过来源的中继上限
+     */
+    private Relay openRelay(InetSocketAddress clientAddress, InetSocketAddress serverAddress, int receiveTimeoutInSeconds, int flowId) throws IOException {
+        if (flowId < 0) {
+            InetAddress source = clientAddress.getAddress();
+            int count = sourceRelayCount.getOrDefault(source, 0);
+            if (count >= maxRelaysPerSource) {
+                rejectedRelayCount.incrementAndGet();
+                log.debug("too many relays: source={}, count={}", source, count);
+                return null;
+            }
+            Relay relay = new Relay(clientAddress, serverAddress, receiveTimeoutInSeconds, flowId);
+            sourceRelayCount.put(source, count + 1);
+            return onOpen(relay);
+        }
+        int count = muxFlowCount.getOrDefault(clientAddress, 0);
+        if (count >= maxMuxFlowsPerClient) {
+            rejectedRelayCount.incrementAndGet();
+            log.debug("too many mux flows: client={}, count={}", clientAddress, count);
+            return null;
+        }
+        Relay relay = new Relay(clientAddress, serverAddress, receiveTimeoutInSeconds, flowId);
+        muxFlowCount.put(clientAddress, count + 1);
+        return onOpen(relay);
+    }
+
+    private Relay onOpen(Relay relay) {
+        activeRelayCount.incrementAndGet();
+        schedule(relay);
+        return relay;
+    }
+
+    /**
+     * 一个 v2 记录，payload 位于 buffer 的当前位置
+     */
+    static final class MuxRecord {
+        int flowId;
+        int flags;
+        /**
+         * 不带 {@link #FLAG_DESTINATION} 时为 <code>null</code>
+         */
+        InetSocketAddress destination;
+        int receiveTimeoutSeconds;
+        int length;
+    }
+
+    /**
+     * 读取一个记录头，成功时 buffer 位于 payload 开始处
+     *
+     * @return <code>false</code> 表示剩余部分不是完整的记录，调用方丢弃剩余部分
+     */
+    static boolean readMuxRecord(ByteBuffer buffer, MuxRecord record) throws IOException {
+        if (buffer.remaining() < MUX_RECORD_HEADER_LENGTH) {
+            return false;
+        }
+        record.flowId = buffer.getShort() & 0xffff;
+        record.flags = buffer.get() & 0xff;
+        record.destination = null;
+        record.receiveTimeoutSeconds = 0;
+        if ((record.flags & FLAG_DESTINATION) != 0) {
+            record.destination = readAddress(buffer);
+            if (record.destination == null || buffer.remaining() < 1 + 2) {
+                return false;
+            }
+            record.receiveTimeoutSeconds = buffer.get() & 0xff;
+        }
+        if (buffer.remaining() < 2) {
+            return false;
+        }
+        record.length = buffer.getShort() & 0xffff;
+        return record.length <= buffer.remaining();
+    }
+
+    /**
+     * @return 记录中 {@link #FLAG_DESTINATION} 之后的目标地址部分
+     */
+    static byte[] createMuxDestination(InetSocketAddress destination, int receiveTimeoutSeconds) {
+        byte[] ip = destination.getAddress().getAddress();
+        ByteBuffer header = ByteBuffer.allocate(1 + ip.length + 3);
+        header.put((byte) ip.length).put(ip).putShort((short) destination.getPort()).put((byte) receiveTimeoutSeconds);
+        return header.array();
+    }
+
+    private final MuxRecord muxRecord = new MuxRecord();
+
+    /**
+     * buffer 位于 magic 之后，逐个处理记录，格式错误时丢弃剩余部分
+     */
+    private void handleMux(InetSocketAddress clientAddress) throws IOException {
+        MuxRecord record = muxRecord;
+        while (buffer.hasRemaining()) {
+            if (!readMuxRecord(buffer, record)) {
+                log.debug("invalid mux record: clientAddress={}, flowId={}, buffer={}", clientAddress, record.flowId, buffer);
+                return;
+            }
+            int flowId = record.flowId;
+            InetSocketAddress serverAddress = record.destination;
+            int end = buffer.position() + record.length;
+            MuxKey key = new MuxKey(clientAddress, flowId);
+            Relay relay = muxRelayMap.get(key);
+            if ((record.flags & FLAG_CLOSE) != 0) {
+                if (relay != null) {
+                    relay.close();
+                }
+            } else {
+                if (relay != null && serverAddress != null && !serverAddress.equals(relay.serverAddress)) {
+                    // 客户端的流 ID 回绕后重用，关闭记录丢失时旧的流还在
+                    log.debug("reopen mux relay clientAddress={}, flowId={}, serverAddress={} => {}", clientAddress, flowId, relay.serverAddress, serverAddress);
+                    relay.close();
+                    relay = null;
+                }
+                if (relay == null && serverAddress != null) {
+                    relay = openRelay(clientAddress, serverAddress, record.receiveTimeoutSeconds, flowId);
+                    if (relay != null) {
+                        muxRelayMap.put(key, relay);
+                        log.debug("connect mux relay clientAddress={}, flowId={}, serverAddress={}", clientAddress, flowId, serverAddress);
+                    }
+                }
+                if (relay == null) {
+                    resetMux(clientAddress, flowId);
+                } else {
+                    int limit = buffer.limit();
+                    buffer.limit(end);
+                    try {
+                        relay.forward(buffer);
+                    } catch (IOException e) {
+                        log.debug("relay forward", e);
+                    } finally {
+                        buffer.limit(limit);
+                    }
+                }
+            }
+            buffer.position(end);
+        }
+    }
+
+    /**
+     * 通知客户端该流在中继上不存在，客户端之后的记录带上目标地址重新打开
+     */
+    private void resetMux(InetSocketAddress clientAddress, int flowId) {
+        ByteBuffer reset = ByteBuffer.allocate(MUX_MAGIC.length + MUX_RECORD_HEADER_LENGTH);
+        reset.put(MUX_MAGIC).putShort((short) flowId).put((byte) FLAG_CLOSE).putShort((short) 0);
+        reset.flip();
+        try {
+            serverChannel.send(reset, clientAddress);
+        } catch (IOException e) {
+            log.debug("reset mux flow: clientAddress={}, flowId={}", clientAddress, flowId, e);
+        }
+    }
+
+    /**
+     * 放到到期时间所在的格，超出一圈的放在最后一格，到时再重新放置
+     */
+    private void schedule(Relay relay) {
+        long tick = relay.expiresAt / TICK_MILLIS;
+        tick = Math.max(wheelTick + 1, Math.min(tick, wheelTick + WHEEL_SIZE - 1));
+        wheel[(int) (tick % WHEEL_SIZE)].add(relay);
+    }
+
+    /**
+     * 转发时只更新到期时间，到格时仍未到期的中继重新放置
+     */
+    private void expire(long now) {
+        long nowTick = now / TICK_MILLIS;
+        if (nowTick - wheelTick > WHEEL_SIZE) {
+            wheelTick = nowTick - WHEEL_SIZE;
+        }
+        while (wheelTick < nowTick) {
+            wheelTick++;
+            ArrayDeque<Relay> slot = wheel[(int) (wheelTick % WHEEL_SIZE)];
+            for (int i = slot.size(); i > 0; i--) {
+                Relay relay = slot.poll();
+                if (relay.closed) {
+                    continue;
+                }
+                if (relay.expiresAt <= now) {
+                    relay.close();
+                } else {
+                    schedule(relay);
+                }
+            }
+        }
+    }
+
     @Override
     public void close() throws IOException {
-        executorService.shutdown();
-        IoUtil.close(serverSocket);
+        closed = true;
+        selector.wakeup();
     }
 
 }
@@ -16,49 +16,49 @@ import com.github.netguard.vpn.udp.quic.QuicProxyProvider;
 import com.github.netguard.vpn.udp.quic.QuicServer;
 import eu.faircode.netguard.Allowed;
 import eu.faircode.netguard.Packet;
-import net.luminis.quic.crypto.Aead;
-import net.luminis.quic.crypto.ConnectionSecrets;
-import net.luminis.quic.frame.QuicFrame;
-import net.luminis.quic.impl.Role;
 import net.luminis.quic.impl.Version;
-import net.luminis.quic.impl.VersionHolder;
-import net.luminis.quic.log.NullLogger;
-import net.luminis.quic.log.SysOutLogger;
 import net.luminis.quic.packet.InitialPacket;
 import net.luminis.quic.packet.LongHeaderPacket;
 import net.luminis.quic.packet.VersionNegotiationPacket;
-import net.luminis.quic.receive.Receiver;
-import net.luminis.quic.stream.ReceiveBuffer;
-import net.luminis.quic.stream.ReceiveBufferImpl;
-import net.luminis.quic.stream.StreamElement;
 import net.luminis.quic.tls.QuicTransportParametersExtension;
-import net.luminis.tls.TlsConstants;
-import net.luminis.tls.alert.DecodeErrorException;
 import net.luminis.tls.extension.Extension;
 import net.luminis.tls.handshake.ClientHello;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xbill.DNS.Message;
+import org.xbill.DNS.Rcode;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
-import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * 一个 UDP 流：serverChannel 接收 VPN 重定向过来的数据报，clientChannel 转发到目标服务器。
+ * 两个 channel 都是非阻塞的，由 {@link UdpFlowTable} 的 selector 线程读取；
+ * 流开始时的 DNS/QUIC 识别、acceptUdp 及 QUIC 握手可能阻塞，暂停读取 serverChannel 后交给 vpn 的线程池执行。
+ */
 public class UDProxy {
 
     private static final Logger log = LoggerFactory.getLogger(UDProxy.class);
 
-    private static final int READ_TIMEOUT = 60000;
+    static final int READ_TIMEOUT = 60000;
+
+    /**
+     * 每次就绪最多读取的数据报数，避免一个繁忙的流占住 selector 线程
+     */
+    private static final int MAX_READS_PER_EVENT = 32;
 
     public static Allowed redirect(InspectorVpn vpn, Packet packet) {
         if ("255.255.255.255".equals(packet.daddr)) {
@@ -66,462 +66,696 @@ public class UDProxy {
         }
         log.trace("redirect packet={}", packet);
         try {
-            UDProxy proxy = new UDProxy(vpn, packet);
-            return proxy.redirect();
-        } catch (SocketException e) {
+            return UdpFlowTable.getInstance().redirect(vpn, packet);
+        } catch (IOException e) {
             throw new IllegalStateException("redirect", e);
         }
     }
 
+    /**
+     * 关闭所有 VPN 共享的 UDP 流与 selector 线程，之后再次使用时会重新创建
+     */
+    public static void shutdown() {
+        UdpFlowTable.shutdownInstance();
+    }
+
     private final InspectorVpn vpn;
+    private final Packet packet;
+    final UdpFlowTable.FlowKey flowKey;
+    private final UdpFlowTable.Loop loop;
     private final InetSocketAddress clientAddress;
     private final InetSocketAddress serverAddress;
-    private final DatagramSocket clientSocket;
-    private final DatagramSocket serverSocket;
+    private final DatagramChannel clientChannel;
+    private final DatagramChannel serverChannel;
     private final Http2Filter http2Filter;
     private final DNSFilter dnsFilter;
+    private final DnsCache dnsCache;
 
-    private UDProxy(InspectorVpn vpn, Packet packet) throws SocketException {
+    UDProxy(InspectorVpn vpn, Packet packet, UdpFlowTable.FlowKey flowKey, UdpFlowTable.Loop loop) throws IOException {
         this.vpn = vpn;
+        this.packet = packet;
+        this.flowKey = flowKey;
+        this.loop = loop;
         this.clientAddress = packet.createClientAddress();
         this.serverAddress = packet.createServerAddress();
-        this.serverSocket = new DatagramSocket(new InetSocketAddress(0));
-        this.serverSocket.setSoTimeout(READ_TIMEOUT);
-        this.clientSocket = new DatagramSocket(new InetSocketAddress(0));
-        this.clientSocket.setSoTimeout(3000);
-        log.trace("UDProxy client={}, server={}, clientSocket={}, serverSocket={}", clientAddress, serverAddress, clientSocket.getLocalPort(), serverSocket.getLocalPort());
+        this.forwardAddress = serverAddress;
+        this.serverChannel = DatagramChannel.open();
+        this.clientChannel = DatagramChannel.open();
+        try {
+            this.serverChannel.bind(new InetSocketAddress(0)).configureBlocking(false);
+            this.clientChannel.bind(new InetSocketAddress(0)).configureBlocking(false);
+        } catch (IOException e) {
+            IoUtil.close(serverChannel);
+            IoUtil.close(clientChannel);
+            throw e;
+        }
+        if (log.isTraceEnabled()) {
+            log.trace("UDProxy client={}, server={}, clientChannel={}, serverChannel={}", clientAddress, serverAddress, clientChannel.getLocalAddress(), serverChannel.getLocalAddress());
+        }
         IPacketCapture packetCapture = vpn.getPacketCapture();
         this.http2Filter = packetCapture == null ? null : packetCapture.getH2Filter();
         this.dnsFilter = packetCapture == null ? null : packetCapture.getDNSFilter();
-
-        ExecutorService executorService = vpn.getExecutorService();
-        Client client = new Client();
-        executorService.submit(new Server(client, serverAddress, packet));
-        executorService.submit(client);
+        this.dnsCache = packetCapture == null ? null : packetCapture.getDnsCache();
     }
 
-    private Allowed redirect() {
-        return new Allowed("127.0.0.1", serverSocket.getLocalPort());
+    Allowed redirect() {
+        return new Allowed("127.0.0.1", serverChannel.socket().getLocalPort());
     }
 
-    private boolean serverClosed;
+    private SelectionKey serverKey;
+    private SelectionKey clientKey;
+    private volatile boolean closed;
+    private long lastActive = System.currentTimeMillis();
+
+    /**
+     * 识别任务在线程池执行中，期间不读取 serverChannel，也不做空闲超时
+     */
+    private boolean inspecting;
+    private boolean first = true;
+    private boolean continueQuic;
+    private final QuicInitialDecryptor initialDecryptor = new QuicInitialDecryptor();
+    private final List<byte[]> pendingList = new ArrayList<>(0);
+
+    /**
+     * 目标服务器或 udp relay 地址
+     */
+    private InetSocketAddress forwardAddress;
+    /**
+     * VPN 侧发送数据报的地址，回包发往这里
+     */
+    private volatile InetSocketAddress replyAddress;
+    private volatile Message dnsQuery;
+    private volatile ClientConnection connection;
+    private volatile QuicServer quicServer;
+    /**
+     * 使用 v2 中继时不经过 clientChannel
+     */
+    private volatile UdpRelayMux.Flow relayFlow;
 
-    private class Server implements Runnable {
-        private final Client client;
-        private final Packet packet;
-        Server(Client client, InetSocketAddress serverAddress, Packet packet) {
-            this.client = client;
-            this.forwardAddress = serverAddress;
-            this.packet = packet;
+    /**
+     * RFC 8767 建议的客户端等待时间，超过后回复过期应答
+     */
+    private static final long STALE_RESPONSE_TIMEOUT = 1800;
+
+    /**
+     * 已发往上游或等待其他流的上游应答、需要特殊处理应答的 DNS 查询，按 ID 索引
+     */
+    private final Map<Integer, PendingDnsQuery> pendingDnsQueries = new ConcurrentHashMap<>();
+
+    private class PendingDnsQuery implements DnsCache.Waiter {
+        private final Message query;
+        private final byte[] queryData;
+        private final DnsCache.Question question;
+        /**
+         * 上游失败或超时时回复的过期应答
+         */
+        private final byte[] staleResponse;
+        /**
+         * 已经从缓存回复，上游应答只用于刷新缓存
+         */
+        private final boolean prefetch;
+        /**
+         * 没有发往上游，等待相同问题的其他查询的应答
+         */
+        private final boolean waiting;
+        private final long deadline;
+        PendingDnsQuery(Message query, byte[] queryData, DnsCache.Question question, byte[] staleResponse, boolean prefetch, boolean waiting, long deadline) {
+            this.query = query;
+            this.queryData = queryData;
+            this.question = question;
+            this.staleResponse = staleResponse;
+            this.prefetch = prefetch;
+            this.waiting = waiting;
+            this.deadline = deadline;
         }
-        private InetSocketAddress forwardAddress;
-        private final List<QuicFrame> bufferFrames = new ArrayList<>(10);
-        private boolean continueQuic;
         @Override
-        public void run() {
-            IPacketCapture packetCapture = vpn.getPacketCapture();
+        public byte[] getQuery() {
+            return queryData;
+        }
+        @Override
+        public void onResponse(byte[] response, int rcode) {
+            if (!pendingDnsQueries.remove(query.getHeader().getID(), this)) {
+                return;
+            }
             try {
-                final byte[] buffer = new byte[Receiver.MAX_DATAGRAM_SIZE];
-                final DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                boolean first = true;
-                List<byte[]> pendingList = new ArrayList<>(10);
-                while (true) {
-                    try {
-                        serverSocket.receive(packet);
-                        int length = packet.getLength();
-                        if (log.isDebugEnabled()) {
-                            byte[] data = Arrays.copyOf(buffer, length);
-                            if (client.connection == null) {
-                                log.trace("{}", Inspector.inspectString(data, "ServerReceived: " + clientAddress + " => " + serverAddress + ", base64=" + Base64.encode(data)));
-                            } else {
-                                log.debug("{}", Inspector.inspectString(data, "ServerReceived: " + clientAddress + " => " + serverAddress + ", base64=" + Base64.encode(data)));
-                            }
-                        }
-                        if (first || continueQuic) {
-                            if (first) {
-                                client.forwardAddress = (InetSocketAddress) packet.getSocketAddress();
-                            }
-                            ClientHello clientHello = null;
-                            if (client.dnsQuery == null || continueQuic) {
-                                try {
-                                    clientHello = detectQuicClientHello(buffer, length);
-                                    if (clientHello == null && continueQuic) {
-                                        if (!bufferFrames.isEmpty()) {
-                                            pendingList.add(Arrays.copyOf(buffer, length));
-                                        }
-                                        continue;
-                                    }
-                                } catch (ReassembleException e) {
-                                    continueQuic = true;
-                                    bufferFrames.addAll(e.frameList);
-                                    pendingList.add(Arrays.copyOf(buffer, length));
-                                    continue;
-                                }
-                            }
-                            if (first) {
-                                client.dnsQuery = detectDnsQuery(buffer, length);
-                                log.trace("dnsQuery={}", client.dnsQuery);
-                            }
-                            Message fake;
-                            if (dnsFilter != null &&
-                                    client.dnsQuery != null &&
-                                    (fake = dnsFilter.cancelDnsQuery(client.dnsQuery)) != null) {
-                                log.trace("cancelDnsQuery: {}", fake);
-                                byte[] fakeResponse = fake.toWire();
-                                DatagramPacket fakePacket = new DatagramPacket(fakeResponse, fakeResponse.length);
-                                fakePacket.setSocketAddress(client.forwardAddress);
-                                serverSocket.send(fakePacket);
-                                continue;
-                            }
-                            if (packetCapture != null) {
-                                PacketRequest packetRequest = new PacketRequest(buffer, length, clientHello, client.dnsQuery, serverAddress, vpn, this.packet);
-                                AcceptUdpResult acceptUdpResult = packetCapture.acceptUdp(packetRequest);
-                                AcceptRule rule = acceptUdpResult == null ? null : acceptUdpResult.acceptRule;
-                                InetSocketAddress udpProxy = acceptUdpResult == null ? null : acceptUdpResult.udpProxy;
-                                if (rule == null) {
-                                    rule = AcceptRule.Forward;
-                                }
-                                log.trace("acceptUdp rule={}, packetRequest={}", rule, packetRequest);
-                                switch (rule) {
-                                    case Discard:
-                                        throw new SocketTimeoutException("discard");
-                                    case Forward: {
-                                        setUdpProxy(packetRequest, udpProxy);
-                                        break;
-                                    }
-                                    case FILTER_H3:
-                                    case QUIC_MITM: {
-                                        if (packetRequest.hostName == null ||
-                                                packetRequest.hostName.isEmpty() ||
-                                                packetRequest.applicationLayerProtocols.isEmpty()) {
-                                            setUdpProxy(packetRequest, udpProxy);
-                                            break; // forward traffic
-                                        }
-                                        Http2Filter http2Filter = rule == AcceptRule.FILTER_H3 ? UDProxy.this.http2Filter : null;
-                                        handleQuicProxy(packetRequest, http2Filter, clientHello, packetCapture.getQuicProxyProvider(), udpProxy);
-                                    }
-                                }
-                            }
-                        }
-                        for (byte[] data : pendingList) {
-                            DatagramPacket pendingPacket = new DatagramPacket(data, data.length);
-                            pendingPacket.setSocketAddress(forwardAddress);
-                            clientSocket.send(pendingPacket);
-                            if (log.isDebugEnabled()) {
-                                log.debug("pendingPacket={}, length={}, hash={}, forwardAddress={}", pendingPacket, data.length, DigestUtil.md5Hex(data), forwardAddress);
-                            }
-                        }
-                        pendingList.clear();
-                        packet.setSocketAddress(forwardAddress);
-                        clientSocket.send(packet);
-                    } catch (SocketTimeoutException e) {
-                        log.trace("server", e);
-                        break;
-                    } catch (Exception e) {
-                        log.warn("server", e);
-                        break;
-                    } finally {
-                        first = false;
-                    }
+                if (staleResponse != null && (rcode == Rcode.SERVFAIL || rcode == Rcode.REFUSED)) {
+                    dnsCache.recordStaleHit();
+                    replyDns(query, staleResponse, staleResponse.length);
+                } else {
+                    replyDns(query, response, response.length);
                 }
-            } finally {
-                serverClosed = true;
-                log.trace("udp proxy server exit: client={}, server={}", clientAddress, serverAddress);
+            } catch (IOException e) {
+                log.debug("reply coalesced dns query: {}", query.getQuestion(), e);
             }
         }
+    }
+
+    /**
+     * selector 线程调用
+     */
+    void register(Selector selector) throws IOException {
+        serverKey = serverChannel.register(selector, SelectionKey.OP_READ, this);
+        clientKey = clientChannel.register(selector, SelectionKey.OP_READ, this);
+    }
 
-        private void setUdpProxy(PacketRequest packetRequest, InetSocketAddress udpProxy) throws IOException {
-            if (udpProxy != null) {
-                byte[] connect = UDPRelay.createConnectUdpRelayRequest(new InetSocketAddress(packetRequest.serverIp, packetRequest.port), 60);
-                forwardAddress = udpProxy;
-                DatagramPacket packet = new DatagramPacket(connect, connect.length);
-                packet.setSocketAddress(forwardAddress);
-                clientSocket.send(packet);
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * selector 线程定时调用：上游超时的 DNS 查询回复过期应答，等待超时的合并查询自己发往上游
+     */
+    void onTimer(long now) throws IOException {
+        if (pendingDnsQueries.isEmpty()) {
+            return;
+        }
+        for (Iterator<PendingDnsQuery> iterator = pendingDnsQueries.values().iterator(); iterator.hasNext(); ) {
+            PendingDnsQuery pending = iterator.next();
+            if (now >= pending.deadline) {
+                iterator.remove();
+                if (pending.waiting) {
+                    dnsCache.leave(pending.question, pending);
+                }
+                if (pending.staleResponse != null) {
+                    log.debug("dns upstream timeout, serve stale: {}", pending.query.getQuestion());
+                    dnsCache.recordStaleHit();
+                    replyDns(pending.query, pending.staleResponse, pending.staleResponse.length);
+                } else if (pending.waiting) {
+                    log.debug("dns coalesced query timeout, forward: {}", pending.query.getQuestion());
+                    sendUpstream(pending.queryData, pending.queryData.length);
+                }
             }
         }
+    }
 
-        private void handleQuicProxy(PacketRequest packetRequest, Http2Filter http2Filter, ClientHello clientHello, QuicProxyProvider quicProxyProvider, InetSocketAddress udpProxy) throws SocketTimeoutException {
-            try {
-                Duration connectTimeout = Duration.ofSeconds(60);
-                for (Extension extension : clientHello.getExtensions()) {
-                    if (extension instanceof QuicTransportParametersExtension) {
-                        QuicTransportParametersExtension quicTransportParametersExtension = (QuicTransportParametersExtension) extension;
-                        long timeout = quicTransportParametersExtension.getTransportParameters().getMaxIdleTimeout();
-                        if (timeout >= 1000) {
-                            connectTimeout = Duration.ofMillis(timeout);
-                        }
-                        break;
-                    }
+    boolean isExpired(long now) {
+        return !inspecting && now - lastActive >= READ_TIMEOUT;
+    }
+
+    /**
+     * selector 线程调用
+     */
+    void onReadable(SelectionKey key, ByteBuffer buffer) throws IOException {
+        if (key == serverKey) {
+            onServerReadable(buffer);
+        } else if (key == clientKey) {
+            onClientReadable(buffer);
+        }
+    }
+
+    private void onServerReadable(ByteBuffer buffer) throws IOException {
+        byte[] data = buffer.array();
+        for (int i = 0; i < MAX_READS_PER_EVENT; i++) {
+            buffer.clear();
+            InetSocketAddress source = (InetSocketAddress) serverChannel.receive(buffer);
+            if (source == null) {
+                break;
+            }
+            lastActive = System.currentTimeMillis();
+            replyAddress = source;
+            int length = buffer.position();
+            if (quicServer == null ? log.isTraceEnabled() : log.isDebugEnabled()) {
+                byte[] copy = Arrays.copyOf(data, length);
+                String message = Inspector.inspectString(copy, "ServerReceived: " + clientAddress + " => " + serverAddress + ", base64=" + Base64.encode(copy));
+                if (quicServer == null) {
+                    log.trace("{}", message);
+                } else {
+                    log.debug("{}", message);
                 }
-                client.connection = quicProxyProvider.newClientConnection(packetRequest, connectTimeout, udpProxy);
-                log.debug("handleQuic applicationLayerProtocols={}", packetRequest.applicationLayerProtocols);
-                Http2Session session = new Http2Session(clientAddress.getHostString(), serverAddress.getHostString(), clientAddress.getPort(), serverAddress.getPort(), packetRequest.hostName);
-                HandshakeResult handshakeResult = client.connection.handshake(session);
-                log.debug("handleQuic handshakeResult={}", handshakeResult);
-                client.quicServer = handshakeResult.startServer(vpn, http2Filter);
-                forwardAddress = client.quicServer.getForwardAddress();
-            } catch (Exception e) {
-                IoUtil.close(client.connection);
-                if (e instanceof IOException) {
-                    log.debug("handleQuic packetRequest={}", packetRequest, e);
+            }
+            if (first || continueQuic) {
+                byte[] copy = Arrays.copyOf(data, length);
+                inspecting = true;
+                serverKey.interestOps(0);
+                vpn.getExecutorService().execute(() -> inspect(copy));
+                return;
+            }
+            forward(data, length);
+        }
+    }
+
+    /**
+     * 线程池执行，完成后回到 selector 线程恢复读取或关闭流
+     */
+    private void inspect(byte[] data) {
+        boolean keep = false;
+        try {
+            inspect(data, data.length);
+            keep = true;
+        } catch (SocketTimeoutException e) {
+            log.trace("server", e);
+        } catch (Exception e) {
+            log.warn("server", e);
+        } finally {
+            first = false;
+        }
+        if (keep) {
+            loop.execute(() -> {
+                inspecting = false;
+                lastActive = System.currentTimeMillis();
+                if (closed) {
+                    // 识别期间流已关闭，握手得到的连接也要关闭
+                    IoUtil.close(quicServer);
+                    IoUtil.close(connection);
                 } else {
-                    log.warn("handleQuic packetRequest={}", packetRequest, e);
+                    serverKey.interestOps(SelectionKey.OP_READ);
+                }
+            });
+        } else {
+            loop.execute(this::close);
+        }
+    }
+
+    private void inspect(byte[] buffer, int length) throws Exception {
+        ClientHello clientHello = null;
+        if (dnsQuery == null || continueQuic) {
+            clientHello = detectQuicClientHello(buffer, length);
+            if (clientHello == null && continueQuic) {
+                if (initialDecryptor.isReassembling()) {
+                    pendingList.add(buffer);
+                }
+                return;
+            }
+        }
+        if (first) {
+            dnsQuery = detectDnsQuery(buffer, length);
+            log.trace("dnsQuery={}", dnsQuery);
+        }
+        Message fake;
+        if (dnsFilter != null &&
+                dnsQuery != null &&
+                (fake = dnsFilter.cancelDnsQuery(dnsQuery)) != null) {
+            log.trace("cancelDnsQuery: {}", fake);
+            serverChannel.send(ByteBuffer.wrap(fake.toWire()), replyAddress);
+            return;
+        }
+        IPacketCapture packetCapture = vpn.getPacketCapture();
+        if (packetCapture != null) {
+            PacketRequest packetRequest = new PacketRequest(buffer, length, clientHello, dnsQuery, serverAddress, vpn, this.packet);
+            AcceptUdpResult acceptUdpResult = packetCapture.acceptUdp(packetRequest);
+            AcceptRule rule = acceptUdpResult == null ? null : acceptUdpResult.acceptRule;
+            InetSocketAddress udpProxy = acceptUdpResult == null ? null : acceptUdpResult.udpProxy;
+            boolean multiplex = acceptUdpResult != null && acceptUdpResult.multiplex;
+            if (rule == null) {
+                rule = AcceptRule.Forward;
+            }
+            log.trace("acceptUdp rule={}, packetRequest={}", rule, packetRequest);
+            switch (rule) {
+                case Discard:
+                    throw new SocketTimeoutException("discard");
+                case Forward: {
+                    setUdpProxy(packetRequest, udpProxy, multiplex);
+                    break;
+                }
+                case FILTER_H3:
+                case QUIC_MITM: {
+                    if (packetRequest.hostName == null ||
+                            packetRequest.hostName.isEmpty() ||
+                            packetRequest.applicationLayerProtocols.isEmpty()) {
+                        setUdpProxy(packetRequest, udpProxy, multiplex);
+                        break; // forward traffic
+                    }
+                    Http2Filter http2Filter = rule == AcceptRule.FILTER_H3 ? this.http2Filter : null;
+                    handleQuicProxy(packetRequest, http2Filter, clientHello, packetCapture.getQuicProxyProvider(), udpProxy);
                 }
-                throw new SocketTimeoutException(e.getMessage());
             }
         }
+        QuicServer quicServer = this.quicServer;
+        for (byte[] data : pendingList) {
+            if (quicServer != null) {
+                quicServer.forward(data, data.length);
+            } else {
+                sendUpstream(data, data.length);
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("pendingPacket length={}, hash={}, forwardAddress={}, quicServer={}", data.length, DigestUtil.md5Hex(data), forwardAddress, quicServer);
+            }
+        }
+        pendingList.clear();
+        forward(buffer, length);
+    }
+
+    private void forward(byte[] data, int length) throws IOException {
+        QuicServer quicServer = this.quicServer;
+        if (quicServer != null) {
+            // 拦截的 QUIC 服务端在进程内，直接交付
+            quicServer.forward(data, length);
+        } else if (dnsQuery == null || dnsCache == null || !resolveFromCache(data, length)) {
+            sendUpstream(data, length);
+        }
+    }
+
+    private void sendUpstream(byte[] data, int length) throws IOException {
+        UdpRelayMux.Flow relayFlow = this.relayFlow;
+        if (relayFlow != null) {
+            relayFlow.send(data, 0, length);
+        } else {
+            // 非阻塞发送，发送缓冲区满时与 UDP 丢包一样丢弃
+            clientChannel.send(ByteBuffer.wrap(data, 0, length), forwardAddress);
+        }
+    }
+
+    /**
+     * @return 已从缓存回复，不需要发往上游
+     */
+    private boolean resolveFromCache(byte[] data, int length) throws IOException {
+        Message query;
+        try {
+            ByteBuffer bb = ByteBuffer.wrap(data);
+            bb.limit(length);
+            query = new Message(bb);
+        } catch (IOException | BufferUnderflowException e) {
+            log.trace("resolveFromCache", e);
+            return false;
+        }
+        DnsCache.Lookup lookup = dnsCache.lookup(serverAddress, query, data, length);
+        if (lookup == null) {
+            return false;
+        }
+        int id = query.getHeader().getID();
+        long now = System.currentTimeMillis();
+        if (lookup.fresh) {
+            log.trace("dns cache hit: {}, prefetch={}", query.getQuestion(), lookup.prefetch);
+            replyDns(query, lookup.response, lookup.response.length);
+            if (lookup.prefetch) {
+                pendingDnsQueries.put(id, new PendingDnsQuery(query, null, lookup.question, null, true, false, now + READ_TIMEOUT));
+                return false;
+            }
+            return true;
+        }
+        PendingDnsQuery pending = pendingDnsQueries.get(id);
+        if (pending != null && pending.waiting) {
+            // 客户端重传，继续等待
+            return true;
+        }
+        pending = new PendingDnsQuery(query, Arrays.copyOf(data, length), lookup.question, lookup.response, false, true, now + STALE_RESPONSE_TIMEOUT);
+        pendingDnsQueries.put(id, pending);
+        if (dnsCache.join(lookup.question, pending, now)) {
+            log.trace("dns query coalesced: {}", query.getQuestion());
+            return true;
+        }
+        if (lookup.response != null) {
+            pendingDnsQueries.put(id, new PendingDnsQuery(query, null, lookup.question, lookup.response, false, false, now + STALE_RESPONSE_TIMEOUT));
+        } else {
+            pendingDnsQueries.remove(id, pending);
+        }
+        return false;
+    }
 
-        private Message detectDnsQuery(byte[] buffer, int length) {
+    private void replyDns(Message query, byte[] response, int length) throws IOException {
+        InetSocketAddress replyAddress = this.replyAddress;
+        if (dnsFilter != null) {
             try {
-                ByteBuffer bb = ByteBuffer.wrap(buffer);
+                ByteBuffer bb = ByteBuffer.wrap(response);
                 bb.limit(length);
-                Message message = new Message(bb);
-                if (!message.getSection(0).isEmpty()) {
-                    return message;
+                Message fake = dnsFilter.filterDnsResponse(query, new Message(bb));
+                if (fake != null) {
+                    log.trace("filterDnsResponse: {}", fake);
+                    serverChannel.send(ByteBuffer.wrap(fake.toWire()), replyAddress);
+                    return;
                 }
             } catch (IOException | BufferUnderflowException e) {
-                log.trace("detectDnsQuery", e);
-            } catch (Exception e) {
-                log.warn("detectDnsQuery", e);
+                log.warn("decode dns response, query={}", query, e);
+            }
+        }
+        serverChannel.send(ByteBuffer.wrap(response, 0, length), replyAddress);
+    }
+
+    private void setUdpProxy(PacketRequest packetRequest, InetSocketAddress udpProxy, boolean multiplex) throws IOException {
+        if (udpProxy != null && multiplex) {
+            forwardAddress = udpProxy;
+            relayFlow = loop.getRelayMux(udpProxy).open(this, new InetSocketAddress(packetRequest.serverIp, packetRequest.port), 60);
+            log.trace("relay flow: {}, {}", relayFlow, this);
+        } else if (udpProxy != null) {
+            byte[] connect = UDPRelay.createConnectUdpRelayRequest(new InetSocketAddress(packetRequest.serverIp, packetRequest.port), 60);
+            forwardAddress = udpProxy;
+            clientChannel.send(ByteBuffer.wrap(connect), forwardAddress);
+        }
+    }
+
+    private void handleQuicProxy(PacketRequest packetRequest, Http2Filter http2Filter, ClientHello clientHello, QuicProxyProvider quicProxyProvider, InetSocketAddress udpProxy) throws SocketTimeoutException {
+        try {
+            Duration connectTimeout = Duration.ofSeconds(60);
+            for (Extension extension : clientHello.getExtensions()) {
+                if (extension instanceof QuicTransportParametersExtension) {
+                    QuicTransportParametersExtension quicTransportParametersExtension = (QuicTransportParametersExtension) extension;
+                    long timeout = quicTransportParametersExtension.getTransportParameters().getMaxIdleTimeout();
+                    if (timeout >= 1000) {
+                        connectTimeout = Duration.ofMillis(timeout);
+                    }
+                    break;
+                }
+            }
+            connection = quicProxyProvider.newClientConnection(packetRequest, connectTimeout, udpProxy);
+            log.debug("handleQuic applicationLayerProtocols={}", packetRequest.applicationLayerProtocols);
+            Http2Session session = new Http2Session(clientAddress.getHostString(), serverAddress.getHostString(), clientAddress.getPort(), serverAddress.getPort(), packetRequest.hostName);
+            HandshakeResult handshakeResult = connection.handshake(session);
+            log.debug("handleQuic handshakeResult={}", handshakeResult);
+            quicServer = handshakeResult.startServer(vpn, http2Filter, data -> serverChannel.send(ByteBuffer.wrap(data), replyAddress));
+        } catch (Exception e) {
+            IoUtil.close(connection);
+            if (e instanceof IOException) {
+                log.debug("handleQuic packetRequest={}", packetRequest, e);
+            } else {
+                log.warn("handleQuic packetRequest={}", packetRequest, e);
             }
-            return null;
+            throw new SocketTimeoutException(e.getMessage());
+        }
+    }
+
+    private void onClientReadable(ByteBuffer buffer) throws IOException {
+        byte[] data = buffer.array();
+        for (int i = 0; i < MAX_READS_PER_EVENT; i++) {
+            buffer.clear();
+            if (clientChannel.receive(buffer) == null) {
+                break;
+            }
+            lastActive = System.currentTimeMillis();
+            onClientReceived(data, buffer.position());
+        }
+    }
+
+    /**
+     * selector 线程调用，v2 中继按流 ID 分发的应答
+     */
+    void onRelayReceived(byte[] data, int length) throws IOException {
+        lastActive = System.currentTimeMillis();
+        onClientReceived(data, length);
+    }
+
+    private void onClientReceived(byte[] data, int length) throws IOException {
+        if (log.isDebugEnabled()) {
+            byte[] copy = Arrays.copyOf(data, length);
+            if (quicServer == null) {
+                log.trace("{}", Inspector.inspectString(copy, "ClientReceived: " + clientAddress + " => " + serverAddress));
+            } else {
+                log.debug("{}", Inspector.inspectString(copy, "ClientReceived: " + clientAddress + " => " + serverAddress));
+            }
+        }
+        InetSocketAddress replyAddress = this.replyAddress;
+        if (replyAddress == null) {
+            throw new IllegalStateException("vpnAddress is null");
         }
-        private ClientHello detectQuicClientHello(byte[] buffer, int length) throws ReassembleException {
+        Message dnsQuery = this.dnsQuery;
+        if (dnsQuery != null) {
             try {
-                ByteBuffer bb = ByteBuffer.wrap(buffer);
+                ByteBuffer bb = ByteBuffer.wrap(data);
                 bb.limit(length);
-                bb.mark();
-                if (bb.remaining() < 1200) {
-                    return null;
+                Message dnsResponse = new Message(bb);
+                log.trace("client={}, server={}, dnsQuery={}\ndnsResponse={}", clientAddress, serverAddress, dnsQuery, dnsResponse);
+
+                if (dnsCache != null) {
+                    dnsCache.complete(serverAddress, dnsResponse, data, length);
+                    int id = dnsResponse.getHeader().getID();
+                    PendingDnsQuery pending = pendingDnsQueries.get(id);
+                    if (pending != null && (pending.waiting || !pendingDnsQueries.remove(id, pending))) {
+                        pending = null;
+                    }
+                    int rcode = dnsResponse.getRcode();
+                    if (pending != null && pending.staleResponse != null && (rcode == Rcode.SERVFAIL || rcode == Rcode.REFUSED)) {
+                        log.debug("dns upstream rcode={}, serve stale: {}", Rcode.string(rcode), pending.query.getQuestion());
+                        dnsCache.recordStaleHit();
+                        replyDns(pending.query, pending.staleResponse, pending.staleResponse.length);
+                        return;
+                    }
+                    dnsCache.store(serverAddress, dnsResponse, data, length);
+                    if (pending != null && pending.prefetch) {
+                        return;
+                    }
+                }
+                if (dnsFilter != null) {
+                    Message fake = dnsFilter.filterDnsResponse(dnsQuery, dnsResponse);
+                    if (fake != null) {
+                        log.trace("filterDnsResponse: {}", fake);
+                        serverChannel.send(ByteBuffer.wrap(fake.toWire()), replyAddress);
+                        return;
+                    }
                 }
-                int flags = bb.get() & 0xff;
-                if ((flags & 0x40) != 0x40) {
-                    return null;
+            } catch (Exception e) {
+                log.warn("decode dns response, query={}", dnsQuery, e);
+            }
+        }
+        serverChannel.send(ByteBuffer.wrap(data, 0, length), replyAddress);
+    }
+
+    /**
+     * selector 线程调用
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (relayFlow != null) {
+            relayFlow.close();
+        }
+        IoUtil.close(quicServer);
+        IoUtil.close(connection);
+        IoUtil.close(serverChannel);
+        IoUtil.close(clientChannel);
+        loop.unregister(this);
+        log.trace("udp proxy exit: client={}, server={}", clientAddress, serverAddress);
+    }
+
+    private Message detectDnsQuery(byte[] buffer, int length) {
+        try {
+            ByteBuffer bb = ByteBuffer.wrap(buffer);
+            bb.limit(length);
+            Message message = new Message(bb);
+            if (!message.getSection(0).isEmpty()) {
+                return message;
+            }
+        } catch (IOException | BufferUnderflowException e) {
+            log.trace("detectDnsQuery", e);
+        } catch (Exception e) {
+            log.warn("detectDnsQuery", e);
+        }
+        return null;
+    }
+    private ClientHello detectQuicClientHello(byte[] buffer, int length) {
+        try {
+            ByteBuffer bb = ByteBuffer.wrap(buffer);
+            bb.limit(length);
+            bb.mark();
+            if (bb.remaining() < 1200) {
+                return null;
+            }
+            int flags = bb.get() & 0xff;
+            if ((flags & 0x40) != 0x40) {
+                return null;
+            }
+            int type = (flags & 0x30) >> 4;
+            if (LongHeaderPacket.isLongHeaderPacket((byte) flags, null)) {
+                int version = bb.getInt();
+                if (log.isDebugEnabled()) {
+                    log.debug("detectQuicClientHello flags=0x{}, type={}, version=0x{}", Integer.toHexString(flags), type, Integer.toHexString(version));
                 }
-                int type = (flags & 0x30) >> 4;
-                if (LongHeaderPacket.isLongHeaderPacket((byte) flags, null)) {
-                    int version = bb.getInt();
-                    if (log.isDebugEnabled()) {
-                        log.debug("detectQuicClientHello flags=0x{}, type={}, version=0x{}", Integer.toHexString(flags), type, Integer.toHexString(version));
+                int dcidLength = bb.get() & 0xff;
+                if (version == QuicInitialDecryptor.QUIC_VERSION_1) {
+                    if (type == 0) {
+                        ClientHello clientHello = initialDecryptor.decrypt(buffer, length);
+                        continueQuic = clientHello == null && initialDecryptor.isReassembling();
+                        if (clientHello != null && log.isTraceEnabled()) {
+                            log.trace("detectQuicClientHello clientHello={}", clientHello);
+                        }
+                        return clientHello;
+                    } else {
+                        log.warn("detectQuicClientHello type={}", type);
+                    }
+                } else  {
+                    if (dcidLength > 20) {
+                        if (initialWithUnspportedVersion(type, version, length)) {
+                            log.debug("initialWithUnspportedVersion dcidLength={}", dcidLength);
+                            // https://tools.ietf.org/html/draft-ietf-quic-transport-32#section-6
+                            // "A server sends a Version Negotiation packet in response to each packet that might initiate a new connection;"
+                            sendVersionNegotiationPacket(replyAddress, bb, dcidLength);
+                            continueQuic = true;
+                            return null;
+                        }
                     }
-                    int dcidLength = bb.get() & 0xff;
-                    if (version == Version.QUIC_version_1.getId()) {
-                        Version quicVersion = Version.parse(version);
+                    if (bb.remaining() >= dcidLength + 1) {  // after dcid at least one byte scid length
                         byte[] dcid = new byte[dcidLength];
                         bb.get(dcid);
-                        if (InitialPacket.isInitial(type, quicVersion)) {
-                            InitialPacket initialPacket = new InitialPacket(quicVersion);
-                            ConnectionSecrets connectionSecrets = new ConnectionSecrets(VersionHolder.with(quicVersion), Role.Server, null, new NullLogger());
-                            connectionSecrets.computeInitialKeys(dcid);
-
-                            bb.reset();
-                            Aead aead = connectionSecrets.getPeerAead(initialPacket.getEncryptionLevel());
-                            net.luminis.quic.log.Logger logger;
-                            if (log.isDebugEnabled()) {
-                                logger = new SysOutLogger();
-                                logger.logDebug(true);
-                            } else {
-                                logger = new NullLogger();
-                            }
-                            initialPacket.parse(bb, aead, 0, logger, 0);
-                            log.debug("detectQuicClientHello initialPacket={}", initialPacket);
-                            ReceiveBuffer receiveBuffer = new ReceiveBufferImpl();
-                            for (QuicFrame frame : bufferFrames) {
-                                if (frame instanceof StreamElement) {
-                                    receiveBuffer.add((StreamElement) frame);
-                                }
-                            }
-                            for(QuicFrame frame : initialPacket.getFrames()) {
-                                if (frame instanceof StreamElement) {
-                                    receiveBuffer.add((StreamElement) frame);
-                                }
-                            }
-                            ByteBuffer block = ByteBuffer.allocate((int) receiveBuffer.bytesAvailable());
-                            receiveBuffer.read(block);
-                            if (log.isDebugEnabled()) {
-                                log.debug("detectQuicClientHello receiveBuffer bytesAvailable={}, readOffset={}, allDataReceived={}, allRead={}, block.capacity={}", receiveBuffer.bytesAvailable(), receiveBuffer.readOffset(),
-                                        receiveBuffer.allDataReceived(), receiveBuffer.allRead(), block.capacity());
-                                log.debug("{}", Inspector.inspectString(block.array(), "detectQuicClientHello receiveBuffer"));
-                            }
-                            byte[] streamData = block.array();
-                            if (streamData.length < 1 || streamData[0] != TlsConstants.HandshakeType.client_hello.value) {
-                                log.warn("{}", Inspector.inspectString(streamData, "detectQuicClientHello frameList=" + initialPacket.getFrames()));
-                            } else {
-                                try {
-                                    ClientHello clientHello = new ClientHello(ByteBuffer.wrap(streamData), null);
-                                    if (log.isDebugEnabled()) {
-                                        log.debug("{}", Inspector.inspectString(streamData, "detectQuicClientHello initialPacket.cryptoFrame"));
-                                    }
-                                    continueQuic = false;
-                                    return clientHello;
-                                } catch (DecodeErrorException e) {
-                                    log.trace("detectQuicClientHello", e);
-                                    throw new ReassembleException(initialPacket.getFrames());
-                                }
-                            }
-                        } else {
-                            log.warn("detectQuicClientHello type={}", type);
-                        }
-                    } else  {
-                        if (dcidLength > 20) {
+                        int scidLength = bb.get() & 0xff;
+                        if (bb.remaining() >= scidLength) {
+                            byte[] scid = new byte[scidLength];
+                            bb.get(scid);
+                            bb.rewind();
+
                             if (initialWithUnspportedVersion(type, version, length)) {
-                                log.debug("initialWithUnspportedVersion dcidLength={}", dcidLength);
+                                if (log.isDebugEnabled()) {
+                                    log.debug("initialWithUnspportedVersion dcid={}, scid={}", HexUtil.encodeHexStr(dcid), HexUtil.encodeHexStr(scid));
+                                }
                                 // https://tools.ietf.org/html/draft-ietf-quic-transport-32#section-6
                                 // "A server sends a Version Negotiation packet in response to each packet that might initiate a new connection;"
-                                sendVersionNegotiationPacket(client.forwardAddress, bb, dcidLength);
+                                sendVersionNegotiationPacket(replyAddress, bb, dcidLength);
                                 continueQuic = true;
                                 return null;
                             }
                         }
-                        if (bb.remaining() >= dcidLength + 1) {  // after dcid at least one byte scid length
-                            byte[] dcid = new byte[dcidLength];
-                            bb.get(dcid);
-                            int scidLength = bb.get() & 0xff;
-                            if (bb.remaining() >= scidLength) {
-                                byte[] scid = new byte[scidLength];
-                                bb.get(scid);
-                                bb.rewind();
-
-                                if (initialWithUnspportedVersion(type, version, length)) {
-                                    if (log.isDebugEnabled()) {
-                                        log.debug("initialWithUnspportedVersion dcid={}, scid={}", HexUtil.encodeHexStr(dcid), HexUtil.encodeHexStr(scid));
-                                    }
-                                    // https://tools.ietf.org/html/draft-ietf-quic-transport-32#section-6
-                                    // "A server sends a Version Negotiation packet in response to each packet that might initiate a new connection;"
-                                    sendVersionNegotiationPacket(client.forwardAddress, bb, dcidLength);
-                                    continueQuic = true;
-                                    return null;
-                                }
-                            }
-                        }
-                        if (version == Version.QUIC_version_2.getId() ||
-                                version == Version.IETF_draft_27.getId() ||
-                                version == Version.IETF_draft_29.getId()) {
-                            log.debug("detectQuicClientHello version=0x{}, length={}", Integer.toHexString(version), length);
-                        } else {
-                            log.warn("detectQuicClientHello version=0x{}, length={}, buffer={}", Integer.toHexString(version), length, HexUtil.encodeHexStr(Arrays.copyOf(buffer, length)));
-                        }
                     }
-                } else {
-                    log.debug("detectQuicClientHello flags=0x{}, type={}, length={}", Integer.toHexString(flags), type, length);
-                }
-            } catch(ReassembleException e) {
-                throw e;
-            } catch(Exception e) {
-                log.warn("detectQuicClientHello", e);
-            }
-            return null;
-        }
-
-        private void sendVersionNegotiationPacket(InetSocketAddress clientAddress, ByteBuffer data, int dcidLength) {
-            data.rewind();
-            if (data.remaining() >= 1 + 4 + 1 + dcidLength + 1) {
-                byte[] dcid = new byte[dcidLength];
-                data.position(1 + 4 + 1);
-                data.get(dcid);
-                int scidLength = data.get() & 0xff;
-                byte[] scid = new byte[scidLength];
-                if (scidLength > 0) {
-                    data.get(scid);
-                }
-                // https://tools.ietf.org/html/draft-ietf-quic-transport-32#section-17.2.1
-                // "The server MUST include the value from the Source Connection ID field of the packet it receives in the
-                //  Destination Connection ID field. The value for Source Connection ID MUST be copied from the Destination
-                //  Connection ID of the received packet, ..."
-                VersionNegotiationPacket versionNegotiationPacket = new VersionNegotiationPacket(Version.QUIC_version_1, dcid, scid);
-                byte[] packetBytes = versionNegotiationPacket.generatePacketBytes(null);
-                if (log.isDebugEnabled()) {
-                    log.debug("sendVersionNegotiationPacket hash={}", DigestUtil.md5Hex(packetBytes));
-                }
-                DatagramPacket datagram = new DatagramPacket(packetBytes, packetBytes.length, clientAddress.getAddress(), clientAddress.getPort());
-                try {
-                    serverSocket.send(datagram);
-                } catch (IOException e) {
-                    log.error("Sending version negotiation packet failed", e);
+                    if (version == Version.QUIC_version_2.getId() ||
+                            version == Version.IETF_draft_27.getId() ||
+                            version == Version.IETF_draft_29.getId()) {
+                        log.debug("detectQuicClientHello version=0x{}, length={}", Integer.toHexString(version), length);
+                    } else {
+                        log.warn("detectQuicClientHello version=0x{}, length={}, buffer={}", Integer.toHexString(version), length, HexUtil.encodeHexStr(Arrays.copyOf(buffer, length)));
+                    }
                 }
+            } else {
+                log.debug("detectQuicClientHello flags=0x{}, type={}, length={}", Integer.toHexString(flags), type, length);
             }
+        } catch(Exception e) {
+            log.warn("detectQuicClientHello", e);
         }
+        return null;
+    }
 
-        private boolean initialWithUnspportedVersion(int type, int version, int length) {
-            if (InitialPacket.isInitial(type, Version.parse(version))) {
-                // https://tools.ietf.org/html/draft-ietf-quic-transport-32#section-14.1
-                // "A server MUST discard an Initial packet that is carried in a UDP
-                //   datagram with a payload that is smaller than the smallest allowed
-                //   maximum datagram size of 1200 bytes. "
-                return length >= 1200;
+    private void sendVersionNegotiationPacket(InetSocketAddress clientAddress, ByteBuffer data, int dcidLength) {
+        data.rewind();
+        if (data.remaining() >= 1 + 4 + 1 + dcidLength + 1) {
+            byte[] dcid = new byte[dcidLength];
+            data.position(1 + 4 + 1);
+            data.get(dcid);
+            int scidLength = data.get() & 0xff;
+            byte[] scid = new byte[scidLength];
+            if (scidLength > 0) {
+                data.get(scid);
+            }
+            // https://tools.ietf.org/html/draft-ietf-quic-transport-32#section-17.2.1
+            // "The server MUST include the value from the Source Connection ID field of the packet it receives in the
+            //  Destination Connection ID field. The value for Source Connection ID MUST be copied from the Destination
+            //  Connection ID of the received packet, ..."
+            VersionNegotiationPacket versionNegotiationPacket = new VersionNegotiationPacket(Version.QUIC_version_1, dcid, scid);
+            byte[] packetBytes = versionNegotiationPacket.generatePacketBytes(null);
+            if (log.isDebugEnabled()) {
+                log.debug("sendVersionNegotiationPacket hash={}", DigestUtil.md5Hex(packetBytes));
+            }
+            try {
+                serverChannel.send(ByteBuffer.wrap(packetBytes), clientAddress);
+            } catch (IOException e) {
+                log.error("Sending version negotiation packet failed", e);
             }
-            return false;
         }
     }
 
-    private class Client implements Runnable {
-        private InetSocketAddress forwardAddress;
-        private Message dnsQuery;
-        private ClientConnection connection;
-        private QuicServer quicServer;
-        @Override
-        public void run() {
-            try {
-                final byte[] buffer = new byte[Receiver.MAX_DATAGRAM_SIZE];
-                final DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                while (true) {
-                    try {
-                        clientSocket.receive(packet);
-                        int length = packet.getLength();
-                        if (log.isDebugEnabled()) {
-                            byte[] data = new byte[length];
-                            System.arraycopy(buffer, 0, data, 0, length);
-                            if (quicServer == null) {
-                                log.trace("{}", Inspector.inspectString(data, "ClientReceived: " + clientAddress + " => " + serverAddress));
-                            } else {
-                                log.debug("{}", Inspector.inspectString(data, "ClientReceived: " + clientAddress + " => " + serverAddress));
-                            }
-                        }
-                        if (forwardAddress == null) {
-                            throw new IllegalStateException("vpnAddress is null");
-                        }
-                        if (dnsQuery != null) {
-                            try {
-                                ByteBuffer bb = ByteBuffer.wrap(buffer);
-                                bb.limit(length);
-                                Message dnsResponse = new Message(bb);
-                                log.trace("client={}, server={}, dnsQuery={}\ndnsResponse={}", clientAddress, serverAddress, dnsQuery, dnsResponse);
-
-                                if (dnsFilter != null) {
-                                    Message fake = dnsFilter.filterDnsResponse(dnsQuery, dnsResponse);
-                                    if (fake != null) {
-                                        log.trace("filterDnsResponse: {}", fake);
-                                        byte[] fakeResponse = fake.toWire();
-                                        DatagramPacket fakePacket = new DatagramPacket(fakeResponse, fakeResponse.length);
-                                        fakePacket.setSocketAddress(forwardAddress);
-                                        serverSocket.send(fakePacket);
-                                        continue;
-                                    }
-                                }
-                            } catch (Exception e) {
-                                log.warn("decode dns response, query={}", dnsQuery, e);
-                            }
-                        }
-                        packet.setSocketAddress(forwardAddress);
-                        serverSocket.send(packet);
-                    } catch (SocketTimeoutException e) {
-                        log.trace("client", e);
-                        if (serverClosed) {
-                            break;
-                        }
-                    } catch (Exception e) {
-                        log.warn("client", e);
-                        break;
-                    }
-                }
-            } finally {
-                IoUtil.close(quicServer);
-                IoUtil.close(connection);
-                IoUtil.close(serverSocket);
-                IoUtil.close(clientSocket);
-                log.trace("udp proxy client exit: client={}, server={}", clientAddress, serverAddress);
-            }
+    private boolean initialWithUnspportedVersion(int type, int version, int length) {
+        if (InitialPacket.isInitial(type, Version.parse(version))) {
+            // https://tools.ietf.org/html/draft-ietf-quic-transport-32#section-14.1
+            // "A server MUST discard an Initial packet that is carried in a UDP
+            //   datagram with a payload that is smaller than the smallest allowed
+            //   maximum datagram size of 1200 bytes. "
+            return length >= 1200;
         }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "UDProxy{" +
+                "client=" + clientAddress +
+                ", server=" + serverAddress +
+                '}';
     }
 
 }
@@ -0,0 +1,307 @@
+package com.github.netguard.vpn.udp;
+
+import cn.hutool.core.io.IoUtil;
+import cn.hutool.core.thread.ThreadUtil;
+import com.github.netguard.vpn.InspectorVpn;
+import eu.faircode.netguard.Allowed;
+import eu.faircode.netguard.Packet;
+import net.luminis.quic.receive.Receiver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * UDP 流表：按 VPN 与五元组索引 {@link UDProxy}，每个流的两个 DatagramChannel 注册到固定数量的 selector 线程上，
+ * 空闲超时由 selector 线程按固定间隔清理，不再为每个流占用两个阻塞线程。
+ */
+class UdpFlowTable {
+
+    private static final Logger log = LoggerFactory.getLogger(UdpFlowTable.class);
+
+    static final int DEFAULT_LOOP_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+
+    /**
+     * 空闲检查间隔，也是 select 的最长等待时间
+     */
+    private static final long SWEEP_INTERVAL_MILLIS = 1000;
+
+    private static UdpFlowTable instance;
+
+    static synchronized UdpFlowTable getInstance() throws IOException {
+        if (instance == null) {
+            instance = new UdpFlowTable(DEFAULT_LOOP_THREADS);
+        }
+        return instance;
+    }
+
+    /**
+     * 关闭共享的流表及其上所有的流，之后再次使用时会重新创建
+     */
+    static synchronized void shutdownInstance() {
+        if (instance != null) {
+            instance.shutdown();
+            instance = null;
+        }
+    }
+
+    private final Map<FlowKey, UDProxy> flows = new ConcurrentHashMap<>();
+    private final Loop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    UdpFlowTable(int threads) throws IOException {
+        loops = new Loop[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new Loop();
+            ThreadUtil.newThread(loops[i], "udp-proxy-loop-" + i, true).start();
+        }
+    }
+
+    /**
+     * 同一 VPN 同一五元组的流还在时复用，VPN 侧重新建立的会话继续发往原来的端口；
+     * 不同设备的 VPN 可能使用相同的内网地址，不能共用一个流
+     */
+    Allowed redirect(InspectorVpn vpn, Packet packet) throws IOException {
+        FlowKey key = new FlowKey(vpn, packet.createClientAddress(), packet.createServerAddress());
+        UDProxy proxy = flows.get(key);
+        if (proxy != null && !proxy.isClosed()) {
+            log.trace("reuse flow: {}", key);
+            return proxy.redirect();
+        }
+        Loop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+        proxy = new UDProxy(vpn, packet, key, loop);
+        flows.put(key, proxy);
+        loop.register(proxy);
+        return proxy.redirect();
+    }
+
+    int getFlowCount() {
+        return flows.size();
+    }
+
+    /**
+     * 各 selector 线程关闭自己的流与中继连接后退出
+     */
+    void shutdown() {
+        for (Loop loop : loops) {
+            loop.shutdown();
+        }
+    }
+
+    /**
+     * 在各 selector 线程上按给定时间做一次空闲清理
+     */
+    void sweep(long now) {
+        for (Loop loop : loops) {
+            loop.execute(() -> loop.sweep(now));
+        }
+    }
+
+    static final class FlowKey {
+        /**
+         * 按实例区分，每个 VPN 连接一个
+         */
+        private final InspectorVpn vpn;
+        private final InetSocketAddress clientAddress;
+        private final InetSocketAddress serverAddress;
+
+        FlowKey(InspectorVpn vpn, InetSocketAddress clientAddress, InetSocketAddress serverAddress) {
+            this.vpn = vpn;
+            this.clientAddress = clientAddress;
+            this.serverAddress = serverAddress;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            FlowKey flowKey = (FlowKey) o;
+            return vpn == flowKey.vpn && clientAddress.equals(flowKey.clientAddress) && serverAddress.equals(flowKey.serverAddress);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(vpn), clientAddress, serverAddress);
+        }
+
+        @Override
+        public String toString() {
+            return "udp " + clientAddress + " => " + serverAddress;
+        }
+    }
+
+    /**
+     * 一个 selector 线程，注册在上面的流的读写、关闭都在该线程执行，其他线程通过 {@link #execute(Runnable)} 提交
+     */
+    final class Loop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final Set<UDProxy> registered = new HashSet<>();
+        private final ByteBuffer buffer = ByteBuffer.allocate(Receiver.MAX_DATAGRAM_SIZE);
+        /**
+         * 按中继地址复用的 v2 连接，数量受配置的中继个数限制，随线程一直保留
+         */
+        private final Map<InetSocketAddress, UdpRelayMux> muxes = new ConcurrentHashMap<>();
+        private volatile Thread thread;
+        private volatile boolean shutdown;
+
+        Loop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        private void register(UDProxy proxy) {
+            execute(() -> {
+                try {
+                    proxy.register(selector);
+                    registered.add(proxy);
+                } catch (IOException e) {
+                    log.warn("register flow: {}", proxy, e);
+                    proxy.close();
+                }
+            });
+        }
+
+        void shutdown() {
+            if (!shutdown) {
+                shutdown = true;
+                selector.wakeup();
+            }
+        }
+
+        boolean inLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        UdpRelayMux getRelayMux(InetSocketAddress relayAddress) throws IOException {
+            UdpRelayMux mux = muxes.get(relayAddress);
+            if (mux != null) {
+                return mux;
+            }
+            synchronized (muxes) {
+                mux = muxes.get(relayAddress);
+                if (mux == null) {
+                    UdpRelayMux created = new UdpRelayMux(relayAddress, this);
+                    execute(() -> {
+                        try {
+                            created.register(selector);
+                        } catch (IOException e) {
+                            log.warn("register relay mux: {}", relayAddress, e);
+                        }
+                    });
+                    muxes.put(relayAddress, created);
+                    mux = created;
+                }
+                return mux;
+            }
+        }
+
+        void unregister(UDProxy proxy) {
+            registered.remove(proxy);
+            flows.remove(proxy.flowKey, proxy);
+        }
+
+        private void sweep(long now) {
+            for (UDProxy proxy : new ArrayList<>(registered)) {
+                try {
+                    proxy.onTimer(now);
+                } catch (Exception e) {
+                    log.warn("flow timer: {}", proxy, e);
+                }
+                if (proxy.isExpired(now)) {
+                    log.trace("flow expired: {}", proxy);
+                    proxy.close();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            long nextSweep = System.currentTimeMillis() + SWEEP_INTERVAL_MILLIS;
+            while (!shutdown) {
+                try {
+                    selector.select(SWEEP_INTERVAL_MILLIS);
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Set<SelectionKey> selectedKeys = selector.selectedKeys();
+                    for (SelectionKey key : selectedKeys) {
+                        if (key.attachment() instanceof UdpRelayMux) {
+                            UdpRelayMux mux = (UdpRelayMux) key.attachment();
+                            try {
+                                if (key.isValid() && key.isReadable()) {
+                                    mux.onReadable(buffer);
+                                }
+                            } catch (Exception e) {
+                                log.warn("relay mux: {}", mux, e);
+                            }
+                            continue;
+                        }
+                        UDProxy proxy = (UDProxy) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                proxy.onReadable(key, buffer);
+                            }
+                        } catch (CancelledKeyException e) {
+                            log.trace("flow closed: {}", proxy, e);
+                        } catch (Exception e) {
+                            log.warn("flow: {}", proxy, e);
+                            proxy.close();
+                        }
+                    }
+                    selectedKeys.clear();
+
+                    long now = System.currentTimeMillis();
+                    if (now >= nextSweep) {
+                        sweep(now);
+                        nextSweep = now + SWEEP_INTERVAL_MILLIS;
+                    }
+                    for (UdpRelayMux mux : muxes.values()) {
+                        mux.flush();
+                    }
+                } catch (Throwable e) {
+                    log.warn("udp proxy loop", e);
+                }
+            }
+            // 已提交的注册任务也执行，注册上的流一起关闭
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    log.debug("udp proxy loop shutdown", e);
+                }
+            }
+            for (UDProxy proxy : new ArrayList<>(registered)) {
+                proxy.close();
+            }
+            for (UdpRelayMux mux : muxes.values()) {
+                mux.close();
+            }
+            muxes.clear();
+            IoUtil.close(selector);
+            log.debug("udp proxy loop exit: {}", thread.getName());
+        }
+    }
+
+}
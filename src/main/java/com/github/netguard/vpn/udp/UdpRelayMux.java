@@ -0,0 +1,236 @@
+package com.github.netguard.vpn.udp;
+
+import cn.hutool.core.io.IoUtil;
+import net.luminis.quic.receive.Receiver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * v2 中继客户端：同一 selector 线程上发往同一 {@link UDPRelay} 的流共用一个 DatagramChannel，按流 ID 区分。
+ * 在 selector 线程上发送的记录先缓存，本轮事件处理完后合并成尽量少的数据报发出，不额外等待。
+ */
+final class UdpRelayMux {
+
+    private static final Logger log = LoggerFactory.getLogger(UdpRelayMux.class);
+
+    private static final int MAX_FLOWS = 0x10000;
+    private static final int MAX_READS_PER_EVENT = 32;
+
+    private final InetSocketAddress relayAddress;
+    private final UdpFlowTable.Loop loop;
+    private final DatagramChannel channel;
+    private final Map<Integer, Flow> flows = new ConcurrentHashMap<>();
+    private final AtomicInteger nextFlowId = new AtomicInteger();
+
+    /**
+     * 以下只在 selector 线程访问
+     */
+    private final ByteBuffer batch = ByteBuffer.allocate(UDPRelay.MUX_BATCH_LIMIT);
+    private final byte[] payload = new byte[Receiver.MAX_DATAGRAM_SIZE];
+    private final UDPRelay.MuxRecord record = new UDPRelay.MuxRecord();
+
+    UdpRelayMux(InetSocketAddress relayAddress, UdpFlowTable.Loop loop) throws IOException {
+        this.relayAddress = relayAddress;
+        this.loop = loop;
+        this.channel = DatagramChannel.open();
+        try {
+            this.channel.bind(new InetSocketAddress(0)).connect(relayAddress).configureBlocking(false);
+        } catch (IOException e) {
+            IoUtil.close(channel);
+            throw e;
+        }
+    }
+
+    /**
+     * selector 线程调用
+     */
+    void register(Selector selector) throws IOException {
+        channel.register(selector, SelectionKey.OP_READ, this);
+    }
+
+    Flow open(UDProxy proxy, InetSocketAddress destination, int receiveTimeoutSeconds) throws IOException {
+        byte[] header = UDPRelay.createMuxDestination(destination, receiveTimeoutSeconds);
+        for (int i = 0; i < MAX_FLOWS; i++) {
+            int flowId = nextFlowId.getAndIncrement() & 0xffff;
+            Flow flow = new Flow(flowId, proxy, header);
+            if (flows.putIfAbsent(flowId, flow) == null) {
+                return flow;
+            }
+        }
+        throw new IOException("too many relay flows: " + relayAddress);
+    }
+
+    int getFlowCount() {
+        return flows.size();
+    }
+
+    /**
+     * selector 线程调用，按流 ID 分发应答
+     */
+    void onReadable(ByteBuffer buffer) throws IOException {
+        for (int i = 0; i < MAX_READS_PER_EVENT; i++) {
+            buffer.clear();
+            try {
+                if (channel.receive(buffer) == null) {
+                    break;
+                }
+            } catch (PortUnreachableException e) {
+                log.trace("relay unreachable: {}", relayAddress, e);
+                continue;
+            }
+            buffer.flip();
+            dispatch(buffer);
+        }
+    }
+
+    /**
+     * 处理中继的一个数据报，格式错误时丢弃剩余部分
+     */
+    void dispatch(ByteBuffer buffer) throws IOException {
+        if (!UDPRelay.startsWith(buffer, UDPRelay.MUX_MAGIC)) {
+            return;
+        }
+        buffer.position(buffer.position() + UDPRelay.MUX_MAGIC.length);
+        while (buffer.hasRemaining()) {
+            if (!UDPRelay.readMuxRecord(buffer, record)) {
+                log.debug("invalid mux record: relay={}, flowId={}, buffer={}", relayAddress, record.flowId, buffer);
+                return;
+            }
+            int length = record.length;
+            Flow flow = flows.get(record.flowId);
+            if (flow == null || flow.closed) {
+                buffer.position(buffer.position() + length);
+                continue;
+            }
+            if ((record.flags & UDPRelay.FLAG_CLOSE) != 0) {
+                // 中继上没有这个流，之后的记录重新带上目标地址
+                log.trace("relay reset flow: {}", flow);
+                flow.acknowledged = false;
+                buffer.position(buffer.position() + length);
+                continue;
+            }
+            flow.acknowledged = true;
+            buffer.get(payload, 0, length);
+            try {
+                flow.proxy.onRelayReceived(payload, length);
+            } catch (Exception e) {
+                log.debug("relay flow: {}", flow.proxy, e);
+                flow.proxy.close();
+            }
+        }
+    }
+
+    /**
+     * selector 线程在每轮事件处理完后调用
+     */
+    void flush() {
+        if (batch.position() == 0) {
+            return;
+        }
+        batch.flip();
+        try {
+            channel.write(batch);
+        } catch (IOException e) {
+            log.trace("flush relay batch: {}", relayAddress, e);
+        } finally {
+            batch.clear();
+        }
+    }
+
+    private void send(int flowId, int flags, byte[] destination, byte[] data, int offset, int length) throws IOException {
+        int recordLength = UDPRelay.MUX_RECORD_HEADER_LENGTH + (destination == null ? 0 : destination.length) + length;
+        ByteBuffer out;
+        if (loop.inLoop() && UDPRelay.MUX_MAGIC.length + recordLength <= batch.capacity()) {
+            if (batch.remaining() < recordLength) {
+                flush();
+            }
+            out = batch;
+        } else {
+            out = ByteBuffer.allocate(UDPRelay.MUX_MAGIC.length + recordLength);
+        }
+        if (out.position() == 0) {
+            out.put(UDPRelay.MUX_MAGIC);
+        }
+        out.putShort((short) flowId);
+        if (destination == null) {
+            out.put((byte) flags);
+        } else {
+            out.put((byte) (flags | UDPRelay.FLAG_DESTINATION)).put(destination);
+        }
+        out.putShort((short) length).put(data, offset, length);
+        if (out != batch) {
+            out.flip();
+            channel.write(out);
+        }
+    }
+
+    /**
+     * selector 线程退出时调用
+     */
+    void close() {
+        IoUtil.close(channel);
+    }
+
+    @Override
+    public String toString() {
+        return "UdpRelayMux{" +
+                "relayAddress=" + relayAddress +
+                ", flows=" + flows.size() +
+                '}';
+    }
+
+    final class Flow {
+        private final int flowId;
+        private final UDProxy proxy;
+        private final byte[] destination;
+        /**
+         * 收到中继的应答前每个记录都带上目标地址，首个数据报丢失时中继仍能建立流；
+         * 中继回复 {@link UDPRelay#FLAG_CLOSE} 时重置
+         */
+        private volatile boolean acknowledged;
+        private volatile boolean closed;
+
+        private Flow(int flowId, UDProxy proxy, byte[] destination) {
+            this.flowId = flowId;
+            this.proxy = proxy;
+            this.destination = destination;
+        }
+
+        void send(byte[] data, int offset, int length) throws IOException {
+            UdpRelayMux.this.send(flowId, 0, acknowledged ? null : destination, data, offset, length);
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            flows.remove(flowId, this);
+            try {
+                UdpRelayMux.this.send(flowId, UDPRelay.FLAG_CLOSE, null, new byte[0], 0, 0);
+            } catch (IOException e) {
+                log.trace("close relay flow: {}", flowId, e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Flow{" +
+                    "relay=" + relayAddress +
+                    ", flowId=" + flowId +
+                    '}';
+        }
+    }
+
+}
@@ -5,6 +5,6 @@ import com.github.netguard.vpn.tcp.h2.Http2Filter;
 
 public interface HandshakeResult {
 
-    QuicServer startServer(InspectorVpn vpn, Http2Filter http2Filter) throws Exception;
+    QuicServer startServer(InspectorVpn vpn, Http2Filter http2Filter, QuicServer.ClientSender sender) throws Exception;
 
 }
@@ -10,10 +10,34 @@ import java.time.Duration;
 
 public abstract class QuicProxyProvider {
 
+    /**
+     * NettyProvider 是子类，先加载它时本类初始化中 DEFAULT_EVENT_LOOP_THREADS 还是 0，共享实例延迟到首次使用时创建
+     */
+    private static class NettyHolder {
+        static final NettyProvider NETTY = new NettyProvider(NettyProvider.DEFAULT_EVENT_LOOP_THREADS);
+    }
+
+    /**
+     * 所有连接共享同一组 event loop 线程
+     */
     public static QuicProxyProvider netty() {
-        return new NettyProvider();
+        return NettyHolder.NETTY;
+    }
+
+    /**
+     * @param eventLoopThreads 客户端与服务端共享的 event loop 线程数
+     * @return 独立的 provider，由调用方负责 {@link #shutdown()}
+     */
+    public static QuicProxyProvider netty(int eventLoopThreads) {
+        return new NettyProvider(eventLoopThreads);
     }
 
     public abstract ClientConnection newClientConnection(PacketRequest packetRequest, Duration connectTimeout, InetSocketAddress udpProxy) throws SocketException, UnknownHostException;
 
+    /**
+     * 释放共享的线程资源并关闭其上所有连接，之后再次使用时会重新创建
+     */
+    public void shutdown() {
+    }
+
 }
@@ -1,10 +1,20 @@
 package com.github.netguard.vpn.udp.quic;
 
 import java.io.Closeable;
-import java.net.InetSocketAddress;
+import java.io.IOException;
 
 public interface QuicServer extends Closeable {
 
-    InetSocketAddress getForwardAddress();
+    /**
+     * 把客户端发来的数据报直接交给拦截的 QUIC 服务端，服务端的应答由 {@link ClientSender} 发回客户端
+     */
+    void forward(byte[] data, int length);
+
+    @Override
+    void close();
+
+    interface ClientSender {
+        void send(byte[] data) throws IOException;
+    }
 
 }
@@ -4,15 +4,22 @@ import com.github.netguard.vpn.tcp.h2.Http2Session;
 import com.github.netguard.vpn.udp.quic.ClientConnection;
 import com.github.netguard.vpn.udp.quic.HandshakeResult;
 import io.netty.channel.Channel;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
 import io.netty.incubator.codec.http3.Http3ClientConnectionHandler;
 import io.netty.incubator.codec.quic.QuicChannel;
 import io.netty.incubator.codec.quic.QuicChannelBootstrap;
+import io.netty.incubator.codec.quic.SslEarlyDataReadyEvent;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import io.netty.util.concurrent.Promise;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.net.ssl.SSLEngine;
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.security.cert.X509Certificate;
 import java.util.concurrent.ExecutionException;
 
@@ -20,14 +27,18 @@ class NettyClientConnection implements ClientConnection {
 
     private static final Logger log = LoggerFactory.getLogger(NettyClientConnection.class);
 
-    private final NioEventLoopGroup group;
+    private final NettyProvider provider;
     private final Channel channel;
     private final QuicChannelBootstrap bootstrap;
+    private final String peerHost;
+    private final int peerPort;
 
-    NettyClientConnection(NioEventLoopGroup group, Channel channel, QuicChannelBootstrap bootstrap) {
-        this.group = group;
+    NettyClientConnection(NettyProvider provider, Channel channel, QuicChannelBootstrap bootstrap, String peerHost, int peerPort) {
+        this.provider = provider;
         this.channel = channel;
         this.bootstrap = bootstrap;
+        this.peerHost = peerHost;
+        this.peerPort = peerPort;
     }
 
     private QuicChannel quicChannel;
@@ -35,30 +46,110 @@ class NettyClientConnection implements ClientConnection {
     @Override
     public HandshakeResult handshake(Http2Session session) throws IOException {
         try {
-            quicChannel = bootstrap
-                    .handler(new Http3ClientConnectionHandler())
-                    .connect()
-                    .get();
-            SSLEngine sslEngine = quicChannel.sslEngine();
-            if (sslEngine == null) {
-                throw new IllegalStateException("sslEngine is null");
+            // 有之前完整握手的证书才可能 0-RTT，拦截证书用它签发
+            X509Certificate earlyCertificate = provider.isEarlyData() ? provider.getPeerCertificate(peerHost, peerPort) : null;
+            Promise<QuicChannel> ready = ImmediateEventExecutor.INSTANCE.newPromise();
+            Future<QuicChannel> connectFuture = bootstrap
+                    .handler(new ChannelInitializer<QuicChannel>() {
+                        @Override
+                        protected void initChannel(QuicChannel ch) {
+                            ch.pipeline().addLast(new Http3ClientConnectionHandler());
+                            if (earlyCertificate != null) {
+                                ch.pipeline().addLast(new EarlyDataReadyHandler(ready));
+                            }
+                        }
+                    })
+                    .connect();
+            connectFuture.addListener(future -> {
+                if (future.isSuccess()) {
+                    QuicChannel quicChannel = connectFuture.getNow();
+                    onHandshakeComplete(quicChannel, ready.isSuccess());
+                    ready.trySuccess(quicChannel);
+                } else {
+                    ready.tryFailure(future.cause());
+                }
+            });
+            quicChannel = ready.get();
+            if (!connectFuture.isDone()) {
+                log.debug("newClientConnection early data: peerHost={}, peerPort={}", peerHost, peerPort);
+                return new NettyHandshakeResult(provider, earlyCertificate, quicChannel, session, connectFuture);
             }
-            String applicationProtocol = sslEngine.getApplicationProtocol();
-            X509Certificate peerCertificate = (X509Certificate) sslEngine.getSession().getPeerCertificates()[0];
-            log.debug("newClientConnection applicationProtocol={}, peerCertificate={}", applicationProtocol, peerCertificate);
-            return new NettyHandshakeResult(peerCertificate, quicChannel, session);
+            X509Certificate peerCertificate = getPeerCertificate(quicChannel);
+            log.debug("newClientConnection applicationProtocol={}, peerCertificate={}", quicChannel.sslEngine().getApplicationProtocol(), peerCertificate);
+            return new NettyHandshakeResult(provider, peerCertificate, quicChannel, session, connectFuture);
         } catch (InterruptedException | ExecutionException e) {
             throw new IOException("handshake", e);
         }
     }
 
+    private void onHandshakeComplete(QuicChannel quicChannel, boolean early) {
+        X509Certificate peerCertificate = null;
+        try {
+            peerCertificate = getPeerCertificate(quicChannel);
+        } catch (Exception e) {
+            log.debug("getPeerCertificate peerHost={}", peerHost, e);
+        }
+        boolean resumed = isSessionReused(quicChannel.sslEngine());
+        log.debug("onHandshakeComplete peerHost={}, peerPort={}, resumed={}, early={}", peerHost, peerPort, resumed, early);
+        provider.onHandshakeComplete(peerHost, peerPort, peerCertificate, resumed, early);
+    }
+
+    private static X509Certificate getPeerCertificate(QuicChannel quicChannel) throws IOException {
+        SSLEngine sslEngine = quicChannel.sslEngine();
+        if (sslEngine == null) {
+            throw new IllegalStateException("sslEngine is null");
+        }
+        return (X509Certificate) sslEngine.getSession().getPeerCertificates()[0];
+    }
+
+    private static final Method IS_SESSION_REUSED = findSessionReused();
+
+    /**
+     * QuicheQuicSslEngine 没有公开是否恢复了会话
+     */
+    private static Method findSessionReused() {
+        try {
+            Method method = Class.forName("io.netty.incubator.codec.quic.QuicheQuicSslEngine").getDeclaredMethod("isSessionReused");
+            method.setAccessible(true);
+            return method;
+        } catch (Exception e) {
+            log.debug("isSessionReused unavailable", e);
+            return null;
+        }
+    }
+
+    private static boolean isSessionReused(SSLEngine sslEngine) {
+        if (IS_SESSION_REUSED == null || sslEngine == null || !IS_SESSION_REUSED.getDeclaringClass().isInstance(sslEngine)) {
+            return false;
+        }
+        try {
+            return (Boolean) IS_SESSION_REUSED.invoke(sslEngine);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private static class EarlyDataReadyHandler extends ChannelInboundHandlerAdapter {
+        private final Promise<QuicChannel> ready;
+        EarlyDataReadyHandler(Promise<QuicChannel> ready) {
+            this.ready = ready;
+        }
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if (evt instanceof SslEarlyDataReadyEvent) {
+                ready.trySuccess((QuicChannel) ctx.channel());
+                ctx.pipeline().remove(this);
+            }
+            super.userEventTriggered(ctx, evt);
+        }
+    }
+
     @Override
     public void close() {
         if(quicChannel != null) {
             quicChannel.close();
         }
         channel.close();
-        group.shutdownGracefully();
     }
 
 }
@@ -1,6 +1,5 @@
 package com.github.netguard.vpn.udp.quic.netty;
 
-import cn.hutool.core.thread.ThreadUtil;
 import com.github.netguard.vpn.InspectorVpn;
 import com.github.netguard.vpn.tcp.ServerCertificate;
 import com.github.netguard.vpn.tcp.h2.CancelResult;
@@ -10,28 +9,31 @@ import com.github.netguard.vpn.tcp.h2.Http2SessionKey;
 import com.github.netguard.vpn.udp.quic.HandshakeResult;
 import com.github.netguard.vpn.udp.quic.QuicServer;
 import com.twitter.http2.NetGuardHttp2Headers;
-import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
-import io.netty.channel.SimpleChannelInboundHandler;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.DatagramChannel;
-import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.channel.EventLoop;
 import io.netty.handler.codec.http.DefaultFullHttpRequest;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
 import io.netty.handler.codec.http.EmptyHttpHeaders;
 import io.netty.handler.codec.http.HttpContent;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMessage;
 import io.netty.handler.codec.http.HttpMethod;
-import io.netty.handler.codec.http.HttpObject;
 import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpStatusClass;
 import io.netty.handler.codec.http.LastHttpContent;
 import io.netty.incubator.codec.http3.Http3;
 import io.netty.incubator.codec.http3.Http3FrameToHttpObjectCodec;
@@ -40,56 +42,54 @@ import io.netty.incubator.codec.quic.QuicChannel;
 import io.netty.incubator.codec.quic.QuicSslContext;
 import io.netty.incubator.codec.quic.QuicSslContextBuilder;
 import io.netty.incubator.codec.quic.QuicStreamChannel;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.net.ssl.KeyManagerFactory;
-import java.net.InetSocketAddress;
 import java.security.cert.X509Certificate;
+import java.util.ArrayDeque;
 import java.util.Map;
-import java.util.concurrent.TimeUnit;
+import java.util.Queue;
+import java.util.function.Function;
 
 class NettyHandshakeResult implements HandshakeResult {
 
     private static final Logger log = LoggerFactory.getLogger(NettyHandshakeResult.class);
 
+    private final NettyProvider provider;
     private final X509Certificate peerCertificate;
     private final QuicChannel quicChannel;
     private final Http2Session session;
+    /**
+     * 上游握手，0-RTT 时返回结果时尚未完成
+     */
+    private final Future<QuicChannel> handshakeFuture;
 
-    NettyHandshakeResult(X509Certificate peerCertificate, QuicChannel quicChannel, Http2Session session) {
+    NettyHandshakeResult(NettyProvider provider, X509Certificate peerCertificate, QuicChannel quicChannel, Http2Session session,
+                         Future<QuicChannel> handshakeFuture) {
+        this.provider = provider;
         this.peerCertificate = peerCertificate;
         this.quicChannel = quicChannel;
         this.session = session;
+        this.handshakeFuture = handshakeFuture;
     }
 
     @Override
-    public QuicServer startServer(InspectorVpn vpn, Http2Filter http2Filter) throws Exception {
-        NioEventLoopGroup group = new NioEventLoopGroup(1,
-                ThreadUtil.newNamedThreadFactory("netty-server-nio-event-loop", true));
+    public QuicServer startServer(InspectorVpn vpn, Http2Filter http2Filter, QuicServer.ClientSender sender) throws Exception {
+        if (http2Filter != null) {
+            quicChannel.closeFuture().addListener(future -> http2Filter.onSessionClosed(session));
+        }
         ServerCertificate serverCertificate = new ServerCertificate(peerCertificate);
         ServerCertificate.ServerContext serverContext = serverCertificate.getServerContext(vpn.getRootCert());
         KeyManagerFactory keyManagerFactory = serverContext.newKeyManagerFactory();
         QuicSslContext sslContext = QuicSslContextBuilder.forServer(keyManagerFactory, new String(serverContext.getKeyPassword()))
                 .applicationProtocols(Http3.supportedApplicationProtocols())
                 .build();
-        ChannelHandler codec = Http3.newQuicServerCodecBuilder()
-                .sslContext(sslContext)
-                .maxIdleTimeout(1, TimeUnit.MINUTES)
-                .initialMaxData(10000000)
-                .initialMaxStreamDataBidirectionalLocal(1000000)
-                .initialMaxStreamDataBidirectionalRemote(1000000)
-                .initialMaxStreamsBidirectional(100)
-                .handler(new ServerRequestStreamInitializer(http2Filter)).build();
-        Bootstrap bootstrap = new Bootstrap();
-        Channel channel = bootstrap.group(group)
-                .channel(NioDatagramChannel.class)
-                .handler(codec)
-                .bind(new InetSocketAddress(0)).sync().channel();
-        DatagramChannel datagramChannel = (NioDatagramChannel) channel;
-        log.debug("datagramChannel={}, port={}", datagramChannel, datagramChannel.localAddress().getPort());
-        InetSocketAddress forwardAddress = new InetSocketAddress("127.0.0.1", datagramChannel.localAddress().getPort());
-        return new NettyServer(group, datagramChannel, forwardAddress);
+        QuicServer server = provider.nextEndpoint().register(sslContext, new ServerRequestStreamInitializer(http2Filter), sender);
+        log.debug("startServer session={}, server={}", session, server);
+        return server;
     }
 
     private class ServerRequestStreamHandler extends ChannelInitializer<QuicStreamChannel> {
@@ -98,18 +98,24 @@ class NettyHandshakeResult implements HandshakeResult {
             this.http2Filter = http2Filter;
         }
         @Override
-        protected void initChannel(QuicStreamChannel serverStreamChannel) throws InterruptedException {
+        protected void initChannel(QuicStreamChannel serverStreamChannel) {
             log.debug("Server initChannel: {}", serverStreamChannel);
-            ChannelPipeline pipeline = serverStreamChannel.pipeline();
-            pipeline.addLast(new Http3FrameToHttpObjectCodec(true));
+            serverStreamChannel.pipeline().addLast(new Http3FrameToHttpObjectCodec(true));
+            if (!handshakeFuture.isDone()) {
+                serverStreamChannel.pipeline().addLast(new EarlyDataGate(handshakeFuture));
+            }
 
             Http2SessionKey sessionKey = new Http2SessionKey(session, (int) serverStreamChannel.streamId(), true);
-            boolean filter = http2Filter != null && http2Filter.filterHost(session.getHostName(), true);
-            QuicStreamChannel clientStreamChannel = Http3.newRequestStream(quicChannel,
-                            new NettyHandshakeResult.ClientRequestStreamInitializer(serverStreamChannel, sessionKey, filter ? http2Filter : null))
-                    .sync()
-                    .getNow();
-            pipeline.addLast(new NettyHandshakeResult.HttpRequestServerHandler(clientStreamChannel, sessionKey, filter ? http2Filter : null));
+            Http2Filter filter = http2Filter != null && http2Filter.filterHost(session.getHostName(), true) ? http2Filter : null;
+            // 上游 stream 建立前不读取请求，不阻塞 event loop 等待
+            serverStreamChannel.config().setAutoRead(false);
+            Future<QuicStreamChannel> clientStreamFuture = Http3.newRequestStream(quicChannel,
+                    new ClientRequestStreamInitializer(serverStreamChannel, sessionKey, filter));
+            startRelay(serverStreamChannel, clientStreamFuture, clientStreamChannel -> filter == null ? new StreamRelay(clientStreamChannel) :
+                    new HttpRequestServerHandler(clientStreamChannel, sessionKey, filter));
+            if (filter != null) {
+                serverStreamChannel.closeFuture().addListener(future -> filter.onStreamClosed(sessionKey));
+            }
         }
         @Override
         public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
@@ -117,78 +123,367 @@ class NettyHandshakeResult implements HandshakeResult {
         }
     }
 
-    private static class HttpRequestServerHandler extends SimpleChannelInboundHandler<HttpObject> {
-        private final QuicStreamChannel clientStreamChannel;
-        private final Http2SessionKey sessionKey;
-        private final Http2Filter http2Filter;
+    /**
+     * 上游 stream 建立后挂上转发 handler 并恢复读取。在本 stream 的 event loop 上执行，不与 channelInactive 交错：
+     * 本 stream 已关闭时 handler 收不到 channelInactive，由这里关闭上游 stream
+     */
+    static <C extends Channel> void startRelay(Channel serverStreamChannel, Future<C> clientStreamFuture, Function<C, ChannelHandler> relayFactory) {
+        clientStreamFuture.addListener((Future<C> future) -> {
+            if (!future.isSuccess()) {
+                log.debug("newRequestStream failed: {}", serverStreamChannel, future.cause());
+                serverStreamChannel.close();
+                return;
+            }
+            C clientStreamChannel = future.getNow();
+            Runnable start = () -> {
+                if (!serverStreamChannel.isActive()) {
+                    log.debug("Server stream closed before upstream stream created: {}", serverStreamChannel);
+                    clientStreamChannel.close();
+                    return;
+                }
+                serverStreamChannel.pipeline().addLast(relayFactory.apply(clientStreamChannel));
+                serverStreamChannel.config().setAutoRead(true);
+            };
+            EventLoop eventLoop = serverStreamChannel.eventLoop();
+            if (eventLoop.inEventLoop()) {
+                start.run();
+            } else {
+                eventLoop.execute(start);
+            }
+        });
+    }
 
-        public HttpRequestServerHandler(QuicStreamChannel clientStreamChannel, Http2SessionKey sessionKey, Http2Filter http2Filter) {
-            this.clientStreamChannel = clientStreamChannel;
-            this.sessionKey = sessionKey;
-            this.http2Filter = http2Filter;
+    /**
+     * 上游握手完成前只放行幂等请求作为 0-RTT early data，其余请求暂存到握手完成
+     */
+    static class EarlyDataGate extends ChannelInboundHandlerAdapter {
+        private final Future<QuicChannel> handshakeFuture;
+        private Queue<Object> pending;
+
+        EarlyDataGate(Future<QuicChannel> handshakeFuture) {
+            this.handshakeFuture = handshakeFuture;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (pending != null) {
+                pending.add(msg);
+                return;
+            }
+            if (handshakeFuture.isDone() || msg instanceof HttpRequest && isIdempotent(((HttpRequest) msg).method())) {
+                ctx.pipeline().remove(this);
+                ctx.fireChannelRead(msg);
+                return;
+            }
+            pending = new ArrayDeque<>();
+            pending.add(msg);
+            ctx.channel().config().setAutoRead(false);
+            handshakeFuture.addListener(future -> ctx.executor().execute(() -> {
+                if (!future.isSuccess()) {
+                    releasePending();
+                    ctx.channel().close();
+                    return;
+                }
+                Queue<Object> messages = pending;
+                pending = null;
+                ctx.pipeline().remove(this);
+                for (Object message : messages) {
+                    ctx.fireChannelRead(message);
+                }
+                ctx.fireChannelReadComplete();
+                ctx.channel().config().setAutoRead(true);
+            }));
+        }
+
+        private static boolean isIdempotent(HttpMethod method) {
+            return HttpMethod.GET.equals(method) || HttpMethod.HEAD.equals(method) || HttpMethod.OPTIONS.equals(method);
         }
 
-        private HttpRequest request;
-        private final ByteBuf content = Unpooled.buffer();
+        private void releasePending() {
+            if (pending != null) {
+                for (Object message : pending) {
+                    ReferenceCountUtil.release(message);
+                }
+                pending = null;
+            }
+        }
 
         @Override
-        protected void channelRead0(ChannelHandlerContext ctx, HttpObject msg) {
-            log.debug("Server channelRead0: last={}, content={}, msg={}", msg == LastHttpContent.EMPTY_LAST_CONTENT, content, msg);
-            if (msg instanceof HttpRequest) {
-                request = (HttpRequest) msg;
-            } else if (msg instanceof HttpContent) {
-                HttpContent httpContent = (HttpContent) msg;
-                content.writeBytes(httpContent.content());
-            } else {
-                log.warn("Unexpected server message type: {}", msg);
+        public void channelReadComplete(ChannelHandlerContext ctx) {
+            if (pending == null) {
+                ctx.fireChannelReadComplete();
             }
         }
+
+        @Override
+        public void handlerRemoved(ChannelHandlerContext ctx) {
+            releasePending();
+        }
+    }
+
+    /**
+     * 不需要过滤的 stream 逐帧转发，对端 stream 不可写时暂停读取，可写后恢复。
+     * 1xx 中间响应与其他消息一样转发。
+     */
+    static class StreamRelay extends ChannelInboundHandlerAdapter {
+        protected final Channel peer;
+        /**
+         * 本 stream 的完整消息已转发给对端，由两个连接的 event loop 读取
+         */
+        private volatile boolean ended;
+
+        StreamRelay(Channel peer) {
+            this.peer = peer;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (msg instanceof HttpMessage) {
+                ((HttpMessage) msg).headers().remove(HttpHeaderNames.TRANSFER_ENCODING);
+            }
+            forward(ctx, msg);
+        }
+
+        protected final void forward(ChannelHandlerContext ctx, Object msg) {
+            if (msg instanceof LastHttpContent && !isInformational(msg)) {
+                ended = true;
+            }
+            peer.write(msg);
+            if (!peer.isWritable()) {
+                ctx.channel().config().setAutoRead(false);
+            }
+        }
+
         @Override
         public void channelReadComplete(ChannelHandlerContext ctx) {
-            log.debug("channelReadComplete: request={}", request);
-            byte[] requestData = new byte[content.readableBytes()];
-            content.readBytes(requestData);
-            if (http2Filter != null &&
-                    http2Filter.filterHost(sessionKey.getSession().getHostName(), true)) {
-                CancelResult result = http2Filter.cancelRequest(request, requestData, false);
-                if (result != null) {
-                    if (result.cancel) {
-                        ctx.channel().close();
+            peer.flush();
+            ctx.fireChannelReadComplete();
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+            if (ctx.channel().isWritable()) {
+                peer.config().setAutoRead(true);
+            }
+            ctx.fireChannelWritabilityChanged();
+        }
+
+        /**
+         * 本 stream 直接应答、不再经过对端时调用，之后任一端关闭都不中止另一端
+         */
+        protected final void endBoth() {
+            ended = true;
+            StreamRelay peerRelay = peer.pipeline().get(StreamRelay.class);
+            if (peerRelay != null) {
+                peerRelay.ended = true;
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            StreamRelay peerRelay = peer.pipeline().get(StreamRelay.class);
+            if (!ended || peerRelay == null || !peerRelay.ended) {
+                // 请求或响应未完整转发时中止：对端不会再收到剩余的数据，关闭对端
+                peer.close();
+            }
+            super.channelInactive(ctx);
+        }
+
+        static boolean isInformational(Object msg) {
+            return msg instanceof HttpResponse && ((HttpResponse) msg).status().codeClass() == HttpStatusClass.INFORMATIONAL;
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            log.debug("exceptionCaught ctx={}", ctx, cause);
+            ctx.close();
+        }
+    }
+
+    /**
+     * 需要过滤的 stream：不超过 {@link Http2Filter#getMaxBufferedContentLength()} 的消息体缓冲后整体过滤，
+     * 超过后切换为增量过滤并逐帧转发
+     */
+    private static abstract class FilterStreamHandler<T extends HttpMessage> extends StreamRelay {
+        protected final Http2SessionKey sessionKey;
+        protected final Http2Filter http2Filter;
+        private final Class<T> messageClass;
+
+        FilterStreamHandler(QuicStreamChannel peer, Http2SessionKey sessionKey, Http2Filter http2Filter, Class<T> messageClass) {
+            super(peer);
+            this.sessionKey = sessionKey;
+            this.http2Filter = http2Filter;
+            this.messageClass = messageClass;
+        }
+
+        private T message;
+        private ByteBuf content;
+        private boolean streaming;
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            try {
+                if (messageClass.isInstance(msg)) {
+                    message = messageClass.cast(msg);
+                    streaming = false;
+                    releaseContent();
+                    content = ctx.alloc().buffer();
+                }
+                if (msg instanceof HttpContent) {
+                    if (message == null) {
+                        log.warn("Unexpected content without message: {}", msg);
+                        return;
+                    }
+                    ByteBuf data = ((HttpContent) msg).content();
+                    LastHttpContent last = msg instanceof LastHttpContent ? (LastHttpContent) msg : null;
+                    if (streaming) {
+                        forwardChunk(ctx, message, ByteBufUtil.getBytes(data), last);
                     } else {
-                        byte[] responseData = result.responseData;
-                        HttpResponse response = result.response;
-                        response.headers().set("X-Netguard-Fake-Response", sessionKey.toString());
-                        http2Filter.filterRequest(sessionKey, request, new NetGuardHttp2Headers(), requestData);
-                        HttpHeaders headers = response.headers();
-                        headers.remove(HttpHeaderNames.TRANSFER_ENCODING);
-                        HttpResponse forward = new DefaultFullHttpResponse(response.protocolVersion(),
-                                response.status(), Unpooled.wrappedBuffer(responseData),
-                                headers, EmptyHttpHeaders.INSTANCE);
-                        log.debug("Server forward response: {}", forward);
-                        ctx.channel().writeAndFlush(forward);
+                        content.writeBytes(data);
+                        if (last != null) {
+                            forwardMessage(ctx, message, takeContent(), last.trailingHeaders());
+                        } else if (content.readableBytes() > http2Filter.getMaxBufferedContentLength()) {
+                            log.debug("Switch to streaming filter: sessionKey={}, buffered={}", sessionKey, content.readableBytes());
+                            streaming = true;
+                            startStreaming(ctx, message, takeContent());
+                        }
                     }
-                    clientStreamChannel.close();
-                    return;
+                } else if (!messageClass.isInstance(msg)) {
+                    log.warn("Unexpected message type: {}", msg);
                 }
+            } finally {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+
+        private byte[] takeContent() {
+            byte[] data = ByteBufUtil.getBytes(content);
+            content.clear();
+            return data;
+        }
+
+        private void releaseContent() {
+            if (content != null) {
+                content.release();
+                content = null;
+            }
+        }
+
+        @Override
+        public void handlerRemoved(ChannelHandlerContext ctx) {
+            releaseContent();
+        }
+
+        /**
+         * 完整的消息体已缓冲
+         */
+        protected abstract void forwardMessage(ChannelHandlerContext ctx, T message, byte[] data, HttpHeaders trailers);
+
+        /**
+         * 消息体超过缓冲上限，转发消息头与已缓冲的部分
+         */
+        protected abstract void startStreaming(ChannelHandlerContext ctx, T message, byte[] data);
+
+        /**
+         * @param last 最后一帧，其余为 <code>null</code>
+         */
+        protected abstract void forwardChunk(ChannelHandlerContext ctx, T message, byte[] data, LastHttpContent last);
+
+        protected final void forwardContent(ChannelHandlerContext ctx, byte[] data, LastHttpContent last) {
+            if (last == null) {
+                forward(ctx, new DefaultHttpContent(Unpooled.wrappedBuffer(data)));
+            } else {
+                LastHttpContent content = new DefaultLastHttpContent(Unpooled.wrappedBuffer(data));
+                content.trailingHeaders().set(last.trailingHeaders());
+                forward(ctx, content);
             }
+        }
+
+        protected static HttpHeaders copyHeaders(HttpHeaders source) {
             HttpHeaders headers = new NetGuardHttp2Headers();
-            for (Map.Entry<String, String> entry : request.headers().entries()) {
+            for (Map.Entry<String, String> entry : source.entries()) {
                 headers.add(entry.getKey(), entry.getValue());
             }
-            requestData = http2Filter == null ? requestData : http2Filter.filterRequest(sessionKey, request, headers, requestData);
+            return headers;
+        }
+    }
+
+    private static class HttpRequestServerHandler extends FilterStreamHandler<HttpRequest> {
+        public HttpRequestServerHandler(QuicStreamChannel clientStreamChannel, Http2SessionKey sessionKey, Http2Filter http2Filter) {
+            super(clientStreamChannel, sessionKey, http2Filter, HttpRequest.class);
+        }
+
+        @Override
+        protected void forwardMessage(ChannelHandlerContext ctx, HttpRequest request, byte[] requestData, HttpHeaders trailers) {
+            CancelResult result = http2Filter.cancelRequest(request, requestData, false);
+            if (result != null) {
+                if (result.cancel) {
+                    ctx.channel().close();
+                    peer.close();
+                } else {
+                    byte[] responseData = result.responseData;
+                    HttpResponse response = result.response;
+                    response.headers().set("X-Netguard-Fake-Response", sessionKey.toString());
+                    http2Filter.filterRequest(sessionKey, request, new NetGuardHttp2Headers(), requestData);
+                    HttpHeaders headers = response.headers();
+                    headers.remove(HttpHeaderNames.TRANSFER_ENCODING);
+                    HttpResponse forward = new DefaultFullHttpResponse(response.protocolVersion(),
+                            response.status(), Unpooled.wrappedBuffer(responseData),
+                            headers, EmptyHttpHeaders.INSTANCE);
+                    log.debug("Server forward response: {}", forward);
+                    // 上游 stream 关闭时不能中止还没发完的伪造响应
+                    endBoth();
+                    ctx.channel().writeAndFlush(forward).addListener(future -> peer.close());
+                }
+                return;
+            }
+            HttpHeaders headers = copyHeaders(request.headers());
+            requestData = http2Filter.filterRequest(sessionKey, request, headers, requestData);
+            HttpRequest forward = new DefaultFullHttpRequest(request.protocolVersion(),
+                    method(request, headers), path(request, headers), Unpooled.wrappedBuffer(requestData),
+                    headers, trailers);
+            log.debug("Server forward request: {}", forward);
+            forward(ctx, forward);
+        }
+
+        @Override
+        protected void startStreaming(ChannelHandlerContext ctx, HttpRequest request, byte[] requestData) {
+            CancelResult result = http2Filter.cancelRequest(request, requestData, true);
+            if (result != null) {
+                if (!result.cancel) {
+                    log.warn("Fake response unsupported for streaming request: sessionKey={}, response={}", sessionKey, result.response);
+                }
+                ctx.channel().close();
+                peer.close();
+                return;
+            }
+            HttpHeaders headers = copyHeaders(request.headers());
+            // 增量过滤可能改变长度
+            headers.remove(HttpHeaderNames.CONTENT_LENGTH);
+            byte[] data = http2Filter.filterPollingRequest(sessionKey, request, requestData, true);
+            HttpRequest forward = new DefaultHttpRequest(request.protocolVersion(),
+                    method(request, headers), path(request, headers), headers);
+            log.debug("Server forward streaming request: {}", forward);
+            forward(ctx, forward);
+            forwardContent(ctx, data, null);
+        }
+
+        @Override
+        protected void forwardChunk(ChannelHandlerContext ctx, HttpRequest request, byte[] requestData, LastHttpContent last) {
+            forwardContent(ctx, http2Filter.filterPollingRequest(sessionKey, request, requestData, false), last);
+        }
+
+        private static HttpMethod method(HttpRequest request, HttpHeaders headers) {
             headers.remove(HttpHeaderNames.TRANSFER_ENCODING);
             String methodHeader = headers.get(":method");
-            HttpMethod method = methodHeader == null ? request.method() : HttpMethod.valueOf(methodHeader);
             headers.remove(":method");
+            return methodHeader == null ? request.method() : HttpMethod.valueOf(methodHeader);
+        }
+
+        private static String path(HttpRequest request, HttpHeaders headers) {
             String pathHeader = headers.get(":path");
-            String path = pathHeader == null ? request.uri() : pathHeader;
             headers.remove(":path");
-            HttpRequest forward = new DefaultFullHttpRequest(request.protocolVersion(),
-                    method,
-                    path, Unpooled.wrappedBuffer(requestData),
-                    headers, EmptyHttpHeaders.INSTANCE);
-            log.debug("Server forward request: {}", forward);
-            clientStreamChannel.writeAndFlush(forward);
+            return pathHeader == null ? request.uri() : pathHeader;
         }
     }
 
@@ -208,51 +503,57 @@ class NettyHandshakeResult implements HandshakeResult {
             log.debug("Client initChannel: {}", clientStreamChannel);
             ChannelPipeline pipeline = clientStreamChannel.pipeline();
             pipeline.addLast(new Http3FrameToHttpObjectCodec(false));
-            pipeline.addLast(new HttpResponseClientHandler(serverStreamChannel, sessionKey, http2Filter));
+            pipeline.addLast(http2Filter == null ? new StreamRelay(serverStreamChannel) :
+                    new HttpResponseClientHandler(serverStreamChannel, sessionKey, http2Filter));
         }
     }
 
-    private static class HttpResponseClientHandler extends SimpleChannelInboundHandler<HttpObject> {
-        private final QuicStreamChannel serverStreamChannel;
-        private final Http2SessionKey sessionKey;
-        private final Http2Filter http2Filter;
-
+    private static class HttpResponseClientHandler extends FilterStreamHandler<HttpResponse> {
         public HttpResponseClientHandler(QuicStreamChannel serverStreamChannel, Http2SessionKey sessionKey, Http2Filter http2Filter) {
-            this.serverStreamChannel = serverStreamChannel;
-            this.sessionKey = sessionKey;
-            this.http2Filter = http2Filter;
+            super(serverStreamChannel, sessionKey, http2Filter, HttpResponse.class);
         }
 
-        private HttpResponse response;
-        private final ByteBuf content = Unpooled.buffer();
-
+        /**
+         * 1xx 中间响应没有消息体，不经过 filter 直接转发，filter 只看到最终响应
+         */
         @Override
-        protected void channelRead0(ChannelHandlerContext ctx, HttpObject msg) {
-            log.debug("Client channelRead0: last={}, content={}, {}", msg == LastHttpContent.EMPTY_LAST_CONTENT, content, msg);
-            if (msg instanceof HttpResponse) {
-                response = (HttpResponse) msg;
-            } else if (msg instanceof HttpContent) {
-                HttpContent httpContent = (HttpContent) msg;
-                content.writeBytes(httpContent.content());
-            } else {
-                log.warn("Unexpected client message type: {}", msg);
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (isInformational(msg)) {
+                ((HttpResponse) msg).headers().remove(HttpHeaderNames.TRANSFER_ENCODING);
+                forward(ctx, msg);
+                return;
             }
+            super.channelRead(ctx, msg);
         }
+
         @Override
-        public void channelReadComplete(ChannelHandlerContext ctx) {
-            byte[] responseData = new byte[content.readableBytes()];
-            content.readBytes(responseData);
-            HttpHeaders headers = new NetGuardHttp2Headers();
-            for(Map.Entry<String, String> entry : response.headers().entries()) {
-                headers.add(entry.getKey(), entry.getValue());
-            }
-            responseData = http2Filter == null ? responseData : http2Filter.filterResponse(sessionKey, response, headers, responseData);
+        protected void forwardMessage(ChannelHandlerContext ctx, HttpResponse response, byte[] responseData, HttpHeaders trailers) {
+            HttpHeaders headers = copyHeaders(response.headers());
+            responseData = http2Filter.filterResponse(sessionKey, response, headers, responseData);
             headers.remove(HttpHeaderNames.TRANSFER_ENCODING);
             HttpResponse forward = new DefaultFullHttpResponse(response.protocolVersion(),
                     response.status(), Unpooled.wrappedBuffer(responseData),
-                    headers, EmptyHttpHeaders.INSTANCE);
+                    headers, trailers);
             log.debug("Client forward response: {}", forward);
-            serverStreamChannel.writeAndFlush(forward);
+            forward(ctx, forward);
+        }
+
+        @Override
+        protected void startStreaming(ChannelHandlerContext ctx, HttpResponse response, byte[] responseData) {
+            HttpHeaders headers = copyHeaders(response.headers());
+            headers.remove(HttpHeaderNames.TRANSFER_ENCODING);
+            // 增量过滤可能改变长度
+            headers.remove(HttpHeaderNames.CONTENT_LENGTH);
+            byte[] data = http2Filter.filterPollingResponse(sessionKey, response, responseData, false);
+            HttpResponse forward = new DefaultHttpResponse(response.protocolVersion(), response.status(), headers);
+            log.debug("Client forward streaming response: {}", forward);
+            forward(ctx, forward);
+            forwardContent(ctx, data, null);
+        }
+
+        @Override
+        protected void forwardChunk(ChannelHandlerContext ctx, HttpResponse response, byte[] responseData, LastHttpContent last) {
+            forwardContent(ctx, http2Filter.filterPollingResponse(sessionKey, response, responseData, last != null), last);
         }
     }
 
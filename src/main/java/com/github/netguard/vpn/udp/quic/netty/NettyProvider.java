@@ -5,38 +5,232 @@ import com.github.netguard.vpn.udp.PacketRequest;
 import com.github.netguard.vpn.udp.UDPRelay;
 import com.github.netguard.vpn.udp.quic.ClientConnection;
 import com.github.netguard.vpn.udp.quic.QuicProxyProvider;
-import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandler;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.channel.EventLoopGroup;
 import io.netty.incubator.codec.http3.Http3;
 import io.netty.incubator.codec.quic.QuicChannel;
 import io.netty.incubator.codec.quic.QuicChannelBootstrap;
+import io.netty.incubator.codec.quic.QuicChannelOption;
 import io.netty.incubator.codec.quic.QuicSslContext;
 import io.netty.incubator.codec.quic.QuicSslContextBuilder;
+import io.netty.incubator.codec.quic.SegmentedDatagramPacketAllocator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.net.ssl.TrustManagerFactory;
 import java.io.IOException;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
+import java.security.cert.X509Certificate;
 import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class NettyProvider extends QuicProxyProvider {
 
     private static final Logger log = LoggerFactory.getLogger(NettyProvider.class);
 
+    public static final int DEFAULT_EVENT_LOOP_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    private final NettyTransport transport;
+    private final int eventLoopThreads;
+
+    /**
+     * 上游连接与本地 QUIC 服务端的 channel 共用，按 channel 轮询分配到各线程
+     */
+    private EventLoopGroup group;
+
+    /**
+     * 拦截的 QUIC 服务端，每个 event loop 线程一个，新的流轮流分配
+     */
+    private QuicServerEndpoint[] endpoints;
+    private int nextEndpoint;
+
+    static final int MAX_CLIENT_CONTEXTS = 512;
+
+    /**
+     * 上游连接的 {@link QuicSslContext} 按主机名与 ALPN 共享，context 内按 host:port 保存 session ticket，同一主机的后续连接可以恢复会话
+     */
+    private final Map<String, QuicSslContext> clientContexts = new LinkedHashMap<String, QuicSslContext>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, QuicSslContext> eldest) {
+            return size() > MAX_CLIENT_CONTEXTS;
+        }
+    };
+
+    /**
+     * 完整握手得到的服务器证书，0-RTT 连接在握手完成前用它签发拦截证书
+     */
+    private final Map<String, X509Certificate> peerCertificates = new LinkedHashMap<String, X509Certificate>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, X509Certificate> eldest) {
+            return size() > MAX_CLIENT_CONTEXTS;
+        }
+    };
+
+    private volatile boolean earlyData;
+    private final TrustManagerFactory trustManagerFactory;
+
+    private final AtomicLong fullHandshakes = new AtomicLong();
+    private final AtomicLong resumedHandshakes = new AtomicLong();
+    private final AtomicLong earlyDataHandshakes = new AtomicLong();
+
+    public NettyProvider(int eventLoopThreads) {
+        this(NettyTransport.getDefault(), eventLoopThreads);
+    }
+
+    NettyProvider(NettyTransport transport, int eventLoopThreads) {
+        this(transport, eventLoopThreads, null);
+    }
+
+    /**
+     * @param trustManagerFactory 校验上游证书，<code>null</code> 使用系统默认
+     */
+    NettyProvider(NettyTransport transport, int eventLoopThreads, TrustManagerFactory trustManagerFactory) {
+        if (eventLoopThreads < 1) {
+            throw new IllegalArgumentException("eventLoopThreads=" + eventLoopThreads);
+        }
+        this.transport = transport;
+        this.eventLoopThreads = eventLoopThreads;
+        this.trustManagerFactory = trustManagerFactory;
+    }
+
+    /**
+     * 是否在上游连接可以恢复会话时使用 0-RTT：握手完成前即开始转发，只有 GET、HEAD、OPTIONS 请求作为 early data 发出，
+     * 其余请求等待握手完成。默认关闭，early data 可能被重放；只对之后新建的主机 context 生效。
+     */
+    public void setEarlyData(boolean earlyData) {
+        this.earlyData = earlyData;
+    }
+
+    public boolean isEarlyData() {
+        return earlyData;
+    }
+
+    /**
+     * @return 上游完整握手次数
+     */
+    public long getFullHandshakeCount() {
+        return fullHandshakes.get();
+    }
+
+    /**
+     * @return 上游通过 session ticket 恢复会话的握手次数，包括使用 0-RTT 的
+     */
+    public long getResumedHandshakeCount() {
+        return resumedHandshakes.get();
+    }
+
+    /**
+     * @return 握手完成前就开始转发的上游连接数
+     */
+    public long getEarlyDataHandshakeCount() {
+        return earlyDataHandshakes.get();
+    }
+
+    private static String contextKey(String hostName, List<String> applicationLayerProtocols) {
+        return hostName + '|' + String.join(",", applicationLayerProtocols);
+    }
+
+    QuicSslContext getClientContext(String hostName, List<String> applicationLayerProtocols) {
+        String key = contextKey(hostName, applicationLayerProtocols);
+        boolean earlyData = this.earlyData;
+        synchronized (clientContexts) {
+            QuicSslContext context = clientContexts.get(key);
+            if (context == null) {
+                QuicSslContextBuilder builder = QuicSslContextBuilder.forClient()
+                        .applicationProtocols(applicationLayerProtocols.toArray(new String[0]))
+                        .earlyData(earlyData);
+                if (trustManagerFactory != null) {
+                    builder.trustManager(trustManagerFactory);
+                }
+                context = builder.build();
+                clientContexts.put(key, context);
+            }
+            return context;
+        }
+    }
+
+    X509Certificate getPeerCertificate(String peerHost, int peerPort) {
+        synchronized (peerCertificates) {
+            return peerCertificates.get(peerHost + ':' + peerPort);
+        }
+    }
+
+    void onHandshakeComplete(String peerHost, int peerPort, X509Certificate peerCertificate, boolean resumed, boolean early) {
+        if (resumed) {
+            resumedHandshakes.incrementAndGet();
+        } else {
+            fullHandshakes.incrementAndGet();
+        }
+        if (early) {
+            earlyDataHandshakes.incrementAndGet();
+        }
+        if (peerCertificate != null) {
+            synchronized (peerCertificates) {
+                peerCertificates.put(peerHost + ':' + peerPort, peerCertificate);
+            }
+        }
+    }
+
+    private synchronized EventLoopGroup getGroup() {
+        if (group == null || group.isShuttingDown()) {
+            group = transport.newEventLoopGroup(eventLoopThreads,
+                    ThreadUtil.newNamedThreadFactory("netty-quic-" + transport.name().toLowerCase() + "-event-loop", true));
+        }
+        return group;
+    }
+
+    synchronized QuicServerEndpoint nextEndpoint() throws InterruptedException {
+        EventLoopGroup group = getGroup();
+        if (endpoints == null) {
+            endpoints = new QuicServerEndpoint[eventLoopThreads];
+        }
+        int index = nextEndpoint++ % endpoints.length;
+        if (nextEndpoint == endpoints.length) {
+            nextEndpoint = 0;
+        }
+        QuicServerEndpoint endpoint = endpoints[index];
+        if (endpoint == null || !endpoint.isActive()) {
+            endpoints[index] = endpoint = new QuicServerEndpoint(transport, group);
+        }
+        return endpoint;
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        if (endpoints != null) {
+            for (QuicServerEndpoint endpoint : endpoints) {
+                if (endpoint != null) {
+                    endpoint.close();
+                }
+            }
+            endpoints = null;
+        }
+        if (group != null) {
+            group.shutdownGracefully(0, 5, TimeUnit.SECONDS);
+            group = null;
+        }
+    }
+
     @Override
     public ClientConnection newClientConnection(PacketRequest packetRequest, Duration connectTimeout, InetSocketAddress udpProxy) {
-        NioEventLoopGroup group = new NioEventLoopGroup(1, ThreadUtil.newNamedThreadFactory("netty-new-client-connection-nio-event-loop", true));
+        return newClientConnection(packetRequest.serverIp, packetRequest.port, packetRequest.hostName, packetRequest.applicationLayerProtocols, connectTimeout, udpProxy);
+    }
+
+    ClientConnection newClientConnection(String serverIp, int serverPort, String hostName, List<String> applicationLayerProtocols,
+                                         Duration connectTimeout, InetSocketAddress udpProxy) {
+        EventLoopGroup group = getGroup();
 
         try {
-            QuicSslContext context = QuicSslContextBuilder.forClient()
-                    .applicationProtocols(packetRequest.applicationLayerProtocols.toArray(new String[0])).build();
+            QuicSslContext context = getClientContext(hostName, applicationLayerProtocols);
+            int peerPort = udpProxy == null ? serverPort : udpProxy.getPort();
             ChannelHandler codec = Http3.newQuicClientCodecBuilder()
-                    .sslContext(new QuicSslContextWrapper(context, packetRequest.hostName, udpProxy == null ? packetRequest.port : udpProxy.getPort()))
+                    .sslContext(new QuicSslContextWrapper(context, hostName, peerPort))
                     .maxIdleTimeout(connectTimeout.toMillis(), TimeUnit.MILLISECONDS)
                     .initialMaxData(10000000)
                     .initialMaxStreamDataBidirectionalLocal(1000000)
@@ -45,22 +239,24 @@ public class NettyProvider extends QuicProxyProvider {
             int port = 0;
             if (udpProxy != null) {
                 try (DatagramSocket socket = UDPRelay.createRelayProxySocket(udpProxy,
-                        new InetSocketAddress(packetRequest.serverIp, packetRequest.port), connectTimeout.getSeconds())) {
+                        new InetSocketAddress(serverIp, serverPort), connectTimeout.getSeconds())) {
                     port = socket.getLocalPort();
                 }
             }
 
-            Bootstrap bs = new Bootstrap();
-            Channel channel = bs.group(group)
-                    .channel(NioDatagramChannel.class)
+            Channel channel = transport.newDatagramBootstrap(group)
                     .handler(codec)
                     .bind(port).sync().channel();
 
-            InetSocketAddress remoteAddress = new InetSocketAddress(udpProxy == null ? packetRequest.serverIp : udpProxy.getHostString(), udpProxy == null ? packetRequest.port : udpProxy.getPort());
+            InetSocketAddress remoteAddress = new InetSocketAddress(udpProxy == null ? serverIp : udpProxy.getHostString(), peerPort);
             QuicChannelBootstrap bootstrap = QuicChannel.newBootstrap(channel)
                     .remoteAddress(remoteAddress);
+            SegmentedDatagramPacketAllocator segmentedAllocator = transport.newSegmentedAllocator();
+            if (segmentedAllocator != null) {
+                bootstrap.option(QuicChannelOption.SEGMENTED_DATAGRAM_PACKET_ALLOCATOR, segmentedAllocator);
+            }
             log.debug("newClientConnection udpProxy={}, port={}, remoteAddress={}, bootstrap={}", udpProxy, port, remoteAddress, bootstrap);
-            return new NettyClientConnection(group, channel, bootstrap);
+            return new NettyClientConnection(this, channel, bootstrap, hostName, peerPort);
         } catch (InterruptedException | IOException e) {
             throw new IllegalStateException("newClientConnection", e);
         }
@@ -0,0 +1,97 @@
+package com.github.netguard.vpn.udp.quic.netty;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.FixedRecvByteBufAllocator;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.incubator.codec.quic.EpollQuicUtils;
+import io.netty.incubator.codec.quic.SegmentedDatagramPacketAllocator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * QUIC 使用的 UDP 传输：Linux 上优先使用 native epoll，通过 recvmmsg 批量读取并在内核支持时用 UDP GSO 批量发送，否则使用 NIO
+ */
+enum NettyTransport {
+
+    NIO {
+        @Override
+        EventLoopGroup newEventLoopGroup(int threads, ThreadFactory threadFactory) {
+            return new NioEventLoopGroup(threads, threadFactory);
+        }
+        @Override
+        Bootstrap newDatagramBootstrap(EventLoopGroup group) {
+            return new Bootstrap().group(group).channel(NioDatagramChannel.class);
+        }
+        @Override
+        SegmentedDatagramPacketAllocator newSegmentedAllocator() {
+            return null;
+        }
+    },
+
+    EPOLL {
+        @Override
+        EventLoopGroup newEventLoopGroup(int threads, ThreadFactory threadFactory) {
+            return new EpollEventLoopGroup(threads, threadFactory);
+        }
+        @Override
+        Bootstrap newDatagramBootstrap(EventLoopGroup group) {
+            // 设置 MAX_DATAGRAM_PAYLOAD_SIZE 且接收缓冲区大于它时，一次 recvmmsg 读取多个数据报
+            return new Bootstrap().group(group).channel(EpollDatagramChannel.class)
+                    .option(EpollChannelOption.MAX_DATAGRAM_PAYLOAD_SIZE, MAX_DATAGRAM_SIZE)
+                    .option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(MAX_DATAGRAM_SIZE * RECVMMSG_BATCH));
+        }
+        @Override
+        SegmentedDatagramPacketAllocator newSegmentedAllocator() {
+            return EpollDatagramChannel.isSegmentedDatagramPacketSupported() ? EpollQuicUtils.newSegmentedAllocator(GSO_SEGMENTS) : null;
+        }
+    };
+
+    private static final Logger log = LoggerFactory.getLogger(NettyTransport.class);
+
+    /**
+     * 大于 quiche 默认的最大 UDP 载荷 1350
+     */
+    static final int MAX_DATAGRAM_SIZE = 1500;
+    private static final int RECVMMSG_BATCH = 16;
+    private static final int GSO_SEGMENTS = 10;
+
+    abstract EventLoopGroup newEventLoopGroup(int threads, ThreadFactory threadFactory);
+
+    abstract Bootstrap newDatagramBootstrap(EventLoopGroup group);
+
+    /**
+     * 只用于直接写入网络的 channel，{@link QuicServerEndpoint} 的数据报交给 VPN 发送，不使用
+     *
+     * @return GSO 发送的分段分配器，不支持时为 <code>null</code>
+     */
+    abstract SegmentedDatagramPacketAllocator newSegmentedAllocator();
+
+    private static final NettyTransport DEFAULT = detect();
+
+    static NettyTransport getDefault() {
+        return DEFAULT;
+    }
+
+    private static NettyTransport detect() {
+        try {
+            if (Epoll.isAvailable()) {
+                log.debug("use epoll transport: gso={}", EpollDatagramChannel.isSegmentedDatagramPacketSupported());
+                return EPOLL;
+            }
+            log.debug("epoll transport unavailable", Epoll.unavailabilityCause());
+        } catch (LinkageError e) {
+            log.debug("epoll transport unavailable", e);
+        }
+        return NIO;
+    }
+
+}
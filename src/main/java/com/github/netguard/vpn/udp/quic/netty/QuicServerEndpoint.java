@@ -0,0 +1,202 @@
+package com.github.netguard.vpn.udp.quic.netty;
+
+import com.github.netguard.vpn.udp.quic.QuicServer;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.incubator.codec.http3.Http3;
+import io.netty.incubator.codec.quic.QuicChannel;
+import io.netty.incubator.codec.quic.QuicSslContext;
+import io.netty.incubator.codec.quic.QuicSslEngine;
+import io.netty.util.ReferenceCountUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 多个拦截的 QUIC 连接共用的服务端 channel：UDProxy 收到的数据报直接注入 codec 的 pipeline，由 quiche 按目标连接 ID 分发到各连接，
+ * 新连接按 UDProxy 分配的虚拟对端地址找到对应的证书与 filter，发往该地址的数据报交回 UDProxy 发给客户端，不经过 loopback。
+ * 绑定的 loopback 端口只用于承载 channel，不接收数据。
+ */
+class QuicServerEndpoint {
+
+    private static final Logger log = LoggerFactory.getLogger(QuicServerEndpoint.class);
+
+    private final Channel channel;
+    private final InetSocketAddress localAddress;
+    private final Map<InetSocketAddress, Flow> flows = new ConcurrentHashMap<>();
+    private final AtomicInteger nextFlowId = new AtomicInteger();
+
+    QuicServerEndpoint(NettyTransport transport, EventLoopGroup group) throws InterruptedException {
+        // 不设置 SEGMENTED_DATAGRAM_PACKET_ALLOCATOR：GSO 只对写入内核 socket 的数据报有效，这里的数据报由 FlowWriter
+        // 逐个交给 UDProxy 写入 VPN，分段的数据报会被当成一个 UDP 载荷发给客户端
+        ChannelHandler codec = Http3.newQuicServerCodecBuilder()
+                .sslEngineProvider(this::newSslEngine)
+                .maxIdleTimeout(1, TimeUnit.MINUTES)
+                .initialMaxData(10000000)
+                .initialMaxStreamDataBidirectionalLocal(1000000)
+                .initialMaxStreamDataBidirectionalRemote(1000000)
+                .initialMaxStreamsBidirectional(100)
+                .handler(new ChannelInitializer<QuicChannel>() {
+                    @Override
+                    protected void initChannel(QuicChannel quicChannel) {
+                        Flow flow = flows.get((InetSocketAddress) quicChannel.remoteSocketAddress());
+                        if (flow == null) {
+                            quicChannel.close();
+                            return;
+                        }
+                        flow.channels.add(quicChannel);
+                        quicChannel.closeFuture().addListener(future -> flow.channels.remove(quicChannel));
+                        quicChannel.pipeline().addLast(flow.connectionHandler);
+                    }
+                }).build();
+        channel = transport.newDatagramBootstrap(group)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        ch.pipeline().addLast(new FlowWriter(), codec);
+                    }
+                })
+                .bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0)).sync().channel();
+        localAddress = (InetSocketAddress) channel.localAddress();
+        log.debug("start quic server endpoint: {}", channel);
+    }
+
+    private QuicSslEngine newSslEngine(QuicChannel quicChannel) {
+        Flow flow = flows.get((InetSocketAddress) quicChannel.remoteSocketAddress());
+        if (flow == null) {
+            throw new IllegalStateException("Unknown flow: " + quicChannel.remoteSocketAddress());
+        }
+        return flow.sslContext.newEngine(quicChannel.alloc());
+    }
+
+    /**
+     * @param connectionHandler 该流上新建的 {@link QuicChannel} 的 handler，必须可共享
+     */
+    QuicServer register(QuicSslContext sslContext, ChannelHandler connectionHandler, QuicServer.ClientSender sender) {
+        while (true) {
+            InetSocketAddress peer = newPeerAddress(nextFlowId.incrementAndGet());
+            Flow flow = new Flow(peer, sslContext, connectionHandler, sender);
+            if (flows.putIfAbsent(peer, flow) == null) {
+                return flow;
+            }
+        }
+    }
+
+    /**
+     * 127.0.0.0/8 中的虚拟地址，只在 codec 内部作为连接的对端地址
+     */
+    private static InetSocketAddress newPeerAddress(int id) {
+        try {
+            InetAddress address = InetAddress.getByAddress(new byte[]{127, (byte) (id >>> 16), (byte) (id >>> 8), (byte) id});
+            return new InetSocketAddress(address, 1024 + ((id >>> 24) & 0xff));
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    boolean isActive() {
+        return channel.isActive();
+    }
+
+    int getFlowCount() {
+        return flows.size();
+    }
+
+    void close() {
+        for (Flow flow : flows.values()) {
+            flow.close();
+        }
+        channel.close();
+    }
+
+    private class Flow implements QuicServer {
+        private final InetSocketAddress peer;
+        private final QuicSslContext sslContext;
+        private final ChannelHandler connectionHandler;
+        private final ClientSender sender;
+        private final Set<QuicChannel> channels = ConcurrentHashMap.newKeySet();
+
+        Flow(InetSocketAddress peer, QuicSslContext sslContext, ChannelHandler connectionHandler, ClientSender sender) {
+            this.peer = peer;
+            this.sslContext = sslContext;
+            this.connectionHandler = connectionHandler;
+            this.sender = sender;
+        }
+
+        @Override
+        public void forward(byte[] data, int length) {
+            if (!channel.isActive()) {
+                return;
+            }
+            ByteBuf buf = channel.alloc().directBuffer(length).writeBytes(data, 0, length);
+            DatagramPacket packet = new DatagramPacket(buf, localAddress, peer);
+            channel.eventLoop().execute(() -> {
+                ChannelPipeline pipeline = channel.pipeline();
+                pipeline.fireChannelRead(packet);
+                pipeline.fireChannelReadComplete();
+            });
+        }
+
+        @Override
+        public void close() {
+            if (flows.remove(peer, this)) {
+                for (QuicChannel quicChannel : channels) {
+                    quicChannel.close();
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Flow{" +
+                    "peer=" + peer +
+                    ", endpoint=" + localAddress +
+                    '}';
+        }
+    }
+
+    /**
+     * 发往虚拟对端地址的数据报交给对应流的 {@link QuicServer.ClientSender}，每个 {@link DatagramPacket} 是一个 QUIC 数据报
+     */
+    private class FlowWriter extends ChannelOutboundHandlerAdapter {
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+            if (!(msg instanceof DatagramPacket)) {
+                ctx.write(msg, promise);
+                return;
+            }
+            DatagramPacket packet = (DatagramPacket) msg;
+            try {
+                Flow flow = flows.get(packet.recipient());
+                if (flow != null) {
+                    flow.sender.send(ByteBufUtil.getBytes(packet.content()));
+                }
+            } catch (IOException e) {
+                // 与 UDP 发送失败一样视为丢包，由 QUIC 重传
+                log.debug("send to client failed: recipient={}", packet.recipient(), e);
+            } finally {
+                promise.trySuccess();
+                ReferenceCountUtil.release(packet);
+            }
+        }
+    }
+
+}
@@ -21,6 +21,9 @@ import java.util.Arrays;
 
 import com.twitter.hpack.HpackUtil.IndexType;
 
+import static com.twitter.hpack.HpackUtil.HUFFMAN_CODES;
+import static com.twitter.hpack.HpackUtil.HUFFMAN_CODE_LENGTHS;
+
 public final class NetGuardEncoder {
 
     private static final int BUCKET_SIZE = 17;
@@ -37,6 +40,9 @@ public final class NetGuardEncoder {
     private int size;
     private int capacity;
 
+    // scratch space for huffman encoded string literals
+    private byte[] huffmanBuffer = new byte[64];
+
     /**
      * Creates a new encoder.
      */
@@ -77,9 +83,9 @@ public final class NetGuardEncoder {
 
         // If the peer will only use the static table
         if (capacity == 0) {
-            int staticTableIndex = StaticTable.getIndex(name, value);
+            int staticTableIndex = NetGuardStaticTable.getIndex(name, value);
             if (staticTableIndex == -1) {
-                int nameIndex = StaticTable.getIndex(name);
+                int nameIndex = NetGuardStaticTable.getIndex(name);
                 encodeLiteral(out, name, value, IndexType.NONE, nameIndex);
             } else {
                 encodeInteger(out, 0x80, 7, staticTableIndex);
@@ -102,7 +108,7 @@ public final class NetGuardEncoder {
             // Section 6.1. Indexed Header Field Representation
             encodeInteger(out, 0x80, 7, index);
         } else {
-            int staticTableIndex = StaticTable.getIndex(name, value);
+            int staticTableIndex = NetGuardStaticTable.getIndex(name, value);
             if (staticTableIndex != -1) {
                 // Section 6.1. Indexed Header Field Representation
                 encodeInteger(out, 0x80, 7, staticTableIndex);
@@ -171,14 +177,60 @@ public final class NetGuardEncoder {
      * Encode string literal according to Section 5.2.
      */
     private void encodeStringLiteral(OutputStream out, byte[] string) throws IOException {
-        int huffmanLength = Huffman.ENCODER.getEncodedLength(string);
-        if ((huffmanLength < string.length && !forceHuffmanOff) || forceHuffmanOn) {
-            encodeInteger(out, 0x80, 7, huffmanLength);
-            Huffman.ENCODER.encode(out, string);
-        } else {
-            encodeInteger(out, 0x00, 7, string.length);
-            out.write(string, 0, string.length);
+        if (forceHuffmanOn || !forceHuffmanOff) {
+            int huffmanLength = huffmanEncode(string, forceHuffmanOn ? Integer.MAX_VALUE : string.length - 1);
+            if (huffmanLength != -1) {
+                encodeInteger(out, 0x80, 7, huffmanLength);
+                out.write(huffmanBuffer, 0, huffmanLength);
+                return;
+            }
+        }
+        encodeInteger(out, 0x00, 7, string.length);
+        out.write(string, 0, string.length);
+    }
+
+    /**
+     * Huffman encode the string into {@link #huffmanBuffer} in a single pass.
+     * Gives up as soon as the output grows past maxLength, which is the common case for random tokens.
+     *
+     * @return the encoded length, or -1 if it is greater than maxLength
+     */
+    private int huffmanEncode(byte[] string, int maxLength) {
+        // the longest code is 30 bits, so the output never exceeds 4 bytes per input byte
+        int limit = Math.min(maxLength, string.length * 4);
+        if (limit < 0) {
+            return -1;
+        }
+        if (huffmanBuffer.length < limit) {
+            huffmanBuffer = new byte[Math.max(limit, huffmanBuffer.length * 2)];
+        }
+        byte[] buffer = huffmanBuffer;
+        long current = 0;
+        int n = 0;
+        int length = 0;
+        for (byte b : string) {
+            int c = b & 0xFF;
+            int nbits = HUFFMAN_CODE_LENGTHS[c];
+            current <<= nbits;
+            current |= HUFFMAN_CODES[c];
+            n += nbits;
+            while (n >= 8) {
+                if (length == limit) {
+                    return -1;
+                }
+                n -= 8;
+                buffer[length++] = (byte) (current >> n);
+            }
+        }
+        if (n > 0) {
+            if (length == limit) {
+                return -1;
+            }
+            current <<= (8 - n);
+            current |= (0xFF >>> n); // this should be EOS symbol
+            buffer[length++] = (byte) current;
         }
+        return length;
     }
 
     /**
@@ -212,7 +264,7 @@ public final class NetGuardEncoder {
     }
 
     private int getNameIndex(byte[] name) {
-        int index = StaticTable.getIndex(name);
+        int index = NetGuardStaticTable.getIndex(name);
         if (index == -1) {
             index = getIndex(name);
             if (index >= 0) {
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2014 Twitter, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twitter.hpack;
+
+/**
+ * Byte keyed lookup over {@link StaticTable}.
+ * {@link StaticTable#getIndex(byte[])} builds a String for every lookup, this one hashes the bytes directly.
+ */
+final class NetGuardStaticTable {
+
+    private static final int TABLE_SIZE = 128; // power of two, more than twice the distinct static names
+
+    private static final byte[][] NAMES = new byte[TABLE_SIZE][];
+    private static final int[] HASHES = new int[TABLE_SIZE];
+    private static final int[] INDEXES = new int[TABLE_SIZE];
+
+    static {
+        // iterate backwards so the lowest index wins, same as StaticTable
+        for (int index = StaticTable.length; index > 0; index--) {
+            byte[] name = StaticTable.getEntry(index).name;
+            int h = hash(name);
+            int slot = find(name, h);
+            NAMES[slot] = name;
+            HASHES[slot] = h;
+            INDEXES[slot] = index;
+        }
+    }
+
+    /**
+     * Returns the lowest index value for the given header field name in the static table.
+     * Returns -1 if the header field name is not in the static table.
+     */
+    static int getIndex(byte[] name) {
+        int slot = find(name, hash(name));
+        return NAMES[slot] == null ? -1 : INDEXES[slot];
+    }
+
+    /**
+     * Returns the index value for the given header field in the static table.
+     * Returns -1 if the header field is not in the static table.
+     */
+    static int getIndex(byte[] name, byte[] value) {
+        int index = getIndex(name);
+        if (index == -1) {
+            return -1;
+        }
+        while (index <= StaticTable.length) {
+            HeaderField entry = StaticTable.getEntry(index);
+            if (!HpackUtil.equals(name, entry.name)) {
+                break;
+            }
+            if (HpackUtil.equals(value, entry.value)) {
+                return index;
+            }
+            index++;
+        }
+        return -1;
+    }
+
+    private static int find(byte[] name, int h) {
+        int slot = h & (TABLE_SIZE - 1);
+        while (NAMES[slot] != null) {
+            if (HASHES[slot] == h && HpackUtil.equals(name, NAMES[slot])) {
+                break;
+            }
+            slot = (slot + 1) & (TABLE_SIZE - 1);
+        }
+        return slot;
+    }
+
+    private static int hash(byte[] name) {
+        int h = 0;
+        for (byte b : name) {
+            h = 31 * h + b;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private NetGuardStaticTable() {
+    }
+}
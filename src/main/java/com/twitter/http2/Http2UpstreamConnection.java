@@ -0,0 +1,631 @@
+package com.twitter.http2;
+
+import cn.hutool.core.io.IoUtil;
+import com.github.netguard.vpn.tcp.h2.HttpHeaderBlockDecoder;
+import com.github.netguard.vpn.tcp.h2.HttpHeaderBlockEncoder;
+import com.github.netguard.vpn.tcp.h2.PooledBuffers;
+import io.netty.buffer.ByteBuf;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A client side HTTP/2 connection to an upstream server that is shared by several proxied client connections.
+ * Each submitted request gets a fresh upstream stream id, responses are delivered to the {@link StreamListener}
+ * registered for that stream.
+ * <p>
+ * Frames are encoded under the connection lock and written to the socket by a dedicated writer thread, the frames
+ * are read by another daemon thread. Neither the reader nor the threads submitting requests block on the socket:
+ * requests are queued while the server's concurrent stream limit is reached, and their bodies are sent by the
+ * writer thread as the flow control windows allow.
+ */
+public class Http2UpstreamConnection implements HttpFrameDecoderDelegate, Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(Http2UpstreamConnection.class);
+
+    private static final byte[] CLIENT_CONNECTION_PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes();
+
+    private static final int DEFAULT_WINDOW_SIZE = 65535;
+    private static final int RECEIVE_WINDOW_SIZE = 1024 * 1024;
+    private static final int MAX_FRAME_SIZE = 16384;
+    private static final int IDLE_TIMEOUT = (int) TimeUnit.MINUTES.toMillis(1);
+    // request DATA frames are encoded ahead of the writer thread up to this many bytes
+    private static final int MAX_PENDING_OUTPUT = 256 * 1024;
+
+    /**
+     * Receives the response frames of one upstream stream, called on the reader or writer thread of the connection,
+     * implementations should not block.
+     */
+    public interface StreamListener {
+        /**
+         * The request body was written to the socket and is not referenced any more. Not called when the stream
+         * was reset, cancelled or ended by the server first.
+         */
+        void onRequestSent();
+
+        /**
+         * Response headers, informational headers or trailers. The stream ends when {@link HttpHeadersFrame#isLast()}.
+         */
+        void onHeaders(HttpHeadersFrame headersFrame);
+
+        void onData(byte[] data, boolean endStream);
+
+        /**
+         * The stream was reset by the server, refused by a GOAWAY, or the connection was closed.
+         */
+        void onReset(int errorCode);
+    }
+
+    /**
+     * A submitted request, its fields are guarded by the connection.
+     */
+    static final class UpstreamStream {
+        final StreamListener listener;
+        private HttpHeadersFrame headersFrame;
+        private byte[] data;
+        private int offset;
+        /**
+         * 0 while the request is queued for the server's concurrent stream limit
+         */
+        volatile int streamId;
+        private int sendWindow;
+        private int unackedBytes;
+        UpstreamStream(HttpHeadersFrame headersFrame, byte[] data, StreamListener listener) {
+            this.headersFrame = headersFrame;
+            this.data = data;
+            this.listener = listener;
+        }
+    }
+
+    private final Http2UpstreamPool pool;
+    private final Http2UpstreamPool.Key key;
+    private final Socket socket;
+    private final X509Certificate peerCertificate;
+    private final InputStream inputStream;
+    private final OutputStream outputStream;
+
+    private final NetGuardFrameDecoder frameDecoder;
+    private final NetGuardFrameEncoder frameEncoder = new NetGuardFrameEncoder();
+    private final HttpHeaderBlockDecoder headerDecoder = new HttpHeaderBlockDecoder(0x4000, 0x10000);
+    private final HttpHeaderBlockEncoder headerEncoder = new HttpHeaderBlockEncoder(0x1000);
+    /**
+     * frames waiting for the writer thread, swapped with its own buffer on every write
+     */
+    private ByteBuf outputBuffer = PooledBuffers.ALLOCATOR.heapBuffer();
+
+    private final Map<Integer, UpstreamStream> streams = new HashMap<>();
+    private final ArrayDeque<UpstreamStream> pendingStreams = new ArrayDeque<>();
+    // opened streams with request data left, served round-robin
+    private final ArrayDeque<UpstreamStream> sendingStreams = new ArrayDeque<>();
+    private int nextStreamId = 1;
+    private int maxConcurrentStreams = 100;
+    private int initialSendWindow = DEFAULT_WINDOW_SIZE;
+    private int connectionSendWindow = DEFAULT_WINDOW_SIZE;
+    private int connectionUnackedBytes;
+    private boolean goAway;
+    private boolean closed;
+
+    Http2UpstreamConnection(Http2UpstreamPool pool, Http2UpstreamPool.Key key, Socket socket, X509Certificate peerCertificate) throws IOException {
+        this.pool = pool;
+        this.key = key;
+        this.socket = socket;
+        this.peerCertificate = peerCertificate;
+        this.inputStream = socket.getInputStream();
+        this.outputStream = socket.getOutputStream();
+        this.frameDecoder = new NetGuardFrameDecoder(false, this);
+    }
+
+    void start() throws IOException {
+        socket.setSoTimeout(IDLE_TIMEOUT);
+        socket.setTcpNoDelay(true);
+        synchronized (this) {
+            outputBuffer.writeBytes(CLIENT_CONNECTION_PREFACE);
+            HttpSettingsFrame settingsFrame = new NetGuardHttpSettingsFrame();
+            settingsFrame.setValue(HttpSettingsFrame.SETTINGS_ENABLE_PUSH, 0);
+            settingsFrame.setValue(HttpSettingsFrame.SETTINGS_INITIAL_WINDOW_SIZE, RECEIVE_WINDOW_SIZE);
+            frameEncoder.writeSettingsFrame(outputBuffer, settingsFrame);
+            frameEncoder.writeWindowUpdateFrame(outputBuffer, 0, RECEIVE_WINDOW_SIZE - DEFAULT_WINDOW_SIZE);
+        }
+        Thread writer = new Thread(this::writeLoop, "Http2UpstreamWriter for " + key);
+        writer.setDaemon(true);
+        writer.start();
+        Thread reader = new Thread(this, "Http2Upstream for " + key);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    public Http2UpstreamPool.Key getKey() {
+        return key;
+    }
+
+    public X509Certificate getPeerCertificate() {
+        return peerCertificate;
+    }
+
+    public InetSocketAddress getRemoteAddress() {
+        return (InetSocketAddress) socket.getRemoteSocketAddress();
+    }
+
+    /**
+     * @return whether new streams can be opened on this connection
+     */
+    public synchronized boolean isUsable() {
+        return !closed && !goAway && nextStreamId > 0;
+    }
+
+    /**
+     * @return open and queued streams
+     */
+    synchronized int getActiveStreams() {
+        return streams.size() + pendingStreams.size();
+    }
+
+    synchronized boolean hasCapacity() {
+        return isUsable() && getActiveStreams() < maxConcurrentStreams;
+    }
+
+    /**
+     * Queues a request for a new upstream stream, never blocks: the writer thread opens the stream once the server's
+     * concurrent stream limit allows, and sends the body as the flow control windows allow.
+     *
+     * @param headersFrame the stream id of the frame is replaced by the upstream stream id
+     * @param data         request body, <code>null</code> when the headers frame ends the stream
+     * @return the stream to {@link #cancel}
+     * @throws IOException the connection is closed or going away, the request should be retried on another connection
+     */
+    public UpstreamStream submit(HttpHeadersFrame headersFrame, byte[] data, StreamListener listener) throws IOException {
+        UpstreamStream stream = new UpstreamStream(headersFrame, data, listener);
+        synchronized (this) {
+            if (!isUsable()) {
+                throw new IOException("Upstream connection is not usable: " + key);
+            }
+            pendingStreams.add(stream);
+            notifyAll();
+        }
+        pool.onStreamSubmitted();
+        return stream;
+    }
+
+    /**
+     * Resets an upstream stream, or drops it while it is still queued. The listener will not be called any more.
+     */
+    public synchronized void cancel(UpstreamStream stream) {
+        if (pendingStreams.remove(stream)) {
+            stream.headersFrame = null;
+            stream.data = null;
+        } else if (stream.streamId != 0 && streams.remove(stream.streamId, stream)) {
+            sendingStreams.remove(stream);
+            stream.data = null;
+            if (!closed) {
+                frameEncoder.writeRstStreamFrame(outputBuffer, stream.streamId, HttpErrorCode.CANCEL.getCode());
+            }
+        }
+        notifyAll();
+    }
+
+    private void writeLoop() {
+        ByteBuf writing = PooledBuffers.ALLOCATOR.heapBuffer();
+        List<UpstreamStream> sent = new ArrayList<>();
+        List<UpstreamStream> refused = new ArrayList<>();
+        try {
+            while (true) {
+                synchronized (this) {
+                    while (!closed && !fillOutput(sent, refused)) {
+                        wait();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    ByteBuf buffer = outputBuffer;
+                    outputBuffer = writing;
+                    writing = buffer;
+                }
+                for (UpstreamStream stream : refused) {
+                    stream.listener.onReset(HttpErrorCode.REFUSED_STREAM.getCode());
+                }
+                refused.clear();
+                if (writing.isReadable()) {
+                    writing.readBytes(outputStream, writing.readableBytes());
+                    outputStream.flush();
+                }
+                writing.clear();
+                for (UpstreamStream stream : sent) {
+                    stream.listener.onRequestSent();
+                }
+                sent.clear();
+            }
+        } catch (IOException e) {
+            log.debug("write upstream connection failed: {}", key, e);
+        } catch (InterruptedException e) {
+            log.debug("writeLoop interrupted: {}", key, e);
+        } finally {
+            writing.release();
+            close();
+        }
+    }
+
+    /**
+     * Opens the queued streams the server allows and encodes the request data its windows allow, must hold this.
+     *
+     * @param sent    streams whose request is complete once the output is written
+     * @param refused streams that can not be opened on this connection any more
+     * @return whether the writer thread has something to do
+     */
+    private boolean fillOutput(List<UpstreamStream> sent, List<UpstreamStream> refused) throws IOException {
+        while (!pendingStreams.isEmpty() && streams.size() < maxConcurrentStreams) {
+            UpstreamStream stream = pendingStreams.poll();
+            if (goAway || nextStreamId <= 0) {
+                refused.add(stream);
+            } else {
+                openStream(stream, sent);
+            }
+        }
+        boolean progress = true;
+        while (progress && connectionSendWindow > 0 && outputBuffer.readableBytes() < MAX_PENDING_OUTPUT) {
+            progress = false;
+            for (int i = sendingStreams.size(); i > 0 && connectionSendWindow > 0; i--) {
+                UpstreamStream stream = sendingStreams.poll();
+                if (stream.sendWindow <= 0) {
+                    sendingStreams.add(stream);
+                    continue;
+                }
+                int n = Math.min(Math.min(stream.data.length - stream.offset, MAX_FRAME_SIZE), Math.min(connectionSendWindow, stream.sendWindow));
+                connectionSendWindow -= n;
+                stream.sendWindow -= n;
+                stream.offset += n;
+                boolean endStream = stream.offset == stream.data.length;
+                frameEncoder.writeDataFrame(outputBuffer, stream.streamId, endStream, stream.data, stream.offset - n, n);
+                if (endStream) {
+                    stream.data = null;
+                    sent.add(stream);
+                } else {
+                    sendingStreams.add(stream);
+                }
+                progress = true;
+            }
+        }
+        return outputBuffer.isReadable() || !refused.isEmpty();
+    }
+
+    private void openStream(UpstreamStream stream, List<UpstreamStream> sent) throws IOException {
+        int streamId = nextStreamId;
+        nextStreamId += 2;
+        stream.streamId = streamId;
+        stream.sendWindow = initialSendWindow;
+        streams.put(streamId, stream);
+
+        HttpHeadersFrame headersFrame = stream.headersFrame;
+        stream.headersFrame = null;
+        boolean hasData = stream.data != null && stream.data.length > 0;
+        headersFrame.setStreamId(streamId);
+        headersFrame.setLast(!hasData);
+        ByteBuf headerBlock = headerEncoder.encode(headersFrame);
+        try {
+            // Writes of compressed data must occur in order
+            frameEncoder.writeHeadersFrame(outputBuffer, streamId, !hasData,
+                    headersFrame.isExclusive(), headersFrame.getDependency(), headersFrame.getWeight(), headerBlock);
+        } finally {
+            headerBlock.release();
+        }
+        if (hasData) {
+            sendingStreams.add(stream);
+        } else {
+            stream.data = null;
+            sent.add(stream);
+        }
+    }
+
+    @Override
+    public void run() {
+        ByteBuf byteBuf = PooledBuffers.ALLOCATOR.heapBuffer();
+        try {
+            while (!isClosed()) {
+                int read;
+                try {
+                    read = byteBuf.writeBytes(inputStream, MAX_FRAME_SIZE);
+                } catch (SocketTimeoutException e) {
+                    if (getActiveStreams() == 0) {
+                        log.debug("close idle upstream connection: {}", key);
+                        break;
+                    }
+                    continue;
+                }
+                if (read == -1) {
+                    break;
+                }
+                frameDecoder.decodeFrames(byteBuf);
+                byteBuf.discardSomeReadBytes();
+            }
+        } catch (IOException e) {
+            log.debug("read upstream connection failed: {}", key, e);
+        } catch (Exception e) {
+            log.warn("read upstream connection failed: {}", key, e);
+        } finally {
+            byteBuf.release();
+            close();
+        }
+    }
+
+    private synchronized boolean isClosed() {
+        return closed;
+    }
+
+    public void close() {
+        List<UpstreamStream> list;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            list = new ArrayList<>(streams.values());
+            list.addAll(pendingStreams);
+            streams.clear();
+            pendingStreams.clear();
+            sendingStreams.clear();
+            IoUtil.close(socket);
+            outputBuffer.release();
+            notifyAll();
+        }
+        pool.remove(key, this);
+        headerDecoder.endHeaderBlock(null);
+        for (UpstreamStream stream : list) {
+            stream.listener.onReset(HttpErrorCode.REFUSED_STREAM.getCode());
+        }
+    }
+
+    private synchronized UpstreamStream getStream(int streamId) {
+        return streams.get(streamId);
+    }
+
+    /**
+     * The server ended or reset the stream, a request body still being sent is dropped.
+     */
+    private synchronized UpstreamStream removeStream(int streamId, boolean reset) {
+        UpstreamStream stream = streams.remove(streamId);
+        if (stream != null) {
+            if (stream.data != null) {
+                sendingStreams.remove(stream);
+                stream.data = null;
+                if (!reset && !closed) {
+                    // complete response before the complete request
+                    frameEncoder.writeRstStreamFrame(outputBuffer, streamId, HttpErrorCode.CANCEL.getCode());
+                }
+            }
+            notifyAll();
+        }
+        return stream;
+    }
+
+    /**
+     * The window is replenished as soon as the data was handed to the listener. Listeners must bound what they buffer
+     * and {@link #cancel} a stream past that, as {@link SharedHttpFrameForward} does per stream and per client connection.
+     */
+    private synchronized void consumed(UpstreamStream stream, int length) {
+        if (closed) {
+            return;
+        }
+        connectionUnackedBytes += length;
+        if (connectionUnackedBytes >= RECEIVE_WINDOW_SIZE / 2) {
+            frameEncoder.writeWindowUpdateFrame(outputBuffer, 0, connectionUnackedBytes);
+            connectionUnackedBytes = 0;
+        }
+        if (stream != null) {
+            stream.unackedBytes += length;
+            if (stream.unackedBytes >= RECEIVE_WINDOW_SIZE / 2) {
+                frameEncoder.writeWindowUpdateFrame(outputBuffer, stream.streamId, stream.unackedBytes);
+                stream.unackedBytes = 0;
+            }
+        }
+        notifyAll();
+    }
+
+    @Override
+    public void readDataFramePadding(int streamId, boolean endStream, int padding) {
+        consumed(getStream(streamId), padding);
+    }
+
+    @Override
+    public void readDataFrame(int streamId, boolean endStream, boolean endSegment, ByteBuf data) {
+        try {
+            UpstreamStream stream = endStream ? removeStream(streamId, false) : getStream(streamId);
+            int length = data.readableBytes();
+            if (stream != null) {
+                byte[] bytes = new byte[length];
+                data.readBytes(bytes);
+                stream.listener.onData(bytes, endStream);
+            }
+            consumed(endStream ? null : stream, length);
+        } finally {
+            data.release();
+        }
+    }
+
+    private HttpHeadersFrame httpHeadersFrame;
+    private int promisedStreamId;
+
+    @Override
+    public void readHeadersFrame(int streamId, boolean endStream, boolean endSegment, boolean exclusive, int dependency, int weight) {
+        httpHeadersFrame = new NetGuardHttpHeadersFrame(streamId);
+        httpHeadersFrame.setLast(endStream);
+        httpHeadersFrame.setExclusive(exclusive);
+        httpHeadersFrame.setDependency(dependency);
+        httpHeadersFrame.setWeight(weight);
+    }
+
+    @Override
+    public void readPushPromiseFrame(int streamId, int promisedStreamId) {
+        // push is disabled by our settings, the header block still has to be decoded to keep the HPACK state
+        this.httpHeadersFrame = new NetGuardHttpHeadersFrame(streamId);
+        this.promisedStreamId = promisedStreamId;
+    }
+
+    @Override
+    public void readHeaderBlock(ByteBuf headerBlockFragment) {
+        try {
+            headerDecoder.decode(headerBlockFragment, httpHeadersFrame);
+        } catch (IOException e) {
+            throw new IllegalStateException("readHeaderBlock frame=" + httpHeadersFrame, e);
+        } finally {
+            headerBlockFragment.release();
+        }
+    }
+
+    @Override
+    public void readHeaderBlockEnd() {
+        HttpHeadersFrame headersFrame = this.httpHeadersFrame;
+        this.httpHeadersFrame = null;
+        headerDecoder.endHeaderBlock(headersFrame);
+        if (promisedStreamId != 0) {
+            synchronized (this) {
+                if (!closed) {
+                    frameEncoder.writeRstStreamFrame(outputBuffer, promisedStreamId, HttpErrorCode.REFUSED_STREAM.getCode());
+                    notifyAll();
+                }
+            }
+            promisedStreamId = 0;
+            return;
+        }
+        int streamId = headersFrame.getStreamId();
+        UpstreamStream stream = headersFrame.isLast() ? removeStream(streamId, false) : getStream(streamId);
+        if (stream == null) {
+            log.debug("readHeaderBlockEnd not exists stream: {}", streamId);
+        } else if (headersFrame.isTruncated()) {
+            cancel(stream);
+            stream.listener.onReset(HttpErrorCode.INTERNAL_ERROR.getCode());
+        } else {
+            stream.listener.onHeaders(headersFrame);
+        }
+    }
+
+    @Override
+    public void readPriorityFrame(int streamId, boolean exclusive, int dependency, int weight) {
+    }
+
+    @Override
+    public void readRstStreamFrame(int streamId, int errorCode) {
+        log.debug("readRstStreamFrame streamId={}, errorCode={}", streamId, errorCode);
+        UpstreamStream stream = removeStream(streamId, true);
+        if (stream != null) {
+            stream.listener.onReset(errorCode);
+        }
+    }
+
+    private HttpSettingsFrame httpSettingsFrame;
+
+    @Override
+    public void readSettingsFrame(boolean ack) {
+        httpSettingsFrame = new NetGuardHttpSettingsFrame();
+        httpSettingsFrame.setAck(ack);
+    }
+
+    @Override
+    public void readSetting(int id, int value) {
+        httpSettingsFrame.setValue(id, value);
+    }
+
+    @Override
+    public synchronized void readSettingsEnd() {
+        HttpSettingsFrame settingsFrame = this.httpSettingsFrame;
+        this.httpSettingsFrame = null;
+        if (settingsFrame.isAck() || closed) {
+            return;
+        }
+        if (settingsFrame.isSet(HttpSettingsFrame.SETTINGS_MAX_CONCURRENT_STREAMS)) {
+            maxConcurrentStreams = settingsFrame.getValue(HttpSettingsFrame.SETTINGS_MAX_CONCURRENT_STREAMS);
+        }
+        if (settingsFrame.isSet(HttpSettingsFrame.SETTINGS_INITIAL_WINDOW_SIZE)) {
+            int initialWindowSize = settingsFrame.getValue(HttpSettingsFrame.SETTINGS_INITIAL_WINDOW_SIZE);
+            int delta = initialWindowSize - initialSendWindow;
+            initialSendWindow = initialWindowSize;
+            for (UpstreamStream stream : streams.values()) {
+                stream.sendWindow += delta;
+            }
+        }
+        if (settingsFrame.isSet(HttpSettingsFrame.SETTINGS_HEADER_TABLE_SIZE)) {
+            headerEncoder.setDecoderMaxHeaderTableSize(settingsFrame.getValue(HttpSettingsFrame.SETTINGS_HEADER_TABLE_SIZE));
+        }
+        HttpSettingsFrame ack = new NetGuardHttpSettingsFrame();
+        ack.setAck(true);
+        frameEncoder.writeSettingsFrame(outputBuffer, ack);
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void readPingFrame(long data, boolean ack) {
+        if (!ack && !closed) {
+            frameEncoder.writePingFrame(outputBuffer, data, true);
+            notifyAll();
+        }
+    }
+
+    @Override
+    public void readGoAwayFrame(int lastStreamId, int errorCode) {
+        log.debug("readGoAwayFrame key={}, lastStreamId={}, errorCode={}", key, lastStreamId, errorCode);
+        List<UpstreamStream> refused = new ArrayList<>();
+        boolean idle;
+        synchronized (this) {
+            goAway = true;
+            for (Iterator<UpstreamStream> iterator = streams.values().iterator(); iterator.hasNext(); ) {
+                UpstreamStream stream = iterator.next();
+                if (stream.streamId > lastStreamId) {
+                    refused.add(stream);
+                    iterator.remove();
+                    sendingStreams.remove(stream);
+                }
+            }
+            refused.addAll(pendingStreams);
+            pendingStreams.clear();
+            idle = streams.isEmpty();
+            notifyAll();
+        }
+        pool.remove(key, this);
+        for (UpstreamStream stream : refused) {
+            stream.listener.onReset(HttpErrorCode.REFUSED_STREAM.getCode());
+        }
+        if (idle) {
+            IoUtil.close(socket);
+        }
+    }
+
+    @Override
+    public synchronized void readWindowUpdateFrame(int streamId, int windowSizeIncrement) {
+        if (streamId == 0) {
+            connectionSendWindow += windowSizeIncrement;
+        } else {
+            UpstreamStream stream = streams.get(streamId);
+            if (stream != null) {
+                stream.sendWindow += windowSizeIncrement;
+            }
+        }
+        notifyAll();
+    }
+
+    @Override
+    public void readFrameError(String message) {
+        log.warn("readFrameError key={}: {}", key, message);
+        IoUtil.close(socket);
+    }
+
+    @Override
+    public String toString() {
+        return "Http2UpstreamConnection{" +
+                "key=" + key +
+                ", socket=" + socket +
+                '}';
+    }
+
+}
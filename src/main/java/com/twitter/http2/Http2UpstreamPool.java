@@ -0,0 +1,294 @@
+package com.twitter.http2;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.Socket;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of upstream HTTP/2 connections per authority, used when the client connections of
+ * {@link com.github.netguard.vpn.AllowRule#FILTER_H2} share their upstream connections.
+ * A new client connection reuses a pooled connection without a TLS handshake as long as one has stream capacity left,
+ * at most {@link #DEFAULT_MAX_CONNECTIONS_PER_AUTHORITY} connections are opened per authority.
+ */
+public class Http2UpstreamPool {
+
+    private static final Logger log = LoggerFactory.getLogger(Http2UpstreamPool.class);
+
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_AUTHORITY = 4;
+
+    private static final Http2UpstreamPool DEFAULT = new Http2UpstreamPool(DEFAULT_MAX_CONNECTIONS_PER_AUTHORITY);
+
+    public static Http2UpstreamPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * The upstream authority: the TLS server name, the connected address, the socket proxy and the client {@link SSLContext}.
+     */
+    public static final class Key {
+        private final String hostName;
+        private final InetSocketAddress address;
+        private final Proxy proxy;
+        private final SSLContext context;
+
+        public Key(String hostName, InetSocketAddress address, Proxy proxy, SSLContext context) {
+            this.hostName = hostName;
+            this.address = address;
+            this.proxy = proxy;
+            this.context = context;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return Objects.equals(hostName, key.hostName) &&
+                    Objects.equals(address, key.address) &&
+                    Objects.equals(proxy, key.proxy) &&
+                    context == key.context;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(hostName, address, proxy, System.identityHashCode(context));
+        }
+
+        @Override
+        public String toString() {
+            return hostName + "@" + address;
+        }
+    }
+
+    private static class Authority {
+        final List<Http2UpstreamConnection> connections = new ArrayList<>();
+        /**
+         * connections being opened by callers of {@link #lookup}
+         */
+        int pending;
+        /**
+         * no longer in the map, callers that locked it meanwhile look the authority up again
+         */
+        boolean removed;
+    }
+
+    private final int maxConnectionsPerAuthority;
+    /**
+     * an entry is removed once it has neither connections nor pending reservations
+     */
+    private final Map<Key, Authority> authorities = new ConcurrentHashMap<>();
+
+    private final AtomicLong connectionsOpened = new AtomicLong();
+    private final AtomicLong handshakesSaved = new AtomicLong();
+    private final AtomicLong streamsSubmitted = new AtomicLong();
+
+    public Http2UpstreamPool(int maxConnectionsPerAuthority) {
+        if (maxConnectionsPerAuthority < 1) {
+            throw new IllegalArgumentException("maxConnectionsPerAuthority=" + maxConnectionsPerAuthority);
+        }
+        this.maxConnectionsPerAuthority = maxConnectionsPerAuthority;
+    }
+
+    /**
+     * Returns a pooled connection that can take the streams of a new client connection. While another caller is
+     * opening a connection to the same authority and the pool is full, waits up to <code>timeout</code> for it.
+     *
+     * @return <code>null</code> if the caller should open a new upstream connection, it must then either
+     * {@link #register} the connection or {@link #release} the reservation
+     */
+    public Http2UpstreamConnection lookup(Key key, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (true) {
+            Authority authority = authorities.computeIfAbsent(key, k -> new Authority());
+            synchronized (authority) {
+                while (!authority.removed) {
+                    Http2UpstreamConnection best = null;
+                    Http2UpstreamConnection leastLoaded = null;
+                    int usable = 0;
+                    for (Http2UpstreamConnection connection : authority.connections) {
+                        if (!connection.isUsable()) {
+                            continue;
+                        }
+                        usable++;
+                        int activeStreams = connection.getActiveStreams();
+                        if (leastLoaded == null || activeStreams < leastLoaded.getActiveStreams()) {
+                            leastLoaded = connection;
+                        }
+                        if (connection.hasCapacity() && (best == null || activeStreams < best.getActiveStreams())) {
+                            best = connection;
+                        }
+                    }
+                    if (best != null) {
+                        handshakesSaved.incrementAndGet();
+                        return best;
+                    }
+                    if (usable + authority.pending < maxConnectionsPerAuthority) {
+                        authority.pending++;
+                        return null;
+                    }
+                    long wait = deadline - System.currentTimeMillis();
+                    if (authority.pending == 0 || wait <= 0) {
+                        if (leastLoaded != null) {
+                            // every connection is busy but the pool is full, queue on the least loaded one
+                            handshakesSaved.incrementAndGet();
+                            return leastLoaded;
+                        }
+                        authority.pending++;
+                        return null;
+                    }
+                    authority.wait(wait);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return a usable connection for requests of a client whose connection went away, never reserves a new one
+     */
+    Http2UpstreamConnection select(Key key) {
+        Authority authority = authorities.get(key);
+        if (authority == null) {
+            return null;
+        }
+        synchronized (authority) {
+            Http2UpstreamConnection best = null;
+            for (Http2UpstreamConnection connection : authority.connections) {
+                if (connection.isUsable() && (best == null || connection.getActiveStreams() < best.getActiveStreams())) {
+                    best = connection;
+                }
+            }
+            return best;
+        }
+    }
+
+    /**
+     * Takes over a TLS socket that negotiated <code>h2</code> after {@link #lookup} returned <code>null</code>,
+     * the socket is closed together with the connection.
+     */
+    public Http2UpstreamConnection register(Key key, Socket socket, X509Certificate peerCertificate) throws IOException {
+        Http2UpstreamConnection connection = new Http2UpstreamConnection(this, key, socket, peerCertificate);
+        while (true) {
+            Authority authority = authorities.computeIfAbsent(key, k -> new Authority());
+            synchronized (authority) {
+                if (authority.removed) {
+                    continue;
+                }
+                if (authority.pending > 0) {
+                    authority.pending--;
+                }
+                authority.connections.add(connection);
+                authority.notifyAll();
+                break;
+            }
+        }
+        connectionsOpened.incrementAndGet();
+        try {
+            connection.start();
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+        log.debug("register upstream connection: {}", connection);
+        return connection;
+    }
+
+    /**
+     * Gives up the reservation of {@link #lookup} when the new connection failed or did not negotiate <code>h2</code>.
+     */
+    public void release(Key key) {
+        Authority authority = authorities.get(key);
+        if (authority != null) {
+            synchronized (authority) {
+                if (authority.pending > 0) {
+                    authority.pending--;
+                }
+                removeIfUnused(key, authority);
+                authority.notifyAll();
+            }
+        }
+    }
+
+    void remove(Key key, Http2UpstreamConnection connection) {
+        Authority authority = authorities.get(key);
+        if (authority != null) {
+            synchronized (authority) {
+                authority.connections.remove(connection);
+                removeIfUnused(key, authority);
+                authority.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * must hold the authority
+     */
+    private void removeIfUnused(Key key, Authority authority) {
+        if (authority.connections.isEmpty() && authority.pending == 0 && authorities.remove(key, authority)) {
+            authority.removed = true;
+        }
+    }
+
+    /**
+     * @return authorities with connections or pending reservations
+     */
+    int getAuthorities() {
+        return authorities.size();
+    }
+
+    void onStreamSubmitted() {
+        streamsSubmitted.incrementAndGet();
+    }
+
+    /**
+     * @return upstream connections opened so far
+     */
+    public long getConnectionsOpened() {
+        return connectionsOpened.get();
+    }
+
+    /**
+     * @return client connections that were served by an already pooled connection
+     */
+    public long getHandshakesSaved() {
+        return handshakesSaved.get();
+    }
+
+    public long getStreamsSubmitted() {
+        return streamsSubmitted.get();
+    }
+
+    public void closeAll() {
+        List<Http2UpstreamConnection> list = new ArrayList<>();
+        for (Authority authority : authorities.values()) {
+            synchronized (authority) {
+                list.addAll(authority.connections);
+            }
+        }
+        for (Http2UpstreamConnection connection : list) {
+            connection.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Http2UpstreamPool{" +
+                "authorities=" + authorities.size() +
+                ", connectionsOpened=" + connectionsOpened +
+                ", handshakesSaved=" + handshakesSaved +
+                ", streamsSubmitted=" + streamsSubmitted +
+                '}';
+    }
+
+}
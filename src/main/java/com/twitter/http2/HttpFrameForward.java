@@ -1,7 +1,6 @@
 package com.twitter.http2;
 
 import cn.hutool.core.io.FileUtil;
-import cn.hutool.core.io.IoUtil;
 import cn.hutool.core.util.HexUtil;
 import cn.hutool.crypto.digest.DigestUtil;
 import com.github.netguard.vpn.InspectorVpn;
@@ -12,11 +11,12 @@ import com.github.netguard.vpn.tcp.h2.Http2Session;
 import com.github.netguard.vpn.tcp.h2.Http2SessionKey;
 import com.github.netguard.vpn.tcp.h2.HttpHeaderBlockDecoder;
 import com.github.netguard.vpn.tcp.h2.HttpHeaderBlockEncoder;
+import com.github.netguard.vpn.tcp.h2.PooledBuffers;
 import edu.baylor.cs.csi5321.spdy.frames.H2FrameRstStream;
 import edu.baylor.cs.csi5321.spdy.frames.H2Util;
 import eu.faircode.netguard.Packet;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.handler.codec.http.DefaultHttpHeadersFactory;
 import io.netty.handler.codec.http.DefaultHttpRequest;
 import io.netty.handler.codec.http.DefaultHttpResponse;
@@ -31,8 +31,6 @@ import io.netty.handler.codec.http.HttpVersion;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.File;
@@ -49,6 +47,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
 
@@ -57,7 +56,7 @@ public class HttpFrameForward extends StreamForward implements HttpFrameDecoderD
     private static final Logger log = LoggerFactory.getLogger(HttpFrameForward.class);
 
     private final NetGuardFrameDecoder frameDecoder;
-    private final HttpFrameEncoder frameEncoder;
+    private final NetGuardFrameEncoder frameEncoder;
 
     private final HttpHeaderBlockDecoder headerDecoder;
     private final HttpHeaderBlockEncoder headerEncoder;
@@ -70,7 +69,7 @@ public class HttpFrameForward extends StreamForward implements HttpFrameDecoderD
                             Http2Session session, Packet packet) {
         super(inputStream, outputStream, server, clientSocketAddress, serverSocketAddress, countDownLatch, socket, vpn, hostName, true, packet);
         this.frameDecoder = new NetGuardFrameDecoder(server, this);
-        this.frameEncoder = new HttpFrameEncoder();
+        this.frameEncoder = new NetGuardFrameEncoder();
 
         headerDecoder = new HttpHeaderBlockDecoder(0x4000, 0x10000);
         headerEncoder = new HttpHeaderBlockEncoder(0x100);
@@ -93,7 +92,7 @@ public class HttpFrameForward extends StreamForward implements HttpFrameDecoderD
     @Override
     protected boolean forward(byte[] buf) throws IOException {
         DataInputStream dataInput;
-        ByteBuf byteBuf = Unpooled.buffer();
+        ByteBuf byteBuf = PooledBuffers.ALLOCATOR.heapBuffer();
         try {
             dataInput = new DataInputStream(inputStream);
             if (server) {
@@ -120,12 +119,12 @@ public class HttpFrameForward extends StreamForward implements HttpFrameDecoderD
                     int streamId = stream & H2Util.MASK_STREAM_ID_HEADER;
                     log.debug("read frame length server={}, length={}, flags=0x{}, streamId={}", server, length, Integer.toHexString(flags & 0xff), streamId);
                 }
+                byteBuf.ensureWritable(length);
                 while (length > 0) {
-                    int read = dataInput.read(buf, 0, Math.min(length, buf.length));
+                    int read = byteBuf.writeBytes(dataInput, length);
                     if (read == -1) {
                         throw new EOFException();
                     }
-                    byteBuf.writeBytes(buf, 0, read);
                     length -= read;
                 }
                 byte[] input = null;
@@ -138,12 +137,16 @@ public class HttpFrameForward extends StreamForward implements HttpFrameDecoderD
                 while (byteBuf.isReadable()) {
                     frameDecoder.decode(byteBuf);
                 }
+                byteBuf.discardSomeReadBytes();
                 if (dataInput.available() > 0) {
                     continue;
                 }
 
-                byte[] output = outputBuffer.toByteArray();
-                outputBuffer.reset();
+                Integer cancelStreamId;
+                while ((cancelStreamId = cancelStreamQueue.poll()) != null) {
+                    readRstStreamFrame(cancelStreamId, H2FrameRstStream.ErrorCode.CANCEL.ordinal());
+                }
+                byte[] output = input != null || log.isTraceEnabled() || packetCapture != null ? ByteBufUtil.getBytes(outputBuffer) : null;
                 if (input != null) {
                     log.debug("forward server={}, inHash={}, outHash={}, input={}, output={}", server, DigestUtil.md5Hex(input), DigestUtil.md5Hex(output), HexUtil.encodeHexStr(input), HexUtil.encodeHexStr(output));
                 }
@@ -165,8 +168,9 @@ public class HttpFrameForward extends StreamForward implements HttpFrameDecoderD
                         FileUtil.appendUtf8Lines(Collections.singletonList(date + HexUtil.encodeHexStr(output)), forward);
                     }
                 }
-                if (output.length > 0) {
-                    outputStream.write(output);
+                if (outputBuffer.isReadable()) {
+                    outputBuffer.readBytes(outputStream, outputBuffer.readableBytes());
+                    outputBuffer.clear();
                     outputStream.flush();
 
                     if (packetCapture != null) {
@@ -274,13 +278,17 @@ public class HttpFrameForward extends StreamForward implements HttpFrameDecoderD
 
     private static final int DEFAULT_CHUNK_SIZE = 0x1000;
 
-    private void writeMessage(HttpHeadersFrame headersFrame, byte[] data, boolean endStreamOnFlush, ByteArrayOutputStream outputBuffer) {
+    private void writeMessage(HttpHeadersFrame headersFrame, byte[] data, boolean endStreamOnFlush, ByteBuf outputBuffer) {
         log.debug("writeMessage settingsReady={}, headersFrame={}, endStreamOnFlush={}", settingsReady, headersFrame, endStreamOnFlush);
-        ByteBuf byteBuf = data == null || data.length == 0 ? Unpooled.EMPTY_BUFFER : Unpooled.wrappedBuffer(data);
+        if (data != null) {
+            // 过滤器替换了消息体，例如由缓存补全的 304：END_STREAM 改由 DATA 帧携带
+            headersFrame.setLast(false);
+        }
         try {
-            {
-                ByteBuf headerBlock = headerEncoder.encode(headersFrame);
-                ByteBuf frame = frameEncoder.encodeHeadersFrame(
+            ByteBuf headerBlock = headerEncoder.encode(headersFrame);
+            try {
+                // Writes of compressed data must occur in order
+                frameEncoder.writeHeadersFrame(outputBuffer,
                         headersFrame.getStreamId(),
                         headersFrame.isLast(),
                         headersFrame.isExclusive(),
@@ -288,35 +296,34 @@ public class HttpFrameForward extends StreamForward implements HttpFrameDecoderD
                         headersFrame.getWeight(),
                         headerBlock
                 );
-                try {
-                    // Writes of compressed data must occur in order
-                    forwardFrameBuf(frame, outputBuffer);
-                } finally {
-                    frame.release();
-                }
+            } finally {
+                headerBlock.release();
             }
 
-            if (byteBuf.isReadable()) {
-                while (byteBuf.isReadable()) {
-                    ByteBuf partialDataFrame = byteBuf.readSlice(Math.min(byteBuf.readableBytes(), DEFAULT_CHUNK_SIZE));
-                    log.debug("writeMessage server={}, partialDataFrame={}, byteBuf={}", server, partialDataFrame, byteBuf);
-                    boolean endStream = !byteBuf.isReadable() && endStreamOnFlush;
-                    ByteBuf frame = frameEncoder.encodeDataFrame(headersFrame.getStreamId(), endStream, partialDataFrame);
-                    forwardFrameBuf(frame, outputBuffer);
+            if (data != null && data.length > 0) {
+                int offset = 0;
+                while (offset < data.length) {
+                    int length = Math.min(data.length - offset, DEFAULT_CHUNK_SIZE);
+                    log.debug("writeMessage server={}, offset={}, length={}, total={}", server, offset, length, data.length);
+                    offset += length;
+                    boolean endStream = offset == data.length && endStreamOnFlush;
+                    frameEncoder.writeDataFrame(outputBuffer, headersFrame.getStreamId(), endStream, data, offset - length, length);
                 }
             } else if (data != null) {
-                ByteBuf frame = frameEncoder.encodeDataFrame(headersFrame.getStreamId(), endStreamOnFlush, byteBuf);
-                forwardFrameBuf(frame, outputBuffer);
+                frameEncoder.writeDataFrame(outputBuffer, headersFrame.getStreamId(), endStreamOnFlush, data, 0, 0);
             }
         } catch (IOException e) {
             log.warn("writeMessage server={}", server, e);
-        } finally {
-            byteBuf.release();
         }
     }
 
+    /**
+     * 由对端线程调用，RST_STREAM 在本线程下一次写出时发送，避免跨线程写 outputBuffer
+     */
+    private final Queue<Integer> cancelStreamQueue = new ConcurrentLinkedQueue<>();
+
     private void writeCancelStreamFrame(int streamId) {
-        readRstStreamFrame(streamId, H2FrameRstStream.ErrorCode.CANCEL.ordinal());
+        cancelStreamQueue.offer(streamId);
     }
 
     private void handlePollingRequest(HttpHeadersFrame headersFrame, byte[] requestData, boolean endStreamOnFlush, boolean newStream, int streamId) {
@@ -336,13 +343,7 @@ public class HttpFrameForward extends StreamForward implements HttpFrameDecoderD
         if (newStream) {
             writeMessage(headersFrame, data, endStreamOnFlush, outputBuffer);
         } else {
-            ByteBuf byteBuf = Unpooled.wrappedBuffer(data);
-            ByteBuf frame = frameEncoder.encodeDataFrame(headersFrame.getStreamId(), endStreamOnFlush, byteBuf);
-            try {
-                forwardFrameBuf(frame, outputBuffer);
-            } finally {
-                frame.release();
-            }
+            frameEncoder.writeDataFrame(outputBuffer, headersFrame.getStreamId(), endStreamOnFlush, data, 0, data.length);
         }
     }
 
@@ -350,13 +351,7 @@ public class HttpFrameForward extends StreamForward implements HttpFrameDecoderD
         byte[] data = filter == null ? responseData : filter.filterPollingResponse(new Http2SessionKey(session, headersFrame.getStreamId(), false),
                 createHttpResponse(headersFrame, sessionKey, akamai),
                 responseData, endStreamOnFlush);
-        ByteBuf byteBuf = Unpooled.wrappedBuffer(data);
-        ByteBuf frame = frameEncoder.encodeDataFrame(headersFrame.getStreamId(), endStreamOnFlush, byteBuf);
-        try {
-            forwardFrameBuf(frame, outputBuffer);
-        } finally {
-            frame.release();
-        }
+        frameEncoder.writeDataFrame(outputBuffer, headersFrame.getStreamId(), endStreamOnFlush, data, 0, data.length);
     }
 
     private final Queue<byte[]> delayResponseQueue = new LinkedBlockingQueue<>();
@@ -370,25 +365,22 @@ public class HttpFrameForward extends StreamForward implements HttpFrameDecoderD
                     peer.writeCancelStreamFrame(streamId);
                 } else {
                     byte[] responseData = result.responseData;
-                    HttpResponse response = result.response;
-                    HttpHeadersFrame fakeHeadersFrame = new NetGuardHttpHeadersFrame(streamId);
-                    fakeHeadersFrame.setLast(responseData != null && responseData.length == 0);
-                    HttpHeaders headers = fakeHeadersFrame.headers();
-                    headers.setInt(":status", response.status().code());
-                    HttpHeaders fakeHeaders = response.headers();
-                    for (Iterator<Map.Entry<String, String>> iterator = fakeHeaders.iteratorAsString(); iterator.hasNext(); ) {
-                        Map.Entry<String, String> entry = iterator.next();
-                        headers.add(entry.getKey(), entry.getValue());
-                    }
-                    headers.set("X-Netguard-Fake-Response", sessionKey);
+                    HttpHeadersFrame fakeHeadersFrame = createFakeHeadersFrame(streamId, result, sessionKey);
                     filter.filterRequest(new Http2SessionKey(session, headersFrame.getStreamId(), false), request,
                             headersFrame.headers(), requestData == null ? new byte[0] : requestData);
-                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                    peer.handleResponse(fakeHeadersFrame, responseData, baos);
-                    if (settingsReady) {
-                        IoUtil.copy(new ByteArrayInputStream(baos.toByteArray()), peer.outputStream);
-                    } else {
-                        peer.delayResponseQueue.offer(baos.toByteArray());
+                    ByteBuf fakeBuffer = PooledBuffers.ALLOCATOR.heapBuffer();
+                    try {
+                        peer.handleResponse(fakeHeadersFrame, responseData, fakeBuffer);
+                        if (settingsReady) {
+                            fakeBuffer.readBytes(peer.outputStream, fakeBuffer.readableBytes());
+                            peer.outputStream.flush();
+                        } else {
+                            peer.delayResponseQueue.offer(ByteBufUtil.getBytes(fakeBuffer));
+                        }
+                    } catch (IOException e) {
+                        log.warn("write fake response server={}", server, e);
+                    } finally {
+                        fakeBuffer.release();
                     }
                 }
                 return;
@@ -402,7 +394,7 @@ public class HttpFrameForward extends StreamForward implements HttpFrameDecoderD
         writeMessage(headersFrame, requestData == null && data.length == 0 ? null : data, true, outputBuffer);
     }
 
-    private void handleResponse(HttpHeadersFrame headersFrame, byte[] responseData, ByteArrayOutputStream outputBuffer) {
+    private void handleResponse(HttpHeadersFrame headersFrame, byte[] responseData, ByteBuf outputBuffer) {
         byte[] data = filter == null ? responseData : filter.filterResponse(new Http2SessionKey(session, headersFrame.getStreamId(), false),
                 createHttpResponse(headersFrame, sessionKey, akamai),
                 headersFrame.headers(), responseData == null ? new byte[0] : responseData);
@@ -473,24 +465,17 @@ public class HttpFrameForward extends StreamForward implements HttpFrameDecoderD
             akamai.onPriorityFrame(streamId, exclusive, dependency, weight);
         }
 
-        ByteBuf frame = frameEncoder.encodePriorityFrame(streamId, exclusive, dependency, weight);
-        try {
-            forwardFrameBuf(frame, outputBuffer);
-        } finally {
-            frame.release();
-        }
+        frameEncoder.writePriorityFrame(outputBuffer, streamId, exclusive, dependency, weight);
     }
 
     @Override
     public void readRstStreamFrame(int streamId, int errorCode) {
         log.debug("readRstStreamFrame server={}, streamId={}, errorCode={}", server, streamId, errorCode);
-        ByteBuf frame = frameEncoder.encodeRstStreamFrame(streamId, errorCode);
-        try {
-            forwardFrameBuf(frame, outputBuffer);
-        } finally {
-            frame.release();
-        }
+        frameEncoder.writeRstStreamFrame(outputBuffer, streamId, errorCode);
         streamMap.remove(streamId);
+        if (filter != null) {
+            filter.onStreamClosed(new Http2SessionKey(session, streamId, false));
+        }
     }
 
     private HttpSettingsFrame httpSettingsFrame;
@@ -527,23 +512,19 @@ public class HttpFrameForward extends StreamForward implements HttpFrameDecoderD
         }
 
         peer.onPeerSettingsEnd(httpSettingsFrame);
-        ByteBuf frame = frameEncoder.encodeSettingsFrame(httpSettingsFrame);
-        try {
-            forwardFrameBuf(frame, outputBuffer);
-        } finally {
-            frame.release();
-        }
+        frameEncoder.writeSettingsFrame(outputBuffer, httpSettingsFrame);
         httpSettingsFrame = null;
     }
 
-    private final ByteArrayOutputStream outputBuffer = new ByteArrayOutputStream();
+    private final ByteBuf outputBuffer = PooledBuffers.ALLOCATOR.heapBuffer();
 
-    private void forwardFrameBuf(ByteBuf byteBuf, ByteArrayOutputStream outputBuffer) {
+    @Override
+    public void run() {
         try {
-            log.debug("forwardFrameBuf server={}, byteBuf={}", server, byteBuf);
-            byteBuf.readBytes(outputBuffer, byteBuf.readableBytes());
-        } catch (IOException e) {
-            throw new IllegalStateException("forwardFrameBuf", e);
+            super.run();
+        } finally {
+            headerDecoder.endHeaderBlock(null);
+            outputBuffer.release();
         }
     }
 
@@ -556,23 +537,13 @@ public class HttpFrameForward extends StreamForward implements HttpFrameDecoderD
     @Override
     public void readPingFrame(long data, boolean ack) {
         log.debug("readPingFrame server={}, data={}, ack={}", server, data, ack);
-        ByteBuf frame = frameEncoder.encodePingFrame(data, ack);
-        try {
-            forwardFrameBuf(frame, outputBuffer);
-        } finally {
-            frame.release();
-        }
+        frameEncoder.writePingFrame(outputBuffer, data, ack);
     }
 
     @Override
     public void readGoAwayFrame(int lastStreamId, int errorCode) {
         log.debug("readGoAwayFrame server={}, lastStreamId={}, errorCode={}", server, lastStreamId, errorCode);
-        ByteBuf frame = frameEncoder.encodeGoAwayFrame(lastStreamId, errorCode);
-        try {
-            forwardFrameBuf(frame, outputBuffer);
-        } finally {
-            frame.release();
-        }
+        frameEncoder.writeGoAwayFrame(outputBuffer, lastStreamId, errorCode);
     }
 
     @Override
@@ -585,12 +556,7 @@ public class HttpFrameForward extends StreamForward implements HttpFrameDecoderD
             }
         }
 
-        ByteBuf frame = frameEncoder.encodeWindowUpdateFrame(streamId, windowSizeIncrement);
-        try {
-            forwardFrameBuf(frame, outputBuffer);
-        } finally {
-            frame.release();
-        }
+        frameEncoder.writeWindowUpdateFrame(outputBuffer, streamId, windowSizeIncrement);
     }
 
     @Override
@@ -609,7 +575,23 @@ public class HttpFrameForward extends StreamForward implements HttpFrameDecoderD
         }
     }
 
-    private static HttpRequest createHttpRequest(HttpHeadersFrame headersFrame, String sessionKey, Akamai akamai) {
+    static HttpHeadersFrame createFakeHeadersFrame(int streamId, CancelResult result, String sessionKey) {
+        byte[] responseData = result.responseData;
+        HttpResponse response = result.response;
+        HttpHeadersFrame fakeHeadersFrame = new NetGuardHttpHeadersFrame(streamId);
+        fakeHeadersFrame.setLast(responseData != null && responseData.length == 0);
+        HttpHeaders headers = fakeHeadersFrame.headers();
+        headers.setInt(":status", response.status().code());
+        HttpHeaders fakeHeaders = response.headers();
+        for (Iterator<Map.Entry<String, String>> iterator = fakeHeaders.iteratorAsString(); iterator.hasNext(); ) {
+            Map.Entry<String, String> entry = iterator.next();
+            headers.add(entry.getKey(), entry.getValue());
+        }
+        headers.set("X-Netguard-Fake-Response", sessionKey);
+        return fakeHeadersFrame;
+    }
+
+    static HttpRequest createHttpRequest(HttpHeadersFrame headersFrame, String sessionKey, Akamai akamai) {
         HttpHeaders headers = headersFrame.headers().copy();
         HttpMethod method = HttpMethod.valueOf(headers.get(":method"));
         String uri = headers.get(":path");
@@ -643,7 +625,7 @@ public class HttpFrameForward extends StreamForward implements HttpFrameDecoderD
         }
     }
 
-    private static HttpResponse createHttpResponse(HttpHeadersFrame headersFrame, String sessionKey, Akamai akamai) {
+    static HttpResponse createHttpResponse(HttpHeadersFrame headersFrame, String sessionKey, Akamai akamai) {
         HttpHeaders headers = headersFrame.headers().copy();
         // Create the first line of the request from the name/value pairs
         HttpResponseStatus status = HttpResponseStatus.valueOf(headers.getInt(":status"));
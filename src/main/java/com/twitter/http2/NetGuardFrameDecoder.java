@@ -45,6 +45,8 @@ import static com.twitter.http2.HttpCodecUtil.getUnsignedShort;
 
 /**
  * Decodes {@link ByteBuf}s into HTTP/2 Frames.
+ * DATA payloads and header block fragments are passed to the delegate as retained slices of the input buffer,
+ * the delegate must release them before the input buffer is compacted.
  */
 public class NetGuardFrameDecoder {
 
@@ -116,6 +118,38 @@ public class NetGuardFrameDecoder {
         }
     }
 
+    /**
+     * Decode the complete frames at the start of the byte buffer, a trailing partial frame is left unread.
+     * Used by callers that read the connection in arbitrary chunks instead of frame by frame.
+     */
+    public void decodeFrames(ByteBuf buffer) {
+        int end = buffer.readerIndex();
+        int writerIndex = buffer.writerIndex();
+        if (state == State.READ_CONNECTION_HEADER) {
+            int remaining = CLIENT_CONNECTION_PREFACE.length - length;
+            if (writerIndex - end < remaining) {
+                decode(buffer);
+                return;
+            }
+            end += remaining;
+        }
+        while (writerIndex - end >= HTTP_FRAME_HEADER_SIZE) {
+            int frameLength = getUnsignedMedium(buffer, end);
+            if (frameLength > HTTP_MAX_LENGTH) {
+                // let decode report the error
+                end += HTTP_FRAME_HEADER_SIZE;
+                break;
+            }
+            if (writerIndex - end < HTTP_FRAME_HEADER_SIZE + frameLength) {
+                break;
+            }
+            end += HTTP_FRAME_HEADER_SIZE + frameLength;
+        }
+        if (end > buffer.readerIndex()) {
+            decode(buffer.readSlice(end - buffer.readerIndex()));
+        }
+    }
+
     /**
      * Decode the byte buffer.
      */
@@ -211,7 +245,7 @@ public class NetGuardFrameDecoder {
                         return;
                     }
 
-                    ByteBuf data = buffer.readBytes(dataLength);
+                    ByteBuf data = buffer.readRetainedSlice(dataLength);
                     length -= dataLength;
 
                     if (length == paddingLength) {
@@ -422,7 +456,7 @@ public class NetGuardFrameDecoder {
                     }
 
                     int readableBytes = Math.min(buffer.readableBytes(), length - paddingLength);
-                    ByteBuf headerBlockFragment = buffer.readBytes(readableBytes);
+                    ByteBuf headerBlockFragment = buffer.readRetainedSlice(readableBytes);
                     length -= readableBytes;
 
                     delegate.readHeaderBlock(headerBlockFragment);
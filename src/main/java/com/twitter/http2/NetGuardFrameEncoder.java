@@ -0,0 +1,188 @@
+/*
+ * Copyright 2015 Twitter, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twitter.http2;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.Set;
+
+import static com.twitter.http2.HttpCodecUtil.HTTP_CONTINUATION_FRAME;
+import static com.twitter.http2.HttpCodecUtil.HTTP_DATA_FRAME;
+import static com.twitter.http2.HttpCodecUtil.HTTP_DEFAULT_DEPENDENCY;
+import static com.twitter.http2.HttpCodecUtil.HTTP_DEFAULT_WEIGHT;
+import static com.twitter.http2.HttpCodecUtil.HTTP_FLAG_ACK;
+import static com.twitter.http2.HttpCodecUtil.HTTP_FLAG_END_HEADERS;
+import static com.twitter.http2.HttpCodecUtil.HTTP_FLAG_END_STREAM;
+import static com.twitter.http2.HttpCodecUtil.HTTP_FLAG_PRIORITY;
+import static com.twitter.http2.HttpCodecUtil.HTTP_FRAME_HEADER_SIZE;
+import static com.twitter.http2.HttpCodecUtil.HTTP_GOAWAY_FRAME;
+import static com.twitter.http2.HttpCodecUtil.HTTP_HEADERS_FRAME;
+import static com.twitter.http2.HttpCodecUtil.HTTP_MAX_LENGTH;
+import static com.twitter.http2.HttpCodecUtil.HTTP_PING_FRAME;
+import static com.twitter.http2.HttpCodecUtil.HTTP_PRIORITY_FRAME;
+import static com.twitter.http2.HttpCodecUtil.HTTP_RST_STREAM_FRAME;
+import static com.twitter.http2.HttpCodecUtil.HTTP_SETTINGS_FRAME;
+import static com.twitter.http2.HttpCodecUtil.HTTP_WINDOW_UPDATE_FRAME;
+
+/**
+ * Encodes HTTP/2 Frames directly into a caller supplied {@link ByteBuf}.
+ * Unlike {@link HttpFrameEncoder} no intermediate buffers are allocated per frame.
+ */
+public class NetGuardFrameEncoder {
+
+    /**
+     * Writes a DATA frame.
+     */
+    public void writeDataFrame(ByteBuf out, int streamId, boolean last, ByteBuf data) {
+        byte flags = last ? HTTP_FLAG_END_STREAM : 0;
+        int length = data.readableBytes();
+        out.ensureWritable(HTTP_FRAME_HEADER_SIZE + length);
+        writeFrameHeader(out, length, HTTP_DATA_FRAME, flags, streamId);
+        out.writeBytes(data, data.readerIndex(), length);
+    }
+
+    /**
+     * Writes a DATA frame from a byte array range.
+     */
+    public void writeDataFrame(ByteBuf out, int streamId, boolean last, byte[] data, int offset, int length) {
+        byte flags = last ? HTTP_FLAG_END_STREAM : 0;
+        out.ensureWritable(HTTP_FRAME_HEADER_SIZE + length);
+        writeFrameHeader(out, length, HTTP_DATA_FRAME, flags, streamId);
+        out.writeBytes(data, offset, length);
+    }
+
+    /**
+     * Writes a HEADERS frame followed by as many CONTINUATION frames as needed.
+     * The header block is consumed.
+     */
+    public void writeHeadersFrame(ByteBuf out, int streamId, boolean last, boolean exclusive,
+                                  int dependency, int weight, ByteBuf headerBlock) {
+        byte flags = last ? HTTP_FLAG_END_STREAM : 0;
+        boolean hasPriority = exclusive
+                || dependency != HTTP_DEFAULT_DEPENDENCY || weight != HTTP_DEFAULT_WEIGHT;
+        if (hasPriority) {
+            flags |= HTTP_FLAG_PRIORITY;
+        }
+        int maxLength = hasPriority ? HTTP_MAX_LENGTH - 5 : HTTP_MAX_LENGTH;
+        boolean needsContinuations = headerBlock.readableBytes() > maxLength;
+        if (!needsContinuations) {
+            flags |= HTTP_FLAG_END_HEADERS;
+        }
+        int fragmentLength = needsContinuations ? maxLength : headerBlock.readableBytes();
+        int length = hasPriority ? fragmentLength + 5 : fragmentLength;
+        out.ensureWritable(HTTP_FRAME_HEADER_SIZE + headerBlock.readableBytes() + 5 +
+                (headerBlock.readableBytes() / HTTP_MAX_LENGTH + 1) * HTTP_FRAME_HEADER_SIZE);
+        writeFrameHeader(out, length, HTTP_HEADERS_FRAME, flags, streamId);
+        if (hasPriority) {
+            if (exclusive) {
+                out.writeInt(dependency | 0x80000000);
+            } else {
+                out.writeInt(dependency);
+            }
+            out.writeByte(weight - 1);
+        }
+        out.writeBytes(headerBlock, fragmentLength);
+
+        if (needsContinuations) {
+            while (headerBlock.readableBytes() > HTTP_MAX_LENGTH) {
+                writeFrameHeader(out, HTTP_MAX_LENGTH, HTTP_CONTINUATION_FRAME, (byte) 0, streamId);
+                out.writeBytes(headerBlock, HTTP_MAX_LENGTH);
+            }
+            int remaining = headerBlock.readableBytes();
+            writeFrameHeader(out, remaining, HTTP_CONTINUATION_FRAME, HTTP_FLAG_END_HEADERS, streamId);
+            out.writeBytes(headerBlock, remaining);
+        }
+    }
+
+    /**
+     * Writes a PRIORITY frame.
+     */
+    public void writePriorityFrame(ByteBuf out, int streamId, boolean exclusive, int dependency, int weight) {
+        int length = 5;
+        out.ensureWritable(HTTP_FRAME_HEADER_SIZE + length);
+        writeFrameHeader(out, length, HTTP_PRIORITY_FRAME, (byte) 0, streamId);
+        if (exclusive) {
+            out.writeInt(dependency | 0x80000000);
+        } else {
+            out.writeInt(dependency);
+        }
+        out.writeByte(weight - 1);
+    }
+
+    /**
+     * Writes a RST_STREAM frame.
+     */
+    public void writeRstStreamFrame(ByteBuf out, int streamId, int errorCode) {
+        int length = 4;
+        out.ensureWritable(HTTP_FRAME_HEADER_SIZE + length);
+        writeFrameHeader(out, length, HTTP_RST_STREAM_FRAME, (byte) 0, streamId);
+        out.writeInt(errorCode);
+    }
+
+    /**
+     * Writes a SETTINGS frame.
+     */
+    public void writeSettingsFrame(ByteBuf out, HttpSettingsFrame httpSettingsFrame) {
+        Set<Integer> ids = httpSettingsFrame.getIds();
+        int length = ids.size() * 6;
+        byte flags = httpSettingsFrame.isAck() ? HTTP_FLAG_ACK : 0;
+        out.ensureWritable(HTTP_FRAME_HEADER_SIZE + length);
+        writeFrameHeader(out, length, HTTP_SETTINGS_FRAME, flags, 0);
+        for (int id : ids) {
+            out.writeShort(id);
+            out.writeInt(httpSettingsFrame.getValue(id));
+        }
+    }
+
+    /**
+     * Writes a PING frame.
+     */
+    public void writePingFrame(ByteBuf out, long data, boolean ack) {
+        int length = 8;
+        byte flags = ack ? HTTP_FLAG_ACK : 0;
+        out.ensureWritable(HTTP_FRAME_HEADER_SIZE + length);
+        writeFrameHeader(out, length, HTTP_PING_FRAME, flags, 0);
+        out.writeLong(data);
+    }
+
+    /**
+     * Writes a GOAWAY frame.
+     */
+    public void writeGoAwayFrame(ByteBuf out, int lastStreamId, int errorCode) {
+        int length = 8;
+        out.ensureWritable(HTTP_FRAME_HEADER_SIZE + length);
+        writeFrameHeader(out, length, HTTP_GOAWAY_FRAME, (byte) 0, 0);
+        out.writeInt(lastStreamId);
+        out.writeInt(errorCode);
+    }
+
+    /**
+     * Writes a WINDOW_UPDATE frame.
+     */
+    public void writeWindowUpdateFrame(ByteBuf out, int streamId, int windowSizeIncrement) {
+        int length = 4;
+        out.ensureWritable(HTTP_FRAME_HEADER_SIZE + length);
+        writeFrameHeader(out, length, HTTP_WINDOW_UPDATE_FRAME, (byte) 0, streamId);
+        out.writeInt(windowSizeIncrement);
+    }
+
+    private void writeFrameHeader(ByteBuf buffer, int length, int type, byte flags, int streamId) {
+        buffer.writeMedium(length);
+        buffer.writeByte(type);
+        buffer.writeByte(flags);
+        buffer.writeInt(streamId);
+    }
+}
@@ -0,0 +1,970 @@
+package com.twitter.http2;
+
+import cn.hutool.core.io.IoUtil;
+import com.github.netguard.vpn.InspectorVpn;
+import com.github.netguard.vpn.tcp.StreamForward;
+import com.github.netguard.vpn.tcp.h2.CancelResult;
+import com.github.netguard.vpn.tcp.h2.Http2Filter;
+import com.github.netguard.vpn.tcp.h2.Http2Session;
+import com.github.netguard.vpn.tcp.h2.Http2SessionKey;
+import com.github.netguard.vpn.tcp.h2.HttpHeaderBlockDecoder;
+import com.github.netguard.vpn.tcp.h2.HttpHeaderBlockEncoder;
+import com.github.netguard.vpn.tcp.h2.PooledBuffers;
+import eu.faircode.netguard.Packet;
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The client side of a {@link com.github.netguard.vpn.AllowRule#FILTER_H2} connection whose requests are sent over a
+ * pooled {@link Http2UpstreamConnection}. This forward terminates the client's HTTP/2 connection: settings, pings and
+ * flow control are answered locally, every request is filtered and submitted on a new upstream stream, and the
+ * response is written back with the client's stream id.
+ * <p>
+ * Requests are buffered until the end of the stream, so streaming uploads are only supported by {@link HttpFrameForward}.
+ * Flow control credit is returned as data is buffered, a stream is reset once its message exceeds
+ * {@link #MAX_BUFFERED_MESSAGE_SIZE} or the connection buffers more than {@link #MAX_BUFFERED_CONNECTION_SIZE}.
+ * <p>
+ * Responses are buffered for {@link Http2Filter#filterResponse} only while they are small, and not at all without a
+ * filter. Event streams, gRPC and responses over {@link Http2Filter#getMaxBufferedContentLength()} are forwarded as
+ * they arrive through {@link Http2Filter#filterPollingResponse}, like the long polling streams of
+ * {@link HttpFrameForward}. Response data waits in a queue of its stream until the client's window allows it, so a
+ * stalled stream does not hold up the others.
+ */
+public class SharedHttpFrameForward extends StreamForward implements HttpFrameDecoderDelegate {
+
+    private static final Logger log = LoggerFactory.getLogger(SharedHttpFrameForward.class);
+
+    private static final int DEFAULT_WINDOW_SIZE = 65535;
+    private static final int RECEIVE_WINDOW_SIZE = 1024 * 1024;
+    private static final int MAX_CONCURRENT_STREAMS = 100;
+    private static final int DEFAULT_CHUNK_SIZE = 0x4000;
+
+    /**
+     * 单个请求或响应缓存的上限
+     */
+    static final int MAX_BUFFERED_MESSAGE_SIZE = 16 * 1024 * 1024;
+    /**
+     * 一个客户端连接所有流缓存的上限
+     */
+    static final int MAX_BUFFERED_CONNECTION_SIZE = 32 * 1024 * 1024;
+
+    private static final Runnable STOP = () -> {
+    };
+
+    private final NetGuardFrameDecoder frameDecoder;
+    private final NetGuardFrameEncoder frameEncoder;
+
+    private final HttpHeaderBlockDecoder headerDecoder;
+    private final HttpHeaderBlockEncoder headerEncoder;
+
+    private final Http2Session session;
+    private final Http2Filter filter;
+    private final String sessionKey;
+    private final Akamai akamai = new Akamai();
+
+    private final Http2UpstreamPool pool;
+    private final Http2UpstreamPool.Key key;
+    private Http2UpstreamConnection upstream;
+
+    private final Map<Integer, ClientStream> streamMap = new ConcurrentHashMap<>();
+    private final BlockingQueue<Runnable> writeQueue = new LinkedBlockingQueue<>();
+    /**
+     * 有数据等待客户端流控窗口的流，由 this 保护
+     */
+    private final Queue<ClientStream> sendQueue = new ArrayDeque<>();
+    /**
+     * 已缓存但还未发给上游或客户端的请求和响应数据
+     */
+    private final AtomicLong bufferedBytes = new AtomicLong();
+
+    /**
+     * 以下字段由 this 保护
+     */
+    private final ByteBuf outputBuffer = PooledBuffers.ALLOCATOR.heapBuffer();
+    private int initialSendWindow = DEFAULT_WINDOW_SIZE;
+    private int connectionSendWindow = DEFAULT_WINDOW_SIZE;
+    private boolean closed;
+
+    public SharedHttpFrameForward(InputStream inputStream, OutputStream outputStream, InetSocketAddress clientSocketAddress, InetSocketAddress serverSocketAddress, CountDownLatch countDownLatch, Socket socket, InspectorVpn vpn, String hostName,
+                                  Http2Session session, Packet packet, Http2UpstreamPool pool, Http2UpstreamPool.Key key, Http2UpstreamConnection upstream) {
+        super(inputStream, outputStream, true, clientSocketAddress, serverSocketAddress, countDownLatch, socket, vpn, hostName, true, packet);
+        this.frameDecoder = new NetGuardFrameDecoder(true, this);
+        this.frameEncoder = new NetGuardFrameEncoder();
+
+        headerDecoder = new HttpHeaderBlockDecoder(0x4000, 0x10000);
+        headerEncoder = new HttpHeaderBlockEncoder(0x1000);
+
+        this.session = session;
+        this.filter = packetCapture == null ? null : packetCapture.getH2Filter();
+        this.sessionKey = session.toString();
+        this.pool = pool;
+        this.key = key;
+        this.upstream = upstream;
+    }
+
+    private boolean started;
+    private boolean canStop;
+
+    @Override
+    protected boolean forward(byte[] buf) throws IOException {
+        if (!started) {
+            started = true;
+            Thread writer = new Thread(this::writeLoop, "SharedHttpFrameWriter for " + clientSocketAddress + "_" + hostName);
+            writer.setDaemon(true);
+            writer.start();
+
+            synchronized (this) {
+                HttpSettingsFrame settingsFrame = new NetGuardHttpSettingsFrame();
+                settingsFrame.setValue(HttpSettingsFrame.SETTINGS_MAX_CONCURRENT_STREAMS, MAX_CONCURRENT_STREAMS);
+                settingsFrame.setValue(HttpSettingsFrame.SETTINGS_INITIAL_WINDOW_SIZE, RECEIVE_WINDOW_SIZE);
+                frameEncoder.writeSettingsFrame(outputBuffer, settingsFrame);
+                frameEncoder.writeWindowUpdateFrame(outputBuffer, 0, RECEIVE_WINDOW_SIZE - DEFAULT_WINDOW_SIZE);
+                flush();
+            }
+        }
+        ByteBuf byteBuf = PooledBuffers.ALLOCATOR.heapBuffer();
+        try {
+            while (!canStop) {
+                int read = byteBuf.writeBytes(inputStream, DEFAULT_CHUNK_SIZE);
+                if (read == -1) {
+                    break;
+                }
+                frameDecoder.decodeFrames(byteBuf);
+                byteBuf.discardSomeReadBytes();
+            }
+            return true;
+        } catch (SocketTimeoutException ignored) {
+        } finally {
+            byteBuf.release();
+        }
+        return false;
+    }
+
+    @Override
+    public void run() {
+        try {
+            super.run();
+        } finally {
+            List<ClientStream> streams = new ArrayList<>(streamMap.values());
+            streamMap.clear();
+            for (ClientStream stream : streams) {
+                stream.cancelUpstream();
+            }
+            synchronized (this) {
+                closed = true;
+                outputBuffer.release();
+                sendQueue.clear();
+            }
+            writeQueue.offer(STOP);
+            headerDecoder.endHeaderBlock(null);
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            Runnable task;
+            while ((task = writeQueue.take()) != STOP) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    log.warn("writeLoop session={}", sessionKey, e);
+                }
+            }
+        } catch (InterruptedException e) {
+            log.debug("writeLoop interrupted", e);
+        }
+    }
+
+    /**
+     * 必须持有 this
+     */
+    private void flush() {
+        if (closed || !outputBuffer.isReadable()) {
+            return;
+        }
+        try {
+            outputBuffer.readBytes(outputStream, outputBuffer.readableBytes());
+            outputStream.flush();
+        } catch (IOException e) {
+            log.debug("write client failed: session={}", sessionKey, e);
+            closed = true;
+            IoUtil.close(outputStream);
+        } finally {
+            if (!closed) {
+                outputBuffer.clear();
+            }
+        }
+    }
+
+    private synchronized void writeRstStreamFrame(int streamId, int errorCode) {
+        if (!closed) {
+            frameEncoder.writeRstStreamFrame(outputBuffer, streamId, errorCode);
+            flush();
+        }
+    }
+
+    /**
+     * 必须持有 this
+     */
+    private void writeHeaders(int streamId, HttpHeadersFrame headersFrame, boolean last) throws IOException {
+        ByteBuf headerBlock = headerEncoder.encode(headersFrame);
+        try {
+            // Writes of compressed data must occur in order
+            frameEncoder.writeHeadersFrame(outputBuffer,
+                    streamId,
+                    last,
+                    headersFrame.isExclusive(),
+                    headersFrame.getDependency(),
+                    headersFrame.getWeight(),
+                    headerBlock
+            );
+        } finally {
+            headerBlock.release();
+        }
+    }
+
+    /**
+     * 在写线程中调用，写出响应头，消息体排入流的队列按客户端的流控窗口写出，不等待窗口
+     *
+     * @param data <code>null</code> 表示没有消息体
+     */
+    private void writeMessage(ClientStream stream, HttpHeadersFrame headersFrame, byte[] data, boolean endStream) {
+        synchronized (this) {
+            if (closed || stream.reset) {
+                stream.releaseAll();
+                return;
+            }
+            headersFrame.setStreamId(stream.streamId);
+            headersFrame.setLast(data == null && endStream);
+            try {
+                writeHeaders(stream.streamId, headersFrame, headersFrame.isLast());
+            } catch (IOException e) {
+                log.warn("writeMessage session={}", sessionKey, e);
+                finishStream(stream);
+                return;
+            }
+            if (headersFrame.isLast()) {
+                finishStream(stream);
+            } else if (data != null) {
+                writeData(stream, data, endStream);
+            }
+            flush();
+        }
+    }
+
+    /**
+     * 在写线程中调用，响应头之后的数据按顺序排入流的队列
+     */
+    private synchronized void writeData(ClientStream stream, byte[] data, boolean endStream) {
+        if (data.length > 0 || endStream) {
+            enqueue(stream, new PendingFrame(data, null, endStream));
+        }
+    }
+
+    /**
+     * 在写线程中调用，trailers 排在已有数据之后，写出后流结束
+     */
+    private synchronized void writeTrailers(ClientStream stream, HttpHeadersFrame trailers) {
+        enqueue(stream, new PendingFrame(null, trailers, true));
+    }
+
+    /**
+     * 必须持有 this
+     */
+    private void enqueue(ClientStream stream, PendingFrame frame) {
+        if (closed || stream.reset) {
+            stream.releaseAll();
+            return;
+        }
+        stream.pending.add(frame);
+        if (!stream.queued) {
+            stream.queued = true;
+            sendQueue.add(stream);
+        }
+        writePending();
+    }
+
+    /**
+     * 必须持有 this。各流按窗口轮流写出一块，窗口用完的流留在队列中，收到 WINDOW_UPDATE 后继续
+     */
+    private void writePending() {
+        boolean progress = true;
+        while (progress && !closed && !sendQueue.isEmpty()) {
+            progress = false;
+            for (int i = sendQueue.size(); i > 0; i--) {
+                ClientStream stream = sendQueue.poll();
+                if (!stream.reset) {
+                    try {
+                        progress |= writeNext(stream);
+                    } catch (IOException e) {
+                        log.warn("writePending session={}, streamId={}", sessionKey, stream.streamId, e);
+                        finishStream(stream);
+                    }
+                }
+                if (stream.reset || stream.pending.isEmpty()) {
+                    stream.pending.clear();
+                    stream.queued = false;
+                } else {
+                    sendQueue.add(stream);
+                }
+            }
+            flush();
+        }
+    }
+
+    /**
+     * 必须持有 this
+     *
+     * @return <code>false</code> 流或连接的窗口已用完
+     */
+    private boolean writeNext(ClientStream stream) throws IOException {
+        PendingFrame frame = stream.pending.peek();
+        boolean last = frame.last;
+        if (frame.data == null) {
+            writeHeaders(stream.streamId, frame.trailers, true);
+        } else {
+            int remaining = frame.data.length - frame.offset;
+            int n = Math.min(Math.min(remaining, DEFAULT_CHUNK_SIZE), Math.min(connectionSendWindow, stream.sendWindow));
+            if (remaining > 0 && n <= 0) {
+                return false;
+            }
+            n = Math.max(n, 0);
+            connectionSendWindow -= n;
+            stream.sendWindow -= n;
+            frame.offset += n;
+            boolean done = frame.offset == frame.data.length;
+            frameEncoder.writeDataFrame(outputBuffer, stream.streamId, done && last, frame.data, frame.offset - n, n);
+            stream.adjustResponse(-n);
+            if (!done) {
+                return true;
+            }
+        }
+        stream.pending.poll();
+        if (last) {
+            finishStream(stream);
+        }
+        return true;
+    }
+
+    /**
+     * 必须持有 this。响应已写完或无法继续写出
+     */
+    private void finishStream(ClientStream stream) {
+        // 之后的写出与上游数据都丢弃
+        stream.reset = true;
+        stream.releaseAll();
+        // 写完之前要保留，客户端的 WINDOW_UPDATE 按 streamId 查找
+        streamMap.remove(stream.streamId, stream);
+    }
+
+    private void handleRequest(ClientStream stream) {
+        HttpHeadersFrame headersFrame = stream.requestHeaders;
+        stream.submitted = true;
+        byte[] requestData = stream.requestBuffer == null ? null : stream.requestBuffer.toByteArray();
+        stream.requestBuffer = null;
+        int streamId = stream.streamId;
+        HttpRequest request = filter == null ? null : HttpFrameForward.createHttpRequest(headersFrame, sessionKey, akamai);
+        if (filter != null) {
+            CancelResult result = filter.cancelRequest(request, requestData == null ? new byte[0] : requestData, false);
+            if (result != null) {
+                stream.releaseRequest();
+                if (result.cancel) {
+                    streamMap.remove(streamId);
+                    stream.releaseAll();
+                    writeRstStreamFrame(streamId, HttpErrorCode.CANCEL.getCode());
+                } else {
+                    HttpHeadersFrame fakeHeadersFrame = HttpFrameForward.createFakeHeadersFrame(streamId, result, sessionKey);
+                    filter.filterRequest(new Http2SessionKey(session, streamId, false), request,
+                            headersFrame.headers(), requestData == null ? new byte[0] : requestData);
+                    byte[] responseData = result.responseData;
+                    writeQueue.offer(() -> handleResponse(stream, fakeHeadersFrame, responseData, 0));
+                }
+                return;
+            }
+        }
+        if (requestData == null) {
+            requestData = new byte[0];
+            stream.emptyRequest = true;
+        }
+        byte[] data = filter == null ? requestData : filter.filterRequest(new Http2SessionKey(session, streamId, false), request,
+                headersFrame.headers(), requestData);
+        if (data == null) {
+            throw new IllegalStateException();
+        }
+        submit(stream, headersFrame, stream.emptyRequest && data.length == 0 ? null : data);
+    }
+
+    private void submit(ClientStream stream, HttpHeadersFrame headersFrame, byte[] data) {
+        Http2UpstreamConnection connection = upstream;
+        if (!connection.isUsable()) {
+            connection = pool.select(key);
+            if (connection == null) {
+                // 让客户端在新连接上重试
+                streamMap.remove(stream.streamId);
+                stream.releaseAll();
+                writeRstStreamFrame(stream.streamId, HttpErrorCode.REFUSED_STREAM.getCode());
+                return;
+            }
+            upstream = connection;
+        }
+        stream.connection = connection;
+        try {
+            stream.upstreamStream = connection.submit(headersFrame, data, stream);
+            log.debug("submit session={}, streamId={}, connection={}", sessionKey, stream.streamId, connection);
+            if (stream.reset) {
+                // 客户端连接在提交时关闭
+                connection.cancel(stream.upstreamStream);
+            }
+        } catch (IOException e) {
+            log.debug("submit session={}, streamId={}", sessionKey, stream.streamId, e);
+            stream.releaseAll();
+            if (streamMap.remove(stream.streamId) != null) {
+                writeRstStreamFrame(stream.streamId, HttpErrorCode.REFUSED_STREAM.getCode());
+            }
+        }
+    }
+
+    /**
+     * @param reserved 已计入 bufferedBytes 的响应字节数
+     */
+    private void handleResponse(ClientStream stream, HttpHeadersFrame headersFrame, byte[] responseData, int reserved) {
+        headersFrame.setStreamId(stream.streamId);
+        byte[] data = filter == null ? responseData : filter.filterResponse(new Http2SessionKey(session, stream.streamId, false),
+                HttpFrameForward.createHttpResponse(headersFrame, sessionKey, akamai),
+                headersFrame.headers(), responseData == null ? new byte[0] : responseData);
+        if (data == null) {
+            throw new IllegalStateException();
+        }
+        stream.adjustResponse(data.length - reserved);
+        addStreamHeaders(stream, headersFrame);
+        writeMessage(stream, headersFrame, responseData == null && data.length == 0 ? null : data, true);
+    }
+
+    /**
+     * 事件流或超过缓冲上限的响应，按到达顺序增量过滤后写出
+     *
+     * @param newStream 第一块数据，先写出响应头
+     * @param trailers  结束流的 trailers，其余为 <code>null</code>
+     */
+    private void handlePollingResponse(ClientStream stream, HttpHeadersFrame headersFrame, boolean newStream, byte[] responseData,
+                                       boolean endStream, HttpHeadersFrame trailers) {
+        byte[] data = filter == null ? responseData : filter.filterPollingResponse(new Http2SessionKey(session, stream.streamId, false),
+                HttpFrameForward.createHttpResponse(headersFrame, sessionKey, akamai),
+                responseData, endStream);
+        stream.adjustResponse(data.length - responseData.length);
+        boolean last = endStream && trailers == null;
+        if (newStream) {
+            headersFrame.setStreamId(stream.streamId);
+            if (filter != null) {
+                // 增量过滤可能改变长度
+                headersFrame.headers().remove(HttpHeaderNames.CONTENT_LENGTH);
+            }
+            addStreamHeaders(stream, headersFrame);
+            writeMessage(stream, headersFrame, data, last);
+        } else {
+            writeData(stream, data, last);
+        }
+        if (trailers != null) {
+            writeTrailers(stream, trailers);
+        }
+    }
+
+    private void addStreamHeaders(ClientStream stream, HttpHeadersFrame headersFrame) {
+        HttpHeaders headers = headersFrame.headers();
+        headers.setInt("X-Http2-Stream-Id", stream.streamId);
+        headers.setInt("X-Http2-Stream-Weight", headersFrame.getWeight());
+        headers.set("X-Netguard-Session", sessionKey);
+    }
+
+    /**
+     * 缓存前预留，超过单个消息或连接的上限时返回错误码
+     */
+    private int reserve(int messageBytes, int length) {
+        if (messageBytes + length > MAX_BUFFERED_MESSAGE_SIZE) {
+            return HttpErrorCode.INTERNAL_ERROR.getCode();
+        }
+        if (bufferedBytes.addAndGet(length) > MAX_BUFFERED_CONNECTION_SIZE) {
+            bufferedBytes.addAndGet(-length);
+            return HttpErrorCode.REFUSED_STREAM.getCode();
+        }
+        return HttpErrorCode.NO_ERROR.getCode();
+    }
+
+    /**
+     * @return bytes of request and response messages held by this connection
+     */
+    long getBufferedBytes() {
+        return bufferedBytes.get();
+    }
+
+    /**
+     * 等待写给客户端的数据或结束流的 trailers
+     */
+    private static final class PendingFrame {
+        final byte[] data;
+        final HttpHeadersFrame trailers;
+        final boolean last;
+        int offset;
+
+        PendingFrame(byte[] data, HttpHeadersFrame trailers, boolean last) {
+            this.data = data;
+            this.trailers = trailers;
+            this.last = last;
+        }
+    }
+
+    private class ClientStream implements Http2UpstreamConnection.StreamListener {
+        final int streamId;
+        final HttpHeadersFrame requestHeaders;
+        ByteArrayOutputStream requestBuffer;
+        boolean emptyRequest;
+        /**
+         * 以下三个字段由 SharedHttpFrameForward.this 保护
+         */
+        int sendWindow;
+        final Queue<PendingFrame> pending = new ArrayDeque<>();
+        boolean queued;
+        volatile boolean reset;
+        /**
+         * 请求已交给 {@link #handleRequest}，之后的 DATA 帧被丢弃
+         */
+        boolean submitted;
+        volatile Http2UpstreamConnection connection;
+        volatile Http2UpstreamConnection.UpstreamStream upstreamStream;
+
+        private HttpHeadersFrame responseHeaders;
+        private ByteArrayOutputStream responseBuffer;
+        /**
+         * 响应已开始逐块转发
+         */
+        private boolean streaming;
+
+        /**
+         * 以下字段由 this 保护，计入 bufferedBytes 的字节数
+         */
+        private int requestBytes;
+        private int responseBytes;
+        private boolean released;
+
+        ClientStream(HttpHeadersFrame requestHeaders, int sendWindow) {
+            this.streamId = requestHeaders.getStreamId();
+            this.requestHeaders = requestHeaders;
+            this.sendWindow = sendWindow;
+        }
+
+        void cancelUpstream() {
+            reset = true;
+            releaseAll();
+            Http2UpstreamConnection connection = this.connection;
+            Http2UpstreamConnection.UpstreamStream upstreamStream = this.upstreamStream;
+            if (connection != null && upstreamStream != null) {
+                connection.cancel(upstreamStream);
+            }
+        }
+
+        synchronized int reserveRequest(int length) {
+            int errorCode = released ? HttpErrorCode.STREAM_CLOSED.getCode() : reserve(requestBytes, length);
+            if (errorCode == HttpErrorCode.NO_ERROR.getCode()) {
+                requestBytes += length;
+            }
+            return errorCode;
+        }
+
+        synchronized int reserveResponse(int length) {
+            int errorCode = released ? HttpErrorCode.STREAM_CLOSED.getCode() : reserve(responseBytes, length);
+            if (errorCode == HttpErrorCode.NO_ERROR.getCode()) {
+                responseBytes += length;
+            }
+            return errorCode;
+        }
+
+        /**
+         * 过滤改变了长度或数据已写给客户端
+         */
+        synchronized void adjustResponse(int delta) {
+            if (!released) {
+                responseBytes += delta;
+                bufferedBytes.addAndGet(delta);
+            }
+        }
+
+        synchronized void releaseRequest() {
+            bufferedBytes.addAndGet(-requestBytes);
+            requestBytes = 0;
+        }
+
+        /**
+         * 流结束后调用，不再预留
+         */
+        synchronized void releaseAll() {
+            released = true;
+            bufferedBytes.addAndGet(-requestBytes - responseBytes);
+            requestBytes = 0;
+            responseBytes = 0;
+        }
+
+        @Override
+        public void onRequestSent() {
+            releaseRequest();
+        }
+
+        @Override
+        public void onHeaders(HttpHeadersFrame headersFrame) {
+            if (responseHeaders == null) {
+                Integer status = headersFrame.headers().getInt(":status");
+                if (!headersFrame.isLast() && status != null && status >= 100 && status < 200) {
+                    // informational response, forwarded as is
+                    writeQueue.offer(() -> {
+                        synchronized (SharedHttpFrameForward.this) {
+                            if (closed || reset) {
+                                return;
+                            }
+                            try {
+                                ByteBuf headerBlock = headerEncoder.encode(headersFrame);
+                                try {
+                                    frameEncoder.writeHeadersFrame(outputBuffer, streamId, false, false, 0, headersFrame.getWeight(), headerBlock);
+                                } finally {
+                                    headerBlock.release();
+                                }
+                                flush();
+                            } catch (IOException e) {
+                                log.warn("write informational response session={}", sessionKey, e);
+                            }
+                        }
+                    });
+                    return;
+                }
+                responseHeaders = headersFrame;
+                if (!headersFrame.isLast() && isStreamingResponse(0)) {
+                    // 响应头先发给客户端
+                    forwardStreaming(new byte[0], false);
+                    return;
+                }
+            } else if (streaming) {
+                if (headersFrame.isLast()) {
+                    HttpHeadersFrame responseHeadersFrame = responseHeaders;
+                    writeQueue.offer(() -> handlePollingResponse(this, responseHeadersFrame, false, new byte[0], true, headersFrame));
+                }
+                return;
+            } else {
+                responseHeaders.headers().setAll(headersFrame.headers());
+            }
+            if (headersFrame.isLast()) {
+                onEnd();
+            }
+        }
+
+        @Override
+        public void onData(byte[] data, boolean endStream) {
+            if (reset) {
+                return;
+            }
+            if (reserveResponse(data.length) != HttpErrorCode.NO_ERROR.getCode()) {
+                log.warn("response too large session={}, streamId={}", sessionKey, streamId);
+                responseBuffer = null;
+                cancelUpstream();
+                // 上游已处理请求，不能让客户端重试
+                onReset(HttpErrorCode.INTERNAL_ERROR.getCode());
+                return;
+            }
+            if (streaming || isStreamingResponse(data.length)) {
+                byte[] responseData = data;
+                if (responseBuffer != null) {
+                    responseBuffer.write(data, 0, data.length);
+                    responseData = responseBuffer.toByteArray();
+                    responseBuffer = null;
+                }
+                forwardStreaming(responseData, endStream);
+                return;
+            }
+            if (responseBuffer == null) {
+                responseBuffer = new ByteArrayOutputStream(data.length);
+            }
+            responseBuffer.write(data, 0, data.length);
+            if (endStream) {
+                onEnd();
+            }
+        }
+
+        /**
+         * 不过滤时不缓冲；事件流与 gRPC 不会很快结束，超过缓冲上限的响应不再整体过滤。
+         * 上限不超过 {@link #MAX_BUFFERED_MESSAGE_SIZE} 的一半，其余留给等待客户端窗口的数据
+         */
+        private boolean isStreamingResponse(int length) {
+            if (filter == null) {
+                return true;
+            }
+            String contentType = responseHeaders.headers().get(HttpHeaderNames.CONTENT_TYPE);
+            if (contentType != null && (contentType.startsWith("text/event-stream") || contentType.startsWith("application/grpc"))) {
+                return true;
+            }
+            int buffered = responseBuffer == null ? 0 : responseBuffer.size();
+            return buffered + length > Math.min(filter.getMaxBufferedContentLength(), MAX_BUFFERED_MESSAGE_SIZE / 2);
+        }
+
+        private void forwardStreaming(byte[] responseData, boolean endStream) {
+            boolean newStream = !streaming;
+            streaming = true;
+            HttpHeadersFrame headersFrame = responseHeaders;
+            writeQueue.offer(() -> handlePollingResponse(this, headersFrame, newStream, responseData, endStream, null));
+        }
+
+        private void onEnd() {
+            HttpHeadersFrame headersFrame = responseHeaders;
+            byte[] responseData = responseBuffer == null ? null : responseBuffer.toByteArray();
+            responseBuffer = null;
+            writeQueue.offer(() -> handleResponse(this, headersFrame, responseData, responseData == null ? 0 : responseData.length));
+        }
+
+        @Override
+        public void onReset(int errorCode) {
+            log.debug("upstream reset session={}, streamId={}, errorCode={}", sessionKey, streamId, errorCode);
+            reset = true;
+            releaseAll();
+            if (streamMap.remove(streamId, this)) {
+                writeQueue.offer(() -> writeRstStreamFrame(streamId, errorCode));
+                if (filter != null) {
+                    filter.onStreamClosed(new Http2SessionKey(session, streamId, false));
+                }
+            }
+        }
+    }
+
+    /**
+     * 请求数据已缓存并计入上限，归还客户端的接收窗口
+     */
+    private synchronized void replenish(int streamId, int length, boolean endStream) {
+        if (length <= 0 || closed) {
+            return;
+        }
+        frameEncoder.writeWindowUpdateFrame(outputBuffer, 0, length);
+        if (!endStream) {
+            frameEncoder.writeWindowUpdateFrame(outputBuffer, streamId, length);
+        }
+        flush();
+    }
+
+    @Override
+    public void readDataFramePadding(int streamId, boolean endStream, int padding) {
+        replenish(streamId, padding, endStream);
+    }
+
+    @Override
+    public void readDataFrame(int streamId, boolean endStream, boolean endSegment, ByteBuf data) {
+        try {
+            ClientStream stream = streamMap.get(streamId);
+            int length = data.readableBytes();
+            boolean buffered = false;
+            if (stream == null || stream.submitted) {
+                log.debug("readDataFrame not exists stream: {}", streamId);
+            } else {
+                int errorCode = stream.reserveRequest(length);
+                if (errorCode == HttpErrorCode.NO_ERROR.getCode()) {
+                    if (stream.requestBuffer == null) {
+                        stream.requestBuffer = new ByteArrayOutputStream(length);
+                    }
+                    data.readBytes(stream.requestBuffer, length);
+                    buffered = true;
+                    if (endStream) {
+                        handleRequest(stream);
+                    }
+                } else {
+                    log.warn("request too large session={}, streamId={}, errorCode={}", sessionKey, streamId, errorCode);
+                    streamMap.remove(streamId);
+                    stream.requestBuffer = null;
+                    stream.cancelUpstream();
+                    writeRstStreamFrame(streamId, errorCode);
+                    if (filter != null) {
+                        filter.onStreamClosed(new Http2SessionKey(session, streamId, false));
+                    }
+                }
+            }
+            // 丢弃的数据只归还连接窗口
+            replenish(streamId, length, endStream || !buffered);
+        } catch (IOException e) {
+            throw new IllegalStateException("readDataFrame", e);
+        } finally {
+            data.release();
+        }
+    }
+
+    private HttpHeadersFrame httpHeadersFrame;
+
+    @Override
+    public void readHeadersFrame(int streamId, boolean endStream, boolean endSegment, boolean exclusive, int dependency, int weight) {
+        httpHeadersFrame = new NetGuardHttpHeadersFrame(streamId);
+        httpHeadersFrame.setLast(endStream);
+        httpHeadersFrame.setExclusive(exclusive);
+        httpHeadersFrame.setDependency(dependency);
+        httpHeadersFrame.setWeight(weight);
+    }
+
+    @Override
+    public void readHeaderBlock(ByteBuf headerBlockFragment) {
+        try {
+            headerDecoder.decode(headerBlockFragment, httpHeadersFrame);
+        } catch (IOException e) {
+            throw new IllegalStateException("readHeaderBlock frame=" + httpHeadersFrame, e);
+        } finally {
+            headerBlockFragment.release();
+        }
+    }
+
+    @Override
+    public void readHeaderBlockEnd() {
+        HttpHeadersFrame headersFrame = this.httpHeadersFrame;
+        this.httpHeadersFrame = null;
+        if (headersFrame.isTruncated()) {
+            throw new UnsupportedOperationException("frame=" + headersFrame);
+        }
+        headerDecoder.endHeaderBlock(headersFrame);
+        log.debug("readHeaderBlockEnd session={}, frame={}", sessionKey, headersFrame);
+        akamai.onHttpHeadersFrame(headersFrame);
+
+        int streamId = headersFrame.getStreamId();
+        ClientStream stream = streamMap.get(streamId);
+        if (stream == null) {
+            int sendWindow;
+            synchronized (this) {
+                sendWindow = initialSendWindow;
+            }
+            stream = new ClientStream(headersFrame, sendWindow);
+            streamMap.put(streamId, stream);
+        } else if (!stream.submitted) {
+            // trailers
+            stream.requestHeaders.headers().setAll(headersFrame.headers());
+            if (stream.requestBuffer == null) {
+                stream.requestBuffer = new ByteArrayOutputStream(0);
+            }
+        }
+        if (headersFrame.isLast()) {
+            handleRequest(stream);
+        }
+    }
+
+    @Override
+    public void readPriorityFrame(int streamId, boolean exclusive, int dependency, int weight) {
+        akamai.onPriorityFrame(streamId, exclusive, dependency, weight);
+    }
+
+    @Override
+    public void readRstStreamFrame(int streamId, int errorCode) {
+        log.debug("readRstStreamFrame session={}, streamId={}, errorCode={}", sessionKey, streamId, errorCode);
+        ClientStream stream = streamMap.remove(streamId);
+        if (stream != null) {
+            stream.cancelUpstream();
+            synchronized (this) {
+                // 丢弃等待窗口的数据
+                writePending();
+            }
+            if (filter != null) {
+                filter.onStreamClosed(new Http2SessionKey(session, streamId, false));
+            }
+        }
+    }
+
+    private HttpSettingsFrame httpSettingsFrame;
+
+    @Override
+    public void readSettingsFrame(boolean ack) {
+        httpSettingsFrame = new NetGuardHttpSettingsFrame();
+        httpSettingsFrame.setAck(ack);
+    }
+
+    @Override
+    public void readSetting(int id, int value) {
+        httpSettingsFrame.setValue(id, value);
+    }
+
+    @Override
+    public void readSettingsEnd() {
+        HttpSettingsFrame settingsFrame = this.httpSettingsFrame;
+        this.httpSettingsFrame = null;
+        log.debug("readSettingsEnd session={}, frame={}", sessionKey, settingsFrame);
+        akamai.onHttpSettingsFrame(settingsFrame);
+        if (settingsFrame.isAck()) {
+            return;
+        }
+        synchronized (this) {
+            if (settingsFrame.isSet(HttpSettingsFrame.SETTINGS_INITIAL_WINDOW_SIZE)) {
+                int initialWindowSize = settingsFrame.getValue(HttpSettingsFrame.SETTINGS_INITIAL_WINDOW_SIZE);
+                int delta = initialWindowSize - initialSendWindow;
+                initialSendWindow = initialWindowSize;
+                for (ClientStream stream : streamMap.values()) {
+                    stream.sendWindow += delta;
+                }
+            }
+            if (settingsFrame.isSet(HttpSettingsFrame.SETTINGS_HEADER_TABLE_SIZE)) {
+                headerEncoder.setDecoderMaxHeaderTableSize(settingsFrame.getValue(HttpSettingsFrame.SETTINGS_HEADER_TABLE_SIZE));
+            }
+            if (!closed) {
+                HttpSettingsFrame ack = new NetGuardHttpSettingsFrame();
+                ack.setAck(true);
+                frameEncoder.writeSettingsFrame(outputBuffer, ack);
+                flush();
+            }
+            writePending();
+        }
+    }
+
+    @Override
+    public void readPushPromiseFrame(int streamId, int promisedStreamId) {
+        readFrameError("PUSH_PROMISE from client: streamId=" + streamId);
+    }
+
+    @Override
+    public synchronized void readPingFrame(long data, boolean ack) {
+        if (!ack && !closed) {
+            frameEncoder.writePingFrame(outputBuffer, data, true);
+            flush();
+        }
+    }
+
+    @Override
+    public void readGoAwayFrame(int lastStreamId, int errorCode) {
+        log.debug("readGoAwayFrame session={}, lastStreamId={}, errorCode={}", sessionKey, lastStreamId, errorCode);
+    }
+
+    @Override
+    public synchronized void readWindowUpdateFrame(int streamId, int windowSizeIncrement) {
+        if (streamId == 0) {
+            akamai.onWindowUpdateFrame(windowSizeIncrement);
+            connectionSendWindow += windowSizeIncrement;
+        } else {
+            ClientStream stream = streamMap.get(streamId);
+            if (stream != null) {
+                stream.sendWindow += windowSizeIncrement;
+            }
+        }
+        writePending();
+    }
+
+    @Override
+    public void readFrameError(String message) {
+        canStop = true;
+        log.warn("readFrameError: {}", message);
+    }
+
+}
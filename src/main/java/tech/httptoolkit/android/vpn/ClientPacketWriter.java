@@ -21,14 +21,24 @@ import eu.faircode.netguard.ServiceSinkhole;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.DataOutput;
 import java.io.IOException;
-import java.util.concurrent.BlockingDeque;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 /**
  * write packet data back to VPN client stream. This class is thread safe.
+ * <br/>
+ * Packets are framed as by the native <code>write_tun</code>: a big-endian length, then the packet XORed
+ * with {@link ServiceSinkhole#VPN_MAGIC}. The writer thread drains every queued packet that fits into
+ * one batch buffer, scrambling them as they are copied, and hands the batch to the stream in a single write.
+ * <br/>
+ * A failed write may have sent part of the batch, which leaves the client's framing out of step: the batch
+ * is dropped rather than resent, and the writer stops and closes the stream so the session is torn down.
  * @author Borey Sao
  * Date: May 22, 2014
  */
@@ -36,29 +46,60 @@ public class ClientPacketWriter implements Runnable {
 
 	private static final Logger log = LoggerFactory.getLogger(ClientPacketWriter.class);
 
-	private final DataOutput clientWriter;
+	// Packets waiting for the writer thread, before write() blocks the producers
+	static final int DEFAULT_QUEUE_CAPACITY = 4096;
+
+	// Bytes per write to the stream, at least one frame of the largest packet
+	static final int BATCH_SIZE = 64 * 1024;
+
+	private static final int MAX_PACKET_SIZE = 30000;
+
+	private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.nativeOrder());
+	private static final long MAGIC_WORD = (ServiceSinkhole.VPN_MAGIC & 0xFFL) * 0x0101010101010101L;
+
+	private final OutputStream clientWriter;
 
 	private volatile boolean shutdown = false;
-	private final BlockingDeque<byte[]> packetQueue = new LinkedBlockingDeque<>();
+	private final BlockingQueue<byte[]> packetQueue;
 
 	private final IPacketCapture packetCapture;
 
-	public ClientPacketWriter(DataOutput clientWriter, IPacketCapture packetCapture) {
+	private final byte[] batch = new byte[BATCH_SIZE];
+	// taken from the queue, but did not fit into the previous batch
+	private byte[] next;
+
+	public ClientPacketWriter(OutputStream clientWriter, IPacketCapture packetCapture) {
+		this(clientWriter, packetCapture, DEFAULT_QUEUE_CAPACITY);
+	}
+
+	ClientPacketWriter(OutputStream clientWriter, IPacketCapture packetCapture, int queueCapacity) {
 		this.clientWriter = clientWriter;
 		this.packetCapture = packetCapture;
+		// separate locks for producers and the writer thread
+		this.packetQueue = new LinkedBlockingQueue<>(queueCapacity);
 	}
 
+	/**
+	 * Queue a packet for the VPN client, blocking while the queue is full. The array is
+	 * not modified, but is read later by the writer thread: callers must not change it afterwards.
+	 */
 	public void write(byte[] data) {
-		if (data.length > 30000) {
+		if (data.length > MAX_PACKET_SIZE) {
 			throw new IllegalStateException("Packet too large");
 		}
 		if (packetCapture != null) {
 			packetCapture.onPacket(data, "ToyShark");
 		}
-		for (int i = 0; i < data.length; i++) {
-			data[i] ^= ServiceSinkhole.VPN_MAGIC;
+		try {
+			while (!packetQueue.offer(data, 100, TimeUnit.MILLISECONDS)) {
+				if (shutdown) {
+					return;
+				}
+			}
+		} catch (InterruptedException e) {
+			log.debug("Interrupted writing {} bytes to the VPN", data.length);
+			Thread.currentThread().interrupt();
 		}
-		packetQueue.addLast(data);
 	}
 
 	public void shutdown() {
@@ -69,18 +110,62 @@ public class ClientPacketWriter implements Runnable {
 	public void run() {
 		while (!this.shutdown) {
 			try {
-				byte[] data = this.packetQueue.take();
+				int length = fillBatch();
 				try {
-					this.clientWriter.writeShort(data.length);
-					this.clientWriter.write(data);
+					this.clientWriter.write(batch, 0, length);
 				} catch (IOException e) {
-					log.error("Error writing {} bytes to the VPN", data.length);
-					e.printStackTrace(System.err);
-
-					this.packetQueue.addFirst(data); // Put the data back, so it's resent
-					TimeUnit.MILLISECONDS.sleep(10); // Add an arbitrary tiny pause, in case that helps
+					// Unknown how much of the batch reached the client, resending it would duplicate frames
+					log.error("Error writing {} bytes to the VPN, closing the stream", length, e);
+					reset();
+					return;
 				}
 			} catch (InterruptedException ignored) { }
 		}
 	}
+
+	private void reset() {
+		this.shutdown = true;
+		next = null;
+		packetQueue.clear();
+		try {
+			clientWriter.close();
+		} catch (IOException e) {
+			log.debug("Error closing the VPN stream", e);
+		}
+	}
+
+	/**
+	 * Wait for a packet, then frame it and what else is already queued into the batch, as long as it fits.
+	 * Packets are only taken off the queue as they are framed, so producers stay blocked while the batch is full.
+	 * @return length of the batch
+	 */
+	private int fillBatch() throws InterruptedException {
+		byte[] data = next != null ? next : packetQueue.take();
+		next = null;
+		int length = 0;
+		do {
+			if (length + 2 + data.length > BATCH_SIZE) {
+				next = data;
+				break;
+			}
+			batch[length] = (byte) (data.length >>> 8);
+			batch[length + 1] = (byte) data.length;
+			scramble(data, 0, batch, length + 2, data.length);
+			length += 2 + data.length;
+		} while ((data = packetQueue.poll()) != null);
+		return length;
+	}
+
+	/**
+	 * XOR bytes with {@link ServiceSinkhole#VPN_MAGIC}, a long at a time. Source and destination may be the same array.
+	 */
+	public static void scramble(byte[] src, int srcOffset, byte[] dst, int dstOffset, int length) {
+		int i = 0;
+		for (; i <= length - 8; i += 8) {
+			LONGS.set(dst, dstOffset + i, (long) LONGS.get(src, srcOffset + i) ^ MAGIC_WORD);
+		}
+		for (; i < length; i++) {
+			dst[dstOffset + i] = (byte) (src[srcOffset + i] ^ ServiceSinkhole.VPN_MAGIC);
+		}
+	}
 }
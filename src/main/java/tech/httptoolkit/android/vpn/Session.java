@@ -19,16 +19,19 @@ package tech.httptoolkit.android.vpn;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import tech.httptoolkit.android.vpn.transport.ip.IPv4Header;
+import tech.httptoolkit.android.vpn.socket.DataConst;
 import tech.httptoolkit.android.vpn.socket.ICloseSession;
 import tech.httptoolkit.android.vpn.transport.tcp.TCPHeader;
 import tech.httptoolkit.android.vpn.transport.udp.UDPHeader;
 import tech.httptoolkit.android.vpn.util.PacketUtil;
 
 import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.spi.AbstractSelectableChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * store information about a socket connection from a VPN client.
@@ -64,13 +67,28 @@ public class Session {
 	//indicate that 3-way handshake has been completed or not
 	private boolean isConnected = false;
 	
-	//receiving buffer for storing data from remote host
-	private final ByteArrayOutputStream receivingStream;
+	//receiving buffer for storing data from remote host, until it fits in the client's window
+	private final ArrayDeque<byte[]> receivingChunks = new ArrayDeque<>();
+	private int receivingChunkOffset = 0;
+	private int receivingSize = 0;
+
+	//reads from the remote host stopped because the receiving buffer filled up
+	private boolean readingPaused = false;
+
+	//segments sent to the vpn client and not acked yet
+	private final TCPSendWindow sendWindow = new TCPSendWindow();
+
+	//remote host has closed its side, FIN goes to the client once everything before it is acked
+	private boolean upstreamClosed = false;
 	
-	//sending buffer for storing data from vpn client to be send to destination host
+	//sending buffer for storing data from vpn client to be send to destination host, bounded by our receive window
 	private final ByteArrayOutputStream sendingStream;
-	
-	private boolean hasReceivedLastSegment = false;
+
+	//the last window advertised to the client was small, so an update is due once the buffer drains
+	private boolean windowUpdatePending = false;
+
+	//shift count of the window we advertise, negotiated on the SYN-ACK
+	private int receiveWindowScale = 0;
 	
 	//last packet received from client
 	private IPv4Header lastIpHeader;
@@ -83,15 +101,9 @@ public class Session {
 	//indicate data from client is ready for sending to destination
 	private volatile boolean isDataForSendingReady = false;
 	
-	//store data for retransmission
-	private byte[] unackData = null;
-	
 	//in ACK packet from client, if the previous packet was corrupted, client will send flag in options field
 	private boolean packetCorrupted = false;
 	
-	//track how many time a packet has been retransmitted => avoid loop
-	private int resendPacketCounter = 0;
-	
 	private int timestampSender = 0;
 	private int timestampReplyto = 0;
 	
@@ -101,7 +113,12 @@ public class Session {
 	//closing session and aborting connection, will be done by background task
 	private volatile boolean abortingConnection = false;
 	
-	private SelectionKey selectionkey = null;
+	//set by the selector thread that registers the channel
+	private volatile SelectionKey selectionkey = null;
+	//interest ops wanted on the selection key, applied by the selector thread that owns it
+	private final AtomicInteger interestOps = new AtomicInteger();
+	//waiting in the interest update queue of the selector thread
+	private final AtomicBoolean interestOpsQueued = new AtomicBoolean();
 	
 	public long connectionStartTime = 0;
 
@@ -114,7 +131,6 @@ public class Session {
 		int destinationPort,
 		ICloseSession sessionCloser
 	) {
-		receivingStream = new ByteArrayOutputStream();
 		sendingStream = new ByteArrayOutputStream();
 
 		this.sourceIp = sourceIp;
@@ -130,27 +146,31 @@ public class Session {
 	 * @param data Data
 	 */
 	public synchronized void addReceivedData(byte[] data){
-		try {
-			receivingStream.write(data);
-		} catch (IOException e) {
-			log.error("addReceivedData", e);
+		if (data.length > 0) {
+			receivingChunks.addLast(data);
+			receivingSize += data.length;
 		}
 	}
 
 	/**
-	 * get all data received in the buffer and empty it.
+	 * take up to maxSize bytes from the front of the buffer.
 	 * @return byte[]
 	 */
 	public synchronized byte[] getReceivedData(int maxSize){
-		byte[] data = receivingStream.toByteArray();
-		receivingStream.reset();
-		if(data.length > maxSize){
-			byte[] small = new byte[maxSize];
-			System.arraycopy(data, 0, small, 0, maxSize);
-			int len = data.length - maxSize;
-			receivingStream.write(data, maxSize, len);
-			data = small;
+		byte[] data = new byte[Math.min(maxSize, receivingSize)];
+		int copied = 0;
+		while (copied < data.length) {
+			byte[] chunk = receivingChunks.peekFirst();
+			int length = Math.min(chunk.length - receivingChunkOffset, data.length - copied);
+			System.arraycopy(chunk, receivingChunkOffset, data, copied, length);
+			copied += length;
+			receivingChunkOffset += length;
+			if (receivingChunkOffset == chunk.length) {
+				receivingChunks.removeFirst();
+				receivingChunkOffset = 0;
+			}
 		}
+		receivingSize -= data.length;
 		return data;
 	}
 
@@ -159,18 +179,85 @@ public class Session {
 	 * @return boolean
 	 */
 	public boolean hasReceivedData(){
-		return receivingStream.size() > 0;
+		return receivingSize > 0;
+	}
+
+	public int getReceivedDataSize() {
+		return receivingSize;
+	}
+
+	/**
+	 * the vpn client is far enough behind that reading more from the remote host would only grow the buffer
+	 */
+	public boolean isReceivingBufferFull() {
+		return receivingSize >= DataConst.MAX_RECEIVING_BUFFER_SIZE;
 	}
 
 	/**
-	 * set data to be sent to destination server
+	 * the remote host may be read from: it has not closed its side, and reads are not paused for the vpn client
+	 */
+	public boolean canReadUpstream() {
+		return !upstreamClosed && !readingPaused;
+	}
+
+	public void pauseReading() {
+		this.readingPaused = true;
+	}
+
+	/**
+	 * unpause reads from the remote host once the vpn client has taken half of the receiving buffer
+	 * @return true if reads were paused and can resume now
+	 */
+	public boolean resumeReading() {
+		if (readingPaused && receivingSize <= DataConst.MAX_RECEIVING_BUFFER_SIZE / 2) {
+			readingPaused = false;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * set data to be sent to destination server, as much of it as fits in the sending buffer
 	 * @param data Data to be sent
-	 * @return boolean Success or not
+	 * @return number of bytes taken, the vpn client has to resend the rest
 	 */
 	public synchronized int setSendingData(ByteBuffer data) {
-		final int remaining = data.remaining();
-		sendingStream.write(data.array(), data.position(), data.remaining());
-		return remaining;
+		final int length = Math.min(data.remaining(), getReceiveWindow());
+		sendingStream.write(data.array(), data.position(), length);
+		return length;
+	}
+
+	/**
+	 * free space in the sending buffer
+	 */
+	public int getReceiveWindow() {
+		return Math.max(0, DataConst.MAX_SENDING_BUFFER_SIZE - sendingStream.size());
+	}
+
+	/**
+	 * window field of the packets going to the vpn client
+	 */
+	public int getAdvertisedWindow() {
+		return Math.min(0xFFFF, getReceiveWindow() >> receiveWindowScale);
+	}
+
+	public int getReceiveWindowScale() {
+		return receiveWindowScale;
+	}
+
+	/**
+	 * @param receiveWindowScale shift count of our advertised window, 0 unless both SYNs carried the window scale option
+	 */
+	public void setReceiveWindowScale(int receiveWindowScale) {
+		this.receiveWindowScale = receiveWindowScale;
+	}
+
+	public boolean isWindowUpdatePending() {
+		return windowUpdatePending;
+	}
+
+	public void setWindowUpdatePending(boolean windowUpdatePending) {
+		this.windowUpdatePending = windowUpdatePending;
 	}
 
 	int getSendingDataSize(){
@@ -262,11 +349,15 @@ public class Session {
 		this.channel = channel;
 	}
 
-	public boolean hasReceivedLastSegment() {
-		return hasReceivedLastSegment;
+	public TCPSendWindow getSendWindow() {
+		return sendWindow;
+	}
+
+	public boolean isUpstreamClosed() {
+		return upstreamClosed;
 	}
-	public void setHasReceivedLastSegment(boolean hasReceivedLastSegment) {
-		this.hasReceivedLastSegment = hasReceivedLastSegment;
+	public void setUpstreamClosed(boolean upstreamClosed) {
+		this.upstreamClosed = upstreamClosed;
 	}
 	public synchronized IPv4Header getLastIpHeader() {
 		return lastIpHeader;
@@ -299,16 +390,9 @@ public class Session {
 	public void setDataForSendingReady(boolean isDataForSendingReady) {
 		this.isDataForSendingReady = isDataForSendingReady;
 	}
-	public void setUnackData(byte[] unackData) {
-		this.unackData = unackData;
-	}
-	
 	void setPacketCorrupted(boolean packetCorrupted) {
 		this.packetCorrupted = packetCorrupted;
 	}
-	public void setResendPacketCounter(int resendPacketCounter) {
-		this.resendPacketCounter = resendPacketCounter;
-	}
 	public int getTimestampSender() {
 		return timestampSender;
 	}
@@ -339,26 +423,59 @@ public class Session {
 	}
 
 	public void cancelKey() {
-		synchronized (this.selectionkey) {
-			if (!this.selectionkey.isValid()) return;
-			this.selectionkey.cancel();
+		SelectionKey key = this.selectionkey;
+		if (key == null) return;
+		synchronized (key) {
+			if (!key.isValid()) return;
+			key.cancel();
 		}
 	}
 
+	/**
+	 * Add to the interest ops. The change only reaches the selection key when the selector thread applies it:
+	 * right after it processed this session, or when asked to through SocketNIODataService.refreshSelect.
+	 */
 	public void subscribeKey(int OP) {
-		synchronized (this.selectionkey) {
-			if (!this.selectionkey.isValid()) return;
-			this.selectionkey.interestOps(this.selectionkey.interestOps() | OP);
-		}
+		this.interestOps.getAndUpdate(ops -> ops | OP);
 	}
 
+	/**
+	 * Remove from the interest ops, see {@link #subscribeKey(int)}.
+	 */
 	public void unsubscribeKey(int OP) {
-		synchronized (this.selectionkey) {
-			if (!this.selectionkey.isValid()) return;
-			this.selectionkey.interestOps(this.selectionkey.interestOps() & ~OP);
+		this.interestOps.getAndUpdate(ops -> ops & ~OP);
+	}
+
+	public int getInterestOps() {
+		return interestOps.get();
+	}
+
+	/**
+	 * Bring the selection key up to date with the interest ops. Only called by the selector thread owning the key.
+	 */
+	public void applyInterestOps() {
+		SelectionKey key = this.selectionkey;
+		if (key == null) return;
+		synchronized (key) {
+			if (!key.isValid()) return;
+			int ops = interestOps.get();
+			if (key.interestOps() != ops) {
+				key.interestOps(ops);
+			}
 		}
 	}
 
+	/**
+	 * @return true if the session was not queued for an interest ops update yet, and the caller must queue it
+	 */
+	public boolean markInterestOpsQueued() {
+		return interestOpsQueued.compareAndSet(false, true);
+	}
+
+	public void clearInterestOpsQueued() {
+		interestOpsQueued.set(false);
+	}
+
 	public void closeSession() {
 		this.sessionCloser.closeSession(this);
 	}
@@ -19,16 +19,18 @@ package tech.httptoolkit.android.vpn;
 import com.github.netguard.vpn.IPacketCapture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import tech.httptoolkit.android.vpn.socket.DataConst;
 import tech.httptoolkit.android.vpn.socket.SocketNIODataService;
 import tech.httptoolkit.android.vpn.transport.PacketHeaderException;
 import tech.httptoolkit.android.vpn.transport.icmp.ICMPPacket;
 import tech.httptoolkit.android.vpn.transport.icmp.ICMPPacketFactory;
 import tech.httptoolkit.android.vpn.transport.ip.IPPacketFactory;
 import tech.httptoolkit.android.vpn.transport.ip.IPv4Header;
+import tech.httptoolkit.android.vpn.transport.ip.IPv4HeaderView;
 import tech.httptoolkit.android.vpn.transport.tcp.TCPHeader;
+import tech.httptoolkit.android.vpn.transport.tcp.TCPHeaderView;
 import tech.httptoolkit.android.vpn.transport.tcp.TCPPacketFactory;
-import tech.httptoolkit.android.vpn.transport.udp.UDPHeader;
-import tech.httptoolkit.android.vpn.transport.udp.UDPPacketFactory;
+import tech.httptoolkit.android.vpn.transport.udp.UDPHeaderView;
 import tech.httptoolkit.android.vpn.util.PacketUtil;
 
 import java.io.IOException;
@@ -52,6 +54,13 @@ public class SessionHandler {
 	private final ExecutorService pingThreadPool;
 	private final IPacketCapture packetCapture;
 
+	// handlePacket is called from the single VPN read thread, so the header views are reused for every packet
+	private final IPv4HeaderView ipView = new IPv4HeaderView();
+	private final TCPHeaderView tcpView = new TCPHeaderView();
+	private final UDPHeaderView udpView = new UDPHeaderView();
+	// SACK block edges of the current packet, at most 4 blocks fit in the options
+	private final int[] sackEdges = new int[8];
+
 	public SessionHandler(SessionManager manager, SocketNIODataService nioService, ClientPacketWriter writer, ExecutorService pingThreadPool, IPacketCapture packetCapture) {
 		this.manager = manager;
 		this.nioService = nioService;
@@ -66,11 +75,14 @@ public class SessionHandler {
 	 * @param stream ByteBuffer to be read
 	 */
 	public void handlePacket(ByteBuffer stream) throws PacketHeaderException, IOException {
-		final byte[] rawPacket = new byte[stream.limit()];
-		stream.get(rawPacket, 0, stream.limit());
-		stream.rewind();
+		byte[] rawPacket = null;
+		if (packetCapture != null) {
+			rawPacket = new byte[stream.limit()];
+			stream.get(rawPacket, 0, stream.limit());
+			stream.rewind();
+		}
 
-		final IPv4Header ipHeader = IPPacketFactory.createIPv4Header(stream);
+		final IPv4HeaderView ipHeader = ipView.wrap(stream);
 
 		boolean handled = false;
 		if (ipHeader.getProtocol() == 6) {
@@ -80,7 +92,7 @@ public class SessionHandler {
 			handleUDPPacket(stream, ipHeader);
 			handled = true;
 		} else if (ipHeader.getProtocol() == 1) {
-			handleICMPPacket(stream, ipHeader);
+			handleICMPPacket(stream, ipHeader.toHeader());
 			handled = true;
 		} else {
 			log.warn("Unsupported IP protocol: {}", ipHeader.getProtocol());
@@ -90,8 +102,8 @@ public class SessionHandler {
 		}
 	}
 
-	private void handleUDPPacket(ByteBuffer clientPacketData, IPv4Header ipHeader) throws PacketHeaderException, IOException {
-		UDPHeader udpheader = UDPPacketFactory.createUDPHeader(clientPacketData);
+	private void handleUDPPacket(ByteBuffer clientPacketData, IPv4HeaderView ipHeader) throws PacketHeaderException, IOException {
+		UDPHeaderView udpheader = udpView.wrap(clientPacketData);
 
 		Session session = manager.getSession(
 			ipHeader.getDestinationIP(), udpheader.getDestinationPort(),
@@ -108,8 +120,9 @@ public class SessionHandler {
 		}
 
 		synchronized (session) {
-			session.setLastIpHeader(ipHeader);
-			session.setLastUdpHeader(udpheader);
+			// the session keeps its own copy of the last headers, overwritten in place
+			session.setLastIpHeader(ipHeader.copyTo(session.getLastIpHeader()));
+			session.setLastUdpHeader(udpheader.copyTo(session.getLastUdpHeader()));
 			manager.addClientData(clientPacketData, session);
 			session.setDataForSendingReady(true);
 
@@ -124,33 +137,37 @@ public class SessionHandler {
 		manager.keepSessionAlive(session);
 	}
 
-	private void handleTCPPacket(ByteBuffer clientPacketData, IPv4Header ipHeader) throws PacketHeaderException, IOException {
-		TCPHeader tcpheader = TCPPacketFactory.createTCPHeader(clientPacketData);
+	private void handleTCPPacket(ByteBuffer clientPacketData, IPv4HeaderView ipView) throws PacketHeaderException, IOException {
+		TCPHeaderView tcpView = this.tcpView.wrap(clientPacketData);
 		int dataLength = clientPacketData.limit() - clientPacketData.position();
-		int sourceIP = ipHeader.getSourceIP();
-		int destinationIP = ipHeader.getDestinationIP();
-		int sourcePort = tcpheader.getSourcePort();
-		int destinationPort = tcpheader.getDestinationPort();
+		int sourceIP = ipView.getSourceIP();
+		int destinationIP = ipView.getDestinationIP();
+		int sourcePort = tcpView.getSourcePort();
+		int destinationPort = tcpView.getDestinationPort();
 
-		if (tcpheader.isSYN()) {
+		if (tcpView.isSYN()) {
 			// 3-way handshake + create new session
-			replySynAck(ipHeader,tcpheader);
-		} else if(tcpheader.isACK()) {
-			String key = Session.getSessionKey(destinationIP, destinationPort, sourceIP, sourcePort);
-			Session session = manager.getSessionByKey(key);
+			replySynAck(ipView.toHeader(), tcpView.toHeader());
+		} else if(tcpView.isACK()) {
+			Session session = manager.getSession(destinationIP, destinationPort, sourceIP, sourcePort);
 
 			if (session == null) {
-				log.debug("Ack for unknown session: {}", key);
-				if (tcpheader.isFIN()) {
-					sendLastAck(ipHeader, tcpheader);
-				} else if (!tcpheader.isRST()) {
-					sendRstPacket(ipHeader, tcpheader, dataLength);
+				if (log.isDebugEnabled()) {
+					log.debug("Ack for unknown session: {}", Session.getSessionKey(destinationIP, destinationPort, sourceIP, sourcePort));
+				}
+				if (tcpView.isFIN()) {
+					sendLastAck(ipView.toHeader(), tcpView.toHeader());
+				} else if (!tcpView.isRST()) {
+					sendRstPacket(ipView.toHeader(), tcpView.toHeader(), dataLength);
 				}
 
 				return;
 			}
 
 			synchronized (session) {
+				// the session keeps its own copy of the last headers, overwritten in place
+				IPv4Header ipHeader = ipView.copyTo(session.getLastIpHeader());
+				TCPHeader tcpheader = tcpView.copyTo(session.getLastTcpHeader());
 				session.setLastIpHeader(ipHeader);
 				session.setLastTcpHeader(tcpheader);
 
@@ -161,8 +178,12 @@ public class SessionHandler {
 						int addedLength = manager.addClientData(clientPacketData, session);
 						//send ack to client only if new data was added
 						sendAck(ipHeader, tcpheader, addedLength, session);
+						if (session.isWindowUpdatePending() && !tcpheader.isPSH()) {
+							// the buffer is filling up without a PSH, write it out before the window closes
+							pushDataToDestination(session, tcpheader);
+						}
 					} else {
-						sendAckForDisorder(ipHeader, tcpheader, dataLength);
+						sendAckForDisorder(ipHeader, tcpheader, dataLength, session);
 					}
 				} else {
 					//an ack from client for previously sent data
@@ -176,6 +197,19 @@ public class SessionHandler {
 						log.debug("got last ACK after FIN, session is now closed.");
 					}
 				}
+				// the client's ACK and window move the send window along, which may free room for more data
+				if (!tcpheader.isRST()) {
+					TCPSendWindow sendWindow = session.getSendWindow();
+					long now = System.currentTimeMillis();
+					sendWindow.onSelectiveAck(sackEdges, tcpView.getSelectiveAckBlocks(sackEdges));
+					sendWindow.onAck(session, writer, tcpheader.getAckNumber(), tcpheader.getWindowSize(),
+							dataLength == 0 && !tcpheader.isFIN(), now);
+					sendWindow.push(session, writer, now);
+					if (sendWindow.isActive(session)) {
+						nioService.trackSending(session);
+					}
+					nioService.resumeReadIfDrained(session);
+				}
 				//received the last segment of data from vpn client
 				if (tcpheader.isPSH()) {
 					// Tell the NIO thread to immediately send data to the destination
@@ -186,26 +220,26 @@ public class SessionHandler {
 					log.debug("FIN from vpn client, will ack it.");
 					ackFinAck(ipHeader, tcpheader, session);
 				} else if (tcpheader.isRST()) {
-					resetConnection(ipHeader, tcpheader);
+					resetConnection(destinationIP, destinationPort, sourceIP, sourcePort);
 				}
 
 				if (!session.isAbortingConnection()) {
 					manager.keepSessionAlive(session);
 				}
 			}
-		} else if(tcpheader.isFIN()){
+		} else if(tcpView.isFIN()){
 			//case client sent FIN without ACK
 			Session session = manager.getSession(destinationIP, destinationPort, sourceIP, sourcePort);
 			if(session == null)
-				ackFinAck(ipHeader, tcpheader, null);
+				ackFinAck(ipView.toHeader(), tcpView.toHeader(), null);
 			else
 				manager.keepSessionAlive(session);
 
-		} else if(tcpheader.isRST()){
-			resetConnection(ipHeader, tcpheader);
-		} else {
+		} else if(tcpView.isRST()){
+			resetConnection(destinationIP, destinationPort, sourceIP, sourcePort);
+		} else if (log.isDebugEnabled()) {
 			log.debug("unknown TCP flag");
-			String str1 = PacketUtil.getOutput(ipHeader, tcpheader, clientPacketData.array());
+			String str1 = PacketUtil.getOutput(ipView.toHeader(), tcpView.toHeader(), clientPacketData.array());
 			log.debug(">>>>>>>> Received from client <<<<<<<<<<");
 			log.debug(str1);
 			log.debug(">>>>>>>>>>>>>>>>>>>end receiving from client>>>>>>>>>>>>>>>>>>>>>");
@@ -222,7 +256,7 @@ public class SessionHandler {
 	}
 
 	private void sendLastAck(IPv4Header ip, TCPHeader tcp){
-		byte[] data = TCPPacketFactory.createResponseAckData(ip, tcp, tcp.getSequenceNumber()+1);
+		byte[] data = TCPPacketFactory.createResponseAckData(ip, tcp, tcp.getSequenceNumber()+1, 0);
 
 		writer.write(data);
 		if (log.isDebugEnabled()) {
@@ -233,7 +267,8 @@ public class SessionHandler {
 	private void ackFinAck(IPv4Header ip, TCPHeader tcp, Session session){
 		long ack = tcp.getSequenceNumber() + 1;
 		long seq = tcp.getAckNumber();
-		byte[] data = TCPPacketFactory.createFinAckData(ip, tcp, ack, seq, true, true);
+		byte[] data = TCPPacketFactory.createFinAckData(ip, tcp, ack, seq, true, true,
+				session == null ? 0 : session.getAdvertisedWindow());
 
 		writer.write(data);
 		if(session != null){
@@ -247,7 +282,7 @@ public class SessionHandler {
 	private void sendFinAck(IPv4Header ip, TCPHeader tcp, Session session){
 		final long ack = tcp.getSequenceNumber();
 		final long seq = tcp.getAckNumber();
-		final byte[] data = TCPPacketFactory.createFinAckData(ip, tcp, ack, seq,true,false);
+		final byte[] data = TCPPacketFactory.createFinAckData(ip, tcp, ack, seq,true,false, session.getAdvertisedWindow());
 		final ByteBuffer stream = ByteBuffer.wrap(data);
 
 		writer.write(data);
@@ -299,7 +334,12 @@ public class SessionHandler {
 	private void sendAck(IPv4Header ipheader, TCPHeader tcpheader, int acceptedDataLength, Session session){
 		long acknumber = session.getRecSequence() + acceptedDataLength;
 		session.setRecSequence(acknumber);
-		byte[] data = TCPPacketFactory.createResponseAckData(ipheader, tcpheader, acknumber);
+		int window = session.getReceiveWindow();
+		if (window < DataConst.MAX_SENDING_BUFFER_SIZE / 4) {
+			// the client is about to stall on a small window, tell it as soon as the buffer drains
+			session.setWindowUpdatePending(true);
+		}
+		byte[] data = TCPPacketFactory.createResponseAckData(ipheader, tcpheader, acknumber, session.getAdvertisedWindow());
 
 		writer.write(data);
 	}
@@ -313,15 +353,16 @@ public class SessionHandler {
 		byte[] data = TCPPacketFactory.createResponseAckData(
 				session.getLastIpHeader(),
 				session.getLastTcpHeader(),
-				session.getRecSequence()
+				session.getRecSequence(),
+				session.getAdvertisedWindow()
 		);
 		writer.write(data);
 	}
 
-	private void sendAckForDisorder(IPv4Header ipHeader, TCPHeader tcpheader, int acceptedDataLength) {
+	private void sendAckForDisorder(IPv4Header ipHeader, TCPHeader tcpheader, int acceptedDataLength, Session session) {
 		long ackNumber = tcpheader.getSequenceNumber() + acceptedDataLength;
 		log.debug("sent disorder ack, ack# {} + {} = {}", tcpheader.getSequenceNumber(), acceptedDataLength, ackNumber);
-		byte[] data = TCPPacketFactory.createResponseAckData(ipHeader, tcpheader, ackNumber);
+		byte[] data = TCPPacketFactory.createResponseAckData(ipHeader, tcpheader, ackNumber, session.getAdvertisedWindow());
 
 		writer.write(data);
 	}
@@ -339,9 +380,10 @@ public class SessionHandler {
 			log.debug("prev packet was corrupted, last ack# {}", tcpHeader.getAckNumber());
 		}
 
+		// compare modulo 2^32, sequence numbers wrap
 		if (
-			tcpHeader.getAckNumber() > session.getSendUnack() ||
-			tcpHeader.getAckNumber() == session.getSendNext()
+			(int) (tcpHeader.getAckNumber() - session.getSendUnack()) > 0 ||
+			(int) tcpHeader.getAckNumber() == (int) session.getSendNext()
 		) {
 			session.setAcked(true);
 
@@ -358,14 +400,13 @@ public class SessionHandler {
 
 	/**
 	 * set connection as aborting so that background worker will close it.
-	 * @param ip IP
-	 * @param tcp TCP
+	 * @param ip Destination IP Address
+	 * @param port Destination Port
+	 * @param srcIp Source IP Address
+	 * @param srcPort Source Port
 	 */
-	private void resetConnection(IPv4Header ip, TCPHeader tcp){
-		Session session = manager.getSession(
-			ip.getDestinationIP(), tcp.getDestinationPort(),
-			ip.getSourceIP(), tcp.getSourcePort()
-		);
+	private void resetConnection(int ip, int port, int srcIp, int srcPort){
+		Session session = manager.getSession(ip, port, srcIp, srcPort);
 		if(session != null){
 			synchronized (session) {
 				session.setAbortingConnection(true);
@@ -380,7 +421,8 @@ public class SessionHandler {
 	 */
 	private void replySynAck(IPv4Header ip, TCPHeader tcp) throws IOException {
 		ip.setIdentification(0);
-		Packet packet = TCPPacketFactory.createSynAckPacketData(ip, tcp);
+		Packet packet = TCPPacketFactory.createSynAckPacketData(ip, tcp,
+				Math.min(0xFFFF, DataConst.MAX_SENDING_BUFFER_SIZE), DataConst.RECEIVE_WINDOW_SCALE);
 		
 		TCPHeader tcpheader = (TCPHeader) packet.getTransportHeader();
 		
@@ -403,6 +445,13 @@ public class SessionHandler {
 			session.setSendNext(tcpheader.getSequenceNumber() + 1);
 			//client initial sequence has been incremented by 1 and set to ack
 			session.setRecSequence(tcpheader.getAckNumber());
+			// both SYNs carry the window scale option or neither window is scaled (RFC 7323)
+			if (tcp.hasWindowScale()) {
+				session.setReceiveWindowScale(DataConst.RECEIVE_WINDOW_SCALE);
+				session.getSendWindow().init(tcp.getWindowSize(), tcp.getWindowScale());
+			} else {
+				session.getSendWindow().init(tcp.getWindowSize(), 0);
+			}
 
 			session.setLastIpHeader(ip);
 			session.setLastTcpHeader(tcp);
@@ -31,8 +31,6 @@ import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.AbstractSelectableChannel;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Manage in-memory storage for VPN client session.
@@ -43,7 +41,7 @@ public class SessionManager implements ICloseSession {
 
 	private static final Logger log = LoggerFactory.getLogger(SessionManager.class);
 
-	private final Map<String, Session> table = new ConcurrentHashMap<>();
+	private final SessionTable table = new SessionTable();
 
 	private final PortRedirector portRedirector;
 
@@ -57,9 +55,7 @@ public class SessionManager implements ICloseSession {
 	 */
 	public void keepSessionAlive(Session session) {
 		if(session != null){
-			String key = Session.getSessionKey(session.getDestIp(), session.getDestPort(),
-					session.getSourceIp(), session.getSourcePort());
-			table.put(key, session);
+			table.put(session);
 		}
 	}
 
@@ -71,22 +67,21 @@ public class SessionManager implements ICloseSession {
 	public int addClientData(ByteBuffer buffer, Session session) {
 		if (buffer.limit() <= buffer.position())
 			return 0;
-		//appending data to buffer
+		if (session.getChannel() instanceof DatagramChannel && buffer.remaining() > session.getReceiveWindow()) {
+			// a datagram is sent whole or not at all, drop it while the remote host is behind
+			log.debug("sending buffer full, dropping {} byte datagram for {}", buffer.remaining(), session);
+			return 0;
+		}
+		//appending data to buffer, TCP data that doesn't fit is left unacked for the client to resend
 		return session.setSendingData(buffer);
 	}
 
 	public Session getSession(int ip, int port, int srcIp, int srcPort) {
-		String key = Session.getSessionKey(ip, port, srcIp, srcPort);
-
-		return getSessionByKey(key);
+		return table.get(ip, port, srcIp, srcPort);
 	}
 
-	public Session getSessionByKey(String key) {
-		if (table.containsKey(key)) {
-			return table.get(key);
-		}
-
-		return null;
+	public int getSessionCount() {
+		return table.size();
 	}
 
 	/**
@@ -97,13 +92,12 @@ public class SessionManager implements ICloseSession {
 	 * @param srcPort Source Port
 	 */
 	public void closeSession(int ip, int port, int srcIp, int srcPort){
-		String key = Session.getSessionKey(ip, port, srcIp, srcPort);
-		Session session = table.remove(key);
+		Session session = table.remove(ip, port, srcIp, srcPort);
 
 		if(session != null){
 			AbstractSelectableChannel channel = session.getChannel();
 			IoUtil.close(channel);
-			log.debug("closed session -> {}", key);
+			log.debug("closed session -> {}", session);
 		}
 	}
 
@@ -114,11 +108,9 @@ public class SessionManager implements ICloseSession {
 	}
 
 	public Session createNewUDPSession(int ip, int port, int srcIp, int srcPort) throws IOException {
-		String keys = Session.getSessionKey(ip, port, srcIp, srcPort);
-
 		// For TCP, we freak out if you try to create an already existing session.
 		// With UDP though, it's totally fine:
-		Session existingSession = table.get(keys);
+		Session existingSession = table.get(ip, port, srcIp, srcPort);
 		if (existingSession != null) return existingSession;
 
 		Session session = new Session(srcIp, srcPort, ip, port, this);
@@ -146,16 +138,14 @@ public class SessionManager implements ICloseSession {
 		channel.connect(socketAddress);
 		session.setConnected(channel.isConnected());
 
-		table.put(keys, session);
+		table.put(session);
 
 		log.debug("new UDP session successfully created.");
 		return session;
 	}
 
 	public Session createNewTCPSession(int ip, int port, int srcIp, int srcPort) throws IOException {
-		String key = Session.getSessionKey(ip, port, srcIp, srcPort);
-
-		Session existingSession = table.get(key);
+		Session existingSession = table.get(ip, port, srcIp, srcPort);
 
 		// This can happen if we receive two SYN packets somehow. That shouldn't happen,
 		// given that our connection is local & should be 100% reliable, but it can.
@@ -174,7 +164,7 @@ public class SessionManager implements ICloseSession {
 
 		String ips = PacketUtil.intToIPAddress(ip);
 		String srcIps = PacketUtil.intToIPAddress(srcIp);
-		log.debug("created new SocketChannel for {}", key);
+		log.debug("created new SocketChannel for {}", session);
 
 		log.debug("Protected new SocketChannel");
 
@@ -195,7 +185,7 @@ public class SessionManager implements ICloseSession {
 		boolean connected = channel.connect(socketAddress);
 		session.setConnected(connected);
 
-		table.put(key, session);
+		table.put(session);
 
 		return session;
 	}
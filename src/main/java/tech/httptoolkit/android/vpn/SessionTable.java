@@ -0,0 +1,149 @@
+package tech.httptoolkit.android.vpn;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Open-addressing session table keyed on the IPv4 4-tuple, so the per-packet lookup builds no key.
+ * Both addresses pack into one long and both ports into one int. The slots hold the sessions themselves,
+ * which are matched against their final address fields.
+ * Lookups are lock-free; inserts and removals synchronize on the table and publish a fresh slot array on resize.
+ */
+final class SessionTable {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	/**
+	 * Marks a removed entry, so that probe chains running through it stay intact.
+	 */
+	private static final Object TOMBSTONE = new Object();
+
+	private volatile AtomicReferenceArray<Object> slots = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+
+	// guarded by this
+	private int size;
+	// live entries plus tombstones, guarded by this
+	private int used;
+
+	static long addressKey(int destIp, int sourceIp) {
+		return ((long) sourceIp << 32) | (destIp & 0xffffffffL);
+	}
+
+	static int portKey(int destPort, int sourcePort) {
+		return (sourcePort << 16) | (destPort & 0xffff);
+	}
+
+	private static int hash(int destIp, int destPort, int sourceIp, int sourcePort) {
+		long h = addressKey(destIp, sourceIp) * 0x9E3779B97F4A7C15L;
+		h ^= portKey(destPort, sourcePort) * 0xC2B2AE3D27D4EB4FL;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	private static boolean matches(Session session, int destIp, int destPort, int sourceIp, int sourcePort) {
+		return session.getDestIp() == destIp && session.getDestPort() == destPort &&
+				session.getSourceIp() == sourceIp && session.getSourcePort() == sourcePort;
+	}
+
+	Session get(int destIp, int destPort, int sourceIp, int sourcePort) {
+		AtomicReferenceArray<Object> slots = this.slots;
+		int mask = slots.length() - 1;
+		// the table is never more than half used, so every probe ends at an empty slot
+		for (int i = hash(destIp, destPort, sourceIp, sourcePort) & mask; ; i = (i + 1) & mask) {
+			Object slot = slots.get(i);
+			if (slot == null) {
+				return null;
+			}
+			if (slot != TOMBSTONE && matches((Session) slot, destIp, destPort, sourceIp, sourcePort)) {
+				return (Session) slot;
+			}
+		}
+	}
+
+	/**
+	 * @return the session previously stored for the same 4-tuple, or null
+	 */
+	synchronized Session put(Session session) {
+		int destIp = session.getDestIp();
+		int destPort = session.getDestPort();
+		int sourceIp = session.getSourceIp();
+		int sourcePort = session.getSourcePort();
+		AtomicReferenceArray<Object> slots = this.slots;
+		int mask = slots.length() - 1;
+		int free = -1;
+		int i = hash(destIp, destPort, sourceIp, sourcePort) & mask;
+		for (; ; i = (i + 1) & mask) {
+			Object slot = slots.get(i);
+			if (slot == null) {
+				break;
+			}
+			if (slot == TOMBSTONE) {
+				if (free < 0) {
+					free = i;
+				}
+			} else if (matches((Session) slot, destIp, destPort, sourceIp, sourcePort)) {
+				if (slot != session) {
+					slots.set(i, session);
+				}
+				return (Session) slot;
+			}
+		}
+		if (free < 0) {
+			free = i;
+			used++;
+		}
+		slots.set(free, session);
+		size++;
+		if (used * 2 > slots.length()) {
+			resize();
+		}
+		return null;
+	}
+
+	synchronized Session remove(int destIp, int destPort, int sourceIp, int sourcePort) {
+		AtomicReferenceArray<Object> slots = this.slots;
+		int mask = slots.length() - 1;
+		for (int i = hash(destIp, destPort, sourceIp, sourcePort) & mask; ; i = (i + 1) & mask) {
+			Object slot = slots.get(i);
+			if (slot == null) {
+				return null;
+			}
+			if (slot != TOMBSTONE && matches((Session) slot, destIp, destPort, sourceIp, sourcePort)) {
+				slots.set(i, TOMBSTONE);
+				size--;
+				return (Session) slot;
+			}
+		}
+	}
+
+	synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Rehashes the live entries into a table at most a quarter full, dropping the tombstones.
+	 * Readers still probing the old array see it unchanged.
+	 */
+	private void resize() {
+		AtomicReferenceArray<Object> old = this.slots;
+		int capacity = INITIAL_CAPACITY;
+		while (capacity < size * 4) {
+			capacity <<= 1;
+		}
+		AtomicReferenceArray<Object> slots = new AtomicReferenceArray<>(capacity);
+		int mask = capacity - 1;
+		for (int j = 0; j < old.length(); j++) {
+			Object slot = old.get(j);
+			if (slot == null || slot == TOMBSTONE) {
+				continue;
+			}
+			Session session = (Session) slot;
+			int i = hash(session.getDestIp(), session.getDestPort(), session.getSourceIp(), session.getSourcePort()) & mask;
+			while (slots.get(i) != null) {
+				i = (i + 1) & mask;
+			}
+			slots.set(i, session);
+		}
+		used = size;
+		this.slots = slots;
+	}
+
+}
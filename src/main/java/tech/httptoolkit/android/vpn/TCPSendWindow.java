@@ -0,0 +1,353 @@
+package tech.httptoolkit.android.vpn;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tech.httptoolkit.android.vpn.transport.ip.IPv4Header;
+import tech.httptoolkit.android.vpn.transport.tcp.TCPHeader;
+import tech.httptoolkit.android.vpn.transport.tcp.TCPPacketFactory;
+
+import java.util.ArrayDeque;
+
+/**
+ * Sliding-window sender for the data going back to the VPN client. As many segments as the client's
+ * advertised (scaled) window allows are in flight at once, and each stays queued until it is acked.
+ * The oldest segment is resent when the retransmission timer expires (RFC 6298) or after three duplicate ACKs,
+ * and until everything sent before the loss is acked, every partial ACK resends the next hole (NewReno, RFC 6582).
+ * When the client sends SACK blocks (RFC 2018), three selectively acked segments also start the recovery,
+ * and every hole below the highest SACKed segment is resent once per recovery instead of one per round trip (RFC 6675).
+ * <br/>
+ * Not thread safe: every call is made with the owning session locked.
+ */
+public class TCPSendWindow {
+
+	private static final Logger log = LoggerFactory.getLogger(TCPSendWindow.class);
+
+	static final long INITIAL_RTO_MILLIS = 1000;
+	static final long MIN_RTO_MILLIS = 200;
+	static final long MAX_RTO_MILLIS = 60_000;
+	static final int DUPLICATE_ACK_THRESHOLD = 3;
+	//give up on a connection once its oldest segment has been sent this many times
+	static final int MAX_TRANSMISSIONS = 10;
+
+	private static final int DEFAULT_MAX_SEGMENT_SIZE = 536;
+
+	private static final class Segment {
+		final long sequence;
+		//packet as last sent, replaced by a patched copy for retransmissions
+		byte[] packet;
+		final int length;
+		long sentAt;
+		int transmissions = 1;
+		//covered by a SACK block, the client has it even though the cumulative ACK is behind it
+		boolean sacked = false;
+		//recovery in which this segment was last retransmitted
+		int recoveryEpoch = 0;
+
+		Segment(long sequence, byte[] packet, int length, long sentAt) {
+			this.sequence = sequence;
+			this.packet = packet;
+			this.length = length;
+			this.sentAt = sentAt;
+		}
+
+		long end() {
+			return sequence + length;
+		}
+	}
+
+	private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+	private int bytesInFlight = 0;
+
+	//client's receive window in bytes, already scaled
+	private long clientWindow = 0xFFFF;
+	//shift applied to window fields after the SYN, 0 unless both sides sent the window scale option
+	private int windowScale = 0;
+
+	private int duplicateAcks = 0;
+	//in loss recovery until the ACK reaches the recovery point
+	private boolean inRecovery = false;
+	private long recoveryPoint = 0;
+	private int recoveryEpoch = 0;
+
+	//SACK scoreboard: number of sacked segments, and the end of the highest one when there are any
+	private int sackedSegments = 0;
+	private long sackedEnd = 0;
+
+	private long smoothedRtt = -1;
+	private long rttVariance = 0;
+	private long rto = INITIAL_RTO_MILLIS;
+	//retransmission or persist timer, 0 when not armed
+	private long timerDeadline = 0;
+
+	private long retransmissions = 0;
+
+	/**
+	 * @param windowSize window field of the client's SYN, which is never scaled
+	 * @param windowScale negotiated shift count, or 0 when window scaling is not in use
+	 */
+	void init(int windowSize, int windowScale) {
+		this.clientWindow = windowSize & 0xFFFF;
+		this.windowScale = Math.max(0, Math.min(14, windowScale));
+	}
+
+	public boolean isEmpty() {
+		return segments.isEmpty();
+	}
+
+	public int getBytesInFlight() {
+		return bytesInFlight;
+	}
+
+	long getClientWindow() {
+		return clientWindow;
+	}
+
+	long getRto() {
+		return rto;
+	}
+
+	public long getRetransmissions() {
+		return retransmissions;
+	}
+
+	/**
+	 * @return true while there is data in flight or queued, or a FIN still to send, so the timer must keep running
+	 */
+	public boolean isActive(Session session) {
+		return !segments.isEmpty() || session.hasReceivedData() || session.isUpstreamClosed();
+	}
+
+	/**
+	 * send the queued data from the remote host as far as the client's window allows.
+	 * @return number of segments sent
+	 */
+	public int push(Session session, ClientPacketWriter writer, long now) {
+		IPv4Header ipHeader = session.getLastIpHeader();
+		TCPHeader tcpHeader = session.getLastTcpHeader();
+		if (ipHeader == null || tcpHeader == null) {
+			return 0;
+		}
+		final int segmentSize = getSegmentSize(session, ipHeader);
+		int sent = 0;
+		while (session.hasReceivedData()) {
+			long usable = clientWindow - bytesInFlight;
+			int size = Math.min(segmentSize, session.getReceivedDataSize());
+			if (usable < size) {
+				// avoid the silly window syndrome: a short segment only goes out when nothing is in flight,
+				// and a closed window is probed from the timer
+				if (usable <= 0 || !segments.isEmpty()) {
+					break;
+				}
+				size = (int) usable;
+			}
+			send(session, writer, session.getReceivedData(size), now);
+			sent++;
+		}
+		if (timerDeadline == 0 && (!segments.isEmpty() || session.hasReceivedData())) {
+			timerDeadline = now + rto;
+		}
+		return sent;
+	}
+
+	/**
+	 * mark the segments covered by the SACK blocks of a packet from the client, before its ACK is processed
+	 * @param edges left and right edge of each block, the right edge being exclusive
+	 * @param blocks number of blocks in edges
+	 */
+	public void onSelectiveAck(int[] edges, int blocks) {
+		for (int i = 0; i < blocks; i++) {
+			final int left = edges[2 * i];
+			final int right = edges[2 * i + 1];
+			for (Segment segment : segments) {
+				if ((int) (segment.end() - right) > 0) {
+					break;
+				}
+				if (!segment.sacked && (int) (segment.sequence - left) >= 0) {
+					segment.sacked = true;
+					if (sackedSegments++ == 0 || (int) (segment.end() - sackedEnd) > 0) {
+						sackedEnd = segment.end();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * process the acknowledgment number and window of a packet from the client.
+	 * @param pureAck the packet carries no data, so it counts as a duplicate ACK when nothing changed
+	 */
+	public void onAck(Session session, ClientPacketWriter writer, long ackNumber, int windowSize, boolean pureAck, long now) {
+		if ((int) (ackNumber - session.getSendNext()) > 0) {
+			log.debug("ACK for unsent data, ack# {} sendNext: {}", ackNumber, session.getSendNext());
+			return;
+		}
+		final long window = (long) (windowSize & 0xFFFF) << windowScale;
+		Segment oldest = segments.peekFirst();
+		int advance = oldest == null ? 0 : (int) (ackNumber - oldest.sequence);
+		if (advance < 0) {
+			// an old ACK, its window is stale too
+			return;
+		}
+
+		if (advance > 0) {
+			Segment newestSample = null;
+			Segment segment;
+			while ((segment = segments.peekFirst()) != null && (int) (ackNumber - segment.end()) >= 0) {
+				segments.removeFirst();
+				bytesInFlight -= segment.length;
+				if (segment.sacked) {
+					sackedSegments--;
+				}
+				// Karn's algorithm: retransmitted segments give ambiguous samples
+				if (segment.transmissions == 1) {
+					newestSample = segment;
+				}
+			}
+			if (newestSample != null && !inRecovery) {
+				updateRto(now - newestSample.sentAt);
+			}
+			duplicateAcks = 0;
+			if (inRecovery && (int) (ackNumber - recoveryPoint) >= 0) {
+				inRecovery = false;
+			}
+			timerDeadline = segments.isEmpty() && !session.hasReceivedData() ? 0 : now + rto;
+		} else if (oldest != null && pureAck && window == clientWindow) {
+			duplicateAcks++;
+		}
+		clientWindow = window;
+
+		if (segments.isEmpty()) {
+			return;
+		}
+		if (!inRecovery && (duplicateAcks >= DUPLICATE_ACK_THRESHOLD || sackedSegments >= DUPLICATE_ACK_THRESHOLD)) {
+			log.debug("fast retransmit seq# {} after {} duplicate ACKs, {} SACKed segments: {}",
+					segments.peekFirst().sequence, duplicateAcks, sackedSegments, session);
+			enterRecovery(session);
+		}
+		if (inRecovery) {
+			// a partial ACK means the next segment was lost as well
+			repairHoles(session, writer, now);
+		}
+	}
+
+	/**
+	 * resend the lost segments not yet resent in this recovery: without SACK information only the oldest is known
+	 * to be lost, with it every segment below the highest SACKed one that the client has not got
+	 */
+	private void repairHoles(Session session, ClientPacketWriter writer, long now) {
+		for (Segment segment : segments) {
+			if (sackedSegments > 0 && (int) (segment.end() - sackedEnd) >= 0) {
+				break;
+			}
+			if (!segment.sacked && segment.recoveryEpoch != recoveryEpoch) {
+				segment.recoveryEpoch = recoveryEpoch;
+				retransmit(session, writer, segment, now);
+			}
+			if (sackedSegments == 0) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * run the retransmission timer: resend the oldest segment, or probe a closed window.
+	 * @return false when the client stopped responding and the connection should be aborted
+	 */
+	public boolean onTimer(Session session, ClientPacketWriter writer, long now) {
+		if (timerDeadline == 0 || now < timerDeadline) {
+			return true;
+		}
+		Segment oldest = segments.peekFirst();
+		if (oldest != null) {
+			if (oldest.transmissions >= MAX_TRANSMISSIONS) {
+				return false;
+			}
+			log.debug("retransmission timeout, seq# {} rto: {}ms: {}", oldest.sequence, rto, session);
+			// the client may have dropped what it SACKed, so everything is resent from the oldest segment
+			clearSelectiveAcks();
+			enterRecovery(session);
+			oldest.recoveryEpoch = recoveryEpoch;
+			retransmit(session, writer, oldest, now);
+		} else if (session.hasReceivedData()) {
+			// zero window probe, one byte past the window, retransmitted like any other segment until it is acked
+			send(session, writer, session.getReceivedData(1), now);
+		} else {
+			timerDeadline = 0;
+			return true;
+		}
+		rto = Math.min(rto * 2, MAX_RTO_MILLIS);
+		timerDeadline = now + rto;
+		return true;
+	}
+
+	long getTimerDeadline() {
+		return timerDeadline;
+	}
+
+	/**
+	 * largest payload for the client's MSS, leaving room for the IP options copied from the client's packets.
+	 * Data segments carry no TCP options.
+	 */
+	private static int getSegmentSize(Session session, IPv4Header ipHeader) {
+		int mss = session.getMaxSegmentSize() > 0 ? session.getMaxSegmentSize() : DEFAULT_MAX_SEGMENT_SIZE;
+		int size = mss - (ipHeader.getIPHeaderLength() - 20);
+		return Math.max(1, size);
+	}
+
+	private void send(Session session, ClientPacketWriter writer, byte[] data, long now) {
+		final long sequence = session.getSendNext();
+		Segment segment = new Segment(sequence, createPacket(session, sequence, data), data.length, now);
+		if (segments.isEmpty()) {
+			// the timer now covers this segment, not a window probe
+			timerDeadline = now + rto;
+		}
+		session.setSendNext(segment.end());
+		segments.addLast(segment);
+		bytesInFlight += data.length;
+		writer.write(segment.packet);
+	}
+
+	private void enterRecovery(Session session) {
+		inRecovery = true;
+		recoveryPoint = session.getSendNext();
+		recoveryEpoch++;
+	}
+
+	private void clearSelectiveAcks() {
+		for (Segment segment : segments) {
+			segment.sacked = false;
+		}
+		sackedSegments = 0;
+	}
+
+	private void retransmit(Session session, ClientPacketWriter writer, Segment segment, long now) {
+		segment.transmissions++;
+		segment.sentAt = now;
+		retransmissions++;
+		// only the ack number and window can have changed since the segment was built. The last copy
+		// may still be queued in the writer, so patch a new one
+		byte[] packet = segment.packet.clone();
+		TCPPacketFactory.updateResponsePacketData(packet, session.getRecSequence(), session.getAdvertisedWindow());
+		segment.packet = packet;
+		writer.write(packet);
+	}
+
+	private static byte[] createPacket(Session session, long sequence, byte[] data) {
+		return TCPPacketFactory.createResponsePacketData(session.getLastIpHeader(),
+				session.getLastTcpHeader(), data, !session.hasReceivedData(),
+				session.getRecSequence(), sequence,
+				session.getTimestampSender(), session.getTimestampReplyto(),
+				session.getAdvertisedWindow());
+	}
+
+	private void updateRto(long sample) {
+		if (smoothedRtt < 0) {
+			smoothedRtt = sample;
+			rttVariance = sample / 2;
+		} else {
+			rttVariance = (3 * rttVariance + Math.abs(smoothedRtt - sample)) / 4;
+			smoothedRtt = (7 * smoothedRtt + sample) / 8;
+		}
+		rto = Math.max(MIN_RTO_MILLIS, Math.min(MAX_RTO_MILLIS, smoothedRtt + Math.max(10, 4 * rttVariance)));
+	}
+}
@@ -21,4 +21,10 @@ package tech.httptoolkit.android.vpn.socket;
  */
 public class DataConst {
 	public static final int MAX_RECEIVE_BUFFER_SIZE = 65535;
+	// upstream data a session buffers for the vpn client before it stops reading from the remote host
+	public static final int MAX_RECEIVING_BUFFER_SIZE = 256 * 1024;
+	// vpn client data a session buffers for the remote host, advertised to the client as our receive window
+	public static final int MAX_SENDING_BUFFER_SIZE = 256 * 1024;
+	// window scale shift offered on the SYN-ACK, the smallest for which 0xFFFF << shift covers MAX_SENDING_BUFFER_SIZE
+	public static final int RECEIVE_WINDOW_SCALE = 3;
 }
@@ -5,6 +5,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import tech.httptoolkit.android.vpn.ClientPacketWriter;
 import tech.httptoolkit.android.vpn.Session;
+import tech.httptoolkit.android.vpn.TCPSendWindow;
 import tech.httptoolkit.android.vpn.transport.ip.IPv4Header;
 import tech.httptoolkit.android.vpn.transport.tcp.TCPHeader;
 import tech.httptoolkit.android.vpn.transport.tcp.TCPPacketFactory;
@@ -47,18 +48,59 @@ class SocketChannelReader {
 		}
 
 		// Resubscribe to reads, so that we're triggered again if more data arrives later.
-		session.subscribeKey(SelectionKey.OP_READ);
+		if (session.canReadUpstream()) {
+			session.subscribeKey(SelectionKey.OP_READ);
+		}
 
 		if (session.isAbortingConnection()) {
-			log.debug("removing aborted connection -> {}", session);
-			session.cancelKey();
-			IoUtil.close(channel);
-			session.closeSession();
+			closeAborted(session);
+		}
+	}
+
+	/**
+	 * Run the retransmission timer of a session with data in flight, and send the FIN once the
+	 * remote host has closed and all of its data has been acked.
+	 * @return true if the session still needs the timer
+	 */
+	public boolean onTimer(Session session, long now) {
+		if (!session.getChannel().isOpen()) {
+			// Already closed elsewhere, e.g. after the client's own FIN
+			return false;
+		}
+		if (session.isAbortingConnection()) {
+			closeAborted(session);
+			return false;
+		}
+		TCPSendWindow sendWindow = session.getSendWindow();
+		if (!sendWindow.onTimer(session, writer, now)) {
+			log.debug("VPN client stopped acknowledging data, aborting -> {}", session);
+			session.setAbortingConnection(true);
+			closeAborted(session);
+			return false;
+		}
+		sendWindow.push(session, writer, now);
+		if (session.resumeReading()) {
+			session.subscribeKey(SelectionKey.OP_READ);
 		}
+		if (session.isUpstreamClosed() && sendWindow.isEmpty() && !session.hasReceivedData()) {
+			log.debug("send FIN to: {}", session);
+			sendFin(session);
+			session.setAbortingConnection(true);
+			closeAborted(session);
+			return false;
+		}
+		return sendWindow.isActive(session);
+	}
+
+	private void closeAborted(Session session) {
+		log.debug("removing aborted connection -> {}", session);
+		session.cancelKey();
+		IoUtil.close(session.getChannel());
+		session.closeSession();
 	}
 	
 	private void readTCP(Session session) {
-		if (session.isAbortingConnection()) {
+		if (session.isAbortingConnection() || !session.canReadUpstream()) {
 			return;
 		}
 
@@ -68,15 +110,23 @@ class SocketChannelReader {
 
 		try {
 			do {
+				if (session.isReceivingBufferFull()) {
+					// The VPN client is behind: leave the data in the socket, so TCP slows the server down
+					// until ACKs from the client drain the buffer and reads resume.
+					log.debug("receiving buffer full, pausing reads: {}", session);
+					session.pauseReading();
+					session.unsubscribeKey(SelectionKey.OP_READ);
+					break;
+				}
 				len = channel.read(buffer);
 				if (len > 0) { //-1 mean it reach the end of stream
 					sendToRequester(buffer, len, session);
 					buffer.clear();
 				} else if (len == -1) {
+					// The FIN has to wait until everything before it is acked, see onTimer
 					log.debug("End of data from remote server, will send FIN to client");
-					log.debug("send FIN to: {}", session);
-					sendFin(session);
-					session.setAbortingConnection(true);
+					session.setUpstreamClosed(true);
+					session.unsubscribeKey(SelectionKey.OP_READ);
 				}
 			} while (len > 0);
 		}catch(NotYetConnectedException e){
@@ -92,57 +142,16 @@ class SocketChannelReader {
 	}
 	
 	private void sendToRequester(ByteBuffer buffer, int dataSize, Session session){
-		// Last piece of data is usually smaller than MAX_RECEIVE_BUFFER_SIZE. We use this as a
-		// trigger to set PSH on the resulting TCP packet that goes to the VPN.
-		session.setHasReceivedLastSegment(dataSize < DataConst.MAX_RECEIVE_BUFFER_SIZE);
-
 		buffer.limit(dataSize);
 		buffer.flip();
 		// TODO should allocate new byte array?
 		byte[] data = new byte[dataSize];
 		System.arraycopy(buffer.array(), 0, data, 0, dataSize);
 		session.addReceivedData(data);
-		//pushing all data to vpn client
-		while(session.hasReceivedData()){
-			pushDataToClient(session);
-		}
+		//pushing as much data to the vpn client as its window allows, the rest goes out as ACKs arrive
+		session.getSendWindow().push(session, writer, System.currentTimeMillis());
 	}
-	/**
-	 * create packet data and send it to VPN client
-	 * @param session Session
-	 */
-	private void pushDataToClient(Session session){
-		if (!session.hasReceivedData()) {
-			//no data to send
-			log.debug("no data for vpn client");
-		}
 
-		IPv4Header ipHeader = session.getLastIpHeader();
-		TCPHeader tcpheader = session.getLastTcpHeader();
-		// TODO What does 60 mean?
-		int max = session.getMaxSegmentSize() - 60;
-
-		if(max < 1) {
-			max = 1024;
-		}
-
-		byte[] packetBody = session.getReceivedData(max);
-		if(packetBody != null && packetBody.length > 0) {
-			long unAck = session.getSendNext();
-			long nextUnAck = session.getSendNext() + packetBody.length;
-			session.setSendNext(nextUnAck);
-			//we need this data later on for retransmission
-			session.setUnackData(packetBody);
-			session.setResendPacketCounter(0);
-
-			byte[] data = TCPPacketFactory.createResponsePacketData(ipHeader,
-					tcpheader, packetBody, session.hasReceivedLastSegment(),
-					session.getRecSequence(), unAck,
-					session.getTimestampSender(), session.getTimestampReplyto());
-
-			writer.write(data);
-		}
-	}
 	private void sendFin(Session session){
 		final IPv4Header ipHeader = session.getLastIpHeader();
 		final TCPHeader tcpheader = session.getLastTcpHeader();
@@ -71,6 +71,7 @@ public class SocketChannelWriter {
 	private void writeTCP(Session session) {
 		try {
 			writePendingData(session);
+			sendWindowUpdate(session);
 		} catch (NotYetConnectedException ex) {
 			log.error("failed to write to unconnected socket", ex);
 		} catch (IOException e) {
@@ -88,6 +89,20 @@ public class SocketChannelWriter {
 		}
 	}
 
+	/**
+	 * The last ACK advertised a small window: once the remote host has taken enough of the buffered data,
+	 * tell the client straight away instead of waiting for its window probes.
+	 */
+	private void sendWindowUpdate(Session session) {
+		if (!session.isWindowUpdatePending() || session.getReceiveWindow() < DataConst.MAX_SENDING_BUFFER_SIZE / 2) {
+			return;
+		}
+		session.setWindowUpdatePending(false);
+		byte[] data = TCPPacketFactory.createResponseAckData(session.getLastIpHeader(),
+				session.getLastTcpHeader(), session.getRecSequence(), session.getAdvertisedWindow());
+		writer.write(data);
+	}
+
 	private void writePendingData(Session session) throws IOException {
 		if (!session.hasDataToSend()) return;
 		AbstractSelectableChannel channel = session.getChannel();
@@ -111,8 +126,9 @@ public class SocketChannelWriter {
 			// The channel's own buffer is full, so we have to save this for later.
 			log.info("{} bytes unwritten for {}", buffer.remaining(), channel);
 
-			// Put the remaining data from the buffer back into the session
-			session.setSendingData(buffer.compact());
+			// Put the remaining data from the buffer back into the session, which is empty and so
+			// has room for all of it
+			session.setSendingData(buffer);
 
 			// Subscribe to WRITE events, so we know when this is ready to resume.
 			session.subscribeKey(SelectionKey.OP_WRITE);
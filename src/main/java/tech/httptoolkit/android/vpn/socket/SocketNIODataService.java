@@ -14,43 +14,82 @@ import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.AbstractSelectableChannel;
 import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * A service that single-threadedly processes the events around our session connections,
- * entirely via non-blocking NIO.
+ * A service that processes the events around our session connections, entirely via non-blocking NIO.
  * <br/>
- * It uses a Selector that fires on outgoing socket events (connected, readable, writable),
- * handles the resulting operations, and keeps those subscriptions up to date.
+ * Sessions are hashed on their 4-tuple across a fixed number of selector threads. Each thread owns a Selector
+ * that fires on outgoing socket events (connected, readable, writable) of its sessions, handles the resulting
+ * operations, and keeps those subscriptions up to date.
+ * <br/>
+ * Only the owning thread touches its selector and keys. Other threads queue registrations and interest-op
+ * changes without locking, and wake the selector at most once per select.
  */
 public class SocketNIODataService implements Runnable {
 
 	private static final Logger log = LoggerFactory.getLogger(SocketNIODataService.class);
 
-	private final ReentrantLock nioSelectionLock = new ReentrantLock();
-	private final ReentrantLock nioHandlingLock = new ReentrantLock();
-	private final Selector selector = Selector.open();
+	// How often the retransmission timers are checked, while any session has data in flight
+	private static final long SEND_TIMER_MILLIS = 50;
+
+	// One selector thread per two cores, leaving room for the VPN read and write threads
+	public static final int DEFAULT_SELECTOR_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+
+	private final SelectorThread[] selectorThreads;
 
 	private final SocketChannelReader reader;
 	private final SocketChannelWriter writer;
 
 	private volatile boolean shutdown = false;
 
-	
 	public SocketNIODataService(ClientPacketWriter clientPacketWriter) throws IOException {
+		this(clientPacketWriter, DEFAULT_SELECTOR_THREADS);
+	}
+
+	/**
+	 * @param selectorThreads number of selector threads the sessions are spread across, the first of them
+	 *                        being the thread that calls {@link #run()}
+	 */
+	public SocketNIODataService(ClientPacketWriter clientPacketWriter, int selectorThreads) throws IOException {
 		reader = new SocketChannelReader(clientPacketWriter);
 		writer = new SocketChannelWriter(clientPacketWriter);
+		this.selectorThreads = new SelectorThread[Math.max(1, selectorThreads)];
+		for (int i = 0; i < this.selectorThreads.length; i++) {
+			this.selectorThreads[i] = new SelectorThread(Selector.open());
+		}
 	}
 
 	@Override
 	public void run() {
-		log.debug("SocketNIODataService starting in background...");
-		runTask();
+		log.debug("SocketNIODataService starting in background with {} selector threads...", selectorThreads.length);
+		String name = Thread.currentThread().getName();
+		Thread[] threads = new Thread[selectorThreads.length - 1];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(selectorThreads[i + 1], name + " #" + (i + 1));
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+		selectorThreads[0].run();
+		for (Thread thread : threads) {
+			try {
+				thread.join(1000);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
 	}
 
-	public void registerSession(Session session) throws ClosedChannelException {
+	/**
+	 * Hand a populated session over to its selector thread, which registers the channel
+	 * with connect or read interest, plus any interest subscribed before that.
+	 */
+	public void registerSession(Session session) {
 		AbstractSelectableChannel channel = session.getChannel();
 
 		boolean isConnected = channel instanceof DatagramChannel
@@ -59,95 +98,139 @@ public class SocketNIODataService implements Runnable {
 
 		log.debug("Registering new session: {}", session);
 
-		Lock selectorLock = lockSelector(selector);
-		try {
-			SelectionKey selectionKey = channel.register(selector,
-					isConnected
-							? SelectionKey.OP_READ
-							: SelectionKey.OP_CONNECT
-			);
-			session.setSelectionKey(selectionKey);
-			selectionKey.attach(session);
-			log.debug("Registered selector successfully");
-		} finally {
-			selectorLock.unlock();
-		}
+		session.subscribeKey(isConnected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT);
+		SelectorThread selectorThread = selectorThreadOf(session);
+		selectorThread.registrations.add(session);
+		selectorThread.wakeup();
 	}
 
-	private Lock lockSelector(Selector selector) {
-		boolean gotSelectionLock = nioSelectionLock.tryLock();
-		if (gotSelectionLock) return nioSelectionLock;
-
-		nioHandlingLock.lock(); // Ensure the NIO thread can't do anything on wakeup
-		selector.wakeup();
-
-		nioSelectionLock.lock(); // Actually get the lock we want
-		nioHandlingLock.unlock(); // Release the handling lock, which we no longer care about
-
-		return nioSelectionLock;
+	/**
+	 * Apply the interest ops changed by another thread (e.g. the VPN thread subscribing to OP_WRITE),
+	 * so they are monitored immediately (and fire immediately, if already ready). The session is queued
+	 * for its selector thread, which is woken if it is blocked in select() and nobody woke it yet.
+	 */
+	public void refreshSelect(Session session) {
+		SelectorThread selectorThread = selectorThreadOf(session);
+		if (session.markInterestOpsQueued()) {
+			selectorThread.interestUpdates.add(session);
+		}
+		selectorThread.wakeup();
 	}
 
 	/**
-	 * If the selector is currently select()ing, wake it up (e.g. to register changes to
-	 * interestOps). If it's not (and so it probably will select() very soon anyway) do nothing.
-	 * This is designed to be run after changing readyOps, to ensure the new ops get monitored
-	 * immediately (and fire immediately, if already ready). Without this, that blocks.
+	 * Make sure the retransmission timer of this session runs, after the VPN thread has sent it data.
+	 * Wakes the selector if it might be blocked without a timeout.
 	 */
-	public void refreshSelect(Session session) {
-		boolean gotLock = nioSelectionLock.tryLock();
+	public void trackSending(Session session) {
+		SelectorThread selectorThread = selectorThreadOf(session);
+		if (selectorThread.sendingSessions.add(session)) {
+			selectorThread.wakeup();
+		}
+	}
 
-		if (!gotLock) {
-			session.getSelectionKey().selector().wakeup();
-		} else {
-			nioSelectionLock.unlock();
+	/**
+	 * Resume reads from the remote host, if they were paused for a full receiving buffer that has
+	 * now been drained by ACKs from the VPN client.
+	 */
+	public void resumeReadIfDrained(Session session) {
+		if (session.resumeReading()) {
+			session.subscribeKey(SelectionKey.OP_READ);
+			refreshSelect(session);
 		}
 	}
 
 	/**
-	 * Shut down the NIO thread
+	 * Shut down the NIO threads
 	 */
 	public void shutdown(){
 		this.shutdown = true;
-		selector.wakeup();
+		for (SelectorThread selectorThread : selectorThreads) {
+			selectorThread.selector.wakeup();
+		}
 	}
 
-	private void runTask(){
-		log.debug("NIO selector is running...");
-		
-		while(!shutdown){
-			try {
-				nioSelectionLock.lockInterruptibly();
-				selector.select();
-			} catch (IOException e) {
-				log.error("Error in Selector.select()", e);
+	private SelectorThread selectorThreadOf(Session session) {
+		if (selectorThreads.length == 1) {
+			return selectorThreads[0];
+		}
+		long h = (((long) session.getSourceIp() << 32) | (session.getDestIp() & 0xffffffffL)) * 0x9E3779B97F4A7C15L;
+		h ^= ((session.getSourcePort() << 16) | session.getDestPort()) * 0xC2B2AE3D27D4EB4FL;
+		return selectorThreads[(int) ((h >>> 33) % selectorThreads.length)];
+	}
+
+	/**
+	 * One selector and the sessions hashed to it. Everything but the queues, the timer set
+	 * and the wakeup flags is only touched by the thread running it.
+	 */
+	private final class SelectorThread implements Runnable {
+
+		private final Selector selector;
+
+		private final Queue<Session> registrations = new ConcurrentLinkedQueue<>();
+		private final Queue<Session> interestUpdates = new ConcurrentLinkedQueue<>();
+
+		// Sessions with data in flight to the VPN client, a queued FIN or a closed window to probe
+		private final Set<Session> sendingSessions = ConcurrentHashMap.newKeySet();
+
+		// blocked in select(), or about to be
+		private volatile boolean selecting = false;
+		// a wakeup was already sent during the current select()
+		private final AtomicBoolean wakeupPending = new AtomicBoolean();
+
+		SelectorThread(Selector selector) {
+			this.selector = selector;
+		}
+
+		/**
+		 * Called after queueing work: wakes the selector only while it is selecting, and only once per select.
+		 * Otherwise the thread is busy and will find the work before it selects again.
+		 */
+		void wakeup() {
+			if (selecting && wakeupPending.compareAndSet(false, true)) {
+				selector.wakeup();
+			}
+		}
+
+		@Override
+		public void run() {
+			log.debug("NIO selector is running...");
+
+			while (!shutdown) {
 				try {
-					TimeUnit.MILLISECONDS.sleep(100);
-				} catch (InterruptedException ignored) {
+					selecting = true;
+					// queued work after setting the flag is guaranteed a wakeup, anything before is caught here
+					if (registrations.isEmpty() && interestUpdates.isEmpty()) {
+						selector.select(sendingSessions.isEmpty() ? 0 : SEND_TIMER_MILLIS);
+					} else {
+						selector.selectNow();
+					}
+				} catch (IOException e) {
+					log.error("Error in Selector.select()", e);
+					try {
+						TimeUnit.MILLISECONDS.sleep(100);
+					} catch (InterruptedException ignored) {
+					}
+					continue;
+				} finally {
+					selecting = false;
+					wakeupPending.set(false);
 				}
-				continue;
-			} catch (InterruptedException ex) {
-				log.info("Select() interrupted");
-			} finally {
-				if (nioSelectionLock.isHeldByCurrentThread()) {
-					nioSelectionLock.unlock();
+
+				if (shutdown) {
+					break;
 				}
-			}
 
-			if (shutdown) {
-				break;
-			}
+				processRegistrations();
+				processInterestUpdates();
 
-			// A lock here makes it possible to reliably grab the selection lock above
-			nioHandlingLock.lock();
-			try {
 				Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
-
 				while (iterator.hasNext()) {
 					SelectionKey key = iterator.next();
 					Session session = ((Session) key.attachment());
 					synchronized (session) { // Sessions are locked during processing (no VPN data races)
 						try {
 							processSelectionKey(key);
+							session.applyInterestOps();
 						} catch (IOException e) {
 							synchronized (key) {
 								key.cancel();
@@ -160,87 +243,140 @@ public class SocketNIODataService implements Runnable {
 						break;
 					}
 				}
-			} finally {
-				nioHandlingLock.unlock();
+
+				processSendTimers();
 			}
-		}
-		log.debug("NIO selector shutdown");
-	}
 
-	private void processSelectionKey(SelectionKey key) throws IOException {
-		if (!key.isValid()) {
-			log.debug("Invalid SelectionKey");
-			return;
+			try {
+				selector.close();
+			} catch (IOException e) {
+				log.debug("Error closing selector", e);
+			}
+			log.debug("NIO selector shutdown");
 		}
 
-		SelectableChannel channel = key.channel();
-
-		Session session = ((Session) key.attachment());
-		if (session == null) {
-			log.warn("Key fired with no session attached");
-			return;
+		private void processRegistrations() {
+			Session session;
+			while ((session = registrations.poll()) != null) {
+				synchronized (session) {
+					try {
+						SelectionKey selectionKey = session.getChannel().register(selector, session.getInterestOps(), session);
+						session.setSelectionKey(selectionKey);
+						log.debug("Registered selector successfully");
+					} catch (ClosedChannelException e) {
+						log.debug("Session closed before its channel was registered: {}", session);
+					}
+				}
+			}
 		}
-		
-		if (channel instanceof SocketChannel && !session.isConnected() && key.isConnectable()) {
-			SocketChannel socketChannel = (SocketChannel) channel;
 
-			if (socketChannel.isConnectionPending()) {
-				boolean connected = socketChannel.finishConnect();
-				session.setConnected(connected);
-			} else {
-				throw new IllegalStateException("TCP channels must either be connected or pending connection");
+		private void processInterestUpdates() {
+			Session session;
+			while ((session = interestUpdates.poll()) != null) {
+				// cleared first, so a change made while applying this one queues the session again
+				session.clearInterestOpsQueued();
+				session.applyInterestOps();
 			}
 		}
 
-		if (isConnected(channel)) {
-			processConnectedSelection(key, session);
-		}
-	}
+		private void processSendTimers() {
+			if (sendingSessions.isEmpty()) return;
 
-	private boolean isConnected(SelectableChannel channel) {
-		if (channel instanceof DatagramChannel) {
-			return ((DatagramChannel) channel).isConnected();
-		} else if (channel instanceof SocketChannel) {
-			return ((SocketChannel) channel).isConnected();
-		} else {
-			throw new IllegalArgumentException("isConnected on unexpected channel type: " + channel);
+			long now = System.currentTimeMillis();
+			Iterator<Session> iterator = sendingSessions.iterator();
+			while (iterator.hasNext()) {
+				Session session = iterator.next();
+				synchronized (session) {
+					if (!reader.onTimer(session, now)) {
+						iterator.remove();
+					}
+					session.applyInterestOps();
+				}
+			}
 		}
-	}
 
-	private void processConnectedSelection(SelectionKey key, Session session) {
-		// Whilst connected, we always want READ and not CONNECT events
-		session.unsubscribeKey(SelectionKey.OP_CONNECT);
-		session.subscribeKey(SelectionKey.OP_READ);
-		processSelectorRead(key, session);
-		processPendingWrite(key, session);
-	}
+		private void processSelectionKey(SelectionKey key) throws IOException {
+			if (!key.isValid()) {
+				log.debug("Invalid SelectionKey");
+				return;
+			}
+
+			SelectableChannel channel = key.channel();
+
+			Session session = ((Session) key.attachment());
+			if (session == null) {
+				log.warn("Key fired with no session attached");
+				return;
+			}
+
+			if (channel instanceof SocketChannel && !session.isConnected() && key.isConnectable()) {
+				SocketChannel socketChannel = (SocketChannel) channel;
 
-	private void processSelectorRead(SelectionKey selectionKey, Session session) {
-		boolean canRead;
-		synchronized (selectionKey) {
-			// There's a race here that requires a lock, as isReadable requires isValid
-			canRead = selectionKey.isValid() && selectionKey.isReadable();
+				if (socketChannel.isConnectionPending()) {
+					boolean connected = socketChannel.finishConnect();
+					session.setConnected(connected);
+				} else {
+					throw new IllegalStateException("TCP channels must either be connected or pending connection");
+				}
+			}
+
+			if (isConnected(channel)) {
+				processConnectedSelection(key, session);
+			}
 		}
 
-		if (canRead) reader.read(session);
-	}
+		private boolean isConnected(SelectableChannel channel) {
+			if (channel instanceof DatagramChannel) {
+				return ((DatagramChannel) channel).isConnected();
+			} else if (channel instanceof SocketChannel) {
+				return ((SocketChannel) channel).isConnected();
+			} else {
+				throw new IllegalArgumentException("isConnected on unexpected channel type: " + channel);
+			}
+		}
 
-	private void processPendingWrite(SelectionKey selectionKey, Session session) {
-		// Nothing to write? Skip this entirely, and make sure we're not subscribed
-		if (!session.hasDataToSend() || !session.isDataForSendingReady()) {
-			session.unsubscribeKey(SelectionKey.OP_WRITE);
-			return;
+		private void processConnectedSelection(SelectionKey key, Session session) {
+			// Whilst connected, we always want READ (unless the remote end closed or the client is behind) and not CONNECT events
+			session.unsubscribeKey(SelectionKey.OP_CONNECT);
+			if (session.canReadUpstream()) {
+				session.subscribeKey(SelectionKey.OP_READ);
+			}
+			processSelectorRead(key, session);
+			processPendingWrite(key, session);
 		}
 
-		boolean canWrite;
-		synchronized (selectionKey) {
-			// There's a race here that requires a lock, as isReadable requires isValid
-			canWrite = selectionKey.isValid() && selectionKey.isWritable();
+		private void processSelectorRead(SelectionKey selectionKey, Session session) {
+			boolean canRead;
+			synchronized (selectionKey) {
+				// There's a race here that requires a lock, as isReadable requires isValid
+				canRead = selectionKey.isValid() && selectionKey.isReadable();
+			}
+
+			if (canRead) {
+				reader.read(session);
+				if (session.getSendWindow().isActive(session) && !session.isAbortingConnection()) {
+					sendingSessions.add(session);
+				}
+			}
 		}
 
-		if (canWrite) {
-			session.unsubscribeKey(SelectionKey.OP_WRITE);
-			writer.write(session); // This will resubscribe to OP_WRITE if it can't complete
+		private void processPendingWrite(SelectionKey selectionKey, Session session) {
+			// Nothing to write? Skip this entirely, and make sure we're not subscribed
+			if (!session.hasDataToSend() || !session.isDataForSendingReady()) {
+				session.unsubscribeKey(SelectionKey.OP_WRITE);
+				return;
+			}
+
+			boolean canWrite;
+			synchronized (selectionKey) {
+				// There's a race here that requires a lock, as isReadable requires isValid
+				canWrite = selectionKey.isValid() && selectionKey.isWritable();
+			}
+
+			if (canWrite) {
+				session.unsubscribeKey(SelectionKey.OP_WRITE);
+				writer.write(session); // This will resubscribe to OP_WRITE if it can't complete
+			}
 		}
 	}
 }
@@ -89,12 +89,27 @@ public class IPv4Header {
 					  boolean lastFragment, short fragmentOffset,
 					  byte timeToLive, byte protocol, int headerChecksum,
 					  int sourceIP, int destinationIP){
+		set(ipVersion, internetHeaderLength, dscpOrTypeOfService, ecn, totalLength, identification,
+				mayFragment, lastFragment, fragmentOffset, timeToLive, protocol, headerChecksum,
+				sourceIP, destinationIP);
+	}
+
+	/**
+	 * overwrite every field in place, so a retained header can be reused for the next packet
+	 */
+	void set(byte ipVersion, byte internetHeaderLength,
+			 byte dscpOrTypeOfService, byte ecn, int totalLength,
+			 int identification, boolean mayFragment,
+			 boolean lastFragment, short fragmentOffset,
+			 byte timeToLive, byte protocol, int headerChecksum,
+			 int sourceIP, int destinationIP){
 		this.ipVersion = ipVersion;
 		this.internetHeaderLength = internetHeaderLength;
 		this.dscpOrTypeOfService = dscpOrTypeOfService;
 		this.ecn = ecn;
 		this.totalLength = totalLength;
 		this.identification = identification;
+		this.flag = 0;
 		this.mayFragment = mayFragment;
 		if(mayFragment){
 			this.flag |= 0x40;
@@ -0,0 +1,123 @@
+package tech.httptoolkit.android.vpn.transport.ip;
+
+import tech.httptoolkit.android.vpn.transport.PacketHeaderException;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reusable flyweight over the IPv4 header of a packet buffer. The getters read straight from the buffer,
+ * so looking at an inbound packet allocates nothing. Use {@link #copyTo(IPv4Header)} when the header has
+ * to outlive the packet.
+ */
+public class IPv4HeaderView {
+	private ByteBuffer buffer;
+	private int offset;
+
+	/**
+	 * point this view at the header starting at the buffer position, and move the position past the header
+	 * (options included), the same way as {@link IPPacketFactory#createIPv4Header(ByteBuffer)}
+	 * @param buffer packet buffer, which must not change while the view is in use
+	 * @return this view
+	 */
+	public IPv4HeaderView wrap(ByteBuffer buffer) throws PacketHeaderException {
+		if (buffer.remaining() < 20) {
+			throw new PacketHeaderException("Minimum IPv4 header is 20 bytes. There are less "
+					+ "than 20 bytes from start position to the end of array.");
+		}
+		final int offset = buffer.position();
+		final byte versionAndHeaderLength = buffer.get(offset);
+		final byte ipVersion = (byte) (versionAndHeaderLength >> 4);
+		if (ipVersion != 0x04) {
+			throw new PacketHeaderException("Invalid IPv4 header. IP version should be 4 but was " + ipVersion);
+		}
+		final int headerLength = (versionAndHeaderLength & 0x0F) * 4;
+		if (headerLength < 20 || buffer.remaining() < headerLength) {
+			throw new PacketHeaderException("Not enough space in array for IP header");
+		}
+		this.buffer = buffer;
+		this.offset = offset;
+		buffer.position(offset + headerLength);
+		return this;
+	}
+
+	public byte getIpVersion() {
+		return (byte) (buffer.get(offset) >> 4);
+	}
+
+	byte getInternetHeaderLength() {
+		return (byte) (buffer.get(offset) & 0x0F);
+	}
+
+	public int getIPHeaderLength() {
+		return getInternetHeaderLength() * 4;
+	}
+
+	public byte getDscpOrTypeOfService() {
+		return (byte) (buffer.get(offset + 1) >> 2);
+	}
+
+	byte getEcn() {
+		return (byte) (buffer.get(offset + 1) & 0x03);
+	}
+
+	public int getTotalLength() {
+		return buffer.getShort(offset + 2);
+	}
+
+	public int getIdentification() {
+		return buffer.getShort(offset + 4);
+	}
+
+	public boolean isMayFragment() {
+		return (buffer.getShort(offset + 6) & 0x4000) != 0;
+	}
+
+	public boolean isLastFragment() {
+		return (buffer.getShort(offset + 6) & 0x2000) != 0;
+	}
+
+	public short getFragmentOffset() {
+		return (short) (buffer.getShort(offset + 6) & 0x1FFF);
+	}
+
+	public byte getTimeToLive() {
+		return buffer.get(offset + 8);
+	}
+
+	public byte getProtocol() {
+		return buffer.get(offset + 9);
+	}
+
+	public int getHeaderChecksum() {
+		return buffer.getShort(offset + 10);
+	}
+
+	public int getSourceIP() {
+		return buffer.getInt(offset + 12);
+	}
+
+	public int getDestinationIP() {
+		return buffer.getInt(offset + 16);
+	}
+
+	/**
+	 * copy the fixed-size fields, IP options are dropped as in {@link IPPacketFactory#createIPv4Header(ByteBuffer)}
+	 * @param header header to overwrite in place, or null to allocate a new one
+	 * @return the header holding the copy
+	 */
+	public IPv4Header copyTo(IPv4Header header) {
+		if (header == null) {
+			return new IPv4Header(getIpVersion(), getInternetHeaderLength(), getDscpOrTypeOfService(), getEcn(),
+					getTotalLength(), getIdentification(), isMayFragment(), isLastFragment(), getFragmentOffset(),
+					getTimeToLive(), getProtocol(), getHeaderChecksum(), getSourceIP(), getDestinationIP());
+		}
+		header.set(getIpVersion(), getInternetHeaderLength(), getDscpOrTypeOfService(), getEcn(),
+				getTotalLength(), getIdentification(), isMayFragment(), isLastFragment(), getFragmentOffset(),
+				getTimeToLive(), getProtocol(), getHeaderChecksum(), getSourceIP(), getDestinationIP());
+		return header;
+	}
+
+	public IPv4Header toHeader() {
+		return copyTo(null);
+	}
+}
@@ -45,6 +45,7 @@ public class TCPHeader implements ITransportHeader{
 	//vars below need to be set via setters when copy
 	private int maxSegmentSize = 0;
 	private int windowScale = 0;
+	private boolean hasWindowScale = false;
 	private boolean isSelectiveAckPermitted = false;
 	private int timeStampSender = 0;
 	private int timeStampReplyTo = 0;
@@ -52,6 +53,16 @@ public class TCPHeader implements ITransportHeader{
 	TCPHeader(int sourcePort, int destinationPort, long sequenceNumber, long ackNumber,
 			  int dataOffset, boolean isns, int tcpFlags,
 			  int windowSize, int checksum, int urgentPointer) {
+		set(sourcePort, destinationPort, sequenceNumber, ackNumber, dataOffset, isns, tcpFlags,
+				windowSize, checksum, urgentPointer);
+	}
+	/**
+	 * overwrite the fixed header fields in place, so a retained header can be reused for the next packet.
+	 * Options are cleared and have to be set again through the setters.
+	 */
+	void set(int sourcePort, int destinationPort, long sequenceNumber, long ackNumber,
+			 int dataOffset, boolean isns, int tcpFlags,
+			 int windowSize, int checksum, int urgentPointer) {
 		this.sourcePort = sourcePort;
 		this.destinationPort = destinationPort;
 		this.sequenceNumber = sequenceNumber;
@@ -62,6 +73,13 @@ public class TCPHeader implements ITransportHeader{
 		this.checksum = checksum;
 		this.urgentPointer = urgentPointer;
 		this.ackNumber = ackNumber;
+		this.options = null;
+		this.maxSegmentSize = 0;
+		this.windowScale = 0;
+		this.hasWindowScale = false;
+		this.isSelectiveAckPermitted = false;
+		this.timeStampSender = 0;
+		this.timeStampReplyTo = 0;
 		setFlagBits();
 	}
 	private void setFlagBits() {
@@ -247,8 +265,15 @@ public class TCPHeader implements ITransportHeader{
 	}
 	void setWindowScale(int windowScale) {
 		this.windowScale = windowScale;
+		this.hasWindowScale = true;
+	}
+	/**
+	 * the window scale option is present, which on a SYN offers window scaling even with a shift count of 0
+	 */
+	public boolean hasWindowScale() {
+		return hasWindowScale;
 	}
-	boolean isSelectiveAckPermitted() {
+	public boolean isSelectiveAckPermitted() {
 		return isSelectiveAckPermitted;
 	}
 	void setSelectiveAckPermitted(boolean isSelectiveAckPermitted) {
@@ -0,0 +1,211 @@
+package tech.httptoolkit.android.vpn.transport.tcp;
+
+import tech.httptoolkit.android.vpn.transport.PacketHeaderException;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reusable flyweight over the TCP header of a packet buffer. The getters read straight from the buffer,
+ * and options are looked up on demand instead of being parsed into a new header for every packet.
+ * Use {@link #copyTo(TCPHeader)} when the header has to outlive the packet.
+ */
+public class TCPHeaderView {
+	private static final int END_OF_OPTIONS_LIST = 0;
+	private static final int NO_OPERATION = 1;
+	private static final int MAX_SEGMENT_SIZE = 2;
+	private static final int WINDOW_SCALE = 3;
+	private static final int SELECTIVE_ACK_PERMITTED = 4;
+	private static final int SELECTIVE_ACK = 5;
+	private static final int TIME_STAMP = 8;
+
+	private ByteBuffer buffer;
+	private int offset;
+
+	/**
+	 * point this view at the header starting at the buffer position, and move the position past the header
+	 * (options included) to the payload, the same way as {@link TCPPacketFactory#createTCPHeader(ByteBuffer)}
+	 * @param buffer packet buffer, which must not change while the view is in use
+	 * @return this view
+	 */
+	public TCPHeaderView wrap(ByteBuffer buffer) throws PacketHeaderException {
+		if (buffer.remaining() < 20) {
+			throw new PacketHeaderException("There is not enough space for TCP header from provided starting position");
+		}
+		final int offset = buffer.position();
+		final int headerLength = ((buffer.get(offset + 12) & 0xF0) >> 4) * 4;
+		if (headerLength < 20 || buffer.remaining() < headerLength) {
+			throw new PacketHeaderException("invalid array size for TCP header from given starting position");
+		}
+		this.buffer = buffer;
+		this.offset = offset;
+		buffer.position(offset + headerLength);
+		return this;
+	}
+
+	public int getSourcePort() {
+		return buffer.getShort(offset) & 0xFFFF;
+	}
+
+	public int getDestinationPort() {
+		return buffer.getShort(offset + 2) & 0xFFFF;
+	}
+
+	public long getSequenceNumber() {
+		return buffer.getInt(offset + 4);
+	}
+
+	public long getAckNumber() {
+		return buffer.getInt(offset + 8);
+	}
+
+	public int getDataOffset() {
+		return (buffer.get(offset + 12) & 0xF0) >> 4;
+	}
+
+	public int getTCPHeaderLength() {
+		return getDataOffset() * 4;
+	}
+
+	public boolean isNS() {
+		return (buffer.get(offset + 12) & 0x1) > 0x0;
+	}
+
+	int getTcpFlags() {
+		return buffer.get(offset + 13);
+	}
+
+	public boolean isFIN() {
+		return (getTcpFlags() & 0x01) > 0;
+	}
+
+	public boolean isSYN() {
+		return (getTcpFlags() & 0x02) > 0;
+	}
+
+	public boolean isRST() {
+		return (getTcpFlags() & 0x04) > 0;
+	}
+
+	public boolean isPSH() {
+		return (getTcpFlags() & 0x08) > 0;
+	}
+
+	public boolean isACK() {
+		return (getTcpFlags() & 0x10) > 0;
+	}
+
+	public int getWindowSize() {
+		return buffer.getShort(offset + 14);
+	}
+
+	public int getChecksum() {
+		return buffer.getShort(offset + 16);
+	}
+
+	public int getUrgentPointer() {
+		return buffer.getShort(offset + 18);
+	}
+
+	public int getMaxSegmentSize() {
+		int index = findOption(MAX_SEGMENT_SIZE, 2);
+		return index < 0 ? 0 : buffer.getShort(index) & 0xFFFF;
+	}
+
+	public int getWindowScale() {
+		int index = findOption(WINDOW_SCALE, 1);
+		return index < 0 ? 0 : buffer.get(index);
+	}
+
+	public boolean hasWindowScale() {
+		return findOption(WINDOW_SCALE, 1) >= 0;
+	}
+
+	public boolean isSelectiveAckPermitted() {
+		return findOption(SELECTIVE_ACK_PERMITTED, 0) >= 0;
+	}
+
+	/**
+	 * read the SACK blocks (RFC 2018) as pairs of left and right edges, the right edge being exclusive
+	 * @param edges receives up to edges.length / 2 blocks
+	 * @return number of blocks read, 0 without a SACK option
+	 */
+	public int getSelectiveAckBlocks(int[] edges) {
+		int index = findOption(SELECTIVE_ACK, 8);
+		if (index < 0) {
+			return 0;
+		}
+		final int end = Math.min(index - 2 + (buffer.get(index - 1) & 0xFF), offset + getTCPHeaderLength());
+		int blocks = 0;
+		for (; index + 8 <= end && blocks * 2 < edges.length; index += 8, blocks++) {
+			edges[blocks * 2] = buffer.getInt(index);
+			edges[blocks * 2 + 1] = buffer.getInt(index + 4);
+		}
+		return blocks;
+	}
+
+	public int getTimeStampSender() {
+		int index = findOption(TIME_STAMP, 8);
+		return index < 0 ? 0 : buffer.getInt(index);
+	}
+
+	int getTimeStampReplyTo() {
+		int index = findOption(TIME_STAMP, 8);
+		return index < 0 ? 0 : buffer.getInt(index + 4);
+	}
+
+	/**
+	 * @return index of the option value in the buffer, or -1 when the option is missing or truncated
+	 */
+	private int findOption(int kind, int valueLength) {
+		final int end = offset + getTCPHeaderLength();
+		int index = offset + 20;
+		while (index < end) {
+			final int optionKind = buffer.get(index);
+			if (optionKind == END_OF_OPTIONS_LIST || optionKind == NO_OPERATION) {
+				index++;
+				continue;
+			}
+			if (index + 1 >= end) {
+				return -1;
+			}
+			if (optionKind == kind) {
+				return index + 2 + valueLength <= end ? index + 2 : -1;
+			}
+			final int size = buffer.get(index + 1) & 0xFF;
+			if (size < 2) {
+				return -1;
+			}
+			index += size;
+		}
+		return -1;
+	}
+
+	/**
+	 * copy the fixed-size fields and the parsed options, without the raw option bytes
+	 * @param header header to overwrite in place, or null to allocate a new one
+	 * @return the header holding the copy
+	 */
+	public TCPHeader copyTo(TCPHeader header) {
+		if (header == null) {
+			header = new TCPHeader(getSourcePort(), getDestinationPort(), getSequenceNumber(), getAckNumber(),
+					getDataOffset(), isNS(), getTcpFlags(), getWindowSize(), getChecksum(), getUrgentPointer());
+		} else {
+			header.set(getSourcePort(), getDestinationPort(), getSequenceNumber(), getAckNumber(),
+					getDataOffset(), isNS(), getTcpFlags(), getWindowSize(), getChecksum(), getUrgentPointer());
+		}
+		if (getDataOffset() > 5) {
+			header.setMaxSegmentSize(getMaxSegmentSize());
+			if (hasWindowScale()) {
+				header.setWindowScale(getWindowScale());
+			}
+			header.setSelectiveAckPermitted(isSelectiveAckPermitted());
+			header.setTimeStampSender(getTimeStampSender());
+			header.setTimeStampReplyTo(getTimeStampReplyTo());
+		}
+		return header;
+	}
+
+	public TCPHeader toHeader() {
+		return copyTo(null);
+	}
+}
@@ -22,6 +22,7 @@ import tech.httptoolkit.android.vpn.Packet;
 import tech.httptoolkit.android.vpn.transport.ip.IPPacketFactory;
 import tech.httptoolkit.android.vpn.transport.ip.IPv4Header;
 import tech.httptoolkit.android.vpn.transport.PacketHeaderException;
+import tech.httptoolkit.android.vpn.util.InternetChecksum;
 import tech.httptoolkit.android.vpn.util.PacketUtil;
 
 import java.nio.ByteBuffer;
@@ -38,15 +39,21 @@ public class TCPPacketFactory {
 
 	private static final Logger log = LoggerFactory.getLogger(TCPPacketFactory.class);
 	
+	/**
+	 * copy a header from the client to answer it. The raw option bytes are not copied, so the copy has no options
+	 * until they are set explicitly, and only the parsed values are kept for building them.
+	 */
 	private static TCPHeader copyTCPHeader(TCPHeader tcpheader){
 		final TCPHeader tcp = new TCPHeader(tcpheader.getSourcePort(),
 				tcpheader.getDestinationPort(), tcpheader.getSequenceNumber(),
-				tcpheader.getAckNumber(), tcpheader.getDataOffset(), tcpheader.isNS(),
+				tcpheader.getAckNumber(), 5, tcpheader.isNS(),
 				tcpheader.getTcpFlags(), tcpheader.getWindowSize(),
 				tcpheader.getChecksum(), tcpheader.getUrgentPointer());
 
 		tcp.setMaxSegmentSize(tcpheader.getMaxSegmentSize());
-		tcp.setWindowScale(tcpheader.getWindowScale());
+		if (tcpheader.hasWindowScale()) {
+			tcp.setWindowScale(tcpheader.getWindowScale());
+		}
 		tcp.setSelectiveAckPermitted(tcpheader.isSelectiveAckPermitted());
 		tcp.setTimeStampSender(tcpheader.getTimeStampSender());
 		tcp.setTimeStampReplyTo(tcpheader.getTimeStampReplyTo());
@@ -59,11 +66,12 @@ public class TCPPacketFactory {
 	 * @param tcpHeader TCP Header
 	 * @param ackToClient acknowledge
 	 * @param seqToClient sequence
+	 * @param windowSize receive window to advertise
 	 * @return byte[]
 	 */
 	public static byte[] createFinAckData(IPv4Header iPv4Header, TCPHeader tcpHeader,
 								   long ackToClient, long seqToClient,
-								   boolean isFin, boolean isAck){
+								   boolean isFin, boolean isAck, int windowSize){
 		IPv4Header ip = IPPacketFactory.copyIPv4Header(iPv4Header);
 		TCPHeader tcp = copyTCPHeader(tcpHeader);
 		
@@ -88,6 +96,7 @@ public class TCPPacketFactory {
 		tcp.setIsSYN(false);
 		tcp.setIsPSH(false);
 		tcp.setIsFIN(isFin);
+		tcp.setWindowSize(windowSize);
 		
 		//set response timestamps in options fields
 		tcp.setTimeStampReplyTo(tcp.getTimeStampSender());
@@ -135,6 +144,7 @@ public class TCPPacketFactory {
 		
 		//remove any option field
 		tcp.setOptions(null);
+		tcp.setDataOffset(5);
 
 		//window size should be zero
 		tcp.setWindowSize(0);
@@ -211,9 +221,10 @@ public class TCPPacketFactory {
 	 * @param ipHeader IP Header
 	 * @param tcpheader TCP Header
 	 * @param ackToClient Acknowledge
+	 * @param windowSize receive window to advertise
 	 * @return byte[]
 	 */
-	public static byte[] createResponseAckData(IPv4Header ipHeader, TCPHeader tcpheader, long ackToClient){
+	public static byte[] createResponseAckData(IPv4Header ipHeader, TCPHeader tcpheader, long ackToClient, int windowSize){
 		IPv4Header ip = IPPacketFactory.copyIPv4Header(ipHeader);
 		TCPHeader tcp = copyTCPHeader(tcpheader);
 		
@@ -240,6 +251,7 @@ public class TCPPacketFactory {
 		tcp.setIsSYN(false);
 		tcp.setIsPSH(false);
 		tcp.setIsFIN(false);
+		tcp.setWindowSize(windowSize);
 		
 		//set response timestamps in options fields
 		tcp.setTimeStampReplyTo(tcp.getTimeStampSender());
@@ -260,10 +272,11 @@ public class TCPPacketFactory {
 	 * @param ip IP Header
 	 * @param tcp TCP Header
 	 * @param packetData Packet Data
+	 * @param windowSize receive window to advertise
 	 * @return byte[]
 	 */
 	public static byte[] createResponsePacketData(IPv4Header ip, TCPHeader tcp, byte[] packetData, boolean isPsh,
-			long ackNumber, long seqNumber, int timeSender, int timeReplyto){
+			long ackNumber, long seqNumber, int timeSender, int timeReplyto, int windowSize){
 		IPv4Header ipHeader = IPPacketFactory.copyIPv4Header(ip);
 		TCPHeader tcpHeader = copyTCPHeader(tcp);
 		
@@ -285,6 +298,7 @@ public class TCPPacketFactory {
 		tcpHeader.setIsSYN(false);
 		tcpHeader.setIsPSH(isPsh);
 		tcpHeader.setIsFIN(false);
+		tcpHeader.setWindowSize(windowSize);
 		
 		tcpHeader.setTimeStampSender(timeSender);
 		tcpHeader.setTimeStampReplyTo(timeReplyto);
@@ -303,9 +317,11 @@ public class TCPPacketFactory {
 	 * create SYN-ACK packet data from writing back to client stream
 	 * @param ip IP Header
 	 * @param tcp TCP Header
+	 * @param windowSize receive window to advertise, never scaled on a SYN
+	 * @param windowScale shift count to offer if the client offered window scaling (RFC 7323)
 	 * @return class Packet
 	 */
-	public static Packet createSynAckPacketData(IPv4Header ip, TCPHeader tcp){
+	public static Packet createSynAckPacketData(IPv4Header ip, TCPHeader tcp, int windowSize, int windowScale){
 		IPv4Header ipheader = IPPacketFactory.copyIPv4Header(ip);
 		TCPHeader tcpheader = copyTCPHeader(tcp);
 		
@@ -336,16 +352,38 @@ public class TCPPacketFactory {
 		//SYN-ACK
 		tcpheader.setIsACK(true);
 		tcpheader.setIsSYN(true);
+		tcpheader.setWindowSize(windowSize);
 		
-		//timestamp in options fields
-		tcpheader.setTimeStampReplyTo(tcpheader.getTimeStampSender());
-		Date currentdate = new Date();
-		int sendertimestamp = (int)currentdate.getTime();
-		tcpheader.setTimeStampSender(sendertimestamp);
-		
+		//options answering the client's SYN. Timestamps are not negotiated: nothing keeps a clock for them later on
+		final byte[] options = createSynAckOptions(tcp, windowScale);
+		tcpheader.setOptions(options);
+		tcpheader.setDataOffset(5 + options.length / 4);
+		ipheader.setTotalLength(ipheader.getIPHeaderLength() + tcpheader.getTCPHeaderLength());
+
 		return new Packet(ipheader, tcpheader, createPacketData(ipheader, tcpheader, null));
 	}
 
+	/**
+	 * MSS echoing the client's, then SACK-permitted and window scale only if the client's SYN carried them,
+	 * each padded with NOPs to a 4-byte boundary
+	 */
+	private static byte[] createSynAckOptions(TCPHeader syn, int windowScale) {
+		final ByteBuffer options = ByteBuffer.allocate(12);
+		if (syn.getMaxSegmentSize() > 0) {
+			options.put((byte) MAX_SEGMENT_SIZE).put((byte) 4).putShort((short) syn.getMaxSegmentSize());
+		}
+		if (syn.isSelectiveAckPermitted()) {
+			options.put((byte) NO_OPERATION).put((byte) NO_OPERATION)
+					.put((byte) SELECTIVE_ACK_PERMITTED).put((byte) 2);
+		}
+		if (syn.hasWindowScale()) {
+			options.put((byte) NO_OPERATION).put((byte) WINDOW_SCALE).put((byte) 3).put((byte) windowScale);
+		}
+		final byte[] data = new byte[options.position()];
+		System.arraycopy(options.array(), 0, data, 0, data.length);
+		return data;
+	}
+
 	/**
 	 * create packet data from IP Header, TCP header and data
 	 * @param ipHeader IPv4Header object
@@ -368,25 +406,30 @@ public class TCPPacketFactory {
 			int offset = ipBuffer.length + tcpBuffer.length;
 			System.arraycopy(data, 0, buffer, offset, dataLength);
 		}
-		//calculate checksum for both IP and TCP header
-		byte[] zero = {0, 0};
-		//zero out checksum first before calculation
-		System.arraycopy(zero, 0, buffer, 10, 2);
-		byte[] ipChecksum = PacketUtil.calculateChecksum(buffer, 0, ipBuffer.length);
-		//write result of checksum back to buffer
-		System.arraycopy(ipChecksum, 0, buffer, 10, 2);
-		
-		//zero out TCP header checksum first
+		//calculate checksum for both IP and TCP header, zeroing them out first
+		buffer[10] = buffer[11] = 0;
+		PacketUtil.writeShortToBytes((short) InternetChecksum.checksum(buffer, 0, ipBuffer.length), buffer, 10);
+
 		int tcpStart = ipBuffer.length;
-		System.arraycopy(zero, 0, buffer, tcpStart + 16, 2);
-		byte[] tcpChecksum = PacketUtil.calculateTCPHeaderChecksum(buffer, tcpStart, tcpBuffer.length + dataLength ,
-				ipHeader.getDestinationIP(), ipHeader.getSourceIP());
-		
-		//write new checksum back to array
-		System.arraycopy(tcpChecksum, 0, buffer,tcpStart + 16, 2);
+		buffer[tcpStart + 16] = buffer[tcpStart + 17] = 0;
+		int tcpChecksum = InternetChecksum.tcpChecksum(buffer, tcpStart, tcpBuffer.length + dataLength,
+				ipHeader.getSourceIP(), ipHeader.getDestinationIP());
+		PacketUtil.writeShortToBytes((short) tcpChecksum, buffer, tcpStart + 16);
 
 		return buffer;
 	}
+
+	/**
+	 * update a packet made by {@link #createResponsePacketData} in place to send it again, with a new ack number and window.
+	 * Only the changed fields are folded into the TCP checksum (RFC 1624) instead of summing the payload again.
+	 * @param packet packet as it was sent before
+	 */
+	public static void updateResponsePacketData(byte[] packet, long ackNumber, int windowSize) {
+		final int tcpStart = (packet[0] & 0x0F) * 4;
+		final int checksumOffset = tcpStart + 16;
+		InternetChecksum.replace32(packet, tcpStart + 8, (int) ackNumber, checksumOffset);
+		InternetChecksum.replace16(packet, tcpStart + 14, windowSize & 0xFFFF, checksumOffset);
+	}
 	
 	/**
 	 * create array of byte from a given TCPHeader object
@@ -493,7 +536,6 @@ public class TCPPacketFactory {
 	private static final int MAX_SEGMENT_SIZE = 2;
 	private static final int WINDOW_SCALE = 3;
 	private static final int SELECTIVE_ACK_PERMITTED = 4;
-//	private static final int SELECTIVE_ACK = 5;
 	private static final int TIME_STAMP = 8;
 
 	private static void handleTcpOptions(TCPHeader header, ByteBuffer packet, int optionsSize) {
@@ -512,7 +554,7 @@ public class TCPPacketFactory {
 
 			switch (optionKind) {
 				case MAX_SEGMENT_SIZE:
-					header.setMaxSegmentSize(packet.getShort());
+					header.setMaxSegmentSize(packet.getShort() & 0xFFFF);
 					index += 2;
 					break;
 				case WINDOW_SCALE:
@@ -0,0 +1,59 @@
+package tech.httptoolkit.android.vpn.transport.udp;
+
+import tech.httptoolkit.android.vpn.transport.PacketHeaderException;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reusable flyweight over the UDP header of a packet buffer, see {@link UDPPacketFactory#createUDPHeader(ByteBuffer)}.
+ */
+public class UDPHeaderView {
+	private ByteBuffer buffer;
+	private int offset;
+
+	/**
+	 * point this view at the header starting at the buffer position, and move the position to the payload
+	 * @param buffer packet buffer, which must not change while the view is in use
+	 * @return this view
+	 */
+	public UDPHeaderView wrap(ByteBuffer buffer) throws PacketHeaderException {
+		if (buffer.remaining() < 8) {
+			throw new PacketHeaderException("Minimum UDP header is 8 bytes.");
+		}
+		this.buffer = buffer;
+		this.offset = buffer.position();
+		buffer.position(offset + 8);
+		return this;
+	}
+
+	public int getSourcePort() {
+		return buffer.getShort(offset) & 0xffff;
+	}
+
+	public int getDestinationPort() {
+		return buffer.getShort(offset + 2) & 0xffff;
+	}
+
+	public int getLength() {
+		return buffer.getShort(offset + 4) & 0xffff;
+	}
+
+	public int getChecksum() {
+		return buffer.getShort(offset + 6);
+	}
+
+	/**
+	 * @param header header to overwrite in place, or null to allocate a new one
+	 * @return the header holding the copy
+	 */
+	public UDPHeader copyTo(UDPHeader header) {
+		if (header == null) {
+			return new UDPHeader(getSourcePort(), getDestinationPort(), getLength(), getChecksum());
+		}
+		header.setSourcePort(getSourcePort());
+		header.setDestinationPort(getDestinationPort());
+		header.setLength(getLength());
+		header.setChecksum(getChecksum());
+		return header;
+	}
+}
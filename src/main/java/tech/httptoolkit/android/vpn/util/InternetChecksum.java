@@ -0,0 +1,132 @@
+package tech.httptoolkit.android.vpn.util;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * The Internet checksum (RFC 1071) of IPv4, TCP, UDP and ICMP headers.
+ * <br/>
+ * Sums are accumulated 8 bytes at a time into a 64-bit register and folded to 16 bits at the end,
+ * which gives the same result as adding 16-bit words since the carries of a one's complement sum
+ * can be deferred (RFC 1071 section 2). A checksum can be updated incrementally
+ * when a single field of the packet changes (RFC 1624), without reading the rest of the packet again.
+ */
+public final class InternetChecksum {
+
+	private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+	private static final VarHandle INTS = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+	private static final int PROTOCOL_TCP = 6;
+
+	private InternetChecksum() {
+	}
+
+	/**
+	 * one's complement sum of the big endian 16-bit words in the range, an odd last byte is padded with zero
+	 * @param initial sum to continue from, e.g. of a pseudo header
+	 * @return sum folded to 16 bits, not complemented
+	 */
+	public static int sum(byte[] data, int offset, int length, int initial) {
+		long sum = initial & 0xFFFFFFFFL;
+		int index = offset;
+		final int end = offset + length;
+		// each step adds two 32-bit halves, so the 64-bit sum cannot overflow before 2^31 steps
+		for (; index + 8 <= end; index += 8) {
+			final long word = (long) LONGS.get(data, index);
+			sum += (word >>> 32) + (word & 0xFFFFFFFFL);
+		}
+		if (index + 4 <= end) {
+			sum += (int) INTS.get(data, index) & 0xFFFFFFFFL;
+			index += 4;
+		}
+		if (index + 2 <= end) {
+			sum += ((data[index] & 0xFF) << 8) | (data[index + 1] & 0xFF);
+			index += 2;
+		}
+		if (index < end) {
+			sum += (data[index] & 0xFF) << 8;
+		}
+		return fold(sum);
+	}
+
+	/**
+	 * @return checksum to store in the header, the complemented sum of the range
+	 */
+	public static int checksum(byte[] data, int offset, int length) {
+		return ~sum(data, offset, length, 0) & 0xFFFF;
+	}
+
+	/**
+	 * sum of the IPv4 pseudo header that precedes TCP and UDP segments in their checksum
+	 * @param length length of the TCP or UDP header and payload
+	 */
+	public static int pseudoHeaderSum(int sourceIp, int destinationIp, int protocol, int length) {
+		long sum = (sourceIp & 0xFFFFFFFFL) + (destinationIp & 0xFFFFFFFFL) + protocol + length;
+		return fold(sum);
+	}
+
+	/**
+	 * @param offset start of the TCP header in data
+	 * @param length length of the TCP header and payload
+	 * @return checksum to store in the TCP header, which must hold zero in its checksum field when summed
+	 */
+	public static int tcpChecksum(byte[] data, int offset, int length, int sourceIp, int destinationIp) {
+		int pseudo = pseudoHeaderSum(sourceIp, destinationIp, PROTOCOL_TCP, length);
+		return ~sum(data, offset, length, pseudo) & 0xFFFF;
+	}
+
+	/**
+	 * update a checksum for a 16-bit word that changed from oldWord to newWord, HC' = ~(~HC + ~m + m') (RFC 1624 eqn. 3)
+	 */
+	public static int update(int checksum, int oldWord, int newWord) {
+		int sum = (~checksum & 0xFFFF) + (~oldWord & 0xFFFF) + (newWord & 0xFFFF);
+		sum = (sum & 0xFFFF) + (sum >>> 16);
+		sum = (sum & 0xFFFF) + (sum >>> 16);
+		return ~sum & 0xFFFF;
+	}
+
+	/**
+	 * update a checksum for a 32-bit field, such as an address or sequence number, aligned on a 16-bit word
+	 */
+	public static int update32(int checksum, int oldValue, int newValue) {
+		return update(update(checksum, oldValue >>> 16, newValue >>> 16), oldValue, newValue);
+	}
+
+	/**
+	 * overwrite a 16-bit field of a packet and update the checksum stored at checksumOffset to match
+	 */
+	public static void replace16(byte[] packet, int fieldOffset, int value, int checksumOffset) {
+		final int old = ((packet[fieldOffset] & 0xFF) << 8) | (packet[fieldOffset + 1] & 0xFF);
+		packet[fieldOffset] = (byte) (value >> 8);
+		packet[fieldOffset + 1] = (byte) value;
+		write16(packet, checksumOffset, update(read16(packet, checksumOffset), old, value));
+	}
+
+	/**
+	 * overwrite a 32-bit field of a packet and update the checksum stored at checksumOffset to match
+	 */
+	public static void replace32(byte[] packet, int fieldOffset, int value, int checksumOffset) {
+		final int old = (int) INTS.get(packet, fieldOffset);
+		INTS.set(packet, fieldOffset, value);
+		write16(packet, checksumOffset, update32(read16(packet, checksumOffset), old, value));
+	}
+
+	private static int read16(byte[] packet, int offset) {
+		return ((packet[offset] & 0xFF) << 8) | (packet[offset + 1] & 0xFF);
+	}
+
+	private static void write16(byte[] packet, int offset, int value) {
+		packet[offset] = (byte) (value >> 8);
+		packet[offset + 1] = (byte) value;
+	}
+
+	private static int fold(long sum) {
+		sum = (sum & 0xFFFFFFFFL) + (sum >>> 32);
+		sum = (sum & 0xFFFFFFFFL) + (sum >>> 32);
+		sum = (sum & 0xFFFF) + (sum >>> 16);
+		sum = (sum & 0xFFFF) + (sum >>> 16);
+		sum = (sum & 0xFFFF) + (sum >>> 16);
+		return (int) sum;
+	}
+}
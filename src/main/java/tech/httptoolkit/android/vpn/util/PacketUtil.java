@@ -20,8 +20,6 @@ import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.Enumeration;
 
 import org.slf4j.Logger;
@@ -148,24 +146,7 @@ public class PacketUtil {
 	 */
 	public static boolean isValidTCPChecksum(int source, int destination,
 											 byte[] data, short tcpLength, int tcpOffset){
-		int buffersize = tcpLength + 12;
-		boolean isodd = false;
-		if((buffersize % 2) != 0){
-			buffersize++;
-			isodd = true;
-		}
-
-		ByteBuffer buffer = ByteBuffer.allocate(buffersize);
-		buffer.putInt(source);
-		buffer.putInt(destination);
-		buffer.put((byte)0);//reserved => 0
-		buffer.put((byte)6);//TCP protocol => 6
-		buffer.putShort(tcpLength);
-		buffer.put(data, tcpOffset, tcpLength);
-		if(isodd){
-			buffer.put((byte)0);
-		}
-		return isValidIPChecksum(buffer.array(), buffersize);
+		return InternetChecksum.tcpChecksum(data, tcpOffset, tcpLength, source, destination) == 0;
 	}
 
 	/**
@@ -175,38 +156,18 @@ public class PacketUtil {
 	 * @return boolean
 	 */
 	private static boolean isValidIPChecksum(byte[] data, int length){
-		int start = 0;
-		int sum = 0;
-		while(start < length) {
-			sum += getNetworkInt(data, start, 2);
-			start = start + 2;
-		}
-
-		//carry over one's complement
-		while((sum >> 16) > 0)
-			sum = (sum & 0xffff) + (sum >> 16);
-
-		//flip the bit to get one' complement
-		sum = ~sum;
-		ByteBuffer buffer = ByteBuffer.allocate(4);
-		buffer.putInt(sum);
-
-		return buffer.getShort(2) == 0;
+		return InternetChecksum.checksum(data, 0, length) == 0;
 	}
 
+	/**
+	 * calculate the Internet checksum of a header, see {@link InternetChecksum}
+	 * @param data array of byte
+	 * @param offset start of the header
+	 * @param length length of the header, an odd last byte is padded with zero
+	 * @return checksum in network byte order
+	 */
 	public static byte[] calculateChecksum(byte[] data, int offset, int length){
-		int start = offset;
-		int sum = 0;
-		while(start < length){
-			sum += PacketUtil.getNetworkInt(data, start, 2);
-			start = start + 2;
-		}
-		//carry over one's complement
-		while((sum >> 16) > 0){
-			sum = (sum & 0xffff) + (sum >> 16);
-		}
-		//flip the bit to get one' complement
-		sum = ~sum;
+		int sum = InternetChecksum.checksum(data, offset, length);
 
 		//extract the last two byte of int
 		byte[] checksum = new byte[2];
@@ -216,32 +177,18 @@ public class PacketUtil {
 		return checksum;
 	}
 
+	/**
+	 * calculate the TCP checksum, including the pseudo header, in place without copying the segment
+	 * @return checksum in network byte order
+	 */
 	public static byte[] calculateTCPHeaderChecksum(byte[] data, int offset, int tcplength, int destip, int sourceip){
-		int buffersize = tcplength + 12;
-		boolean odd = false;
-		if(buffersize % 2 != 0){
-			buffersize++;
-			odd = true;
-		}
-		ByteBuffer buffer = ByteBuffer.allocate(buffersize);
-		buffer.order(ByteOrder.BIG_ENDIAN);
-
-		//create virtual header
-		buffer.putInt(sourceip);
-		buffer.putInt(destip);
-		buffer.put((byte)0);//reserved => 0
-		buffer.put((byte)6);//tcp protocol => 6
-		buffer.putShort((short)tcplength);
-
-		//add actual header + data
-		buffer.put(data, offset, tcplength);
-
-		//padding last byte to zero
-		if(odd){
-			buffer.put((byte)0);
-		}
-		byte[] tcparray = buffer.array();
-		return calculateChecksum(tcparray, 0, buffersize);
+		int sum = InternetChecksum.tcpChecksum(data, offset, tcplength, sourceip, destip);
+
+		byte[] checksum = new byte[2];
+		checksum[0] = (byte)(sum >> 8);
+		checksum[1] = (byte)sum;
+
+		return checksum;
 	}
 
 	public static String intToIPAddress(int addressInt)
@@ -0,0 +1,130 @@
+package com.github.netguard.vpn.tcp.h2;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+public class ContentCodecsTest extends TestCase {
+
+    private static final long MAX = ContentCodecs.DEFAULT_MAX_DECODED_LENGTH;
+
+    public void testRoundTrip() throws IOException {
+        byte[] data = createData(100000);
+        for (String contentEncoding : new String[]{null, "identity", "gzip", "x-gzip", "deflate", "zstd", "gzip, zstd", "zstd,deflate"}) {
+            byte[] encoded = encode(contentEncoding, data);
+            assertEquals(contentEncoding, toString(data), toString(decode(contentEncoding, encoded, MAX)));
+        }
+        assertFalse(ContentCodecs.canEncode("br"));
+        assertTrue(ContentCodecs.canDecode("gzip, br"));
+        assertFalse(ContentCodecs.canDecode("compress"));
+    }
+
+    public void testJdkCompatible() throws IOException {
+        byte[] data = createData(30000);
+
+        // gzip written by the jdk, including a second member
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        for (int i = 0; i < 2; i++) {
+            try (OutputStream out = new GZIPOutputStream(baos)) {
+                out.write(data);
+            }
+        }
+        byte[] decoded = decode("gzip", baos.toByteArray(), MAX);
+        assertEquals(data.length * 2, decoded.length);
+
+        // our gzip read by the jdk
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(encode("gzip", data)))) {
+            assertEquals(toString(data), toString(in.readAllBytes()));
+        }
+
+        // raw deflate without the zlib header
+        baos.reset();
+        try (OutputStream out = new DeflaterOutputStream(baos, new Deflater(Deflater.DEFAULT_COMPRESSION, true))) {
+            out.write(data);
+        }
+        assertEquals(toString(data), toString(decode("deflate", baos.toByteArray(), MAX)));
+    }
+
+    public void testDecompressionBomb() throws IOException {
+        byte[] zeros = new byte[4 * 1024 * 1024];
+        for (String contentEncoding : new String[]{"gzip", "deflate", "zstd"}) {
+            byte[] bomb = encode(contentEncoding, zeros);
+            assertTrue(bomb.length < zeros.length / 100);
+            try {
+                decode(contentEncoding, bomb, 1024 * 1024);
+                fail(contentEncoding);
+            } catch (ContentTooLargeException e) {
+                assertEquals(1024 * 1024, e.getMaxLength());
+            }
+            assertEquals(zeros.length, decode(contentEncoding, bomb, zeros.length).length);
+        }
+    }
+
+    public void testCorrupt() throws IOException {
+        byte[] encoded = encode("gzip", createData(1000));
+        encoded[encoded.length - 5] ^= 1; // crc
+        try {
+            decode("gzip", encoded, MAX);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("GZIP trailer"));
+        }
+    }
+
+    /**
+     * 外层解码器创建失败时，已经创建的内层解码器与原始流都被关闭
+     */
+    public void testFailedChainClosed() throws IOException {
+        boolean[] closed = new boolean[1];
+        InputStream in = new ByteArrayInputStream(createData(100)) {
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+        };
+        try {
+            ContentCodecs.newDecoder("br, zstd", in, MAX).close();
+            fail();
+        } catch (IOException | RuntimeException e) {
+            assertTrue(closed[0]);
+        }
+    }
+
+    private static byte[] createData(int length) {
+        StringBuilder builder = new StringBuilder(length);
+        Random random = new Random(length);
+        while (builder.length() < length) {
+            builder.append("{\"id\":").append(random.nextInt(1000)).append(",\"name\":\"item\"},");
+        }
+        return builder.substring(0, length).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] encode(String contentEncoding, byte[] data) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (OutputStream out = ContentCodecs.newEncoder(contentEncoding, baos)) {
+            out.write(data);
+        }
+        return baos.toByteArray();
+    }
+
+    private static byte[] decode(String contentEncoding, byte[] data, long max) throws IOException {
+        try (InputStream in = ContentCodecs.newDecoder(contentEncoding, new ByteArrayInputStream(data), max)) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static String toString(byte[] data) {
+        return new String(data, StandardCharsets.UTF_8);
+    }
+
+}
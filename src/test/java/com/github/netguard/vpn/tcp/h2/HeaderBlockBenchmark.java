@@ -0,0 +1,163 @@
+package com.github.netguard.vpn.tcp.h2;
+
+import com.twitter.http2.HttpHeadersFrame;
+import com.twitter.http2.NetGuardHttpHeadersFrame;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+
+/**
+ * Header block encode/decode cost on a filtered h2 connection, using header sets captured from Chrome.
+ * <code>warm*</code> reuse one encoder/decoder pair, so most fields hit the dynamic table as on a long lived connection,
+ * <code>cold*</code> start a new connection each time, so every field is a literal.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(java.util.concurrent.TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HeaderBlockBenchmark {
+
+    private static final String[][] CHROME_REQUEST = {
+            {":method", "GET"},
+            {":authority", "www.example.com"},
+            {":scheme", "https"},
+            {":path", "/api/v1/config?platform=android&version=8.0.32&lang=en_US"},
+            {"sec-ch-ua", "\"Chromium\";v=\"128\", \"Not;A=Brand\";v=\"24\", \"Google Chrome\";v=\"128\""},
+            {"sec-ch-ua-mobile", "?0"},
+            {"sec-ch-ua-platform", "\"macOS\""},
+            {"upgrade-insecure-requests", "1"},
+            {"user-agent", "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_15_7) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/128.0.0.0 Safari/537.36"},
+            {"accept", "text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,image/apng,*/*;q=0.8,application/signed-exchange;v=b3;q=0.7"},
+            {"sec-fetch-site", "none"},
+            {"sec-fetch-mode", "navigate"},
+            {"sec-fetch-user", "?1"},
+            {"sec-fetch-dest", "document"},
+            {"accept-encoding", "gzip, deflate, br, zstd"},
+            {"accept-language", "en-US,en;q=0.9,zh-CN;q=0.8,zh;q=0.7"},
+            {"cookie", "_ga=GA1.1.1234567890.1700000000; session=2b8f3c9d4e5a6b7c8d9e0f1a2b3c4d5e; theme=dark"},
+            {"priority", "u=0, i"},
+    };
+
+    private static final String[][] CHROME_RESPONSE = {
+            {":status", "200"},
+            {"content-type", "application/json; charset=utf-8"},
+            {"content-length", "5342"},
+            {"date", "Mon, 19 Oct 2026 08:12:45 GMT"},
+            {"server", "nginx"},
+            {"cache-control", "private, max-age=0, must-revalidate"},
+            {"etag", "W/\"14de-18f2a3c4b5d\""},
+            {"vary", "Accept-Encoding"},
+            {"content-encoding", "gzip"},
+            {"strict-transport-security", "max-age=31536000; includeSubDomains"},
+            {"x-frame-options", "SAMEORIGIN"},
+            {"alt-svc", "h3=\":443\"; ma=86400"},
+            {"set-cookie", "session=2b8f3c9d4e5a6b7c8d9e0f1a2b3c4d5e; Path=/; HttpOnly; Secure"},
+    };
+
+    private HttpHeadersFrame request;
+    private HttpHeadersFrame response;
+
+    private HttpHeaderBlockEncoder warmEncoder;
+    private HttpHeaderBlockDecoder warmDecoder;
+    private byte[] warmRequestBlock;
+    private byte[] coldRequestBlock;
+
+    @Setup
+    public void setup() throws IOException {
+        request = createFrame(1, CHROME_REQUEST);
+        response = createFrame(1, CHROME_RESPONSE);
+
+        warmEncoder = new HttpHeaderBlockEncoder(0x1000);
+        warmDecoder = new HttpHeaderBlockDecoder(0x4000, 0x1000);
+        coldRequestBlock = encode(warmEncoder, request);
+        warmRequestBlock = encode(warmEncoder, request);
+        decode(warmDecoder, coldRequestBlock);
+        // steady state: the second block only references the dynamic table and leaves it unchanged
+        encode(warmEncoder, response);
+        encode(warmEncoder, request);
+    }
+
+    private static HttpHeadersFrame createFrame(int streamId, String[][] headers) {
+        HttpHeadersFrame frame = new NetGuardHttpHeadersFrame(streamId);
+        for (String[] header : headers) {
+            frame.headers().add(header[0], header[1]);
+        }
+        return frame;
+    }
+
+    private static byte[] encode(HttpHeaderBlockEncoder encoder, HttpHeadersFrame frame) throws IOException {
+        ByteBuf buf = encoder.encode(frame);
+        try {
+            return ByteBufUtil.getBytes(buf);
+        } finally {
+            buf.release();
+        }
+    }
+
+    private static HttpHeadersFrame decode(HttpHeaderBlockDecoder decoder, byte[] block) throws IOException {
+        HttpHeadersFrame frame = new NetGuardHttpHeadersFrame(1);
+        decoder.decode(Unpooled.wrappedBuffer(block), frame);
+        decoder.endHeaderBlock(frame);
+        return frame;
+    }
+
+    @Benchmark
+    public int warmEncodeRequest() throws IOException {
+        ByteBuf buf = warmEncoder.encode(request);
+        int size = buf.readableBytes();
+        buf.release();
+        return size;
+    }
+
+    @Benchmark
+    public int warmEncodeResponse() throws IOException {
+        ByteBuf buf = warmEncoder.encode(response);
+        int size = buf.readableBytes();
+        buf.release();
+        return size;
+    }
+
+    @Benchmark
+    public HttpHeadersFrame warmDecodeRequest() throws IOException {
+        return decode(warmDecoder, warmRequestBlock);
+    }
+
+    @Benchmark
+    public int coldEncodeRequest() throws IOException {
+        ByteBuf buf = new HttpHeaderBlockEncoder(0x1000).encode(request);
+        int size = buf.readableBytes();
+        buf.release();
+        return size;
+    }
+
+    @Benchmark
+    public HttpHeadersFrame coldDecodeRequest() throws IOException {
+        return decode(new HttpHeaderBlockDecoder(0x4000, 0x1000), coldRequestBlock);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(HeaderBlockBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+
+}
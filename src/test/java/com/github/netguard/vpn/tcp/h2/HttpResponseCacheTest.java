@@ -0,0 +1,201 @@
+package com.github.netguard.vpn.tcp.h2;
+
+import io.netty.handler.codec.DateFormatter;
+import io.netty.handler.codec.http.DefaultHttpHeadersFactory;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class HttpResponseCacheTest extends TestCase {
+
+    private final AtomicLong clock = new AtomicLong(1700000000000L);
+    private final Http2Session session = new Http2Session("10.0.0.2", "1.1.1.1", 50000, 443, "example.com");
+
+    public void testFreshness() {
+        HttpResponseCache cache = new HttpResponseCache(1024 * 1024, null, null, clock::get);
+        byte[] body = "hello".getBytes();
+        assertTrue(cache.store(request("/a"), 200, headers("cache-control", "max-age=60"), body, clock.get()));
+        clock.addAndGet(TimeUnit.SECONDS.toMillis(30));
+        CancelResult result = cache.serve(request("/a"));
+        assertNotNull(result);
+        assertTrue(Arrays.equals(body, result.responseData));
+        assertEquals("30", result.response.headers().get("age"));
+        assertEquals("HIT", result.response.headers().get(HttpResponseCache.CACHE_HEADER));
+        assertNull(cache.serve(request("/a", "cache-control", "no-cache")));
+        assertNull(cache.serve(request("/a", "cache-control", "max-age=10")));
+
+        clock.addAndGet(TimeUnit.SECONDS.toMillis(31));
+        assertNull(cache.serve(request("/a")));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(3, cache.getMissCount());
+        assertEquals(body.length, cache.getBytesSaved());
+
+        assertFalse(cache.store(request("/b"), 200, headers("cache-control", "no-store"), body, clock.get()));
+        assertFalse(cache.store(request("/b"), 200, headers("cache-control", "private, max-age=60"), body, clock.get()));
+        assertFalse(cache.store(request("/b"), 200, headers("cache-control", "max-age=60", "set-cookie", "a=b"), body, clock.get()));
+        assertFalse(cache.store(request("/b"), 200, headers("cache-control", "max-age=60", "vary", "*"), body, clock.get()));
+        assertFalse(cache.store(request("/b"), 206, headers("cache-control", "max-age=60"), body, clock.get()));
+        assertFalse(cache.store(request("/b", "authorization", "Bearer x"), 200, headers("cache-control", "max-age=60"), body, clock.get()));
+        assertTrue(cache.store(request("/c"), 200, headers("expires", DateFormatter.format(new Date(clock.get() + 5000))), body, clock.get()));
+        assertNotNull(cache.serve(request("/c")));
+    }
+
+    public void testVary() {
+        HttpResponseCache cache = new HttpResponseCache(1024 * 1024, null, null, clock::get);
+        cache.store(request("/v", "accept-encoding", "gzip"), 200,
+                headers("cache-control", "max-age=60", "vary", "Accept-Encoding", "content-encoding", "gzip"), new byte[]{1}, clock.get());
+        cache.store(request("/v", "accept-encoding", "br"), 200,
+                headers("cache-control", "max-age=60", "vary", "Accept-Encoding", "content-encoding", "br"), new byte[]{2}, clock.get());
+        assertEquals(2, cache.serve(request("/v", "accept-encoding", "br")).responseData[0]);
+        assertEquals(1, cache.serve(request("/v", "accept-encoding", "gzip")).responseData[0]);
+        assertNull(cache.serve(request("/v")));
+
+        CancelResult notModified = cache.serve(request("/v", "accept-encoding", "br", "if-none-match", "\"x\""));
+        assertEquals(200, notModified.response.status().code());
+        cache.store(request("/e"), 200, headers("cache-control", "max-age=60", "etag", "\"x\""), new byte[]{3}, clock.get());
+        notModified = cache.serve(request("/e", "if-none-match", "W/\"x\""));
+        assertEquals(304, notModified.response.status().code());
+        assertEquals(0, notModified.responseData.length);
+    }
+
+    public void testRevalidate() {
+        HttpResponseCache cache = new HttpResponseCache(1024 * 1024, null, null, clock::get);
+        CachingHttp2Filter filter = new CachingHttp2Filter(new PassFilter(), cache);
+        byte[] body = "cached body".getBytes();
+
+        Http2SessionKey key = new Http2SessionKey(session, 1, false);
+        HttpRequest request = request("/r");
+        assertNull(filter.cancelRequest(request, new byte[0], false));
+        HttpHeaders requestHeaders = headers(":path", "/r");
+        filter.filterRequest(key, request, requestHeaders, new byte[0]);
+        assertFalse(requestHeaders.contains("if-none-match"));
+        HttpHeaders responseHeaders = headers(":status", "200", "cache-control", "no-cache", "etag", "\"v1\"", "content-type", "text/plain");
+        filter.filterResponse(key, response(200, responseHeaders), responseHeaders, body);
+
+        // no-cache: always revalidated, the 304 is completed from the cache
+        key = new Http2SessionKey(session, 3, false);
+        request = request("/r");
+        assertNull(filter.cancelRequest(request, new byte[0], false));
+        requestHeaders = headers(":path", "/r");
+        filter.filterRequest(key, request, requestHeaders, new byte[0]);
+        assertEquals("\"v1\"", requestHeaders.get("if-none-match"));
+        responseHeaders = headers(":status", "304", "etag", "\"v1\"", "cache-control", "max-age=60");
+        HttpResponse response = response(304, responseHeaders);
+        byte[] data = filter.filterResponse(key, response, responseHeaders, new byte[0]);
+        assertTrue(Arrays.equals(body, data));
+        assertEquals("200", responseHeaders.get(":status"));
+        assertEquals(200, response.status().code());
+        assertEquals("text/plain", responseHeaders.get("content-type"));
+        assertEquals("REVALIDATED", responseHeaders.get(HttpResponseCache.CACHE_HEADER));
+        assertEquals(1, cache.getRevalidatedCount());
+
+        // the 304 refreshed the entry with max-age=60
+        request = request("/r");
+        CancelResult result = filter.cancelRequest(request, new byte[0], false);
+        assertNotNull(result);
+        assertTrue(Arrays.equals(body, result.responseData));
+        assertEquals(2 * body.length, cache.getBytesSaved());
+
+        HttpRequest post = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/r");
+        post.headers().set("host", "example.com");
+        filter.filterRequest(new Http2SessionKey(session, 5, false), post, headers(), new byte[0]);
+        assertNull(cache.serve(request("/r")));
+    }
+
+    public void testDiskTier() throws Exception {
+        File file = File.createTempFile("netguard", ".cache");
+        HttpResponseCache cache = new HttpResponseCache(200, file, HttpResponseCache.map(file, 1000), clock::get);
+        try {
+            for (int i = 0; i < 100; i++) {
+                byte[] body = new byte[60 + i % 7];
+                Arrays.fill(body, (byte) i);
+                assertTrue(cache.store(request("/" + i), 200, headers("cache-control", "max-age=60"), body, clock.get()));
+                assertTrue(cache.getMemoryBytes() <= 200);
+                assertTrue(cache.getDiskBytes() <= 1000);
+            }
+            int hits = 0;
+            for (int i = 0; i < 100; i++) {
+                CancelResult result = cache.serve(request("/" + i));
+                if (result != null) {
+                    hits++;
+                    assertEquals(60 + i % 7, result.responseData.length);
+                    for (byte b : result.responseData) {
+                        assertEquals((byte) i, b);
+                    }
+                }
+            }
+            // the last entries are kept in memory or in the mapped file
+            assertNotNull(cache.serve(request("/99")));
+            assertTrue(hits > 1000 / 66);
+            assertTrue(hits < 100);
+        } finally {
+            cache.close();
+        }
+        assertFalse(file.exists());
+    }
+
+    private static HttpRequest request(String uri, String... headers) {
+        HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri,
+                DefaultHttpHeadersFactory.headersFactory().withValidation(false));
+        request.headers().set("host", "example.com");
+        for (int i = 0; i < headers.length; i += 2) {
+            request.headers().add(headers[i], headers[i + 1]);
+        }
+        return request;
+    }
+
+    private static HttpResponse response(int status, HttpHeaders headers) {
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.valueOf(status),
+                DefaultHttpHeadersFactory.headersFactory().withValidation(false));
+        response.headers().set(headers);
+        response.headers().remove(":status");
+        return response;
+    }
+
+    private static HttpHeaders headers(String... headers) {
+        HttpHeaders httpHeaders = DefaultHttpHeadersFactory.headersFactory().withValidation(false).newHeaders();
+        for (int i = 0; i < headers.length; i += 2) {
+            httpHeaders.add(headers[i], headers[i + 1]);
+        }
+        return httpHeaders;
+    }
+
+    private static class PassFilter implements Http2Filter {
+        @Override
+        public boolean filterHost(String hostName, boolean h3) {
+            return true;
+        }
+        @Override
+        public byte[] filterRequest(Http2SessionKey sessionKey, HttpRequest request, HttpHeaders headers, byte[] requestData) {
+            return requestData;
+        }
+        @Override
+        public byte[] filterResponse(Http2SessionKey sessionKey, HttpResponse response, HttpHeaders headers, byte[] responseData) {
+            return responseData;
+        }
+        @Override
+        public byte[] filterPollingRequest(Http2SessionKey sessionKey, HttpRequest request, byte[] requestData, boolean newStream) {
+            return requestData;
+        }
+        @Override
+        public byte[] filterPollingResponse(Http2SessionKey sessionKey, HttpResponse response, byte[] responseData, boolean endStream) {
+            return responseData;
+        }
+        @Override
+        public CancelResult cancelRequest(HttpRequest request, byte[] requestData, boolean polling) {
+            return null;
+        }
+    }
+}
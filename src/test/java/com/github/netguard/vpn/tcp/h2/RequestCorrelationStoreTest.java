@@ -0,0 +1,45 @@
+package com.github.netguard.vpn.tcp.h2;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.TimeUnit;
+
+public class RequestCorrelationStoreTest extends TestCase {
+
+    private final Http2Session session = new Http2Session("10.0.0.2", "1.1.1.1", 50000, 443, "example.com");
+
+    public void testPutRemove() {
+        RequestCorrelationStore<String> store = new RequestCorrelationStore<>();
+        store.put(new Http2SessionKey(session, 1, false), "a");
+        store.put(new Http2SessionKey(session, 3, false), "b");
+        assertEquals(2, store.size());
+        assertEquals("a", store.get(new Http2SessionKey(session, 1, false)));
+        assertEquals("a", store.remove(new Http2SessionKey(session, 1, false)));
+        assertNull(store.remove(new Http2SessionKey(session, 1, false)));
+        assertEquals(1, store.size());
+        assertEquals(1, store.removeSession(session));
+        assertEquals(0, store.size());
+    }
+
+    public void testEvictOldest() {
+        RequestCorrelationStore<Integer> store = new RequestCorrelationStore<>(16, 1, TimeUnit.MINUTES);
+        for (int i = 0; i < 100; i++) {
+            store.put(new Http2SessionKey(session, i * 2 + 1, false), i);
+        }
+        assertTrue(store.size() <= 16);
+        assertEquals(100 - store.size(), store.getEvictedCount());
+        assertNull(store.get(new Http2SessionKey(session, 1, false)));
+        assertEquals(Integer.valueOf(99), store.get(new Http2SessionKey(session, 199, false)));
+    }
+
+    public void testExpire() throws Exception {
+        RequestCorrelationStore<String> store = new RequestCorrelationStore<>(16, 10, TimeUnit.MILLISECONDS);
+        Http2SessionKey key = new Http2SessionKey(session, 1, false);
+        store.put(key, "a");
+        TimeUnit.MILLISECONDS.sleep(50);
+        assertNull(store.get(key));
+        assertEquals(0, store.size());
+        assertEquals(1, store.getExpiredCount());
+    }
+
+}
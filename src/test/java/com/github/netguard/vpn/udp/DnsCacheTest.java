@@ -0,0 +1,179 @@
+package com.github.netguard.vpn.udp;
+
+import junit.framework.TestCase;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.SOARecord;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+public class DnsCacheTest extends TestCase {
+
+    private static final long NOW = 1_000_000_000L;
+    private static final InetSocketAddress RESOLVER = new InetSocketAddress("192.0.2.53", 53);
+    private static final InetSocketAddress OTHER_RESOLVER = new InetSocketAddress("198.51.100.53", 53);
+
+    public void testPositive() throws Exception {
+        DnsCache cache = new DnsCache();
+        Message query = query("www.example.com.", 0x1234);
+        byte[] queryWire = query.toWire();
+        assertNull(cache.lookup(RESOLVER, query, queryWire, queryWire.length, NOW).response);
+
+        Message response = response(query);
+        response.addRecord(new ARecord(Name.fromString("www.example.com."), DClass.IN, 300, InetAddress.getByName("192.0.2.1")), Section.ANSWER);
+        byte[] responseWire = response.toWire();
+        cache.store(RESOLVER, response, responseWire, responseWire.length, NOW);
+
+        // 0x20 大小写与 ID 取自新的查询，TTL 扣除已缓存时间
+        Message second = query("WWW.Example.COM.", 0x4321);
+        byte[] secondWire = second.toWire();
+        DnsCache.Lookup lookup = cache.lookup(RESOLVER, second, secondWire, secondWire.length, NOW + 100_000);
+        assertTrue(lookup.fresh);
+        assertFalse(lookup.prefetch);
+        Message cached = new Message(lookup.response);
+        assertEquals(0x4321, cached.getHeader().getID());
+        assertEquals("WWW.Example.COM.", cached.getQuestion().getName().toString());
+        Record answer = cached.getSection(Section.ANSWER).get(0);
+        assertEquals(200, answer.getTTL());
+        assertEquals("192.0.2.1", ((ARecord) answer).getAddress().getHostAddress());
+
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(0.5, cache.getHitRate());
+    }
+
+    public void testNegative() throws Exception {
+        DnsCache cache = new DnsCache();
+        Message query = query("missing.example.com.", 1);
+        Message response = response(query);
+        response.getHeader().setRcode(Rcode.NXDOMAIN);
+        Name zone = Name.fromString("example.com.");
+        response.addRecord(new SOARecord(zone, DClass.IN, 3600, Name.fromString("ns.example.com."), Name.fromString("admin.example.com."), 1, 7200, 900, 86400, 60), Section.AUTHORITY);
+        byte[] responseWire = response.toWire();
+        cache.store(RESOLVER, response, responseWire, responseWire.length, NOW);
+
+        byte[] queryWire = query.toWire();
+        DnsCache.Lookup lookup = cache.lookup(RESOLVER, query, queryWire, queryWire.length, NOW + 59_000);
+        assertTrue(lookup.fresh);
+        assertEquals(Rcode.NXDOMAIN, new Message(lookup.response).getRcode());
+        // SOA MINIMUM 60 秒后不再是新鲜应答
+        assertFalse(cache.lookup(RESOLVER, query, queryWire, queryWire.length, NOW + 60_000).fresh);
+
+        // 没有 SOA 的否定应答不缓存
+        Message noSoa = query("nosoa.example.com.", 2);
+        Message noSoaResponse = response(noSoa);
+        noSoaResponse.getHeader().setRcode(Rcode.NXDOMAIN);
+        byte[] noSoaWire = noSoaResponse.toWire();
+        cache.store(RESOLVER, noSoaResponse, noSoaWire, noSoaWire.length, NOW);
+        byte[] noSoaQuery = noSoa.toWire();
+        assertNull(cache.lookup(RESOLVER, noSoa, noSoaQuery, noSoaQuery.length, NOW).response);
+    }
+
+    public void testStaleAndPrefetch() throws Exception {
+        DnsCache cache = new DnsCache();
+        Message query = query("hot.example.com.", 7);
+        Message response = response(query);
+        response.addRecord(new ARecord(Name.fromString("hot.example.com."), DClass.IN, 100, InetAddress.getByName("192.0.2.2")), Section.ANSWER);
+        byte[] responseWire = response.toWire();
+        cache.store(RESOLVER, response, responseWire, responseWire.length, NOW);
+        byte[] queryWire = query.toWire();
+
+        assertFalse(cache.lookup(RESOLVER, query, queryWire, queryWire.length, NOW + 10_000).prefetch);
+        DnsCache.Lookup lookup = cache.lookup(RESOLVER, query, queryWire, queryWire.length, NOW + 95_000);
+        assertTrue(lookup.fresh);
+        assertTrue(lookup.prefetch);
+        assertFalse("only one prefetch in flight", cache.lookup(RESOLVER, query, queryWire, queryWire.length, NOW + 96_000).prefetch);
+        assertEquals(1, cache.getPrefetchCount());
+
+        lookup = cache.lookup(RESOLVER, query, queryWire, queryWire.length, NOW + 200_000);
+        assertFalse(lookup.fresh);
+        assertNotNull(lookup.response);
+        assertEquals(30, new Message(lookup.response).getSection(Section.ANSWER).get(0).getTTL());
+
+        cache.setMaxStale(java.time.Duration.ofMinutes(1));
+        assertNull(cache.lookup(RESOLVER, query, queryWire, queryWire.length, NOW + 200_000).response);
+        assertEquals(0, cache.size());
+    }
+
+    public void testCoalesce() throws Exception {
+        DnsCache cache = new DnsCache();
+        Message first = query("burst.example.com.", 1);
+        byte[] firstWire = first.toWire();
+        DnsCache.Lookup lookup = cache.lookup(RESOLVER, first, firstWire, firstWire.length, NOW);
+        assertFalse("first query goes upstream", cache.join(lookup.question, null, NOW));
+
+        Message second = query("Burst.Example.com.", 2);
+        byte[] secondWire = second.toWire();
+        byte[][] received = new byte[1][];
+        DnsCache.Waiter waiter = new DnsCache.Waiter() {
+            @Override
+            public byte[] getQuery() {
+                return secondWire;
+            }
+            @Override
+            public void onResponse(byte[] response, int rcode) {
+                received[0] = response;
+            }
+        };
+        assertTrue(cache.join(cache.lookup(RESOLVER, second, secondWire, secondWire.length, NOW).question, waiter, NOW + 10));
+
+        Message response = response(first);
+        response.addRecord(new ARecord(Name.fromString("burst.example.com."), DClass.IN, 60, InetAddress.getByName("192.0.2.3")), Section.ANSWER);
+        byte[] responseWire = response.toWire();
+        cache.complete(RESOLVER, response, responseWire, responseWire.length);
+        Message coalesced = new Message(received[0]);
+        assertEquals(2, coalesced.getHeader().getID());
+        assertEquals("Burst.Example.com.", coalesced.getQuestion().getName().toString());
+        assertEquals(60, coalesced.getSection(Section.ANSWER).get(0).getTTL());
+        assertEquals(1, cache.getCoalescedCount());
+
+        // 应答之后或上游查询超时后，新的查询重新发往上游
+        assertFalse(cache.join(lookup.question, waiter, NOW + 10));
+        assertFalse(cache.join(lookup.question, waiter, NOW + 10_000));
+    }
+
+    /**
+     * 不同服务器的应答可能不同，缓存与合并都按服务器区分
+     */
+    public void testResolversIsolated() throws Exception {
+        DnsCache cache = new DnsCache();
+        Message query = query("split.example.com.", 1);
+        byte[] queryWire = query.toWire();
+        DnsCache.Lookup lookup = cache.lookup(RESOLVER, query, queryWire, queryWire.length, NOW);
+        assertFalse(cache.join(lookup.question, null, NOW));
+        DnsCache.Lookup other = cache.lookup(OTHER_RESOLVER, query, queryWire, queryWire.length, NOW);
+        assertFalse(lookup.question.equals(other.question));
+        assertFalse("no flight to the other resolver", cache.join(other.question, null, NOW));
+
+        Message response = response(query);
+        response.addRecord(new ARecord(Name.fromString("split.example.com."), DClass.IN, 60, InetAddress.getByName("192.0.2.4")), Section.ANSWER);
+        byte[] responseWire = response.toWire();
+        cache.store(RESOLVER, response, responseWire, responseWire.length, NOW);
+        assertTrue(cache.lookup(RESOLVER, query, queryWire, queryWire.length, NOW + 1000).fresh);
+        assertNull(cache.lookup(OTHER_RESOLVER, query, queryWire, queryWire.length, NOW + 1000).response);
+    }
+
+    private static Message query(String name, int id) throws Exception {
+        Message query = Message.newQuery(Record.newRecord(Name.fromString(name), Type.A, DClass.IN));
+        query.getHeader().setID(id);
+        return query;
+    }
+
+    private static Message response(Message query) {
+        Message response = new Message(query.getHeader().getID());
+        response.getHeader().setFlag(Flags.QR);
+        response.getHeader().setFlag(Flags.RD);
+        response.getHeader().setFlag(Flags.RA);
+        response.addRecord(query.getQuestion(), Section.QUESTION);
+        return response;
+    }
+
+}
@@ -0,0 +1,104 @@
+package com.github.netguard.vpn.udp;
+
+import net.luminis.quic.crypto.Aead;
+import net.luminis.quic.crypto.ConnectionSecrets;
+import net.luminis.quic.frame.CryptoFrame;
+import net.luminis.quic.frame.QuicFrame;
+import net.luminis.quic.impl.Role;
+import net.luminis.quic.impl.Version;
+import net.luminis.quic.impl.VersionHolder;
+import net.luminis.quic.log.NullLogger;
+import net.luminis.quic.packet.InitialPacket;
+import net.luminis.quic.stream.ReceiveBuffer;
+import net.luminis.quic.stream.ReceiveBufferImpl;
+import net.luminis.quic.stream.StreamElement;
+import net.luminis.tls.handshake.ClientHello;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ClientHello extraction from the first datagram of a QUIC flow.
+ * <code>kwik</code> is the previous per-datagram ConnectionSecrets/InitialPacket/ReceiveBuffer path,
+ * <code>lean</code> decrypts one of 1024 distinct connections per op, so initial keys mostly miss the cache like fresh flows,
+ * <code>leanRetransmit</code> decrypts the same connection again, as for a retransmitted or split Initial.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QuicInitialBenchmark {
+
+    private static final int CONNECTIONS = 1024;
+
+    private byte[][] packets;
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        byte[] clientHello = QuicInitialDecryptorTest.clientHello("www.example.com");
+        packets = new byte[CONNECTIONS][];
+        for (int i = 0; i < CONNECTIONS; i++) {
+            byte[] dcid = ByteBuffer.allocate(8).putLong(0x5a5a000000000000L + i).array();
+            packets[i] = QuicInitialDecryptorTest.initialPacket(dcid, 0, new CryptoFrame(Version.QUIC_version_1, 0, clientHello));
+        }
+    }
+
+    @Benchmark
+    public ClientHello kwik() throws Exception {
+        byte[] buffer = packets[next++ & (CONNECTIONS - 1)];
+        ByteBuffer bb = ByteBuffer.wrap(buffer);
+        byte[] dcid = Arrays.copyOfRange(buffer, 6, 6 + buffer[5]);
+        InitialPacket initialPacket = new InitialPacket(Version.QUIC_version_1);
+        ConnectionSecrets connectionSecrets = new ConnectionSecrets(VersionHolder.with(Version.QUIC_version_1), Role.Server, null, new NullLogger());
+        connectionSecrets.computeInitialKeys(dcid);
+        Aead aead = connectionSecrets.getPeerAead(initialPacket.getEncryptionLevel());
+        initialPacket.parse(bb, aead, 0, new NullLogger(), 0);
+        ReceiveBuffer receiveBuffer = new ReceiveBufferImpl();
+        for (QuicFrame frame : initialPacket.getFrames()) {
+            if (frame instanceof StreamElement) {
+                receiveBuffer.add((StreamElement) frame);
+            }
+        }
+        ByteBuffer block = ByteBuffer.allocate((int) receiveBuffer.bytesAvailable());
+        receiveBuffer.read(block);
+        return new ClientHello(ByteBuffer.wrap(block.array()), null);
+    }
+
+    @Benchmark
+    public ClientHello lean() throws Exception {
+        byte[] buffer = packets[next++ & (CONNECTIONS - 1)];
+        return new QuicInitialDecryptor().decrypt(buffer, buffer.length);
+    }
+
+    @Benchmark
+    public ClientHello leanRetransmit() throws Exception {
+        byte[] buffer = packets[0];
+        return new QuicInitialDecryptor().decrypt(buffer, buffer.length);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(QuicInitialBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+
+}
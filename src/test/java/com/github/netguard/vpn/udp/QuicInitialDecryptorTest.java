@@ -0,0 +1,115 @@
+package com.github.netguard.vpn.udp;
+
+import cn.hutool.core.util.HexUtil;
+import net.luminis.quic.common.EncryptionLevel;
+import net.luminis.quic.crypto.Aead;
+import net.luminis.quic.crypto.ConnectionSecrets;
+import net.luminis.quic.frame.CryptoFrame;
+import net.luminis.quic.frame.Padding;
+import net.luminis.quic.frame.QuicFrame;
+import net.luminis.quic.impl.Role;
+import net.luminis.quic.impl.Version;
+import net.luminis.quic.impl.VersionHolder;
+import net.luminis.quic.log.NullLogger;
+import net.luminis.quic.packet.InitialPacket;
+import net.luminis.tls.extension.ServerNameExtension;
+import net.luminis.tls.handshake.ClientHello;
+import junit.framework.TestCase;
+
+import java.security.KeyPairGenerator;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Arrays;
+import java.util.List;
+
+public class QuicInitialDecryptorTest extends TestCase {
+
+    /**
+     * RFC 9001 Appendix A.1
+     */
+    public void testInitialKeys() throws Exception {
+        byte[] dcid = HexUtil.decodeHex("8394c8f03e515708");
+        QuicInitialDecryptor.InitialKeys keys = QuicInitialDecryptor.getClientInitialKeys(dcid, 0, dcid.length);
+        assertEquals("1f369613dd76d5467730efcbe3b1a22d", HexUtil.encodeHexStr(keys.key.getEncoded()));
+        assertEquals("fa044b2f42a3fd3b46fb255c", HexUtil.encodeHexStr(keys.iv));
+        assertEquals("9f50449e04a0e810283a1e9933adedd2", HexUtil.encodeHexStr(keys.hp.getEncoded()));
+        assertSame(keys, QuicInitialDecryptor.getClientInitialKeys(dcid, 0, dcid.length));
+    }
+
+    public void testSinglePacket() throws Exception {
+        byte[] clientHello = clientHello("example.com");
+        byte[] dcid = HexUtil.decodeHex("0001020304050607");
+        byte[] packet = initialPacket(dcid, 0, new CryptoFrame(Version.QUIC_version_1, 0, clientHello));
+        byte[] copy = packet.clone();
+
+        QuicInitialDecryptor decryptor = new QuicInitialDecryptor();
+        ClientHello result = decryptor.decrypt(packet, packet.length);
+        assertNotNull(result);
+        assertEquals("example.com", serverName(result));
+        assertFalse(decryptor.isReassembling());
+        assertTrue(Arrays.equals(copy, packet));
+
+        packet[packet.length - 1] ^= 1;
+        try {
+            decryptor.decrypt(packet, packet.length);
+            fail();
+        } catch (javax.crypto.AEADBadTagException ignored) {
+        }
+    }
+
+    public void testReassembly() throws Exception {
+        byte[] clientHello = clientHello("reassembly.example.com");
+        byte[] dcid = HexUtil.decodeHex("1011121314151617");
+        int split = clientHello.length / 2;
+        byte[] second = initialPacket(dcid, 1, new CryptoFrame(Version.QUIC_version_1, split, Arrays.copyOfRange(clientHello, split, clientHello.length)));
+        byte[] first = initialPacket(dcid, 0, new CryptoFrame(Version.QUIC_version_1, 0, Arrays.copyOf(clientHello, split)));
+
+        QuicInitialDecryptor decryptor = new QuicInitialDecryptor();
+        assertNull(decryptor.decrypt(second, second.length));
+        assertTrue(decryptor.isReassembling());
+        ClientHello result = decryptor.decrypt(first, first.length);
+        assertNotNull(result);
+        assertEquals("reassembly.example.com", serverName(result));
+        assertFalse(decryptor.isReassembling());
+    }
+
+    /**
+     * 偏移量超出 int 范围的 CRYPTO 帧，截断后为负数，不能写入重组缓冲区
+     */
+    public void testCryptoOffsetOutOfRange() throws Exception {
+        byte[] dcid = HexUtil.decodeHex("2021222324252627");
+        byte[] packet = initialPacket(dcid, 0, new CryptoFrame(Version.QUIC_version_1, 0xfffffff0L, new byte[32]));
+
+        QuicInitialDecryptor decryptor = new QuicInitialDecryptor();
+        assertNull(decryptor.decrypt(packet, packet.length));
+        assertFalse(decryptor.isReassembling());
+    }
+
+    static byte[] clientHello(String serverName) throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        return new ClientHello(serverName, (ECPublicKey) generator.generateKeyPair().getPublic()).getBytes();
+    }
+
+    /**
+     * 用 kwik 生成客户端 Initial 包，填充到 1200 字节
+     */
+    static byte[] initialPacket(byte[] dcid, long packetNumber, CryptoFrame cryptoFrame) throws Exception {
+        ConnectionSecrets secrets = new ConnectionSecrets(VersionHolder.with(Version.QUIC_version_1), Role.Client, null, new NullLogger());
+        secrets.computeInitialKeys(dcid);
+        Aead aead = secrets.getOwnAead(EncryptionLevel.Initial);
+        int padding = Math.max(1, 1200 - 64 - cryptoFrame.getFrameLength());
+        List<QuicFrame> frames = Arrays.asList(cryptoFrame, new Padding(padding));
+        InitialPacket packet = new InitialPacket(Version.QUIC_version_1, new byte[]{1, 2, 3, 4}, dcid, null, frames);
+        packet.setPacketNumber(packetNumber);
+        return packet.generatePacketBytes(aead);
+    }
+
+    private static String serverName(ClientHello clientHello) {
+        return clientHello.getExtensions().stream()
+                .filter(extension -> extension instanceof ServerNameExtension)
+                .map(extension -> ((ServerNameExtension) extension).getHostName())
+                .findFirst().orElse(null);
+    }
+
+}
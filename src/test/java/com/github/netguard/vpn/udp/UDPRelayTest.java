@@ -0,0 +1,310 @@
+package com.github.netguard.vpn.udp;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.function.BooleanSupplier;
+
+public class UDPRelayTest extends TestCase {
+
+    private UDPRelay relay;
+    private InetSocketAddress relayAddress;
+    private EchoServer echo;
+
+    @Override
+    protected void setUp() throws Exception {
+        int port;
+        try (DatagramSocket socket = new DatagramSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        relay = new UDPRelay(port);
+        relayAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        echo = new EchoServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        relay.close();
+        echo.close();
+    }
+
+    public void testRelayExpiresOnWheel() throws Exception {
+        try (DatagramSocket socket = UDPRelay.createRelayProxySocket(relayAddress, echo.getAddress(), 1)) {
+            assertEquals("ping", roundTrip(socket, "ping"));
+            assertEquals(1, relay.getActiveRelayCount());
+            assertTrue(waitFor(() -> relay.getActiveRelayCount() == 0));
+        }
+    }
+
+    /**
+     * 超过来源上限的连接请求被忽略，已有的中继关闭后可以再建立
+     */
+    public void testRelaysLimitedPerSource() throws Exception {
+        relay.setMaxRelaysPerSource(2);
+        DatagramSocket first = UDPRelay.createRelayProxySocket(relayAddress, echo.getAddress(), 1);
+        DatagramSocket second = UDPRelay.createRelayProxySocket(relayAddress, echo.getAddress(), 60);
+        DatagramSocket third = UDPRelay.createRelayProxySocket(relayAddress, echo.getAddress(), 60);
+        try {
+            assertEquals("first", roundTrip(first, "first"));
+            assertEquals("second", roundTrip(second, "second"));
+            assertTrue(waitFor(() -> relay.getRejectedRelayCount() == 1));
+            assertEquals(2, relay.getActiveRelayCount());
+            third.setSoTimeout(500);
+            try {
+                roundTrip(third, "third");
+                fail();
+            } catch (SocketTimeoutException ignored) {
+            }
+
+            assertTrue(waitFor(() -> relay.getActiveRelayCount() == 1));
+            try (DatagramSocket fourth = UDPRelay.createRelayProxySocket(relayAddress, echo.getAddress(), 60)) {
+                assertEquals("fourth", roundTrip(fourth, "fourth"));
+                assertEquals(2, relay.getActiveRelayCount());
+            }
+        } finally {
+            first.close();
+            second.close();
+            third.close();
+        }
+    }
+
+    public void testIpv6Destination() throws Exception {
+        try (EchoServer echo6 = new EchoServer(new InetSocketAddress(InetAddress.getByName("::1"), 0));
+             DatagramSocket socket = UDPRelay.createRelayProxySocket(relayAddress, echo6.getAddress(), 60)) {
+            assertEquals("v6", roundTrip(socket, "v6"));
+            assertEquals(1, echo6.count);
+        }
+    }
+
+    public void testMuxRecordRoundTrip() throws Exception {
+        InetSocketAddress v4 = new InetSocketAddress(InetAddress.getByName("192.0.2.1"), 443);
+        InetSocketAddress v6 = new InetSocketAddress(InetAddress.getByName("2001:db8::1"), 8443);
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        buffer.put(muxRecord(0xfffe, 0, v4, 30, "first")).put(muxRecord(1, 0, v6, 0, "second")).put(muxRecord(2, UDPRelay.FLAG_CLOSE, null, 0, ""));
+        buffer.flip();
+
+        UDPRelay.MuxRecord record = new UDPRelay.MuxRecord();
+        assertTrue(UDPRelay.readMuxRecord(buffer, record));
+        assertEquals(0xfffe, record.flowId);
+        assertEquals(v4, record.destination);
+        assertEquals(30, record.receiveTimeoutSeconds);
+        assertEquals("first", payload(buffer, record));
+        assertTrue(UDPRelay.readMuxRecord(buffer, record));
+        assertEquals(1, record.flowId);
+        assertEquals(v6, record.destination);
+        assertEquals("second", payload(buffer, record));
+        assertTrue(UDPRelay.readMuxRecord(buffer, record));
+        assertEquals(2, record.flowId);
+        assertEquals(UDPRelay.FLAG_CLOSE, record.flags);
+        assertNull(record.destination);
+        assertEquals(0, record.length);
+        assertFalse(buffer.hasRemaining());
+    }
+
+    /**
+     * 截断在任意位置、地址类型错误或长度超出的记录都被拒绝，不抛出异常
+     */
+    public void testMalformedMuxRecords() throws Exception {
+        byte[] valid = muxRecord(5, 0, new InetSocketAddress(InetAddress.getByName("2001:db8::1"), 53), 10, "payload");
+        UDPRelay.MuxRecord record = new UDPRelay.MuxRecord();
+        for (int length = 0; length < valid.length; length++) {
+            assertFalse("length=" + length, UDPRelay.readMuxRecord(ByteBuffer.wrap(valid, 0, length), record));
+        }
+        assertTrue(UDPRelay.readMuxRecord(ByteBuffer.wrap(valid), record));
+
+        byte[] badType = valid.clone();
+        badType[3] = 5;
+        assertFalse(UDPRelay.readMuxRecord(ByteBuffer.wrap(badType), record));
+        byte[] hugeAddress = {0, 5, UDPRelay.FLAG_DESTINATION, (byte) 0xff, 0, 0};
+        assertFalse(UDPRelay.readMuxRecord(ByteBuffer.wrap(hugeAddress), record));
+
+        UdpRelayMux mux = new UdpRelayMux(relayAddress, null);
+        for (int length = 0; length < valid.length; length++) {
+            ByteBuffer datagram = ByteBuffer.allocate(UDPRelay.MUX_MAGIC.length + length);
+            datagram.put(UDPRelay.MUX_MAGIC).put(valid, 0, length).flip();
+            mux.dispatch(datagram);
+        }
+        ByteBuffer datagram = ByteBuffer.allocate(UDPRelay.MUX_MAGIC.length + hugeAddress.length);
+        datagram.put(UDPRelay.MUX_MAGIC).put(hugeAddress).flip();
+        mux.dispatch(datagram);
+
+        // 中继丢弃格式错误的数据报后继续工作
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.send(new DatagramPacket(datagram.array(), datagram.array().length, relayAddress));
+            assertEquals("after", muxRoundTrip(socket, 1, echo.getAddress(), "after"));
+        }
+    }
+
+    public void testMuxFlowsRelayed() throws Exception {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            assertEquals("one", muxRoundTrip(socket, 1, echo.getAddress(), "one"));
+            assertEquals("two", muxRoundTrip(socket, 2, echo.getAddress(), "two"));
+            assertEquals("again", muxRoundTrip(socket, 1, null, "again"));
+            assertEquals(2, relay.getActiveRelayCount());
+
+            send(socket, muxRecord(1, UDPRelay.FLAG_CLOSE, null, 0, ""));
+            assertTrue(waitFor(() -> relay.getActiveRelayCount() == 1));
+        }
+    }
+
+    /**
+     * 已有的流收到不同的目标地址时重新打开
+     */
+    public void testMuxDestinationChangeReopensFlow() throws Exception {
+        try (EchoServer other = new EchoServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+             DatagramSocket socket = new DatagramSocket()) {
+            assertEquals("first", muxRoundTrip(socket, 7, echo.getAddress(), "first"));
+            assertEquals("second", muxRoundTrip(socket, 7, other.getAddress(), "second"));
+            assertEquals(1, echo.count);
+            assertEquals(1, other.count);
+            assertEquals(1, relay.getActiveRelayCount());
+        }
+    }
+
+    /**
+     * 中继上不存在的流回复 FLAG_CLOSE，客户端重新带上目标地址
+     */
+    public void testMuxUnknownFlowReset() throws Exception {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            send(socket, muxRecord(9, 0, null, 0, "lost"));
+            ByteBuffer reply = receive(socket);
+            UDPRelay.MuxRecord record = new UDPRelay.MuxRecord();
+            assertTrue(UDPRelay.readMuxRecord(reply, record));
+            assertEquals(9, record.flowId);
+            assertEquals(UDPRelay.FLAG_CLOSE, record.flags);
+            assertEquals(0, echo.count);
+
+            assertEquals("retry", muxRoundTrip(socket, 9, echo.getAddress(), "retry"));
+        }
+    }
+
+    /**
+     * v2 流按客户端地址单独计数，不占用来源 IP 的 v1 中继上限
+     */
+    public void testMuxFlowsLimitedPerClient() throws Exception {
+        relay.setMaxRelaysPerSource(1);
+        relay.setMaxMuxFlowsPerClient(2);
+        try (DatagramSocket socket = new DatagramSocket();
+             DatagramSocket v1 = UDPRelay.createRelayProxySocket(relayAddress, echo.getAddress(), 60)) {
+            assertEquals("v1", roundTrip(v1, "v1"));
+            assertEquals("one", muxRoundTrip(socket, 1, echo.getAddress(), "one"));
+            assertEquals("two", muxRoundTrip(socket, 2, echo.getAddress(), "two"));
+
+            send(socket, muxRecord(3, 0, echo.getAddress(), 0, "three"));
+            UDPRelay.MuxRecord record = new UDPRelay.MuxRecord();
+            assertTrue(UDPRelay.readMuxRecord(receive(socket), record));
+            assertEquals(3, record.flowId);
+            assertEquals(UDPRelay.FLAG_CLOSE, record.flags);
+            assertEquals(1, relay.getRejectedRelayCount());
+            assertEquals(3, relay.getActiveRelayCount());
+
+            try (DatagramSocket another = new DatagramSocket()) {
+                assertEquals("other client", muxRoundTrip(another, 3, echo.getAddress(), "other client"));
+            }
+        }
+    }
+
+    private String muxRoundTrip(DatagramSocket socket, int flowId, InetSocketAddress destination, String message) throws IOException {
+        send(socket, muxRecord(flowId, 0, destination, 60, message));
+        ByteBuffer reply = receive(socket);
+        UDPRelay.MuxRecord record = new UDPRelay.MuxRecord();
+        assertTrue(UDPRelay.readMuxRecord(reply, record));
+        assertEquals(flowId, record.flowId);
+        assertEquals(0, record.flags);
+        String payload = payload(reply, record);
+        assertFalse(reply.hasRemaining());
+        return payload;
+    }
+
+    private void send(DatagramSocket socket, byte[] record) throws IOException {
+        ByteBuffer datagram = ByteBuffer.allocate(UDPRelay.MUX_MAGIC.length + record.length);
+        datagram.put(UDPRelay.MUX_MAGIC).put(record);
+        socket.send(new DatagramPacket(datagram.array(), datagram.capacity(), relayAddress));
+    }
+
+    /**
+     * @return 位于 magic 之后的数据报
+     */
+    private static ByteBuffer receive(DatagramSocket socket) throws IOException {
+        socket.setSoTimeout(5000);
+        DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+        socket.receive(packet);
+        ByteBuffer buffer = ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
+        assertTrue(UDPRelay.startsWith(buffer, UDPRelay.MUX_MAGIC));
+        buffer.position(UDPRelay.MUX_MAGIC.length);
+        return buffer;
+    }
+
+    private static byte[] muxRecord(int flowId, int flags, InetSocketAddress destination, int receiveTimeoutSeconds, String payload) {
+        byte[] header = destination == null ? new byte[0] : UDPRelay.createMuxDestination(destination, receiveTimeoutSeconds);
+        byte[] data = payload.getBytes();
+        ByteBuffer record = ByteBuffer.allocate(UDPRelay.MUX_RECORD_HEADER_LENGTH + header.length + data.length);
+        record.putShort((short) flowId).put((byte) (destination == null ? flags : flags | UDPRelay.FLAG_DESTINATION)).put(header)
+                .putShort((short) data.length).put(data);
+        return record.array();
+    }
+
+    private static String payload(ByteBuffer buffer, UDPRelay.MuxRecord record) {
+        byte[] data = new byte[record.length];
+        buffer.get(data);
+        return new String(data);
+    }
+
+    private String roundTrip(DatagramSocket socket, String message) throws IOException {
+        if (socket.getSoTimeout() == 0) {
+            socket.setSoTimeout(5000);
+        }
+        byte[] data = message.getBytes();
+        socket.send(new DatagramPacket(data, data.length, relayAddress));
+        DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+        socket.receive(packet);
+        return new String(packet.getData(), 0, packet.getLength());
+    }
+
+    static boolean waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() >= deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    static class EchoServer implements AutoCloseable {
+        private final DatagramSocket socket;
+        volatile int count;
+        EchoServer(InetSocketAddress address) throws IOException {
+            socket = new DatagramSocket(address);
+            Thread thread = new Thread(() -> {
+                byte[] buffer = new byte[2048];
+                try {
+                    while (true) {
+                        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                        socket.receive(packet);
+                        count++;
+                        socket.send(packet);
+                    }
+                } catch (IOException ignored) {
+                }
+            }, "echo");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        InetSocketAddress getAddress() {
+            return (InetSocketAddress) socket.getLocalSocketAddress();
+        }
+        @Override
+        public void close() {
+            socket.close();
+        }
+    }
+
+}
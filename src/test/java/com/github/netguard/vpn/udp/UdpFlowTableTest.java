@@ -0,0 +1,94 @@
+package com.github.netguard.vpn.udp;
+
+import com.github.netguard.vpn.InspectorVpn;
+import eu.faircode.netguard.Allowed;
+import eu.faircode.netguard.Packet;
+import junit.framework.TestCase;
+
+import java.lang.reflect.Proxy;
+import java.net.DatagramSocket;
+
+public class UdpFlowTableTest extends TestCase {
+
+    private UdpFlowTable table;
+    private InspectorVpn vpn;
+
+    @Override
+    protected void setUp() throws Exception {
+        table = new UdpFlowTable(1);
+        vpn = newVpn();
+    }
+
+    @Override
+    protected void tearDown() {
+        table.shutdown();
+    }
+
+    public void testFlowReused() throws Exception {
+        Allowed first = table.redirect(vpn, packet(50000));
+        Allowed second = table.redirect(vpn, packet(50000));
+        assertEquals(first.rport, second.rport);
+        assertEquals(1, table.getFlowCount());
+
+        Allowed other = table.redirect(vpn, packet(50001));
+        assertFalse(first.rport == other.rport);
+        assertEquals(2, table.getFlowCount());
+    }
+
+    /**
+     * 两个设备的 VPN 使用相同的内网地址，各自有自己的流
+     */
+    public void testFlowsIsolatedBetweenVpns() throws Exception {
+        Allowed first = table.redirect(vpn, packet(50000));
+        Allowed second = table.redirect(newVpn(), packet(50000));
+        assertFalse(first.rport == second.rport);
+        assertEquals(2, table.getFlowCount());
+        assertEquals(first.rport, table.redirect(vpn, packet(50000)).rport);
+    }
+
+    public void testIdleFlowExpires() throws Exception {
+        Allowed first = table.redirect(vpn, packet(50000));
+        long now = System.currentTimeMillis();
+        table.sweep(now);
+        Thread.sleep(100);
+        assertEquals(1, table.getFlowCount());
+
+        table.sweep(now + UDProxy.READ_TIMEOUT);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (table.getFlowCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, table.getFlowCount());
+        Allowed second = table.redirect(vpn, packet(50000));
+        assertFalse(first.rport == second.rport);
+    }
+
+    public void testShutdownClosesFlows() throws Exception {
+        Allowed allowed = table.redirect(vpn, packet(50000));
+        table.shutdown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (table.getFlowCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, table.getFlowCount());
+        // 流的端口已释放
+        new DatagramSocket(allowed.rport).close();
+    }
+
+    private static Packet packet(int sport) {
+        Packet packet = new Packet();
+        packet.version = Packet.IP_V4;
+        packet.protocol = Packet.UDP_PROTOCOL;
+        packet.saddr = "10.0.0.2";
+        packet.sport = sport;
+        packet.daddr = "192.0.2.1";
+        packet.dport = 443;
+        return packet;
+    }
+
+    private static InspectorVpn newVpn() {
+        return (InspectorVpn) Proxy.newProxyInstance(InspectorVpn.class.getClassLoader(), new Class<?>[]{InspectorVpn.class},
+                (proxy, method, args) -> "equals".equals(method.getName()) ? proxy == args[0] : "hashCode".equals(method.getName()) ? System.identityHashCode(proxy) : null);
+    }
+
+}
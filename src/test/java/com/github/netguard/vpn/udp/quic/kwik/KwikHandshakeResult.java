@@ -36,7 +36,7 @@ class KwikHandshakeResult implements HandshakeResult {
     }
 
     @Override
-    public QuicServer startServer(InspectorVpn vpn, Http2Filter http2Filter) throws Exception {
+    public QuicServer startServer(InspectorVpn vpn, Http2Filter http2Filter, QuicServer.ClientSender sender) throws Exception {
         if (StringUtils.isAllBlank(handshakeApplicationProtocol)) {
             throw new IllegalStateException("handshakeApplicationProtocol=" + handshakeApplicationProtocol);
         }
@@ -67,7 +67,7 @@ class KwikHandshakeResult implements HandshakeResult {
         log.debug("handshakeApplicationProtocol={}, listenPort={}, filterHttp3={}", handshakeApplicationProtocol, listenPort, http2Filter);
         serverConnector.registerApplicationProtocol(handshakeApplicationProtocol, new KwikProxy(vpn.getExecutorService(), connection, session, http2Filter));
         InetSocketAddress forwardAddress = new InetSocketAddress("127.0.0.1", listenPort);
-        return new KwikServer(serverConnector, forwardAddress, null);
+        return new KwikServer(serverConnector, forwardAddress, null, sender);
     }
 
     @Override
@@ -5,28 +5,61 @@ import net.luminis.quic.server.ServerConnector;
 import net.luminis.tls.engine.TlsServerEngineFactory;
 
 import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.Arrays;
 
-class KwikServer implements QuicServer {
+/**
+ * kwik 只能监听 socket，这里通过一个 loopback socket 中转
+ */
+class KwikServer implements QuicServer, Runnable {
 
     private final ServerConnector serverConnector;
     private final InetSocketAddress forwardAddress;
     private final TlsServerEngineFactory tlsServerEngineFactory;
+    private final DatagramSocket relaySocket;
+    private final ClientSender sender;
 
-    KwikServer(ServerConnector serverConnector, InetSocketAddress forwardAddress, TlsServerEngineFactory tlsServerEngineFactory) {
+    KwikServer(ServerConnector serverConnector, InetSocketAddress forwardAddress, TlsServerEngineFactory tlsServerEngineFactory,
+               ClientSender sender) throws SocketException {
         this.serverConnector = serverConnector;
         this.forwardAddress = forwardAddress;
         this.tlsServerEngineFactory = tlsServerEngineFactory;
+        this.relaySocket = new DatagramSocket(0);
+        this.sender = sender;
+
+        Thread thread = new Thread(this, "kwik-relay-" + forwardAddress.getPort());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void forward(byte[] data, int length) {
+        try {
+            relaySocket.send(new DatagramPacket(data, length, forwardAddress));
+        } catch (IOException ignored) {
+        }
     }
 
     @Override
-    public InetSocketAddress getForwardAddress() {
-        return forwardAddress;
+    public void run() {
+        byte[] buffer = new byte[2048];
+        try {
+            while (!relaySocket.isClosed()) {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                relaySocket.receive(packet);
+                sender.send(Arrays.copyOf(buffer, packet.getLength()));
+            }
+        } catch (IOException ignored) {
+        }
     }
 
     // TODO
     @Override
-    public void close() throws IOException {
+    public void close() {
+        relaySocket.close();
 //        serverConnector.shutdown();
 //        tlsServerEngineFactory.close();
     }
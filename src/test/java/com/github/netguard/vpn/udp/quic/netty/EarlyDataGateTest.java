@@ -0,0 +1,80 @@
+package com.github.netguard.vpn.udp.quic.netty;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.incubator.codec.quic.QuicChannel;
+import io.netty.util.concurrent.DefaultPromise;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import io.netty.util.concurrent.Promise;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+
+public class EarlyDataGateTest extends TestCase {
+
+    private Promise<QuicChannel> handshake;
+    private EmbeddedChannel channel;
+
+    @Override
+    protected void setUp() {
+        handshake = new DefaultPromise<>(ImmediateEventExecutor.INSTANCE);
+        channel = new EmbeddedChannel(new NettyHandshakeResult.EarlyDataGate(handshake));
+    }
+
+    @Override
+    protected void tearDown() {
+        channel.finishAndReleaseAll();
+    }
+
+    public void testIdempotentRequestPassesBeforeHandshake() {
+        HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/");
+        channel.writeInbound(request, LastHttpContent.EMPTY_LAST_CONTENT);
+        assertSame(request, channel.readInbound());
+        assertSame(LastHttpContent.EMPTY_LAST_CONTENT, channel.readInbound());
+        assertNull(channel.pipeline().get(NettyHandshakeResult.EarlyDataGate.class));
+        assertTrue(channel.config().isAutoRead());
+    }
+
+    /**
+     * POST 不作为 early data 发出，连同请求体一起等到握手完成
+     */
+    public void testUnsafeRequestHeldUntilHandshake() {
+        HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/");
+        HttpContent content = new DefaultHttpContent(Unpooled.wrappedBuffer(new byte[]{1, 2, 3}));
+        LastHttpContent last = new DefaultLastHttpContent();
+        channel.writeInbound(request, content, last);
+        channel.runPendingTasks();
+        assertNull(channel.readInbound());
+        assertFalse(channel.config().isAutoRead());
+
+        handshake.setSuccess(null);
+        channel.runPendingTasks();
+        assertSame(request, channel.readInbound());
+        assertSame(content, channel.readInbound());
+        assertSame(last, channel.readInbound());
+        assertNull(channel.pipeline().get(NettyHandshakeResult.EarlyDataGate.class));
+        assertTrue(channel.config().isAutoRead());
+        content.release();
+        last.release();
+    }
+
+    public void testUnsafeRequestDroppedWhenHandshakeFails() {
+        HttpContent content = new DefaultHttpContent(Unpooled.wrappedBuffer(new byte[]{1, 2, 3}));
+        channel.writeInbound(new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.PUT, "/"), content);
+
+        handshake.setFailure(new IOException("handshake"));
+        channel.runPendingTasks();
+        assertNull(channel.readInbound());
+        assertFalse(channel.isOpen());
+        assertEquals(0, content.refCnt());
+    }
+
+}
@@ -0,0 +1,67 @@
+package com.github.netguard.vpn.udp.quic.netty;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
+import io.netty.incubator.codec.quic.QuicSslContext;
+import io.netty.incubator.codec.quic.QuicSslEngine;
+import junit.framework.TestCase;
+
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.List;
+
+public class NettyProviderTest extends TestCase {
+
+    private static final List<String> H3 = Collections.singletonList("h3");
+
+    /**
+     * 同一主机名与 ALPN 共享 context，session ticket 在 context 内按 host:port 区分
+     */
+    public void testClientContextSharedPerHost() {
+        NettyProvider provider = new NettyProvider(1);
+        QuicSslContext context = provider.getClientContext("example.com", H3);
+        assertSame(context, provider.getClientContext("example.com", H3));
+        assertNotSame(context, provider.getClientContext("example.org", H3));
+        assertNotSame(context, provider.getClientContext("example.com", Collections.singletonList("h3-29")));
+
+        // 每个连接的 wrapper 带上 host:port 创建 engine，session ticket 按它保存和查找
+        String[] peer = new String[1];
+        QuicSslContext recording = new QuicSslContextWrapper(context, null, 0) {
+            @Override
+            public QuicSslEngine newEngine(ByteBufAllocator alloc, String peerHost, int peerPort) {
+                peer[0] = peerHost + ':' + peerPort;
+                return super.newEngine(alloc, peerHost, peerPort);
+            }
+        };
+        new QuicSslContextWrapper(recording, "example.com", 8443).newEngine(ByteBufAllocator.DEFAULT);
+        assertEquals("example.com:8443", peer[0]);
+    }
+
+    public void testClientContextEvictsLeastRecentlyUsed() {
+        NettyProvider provider = new NettyProvider(1);
+        QuicSslContext first = provider.getClientContext("host0", H3);
+        QuicSslContext second = provider.getClientContext("host1", H3);
+        for (int i = 2; i < NettyProvider.MAX_CLIENT_CONTEXTS; i++) {
+            provider.getClientContext("host" + i, H3);
+        }
+        // host0 最近使用过，淘汰的是 host1
+        assertSame(first, provider.getClientContext("host0", H3));
+        provider.getClientContext("host" + NettyProvider.MAX_CLIENT_CONTEXTS, H3);
+        assertSame(first, provider.getClientContext("host0", H3));
+        assertNotSame(second, provider.getClientContext("host1", H3));
+    }
+
+    public void testPeerCertificateKeyedByHostAndPort() throws Exception {
+        NettyProvider provider = new NettyProvider(1);
+        X509Certificate certificate = new SelfSignedCertificate("example.com").cert();
+        provider.onHandshakeComplete("example.com", 443, certificate, false, false);
+        assertSame(certificate, provider.getPeerCertificate("example.com", 443));
+        assertNull(provider.getPeerCertificate("example.com", 8443));
+        assertEquals(1, provider.getFullHandshakeCount());
+
+        provider.onHandshakeComplete("example.com", 443, certificate, true, true);
+        assertEquals(1, provider.getResumedHandshakeCount());
+        assertEquals(1, provider.getEarlyDataHandshakeCount());
+    }
+
+}
@@ -0,0 +1,204 @@
+package com.github.netguard.vpn.udp.quic.netty;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.socket.ChannelInputShutdownReadComplete;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
+import io.netty.incubator.codec.quic.InsecureQuicTokenHandler;
+import io.netty.incubator.codec.quic.QuicChannel;
+import io.netty.incubator.codec.quic.QuicChannelBootstrap;
+import io.netty.incubator.codec.quic.QuicChannelOption;
+import io.netty.incubator.codec.quic.QuicClientCodecBuilder;
+import io.netty.incubator.codec.quic.QuicServerCodecBuilder;
+import io.netty.incubator.codec.quic.QuicSslContext;
+import io.netty.incubator.codec.quic.QuicSslContextBuilder;
+import io.netty.incubator.codec.quic.QuicStreamChannel;
+import io.netty.incubator.codec.quic.QuicStreamType;
+import io.netty.incubator.codec.quic.SegmentedDatagramPacketAllocator;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Promise;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bulk transfer between a local QUIC client and server over the NIO and the epoll transport,
+ * <code>datagrams</code> is the packet rate seen by both UDP channels.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class QuicTransportBenchmark {
+
+    private static final byte[] CHUNK = new byte[16 * 1024];
+    private static final int CHUNKS_PER_TRANSFER = 64;
+
+    @Param({"NIO", "EPOLL"})
+    public String transport;
+
+    private EventLoopGroup group;
+    private Channel serverChannel;
+    private Channel clientChannel;
+    private QuicChannel quicChannel;
+    private final AtomicLong datagrams = new AtomicLong();
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long datagrams;
+        public long bytes;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        NettyTransport transport = NettyTransport.valueOf(this.transport);
+        if (transport == NettyTransport.EPOLL) {
+            Epoll.ensureAvailability();
+        }
+        group = transport.newEventLoopGroup(2, r -> {
+            Thread thread = new Thread(r, "quic-benchmark");
+            thread.setDaemon(true);
+            return thread;
+        });
+        SegmentedDatagramPacketAllocator segmentedAllocator = transport.newSegmentedAllocator();
+
+        SelfSignedCertificate certificate = new SelfSignedCertificate();
+        QuicSslContext serverContext = QuicSslContextBuilder.forServer(certificate.key(), null, certificate.cert())
+                .applicationProtocols("bench").build();
+        QuicServerCodecBuilder serverCodec = new QuicServerCodecBuilder()
+                .sslContext(serverContext)
+                .maxIdleTimeout(1, TimeUnit.MINUTES)
+                .initialMaxData(64 * 1024 * 1024)
+                .initialMaxStreamDataBidirectionalRemote(16 * 1024 * 1024)
+                .initialMaxStreamsBidirectional(100000)
+                .tokenHandler(InsecureQuicTokenHandler.INSTANCE)
+                .handler(new ChannelInboundHandlerAdapter())
+                .streamHandler(new SinkHandler());
+        if (segmentedAllocator != null) {
+            serverCodec.option(QuicChannelOption.SEGMENTED_DATAGRAM_PACKET_ALLOCATOR, segmentedAllocator);
+        }
+        serverChannel = transport.newDatagramBootstrap(group)
+                .handler(countingInitializer(serverCodec.build()))
+                .bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+
+        QuicSslContext clientContext = QuicSslContextBuilder.forClient()
+                .trustManager(InsecureTrustManagerFactory.INSTANCE)
+                .applicationProtocols("bench").build();
+        ChannelHandler clientCodec = new QuicClientCodecBuilder()
+                .sslContext(clientContext)
+                .maxIdleTimeout(1, TimeUnit.MINUTES)
+                .initialMaxData(64 * 1024 * 1024)
+                .initialMaxStreamDataBidirectionalLocal(16 * 1024 * 1024)
+                .build();
+        clientChannel = transport.newDatagramBootstrap(group)
+                .handler(countingInitializer(clientCodec))
+                .bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+        QuicChannelBootstrap bootstrap = QuicChannel.newBootstrap(clientChannel)
+                .handler(new ChannelInboundHandlerAdapter())
+                .streamHandler(new ChannelInboundHandlerAdapter())
+                .remoteAddress(serverChannel.localAddress());
+        if (segmentedAllocator != null) {
+            bootstrap.option(QuicChannelOption.SEGMENTED_DATAGRAM_PACKET_ALLOCATOR, segmentedAllocator);
+        }
+        quicChannel = bootstrap.connect().get();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        quicChannel.close().sync();
+        clientChannel.close().sync();
+        serverChannel.close().sync();
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+    }
+
+    /**
+     * one op: 1 MiB upload on a new stream, acknowledged by the server with one byte
+     */
+    @Benchmark
+    public void transfer(Counters counters) throws Exception {
+        long start = datagrams.get();
+        Promise<Void> done = quicChannel.eventLoop().newPromise();
+        QuicStreamChannel stream = quicChannel.createStream(QuicStreamType.BIDIRECTIONAL, new ChannelInboundHandlerAdapter() {
+            @Override
+            public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                ReferenceCountUtil.release(msg);
+            }
+            @Override
+            public void channelInactive(ChannelHandlerContext ctx) {
+                done.trySuccess(null);
+            }
+        }).sync().getNow();
+        for (int i = 1; i < CHUNKS_PER_TRANSFER; i++) {
+            stream.write(Unpooled.wrappedBuffer(CHUNK));
+        }
+        stream.writeAndFlush(Unpooled.wrappedBuffer(CHUNK)).addListener(QuicStreamChannel.SHUTDOWN_OUTPUT);
+        done.sync();
+        counters.datagrams += datagrams.get() - start;
+        counters.bytes += (long) CHUNK.length * CHUNKS_PER_TRANSFER;
+    }
+
+    private ChannelInitializer<Channel> countingInitializer(ChannelHandler codec) {
+        return new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) {
+                ch.pipeline().addLast(new ChannelInboundHandlerAdapter() {
+                    @Override
+                    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                        datagrams.incrementAndGet();
+                        ctx.fireChannelRead(msg);
+                    }
+                }, codec);
+            }
+        };
+    }
+
+    @ChannelHandler.Sharable
+    private static class SinkHandler extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ReferenceCountUtil.release(msg);
+        }
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+            if (evt == ChannelInputShutdownReadComplete.INSTANCE) {
+                ctx.writeAndFlush(Unpooled.wrappedBuffer(new byte[]{1})).addListener(QuicStreamChannel.SHUTDOWN_OUTPUT);
+            }
+            ctx.fireUserEventTriggered(evt);
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(QuicTransportBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+
+}
@@ -0,0 +1,95 @@
+package com.github.netguard.vpn.udp.quic.netty;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.concurrent.DefaultPromise;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import io.netty.util.concurrent.Promise;
+import junit.framework.TestCase;
+
+public class StreamRelayTest extends TestCase {
+
+    private EmbeddedChannel server;
+    private EmbeddedChannel client;
+
+    @Override
+    protected void setUp() {
+        server = new EmbeddedChannel();
+        client = new EmbeddedChannel();
+        server.pipeline().addLast(new NettyHandshakeResult.StreamRelay(client));
+        client.pipeline().addLast(new NettyHandshakeResult.StreamRelay(server));
+    }
+
+    @Override
+    protected void tearDown() {
+        server.finishAndReleaseAll();
+        client.finishAndReleaseAll();
+    }
+
+    /**
+     * 对端不可写时暂停读取本 stream，对端数据发出后恢复
+     */
+    public void testBackpressure() {
+        client.config().setWriteBufferWaterMark(new WriteBufferWaterMark(8, 16));
+        HttpContent content = new DefaultHttpContent(Unpooled.wrappedBuffer(new byte[32]));
+        server.pipeline().fireChannelRead(content);
+        assertFalse(client.isWritable());
+        assertFalse(server.config().isAutoRead());
+        assertNull(client.readOutbound());
+
+        server.pipeline().fireChannelReadComplete();
+        assertSame(content, client.readOutbound());
+        assertTrue(client.isWritable());
+        assertTrue(server.config().isAutoRead());
+        content.release();
+    }
+
+    public void testIncompleteStreamClosesPeer() {
+        server.writeInbound(new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/"));
+        server.close();
+        assertFalse(client.isOpen());
+    }
+
+    public void testCompletedStreamsCloseIndependently() {
+        server.writeInbound(new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/"), LastHttpContent.EMPTY_LAST_CONTENT);
+        client.writeInbound(new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK), LastHttpContent.EMPTY_LAST_CONTENT);
+        client.close();
+        assertTrue(server.isOpen());
+    }
+
+    public void testRelayStartedWhenUpstreamCreated() {
+        EmbeddedChannel stream = new EmbeddedChannel();
+        stream.config().setAutoRead(false);
+        Promise<Channel> upstream = new DefaultPromise<>(ImmediateEventExecutor.INSTANCE);
+        NettyHandshakeResult.startRelay(stream, upstream, NettyHandshakeResult.StreamRelay::new);
+        upstream.setSuccess(client);
+        assertNotNull(stream.pipeline().get(NettyHandshakeResult.StreamRelay.class));
+        assertTrue(stream.config().isAutoRead());
+        assertTrue(client.isOpen());
+        stream.finishAndReleaseAll();
+    }
+
+    /**
+     * 上游 stream 建立前本 stream 已关闭，建立后的上游 stream 要关闭
+     */
+    public void testUpstreamClosedWhenStreamGone() {
+        EmbeddedChannel stream = new EmbeddedChannel();
+        Promise<Channel> upstream = new DefaultPromise<>(ImmediateEventExecutor.INSTANCE);
+        NettyHandshakeResult.startRelay(stream, upstream, NettyHandshakeResult.StreamRelay::new);
+        stream.close();
+        upstream.setSuccess(client);
+        assertFalse(client.isOpen());
+        assertNull(stream.pipeline().get(NettyHandshakeResult.StreamRelay.class));
+    }
+
+}
@@ -0,0 +1,84 @@
+package com.twitter.hpack;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class NetGuardEncoderTest extends TestCase {
+
+    private static final String[][] HEADERS = {
+            {":method", "GET"},
+            {":method", "POST"},
+            {":authority", "www.example.com"},
+            {":scheme", "https"},
+            {":path", "/"},
+            {":path", "/api/v1/config?platform=android&version=8.0.32"},
+            {":status", "200"},
+            {":status", "404"},
+            {"accept-encoding", "gzip, deflate"},
+            {"accept-encoding", "gzip, deflate, br, zstd"},
+            {"user-agent", "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_15_7) AppleWebKit/537.36"},
+            {"sec-fetch-mode", "navigate"},
+            {"cookie", "session=2b8f3c9d4e5a6b7c8d9e0f1a2b3c4d5e"},
+            {"content-length", ""},
+            {"x-empty", ""},
+            {"etag", "W/\"14de-18f2a3c4b5d\""},
+    };
+
+    public void testStaticTableIndex() {
+        for (int index = 1; index <= StaticTable.length; index++) {
+            HeaderField entry = StaticTable.getEntry(index);
+            assertEquals(StaticTable.getIndex(entry.name), NetGuardStaticTable.getIndex(entry.name));
+            assertEquals(StaticTable.getIndex(entry.name, entry.value), NetGuardStaticTable.getIndex(entry.name, entry.value));
+            assertEquals(-1, NetGuardStaticTable.getIndex(entry.name, "not-in-static-table".getBytes(StandardCharsets.UTF_8)));
+        }
+        assertEquals(-1, NetGuardStaticTable.getIndex("sec-ch-ua".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(-1, NetGuardStaticTable.getIndex(new byte[0]));
+    }
+
+    public void testSameBytesAsEncoder() throws IOException {
+        Random random = new Random(0x1234);
+        List<byte[][]> fields = new ArrayList<>();
+        for (String[] header : HEADERS) {
+            fields.add(new byte[][]{header[0].getBytes(StandardCharsets.UTF_8), header[1].getBytes(StandardCharsets.UTF_8)});
+        }
+        for (int i = 0; i < 64; i++) {
+            byte[] value = new byte[random.nextInt(80)];
+            random.nextBytes(value);
+            fields.add(new byte[][]{("x-random-" + (i % 8)).getBytes(StandardCharsets.UTF_8), value});
+        }
+
+        boolean[][] flags = {{true, false, false}, {false, false, false}, {true, true, false}, {true, false, true}};
+        for (int maxHeaderTableSize : new int[]{0, 0x100, 0x1000}) {
+            for (boolean[] flag : flags) {
+                Encoder expected = new Encoder(maxHeaderTableSize, flag[0], flag[1], flag[2]);
+                NetGuardEncoder encoder = new NetGuardEncoder(maxHeaderTableSize, flag[0], flag[1], flag[2]);
+                for (int block = 0; block < 4; block++) {
+                    ByteArrayOutputStream expectedOut = new ByteArrayOutputStream();
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    for (byte[][] field : fields) {
+                        boolean sensitive = field[0].length == 6 && "cookie".equals(new String(field[0], StandardCharsets.UTF_8));
+                        expected.encodeHeader(expectedOut, field[0], field[1], sensitive);
+                        encoder.encodeHeader(out, field[0], field[1], sensitive);
+                    }
+                    assertEquals("maxHeaderTableSize=" + maxHeaderTableSize + ", block=" + block,
+                            toHex(expectedOut.toByteArray()), toHex(out.toByteArray()));
+                }
+            }
+        }
+    }
+
+    private static String toHex(byte[] data) {
+        StringBuilder builder = new StringBuilder(data.length * 2);
+        for (byte b : data) {
+            builder.append(String.format("%02x", b & 0xff));
+        }
+        return builder.toString();
+    }
+
+}
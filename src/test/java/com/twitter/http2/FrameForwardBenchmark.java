@@ -0,0 +1,130 @@
+package com.twitter.http2;
+
+import com.github.netguard.vpn.tcp.h2.PooledBuffers;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Allocation rate of forwarding one HEADERS + DATA message, run with {@link GCProfiler} to compare gc.alloc.rate.norm:
+ * <code>unpooled</code> is the previous {@link HttpFrameEncoder} + {@link ByteArrayOutputStream} path,
+ * <code>pooled</code> is the {@link NetGuardFrameEncoder} path used by {@link HttpFrameForward}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FrameForwardBenchmark {
+
+    private static final int DEFAULT_CHUNK_SIZE = 0x1000;
+
+    private static final OutputStream NULL_OUTPUT_STREAM = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    @Param({"512", "65536"})
+    public int bodySize;
+
+    private byte[] headerBlock;
+    private byte[] body;
+
+    private final HttpFrameEncoder httpFrameEncoder = new HttpFrameEncoder();
+    private final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+
+    private final NetGuardFrameEncoder frameEncoder = new NetGuardFrameEncoder();
+    private ByteBuf outputBuffer;
+
+    @Setup
+    public void setup() {
+        headerBlock = new byte[300];
+        body = new byte[bodySize];
+        ThreadLocalRandom.current().nextBytes(headerBlock);
+        ThreadLocalRandom.current().nextBytes(body);
+        outputBuffer = PooledBuffers.ALLOCATOR.heapBuffer();
+    }
+
+    @TearDown
+    public void tearDown() {
+        outputBuffer.release();
+    }
+
+    @Benchmark
+    public int unpooled() throws IOException {
+        ByteBuf block = Unpooled.buffer();
+        block.writeBytes(headerBlock);
+        ByteBuf frame = httpFrameEncoder.encodeHeadersFrame(1, false, false, 0, 16, block);
+        try {
+            frame.readBytes(byteArrayOutputStream, frame.readableBytes());
+        } finally {
+            frame.release();
+        }
+        ByteBuf byteBuf = Unpooled.wrappedBuffer(body);
+        while (byteBuf.isReadable()) {
+            ByteBuf partialDataFrame = byteBuf.readSlice(Math.min(byteBuf.readableBytes(), DEFAULT_CHUNK_SIZE));
+            frame = httpFrameEncoder.encodeDataFrame(1, !byteBuf.isReadable(), partialDataFrame);
+            frame.readBytes(byteArrayOutputStream, frame.readableBytes());
+        }
+        byteBuf.release();
+        byte[] output = byteArrayOutputStream.toByteArray();
+        byteArrayOutputStream.reset();
+        NULL_OUTPUT_STREAM.write(output);
+        return output.length;
+    }
+
+    @Benchmark
+    public int pooled() throws IOException {
+        ByteBuf block = PooledBuffers.ALLOCATOR.heapBuffer();
+        try {
+            block.writeBytes(headerBlock);
+            frameEncoder.writeHeadersFrame(outputBuffer, 1, false, false, 0, 16, block);
+        } finally {
+            block.release();
+        }
+        int offset = 0;
+        while (offset < body.length) {
+            int length = Math.min(body.length - offset, DEFAULT_CHUNK_SIZE);
+            offset += length;
+            frameEncoder.writeDataFrame(outputBuffer, 1, offset == body.length, body, offset - length, length);
+        }
+        int size = outputBuffer.readableBytes();
+        outputBuffer.readBytes(NULL_OUTPUT_STREAM, size);
+        outputBuffer.clear();
+        return size;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(FrameForwardBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+
+}
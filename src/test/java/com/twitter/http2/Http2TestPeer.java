@@ -0,0 +1,276 @@
+package com.twitter.http2;
+
+import cn.hutool.core.io.IoUtil;
+import com.github.netguard.vpn.tcp.h2.HttpHeaderBlockDecoder;
+import com.github.netguard.vpn.tcp.h2.HttpHeaderBlockEncoder;
+import com.github.netguard.vpn.tcp.h2.PooledBuffers;
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One end of an HTTP/2 connection driven by a test: frames read from the socket are queued, frames are written
+ * with {@link NetGuardFrameEncoder}.
+ */
+final class Http2TestPeer implements HttpFrameDecoderDelegate {
+
+    static final class Frame {
+        final String type;
+        final int streamId;
+        final boolean endStream;
+        final HttpHeadersFrame headersFrame;
+        final byte[] data;
+        final int value;
+
+        Frame(String type, int streamId, boolean endStream, HttpHeadersFrame headersFrame, byte[] data, int value) {
+            this.type = type;
+            this.streamId = streamId;
+            this.endStream = endStream;
+            this.headersFrame = headersFrame;
+            this.data = data;
+            this.value = value;
+        }
+
+        String header(String name) {
+            return headersFrame.headers().get(name);
+        }
+
+        @Override
+        public String toString() {
+            return type + "{streamId=" + streamId + ", endStream=" + endStream + ", value=" + value + '}';
+        }
+    }
+
+    final Socket socket;
+    final BlockingQueue<Frame> frames = new LinkedBlockingQueue<>();
+
+    private final boolean server;
+    private final OutputStream outputStream;
+    private final NetGuardFrameEncoder frameEncoder = new NetGuardFrameEncoder();
+    private final HttpHeaderBlockEncoder headerEncoder = new HttpHeaderBlockEncoder(0x1000);
+    private final HttpHeaderBlockDecoder headerDecoder = new HttpHeaderBlockDecoder(0x4000, 0x10000);
+    private HttpHeadersFrame headersFrame;
+    private HttpSettingsFrame settingsFrame;
+
+    Http2TestPeer(Socket socket, boolean server) throws IOException {
+        this.socket = socket;
+        this.server = server;
+        this.outputStream = socket.getOutputStream();
+    }
+
+    /**
+     * Starts reading frames, a test that wants the peer to stall its socket does not call this.
+     */
+    Http2TestPeer start() {
+        Thread reader = new Thread(this::readLoop, "Http2TestPeer " + (server ? "server" : "client"));
+        reader.setDaemon(true);
+        reader.start();
+        return this;
+    }
+
+    private void readLoop() {
+        NetGuardFrameDecoder decoder = new NetGuardFrameDecoder(server, this);
+        ByteBuf in = PooledBuffers.ALLOCATOR.heapBuffer();
+        try {
+            InputStream inputStream = socket.getInputStream();
+            while (in.writeBytes(inputStream, 0x4000) != -1) {
+                decoder.decodeFrames(in);
+                in.discardSomeReadBytes();
+            }
+        } catch (IOException ignored) {
+        } finally {
+            in.release();
+            frames.add(new Frame("EOF", 0, true, null, null, 0));
+        }
+    }
+
+    /**
+     * @return the next frame of the type, frames of other types are skipped
+     */
+    Frame next(String type) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        Frame frame;
+        do {
+            frame = frames.poll(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } while (frame != null && !frame.type.equals(type) && !"EOF".equals(frame.type));
+        if (frame == null || !frame.type.equals(type)) {
+            throw new AssertionError("expected " + type + " but got " + frame);
+        }
+        return frame;
+    }
+
+    /**
+     * @return the next HEADERS, DATA or RST_STREAM frame
+     */
+    Frame nextStreamFrame() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        Frame frame;
+        do {
+            frame = frames.poll(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } while (frame != null && !frame.type.equals("HEADERS") && !frame.type.equals("DATA") && !frame.type.equals("RST_STREAM"));
+        if (frame == null) {
+            throw new AssertionError("no stream frame");
+        }
+        return frame;
+    }
+
+    synchronized void writePreface() throws IOException {
+        outputStream.write("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes());
+        outputStream.flush();
+    }
+
+    /**
+     * @param values pairs of setting id and value
+     */
+    synchronized void writeSettings(int... values) throws IOException {
+        HttpSettingsFrame settingsFrame = new NetGuardHttpSettingsFrame();
+        for (int i = 0; i < values.length; i += 2) {
+            settingsFrame.setValue(values[i], values[i + 1]);
+        }
+        write(out -> frameEncoder.writeSettingsFrame(out, settingsFrame));
+    }
+
+    /**
+     * @param headers pairs of header name and value
+     */
+    synchronized void writeHeaders(int streamId, boolean last, String... headers) throws IOException {
+        HttpHeadersFrame headersFrame = new NetGuardHttpHeadersFrame(streamId);
+        for (int i = 0; i < headers.length; i += 2) {
+            headersFrame.headers().add(headers[i], headers[i + 1]);
+        }
+        ByteBuf headerBlock = headerEncoder.encode(headersFrame);
+        try {
+            write(out -> frameEncoder.writeHeadersFrame(out, streamId, last, false, 0, 16, headerBlock));
+        } finally {
+            headerBlock.release();
+        }
+    }
+
+    synchronized void writeData(int streamId, boolean last, byte[] data) throws IOException {
+        write(out -> frameEncoder.writeDataFrame(out, streamId, last, data, 0, data.length));
+    }
+
+    synchronized void writeRstStream(int streamId, int errorCode) throws IOException {
+        write(out -> frameEncoder.writeRstStreamFrame(out, streamId, errorCode));
+    }
+
+    synchronized void writeWindowUpdate(int streamId, int windowSizeIncrement) throws IOException {
+        write(out -> frameEncoder.writeWindowUpdateFrame(out, streamId, windowSizeIncrement));
+    }
+
+    synchronized void writeGoAway(int lastStreamId, int errorCode) throws IOException {
+        write(out -> frameEncoder.writeGoAwayFrame(out, lastStreamId, errorCode));
+    }
+
+    private interface FrameWriter {
+        void write(ByteBuf out) throws IOException;
+    }
+
+    private void write(FrameWriter writer) throws IOException {
+        ByteBuf out = PooledBuffers.ALLOCATOR.heapBuffer();
+        try {
+            writer.write(out);
+            out.readBytes(outputStream, out.readableBytes());
+            outputStream.flush();
+        } finally {
+            out.release();
+        }
+    }
+
+    void close() {
+        IoUtil.close(socket);
+    }
+
+    @Override
+    public void readDataFramePadding(int streamId, boolean endStream, int padding) {
+    }
+
+    @Override
+    public void readDataFrame(int streamId, boolean endStream, boolean endSegment, ByteBuf data) {
+        byte[] bytes = new byte[data.readableBytes()];
+        data.readBytes(bytes);
+        data.release();
+        frames.add(new Frame("DATA", streamId, endStream, null, bytes, 0));
+    }
+
+    @Override
+    public void readHeadersFrame(int streamId, boolean endStream, boolean endSegment, boolean exclusive, int dependency, int weight) {
+        headersFrame = new NetGuardHttpHeadersFrame(streamId);
+        headersFrame.setLast(endStream);
+    }
+
+    @Override
+    public void readHeaderBlock(ByteBuf headerBlockFragment) {
+        try {
+            headerDecoder.decode(headerBlockFragment, headersFrame);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            headerBlockFragment.release();
+        }
+    }
+
+    @Override
+    public void readHeaderBlockEnd() {
+        headerDecoder.endHeaderBlock(headersFrame);
+        frames.add(new Frame("HEADERS", headersFrame.getStreamId(), headersFrame.isLast(), headersFrame, null, 0));
+        headersFrame = null;
+    }
+
+    @Override
+    public void readPriorityFrame(int streamId, boolean exclusive, int dependency, int weight) {
+    }
+
+    @Override
+    public void readRstStreamFrame(int streamId, int errorCode) {
+        frames.add(new Frame("RST_STREAM", streamId, true, null, null, errorCode));
+    }
+
+    @Override
+    public void readSettingsFrame(boolean ack) {
+        settingsFrame = new NetGuardHttpSettingsFrame();
+        settingsFrame.setAck(ack);
+    }
+
+    @Override
+    public void readSetting(int id, int value) {
+        settingsFrame.setValue(id, value);
+    }
+
+    @Override
+    public void readSettingsEnd() {
+        frames.add(new Frame(settingsFrame.isAck() ? "SETTINGS_ACK" : "SETTINGS", 0, false, null, null, 0));
+        settingsFrame = null;
+    }
+
+    @Override
+    public void readPushPromiseFrame(int streamId, int promisedStreamId) {
+        throw new UnsupportedOperationException("PUSH_PROMISE");
+    }
+
+    @Override
+    public void readPingFrame(long data, boolean ack) {
+        frames.add(new Frame(ack ? "PING_ACK" : "PING", 0, false, null, null, (int) data));
+    }
+
+    @Override
+    public void readGoAwayFrame(int lastStreamId, int errorCode) {
+        frames.add(new Frame("GOAWAY", lastStreamId, false, null, null, errorCode));
+    }
+
+    @Override
+    public void readWindowUpdateFrame(int streamId, int windowSizeIncrement) {
+        frames.add(new Frame("WINDOW_UPDATE", streamId, false, null, null, windowSizeIncrement));
+    }
+
+    @Override
+    public void readFrameError(String message) {
+        frames.add(new Frame("ERROR: " + message, 0, false, null, null, 0));
+    }
+}
@@ -0,0 +1,187 @@
+package com.twitter.http2;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class Http2UpstreamConnectionTest extends TestCase {
+
+    private ServerSocket serverSocket;
+    private Http2UpstreamPool pool;
+    private Http2UpstreamPool.Key key;
+
+    @Override
+    protected void setUp() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        pool = new Http2UpstreamPool(1);
+        key = new Http2UpstreamPool.Key("example.com", (InetSocketAddress) serverSocket.getLocalSocketAddress(), Proxy.NO_PROXY, null);
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        pool.closeAll();
+        serverSocket.close();
+    }
+
+    /**
+     * Requests over the server's MAX_CONCURRENT_STREAMS wait in the connection instead of blocking the caller,
+     * and get the next stream ids as earlier streams end.
+     */
+    public void testQueuedStreamsWaitForServerLimit() throws Exception {
+        Http2TestPeer server = connect();
+        server.next("SETTINGS");
+        server.writeSettings(HttpSettingsFrame.SETTINGS_MAX_CONCURRENT_STREAMS, 1);
+        server.next("SETTINGS_ACK");
+
+        Http2UpstreamConnection connection = pool.lookup(key, 0);
+        Listener[] listeners = new Listener[3];
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i] = new Listener();
+            connection.submit(request("/" + i), null, listeners[i]);
+        }
+        assertEquals(3, connection.getActiveStreams());
+        assertFalse(connection.hasCapacity());
+
+        for (int i = 0; i < listeners.length; i++) {
+            Http2TestPeer.Frame request = server.next("HEADERS");
+            assertEquals(1 + 2 * i, request.streamId);
+            assertEquals("/" + i, request.header(":path"));
+            assertTrue(request.endStream);
+            assertEquals("sent", listeners[i].poll(5000));
+            // the next stream is opened only after this one ends
+            assertNull(server.frames.poll(100, TimeUnit.MILLISECONDS));
+
+            server.writeHeaders(request.streamId, true, ":status", "200");
+            assertEquals("headers 200", listeners[i].poll());
+        }
+        assertEquals(0, connection.getActiveStreams());
+    }
+
+    /**
+     * The writer thread is stuck on a server that does not read, the caller and the reader thread carry on.
+     */
+    public void testSubmitDoesNotBlockWhileServerIsNotReading() throws Exception {
+        serverSocket.setReceiveBufferSize(4096);
+        Socket socket = new Socket();
+        socket.setSendBufferSize(4096);
+        socket.connect(serverSocket.getLocalSocketAddress());
+        Http2TestPeer server = new Http2TestPeer(serverSocket.accept(), true);
+        assertNull(pool.lookup(key, 0));
+        Http2UpstreamConnection connection = pool.register(key, socket, null);
+        server.writeSettings(HttpSettingsFrame.SETTINGS_INITIAL_WINDOW_SIZE, Integer.MAX_VALUE);
+        server.writeWindowUpdate(0, Integer.MAX_VALUE - 65535);
+
+        List<Listener> listeners = new ArrayList<>();
+        List<Http2UpstreamConnection.UpstreamStream> streams = new ArrayList<>();
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 8; i++) {
+            Listener listener = new Listener();
+            listeners.add(listener);
+            streams.add(connection.submit(request("/" + i), new byte[256 * 1024], listener));
+        }
+        connection.cancel(streams.get(1));
+        assertTrue(System.currentTimeMillis() - start < 1000);
+
+        // streams were opened in submit order
+        server.writeHeaders(1, true, ":status", "200");
+        assertEquals("headers 200", listeners.get(0).poll());
+        assertNull(listeners.get(1).poll(100));
+
+        connection.close();
+        for (int i = 2; i < listeners.size(); i++) {
+            assertEquals("reset " + HttpErrorCode.REFUSED_STREAM.getCode(), listeners.get(i).poll());
+        }
+        assertEquals(0, pool.getAuthorities());
+        server.close();
+    }
+
+    public void testGoAwayRefusesQueuedStreams() throws Exception {
+        Http2TestPeer server = connect();
+        server.next("SETTINGS");
+        server.writeSettings(HttpSettingsFrame.SETTINGS_MAX_CONCURRENT_STREAMS, 1);
+        server.next("SETTINGS_ACK");
+
+        Http2UpstreamConnection connection = pool.lookup(key, 0);
+        Listener first = new Listener();
+        Listener queued = new Listener();
+        connection.submit(request("/first"), null, first);
+        connection.submit(request("/queued"), null, queued);
+        assertEquals(1, server.next("HEADERS").streamId);
+
+        server.writeGoAway(1, HttpErrorCode.NO_ERROR.getCode());
+        assertEquals("reset " + HttpErrorCode.REFUSED_STREAM.getCode(), queued.poll());
+        assertFalse(connection.isUsable());
+        assertEquals(0, pool.getAuthorities());
+        try {
+            connection.submit(request("/late"), null, new Listener());
+            fail();
+        } catch (IOException expected) {
+        }
+
+        server.writeHeaders(1, true, ":status", "204");
+        assertEquals("headers 204", first.poll());
+    }
+
+    private Http2TestPeer connect() throws Exception {
+        assertNull(pool.lookup(key, 0));
+        Socket socket = new Socket(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+        Http2TestPeer server = new Http2TestPeer(serverSocket.accept(), true).start();
+        pool.register(key, socket, null);
+        return server;
+    }
+
+    static HttpHeadersFrame request(String path) {
+        HttpHeadersFrame headersFrame = new NetGuardHttpHeadersFrame(1);
+        headersFrame.headers().add(":method", "GET");
+        headersFrame.headers().add(":scheme", "https");
+        headersFrame.headers().add(":authority", "example.com");
+        headersFrame.headers().add(":path", path);
+        return headersFrame;
+    }
+
+    static final class Listener implements Http2UpstreamConnection.StreamListener {
+        private final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onRequestSent() {
+            events.add("sent");
+        }
+
+        @Override
+        public void onHeaders(HttpHeadersFrame headersFrame) {
+            events.add("headers " + headersFrame.headers().get(":status"));
+        }
+
+        @Override
+        public void onData(byte[] data, boolean endStream) {
+            events.add("data " + new String(data));
+        }
+
+        @Override
+        public void onReset(int errorCode) {
+            events.add("reset " + errorCode);
+        }
+
+        /**
+         * @return the next event that is not {@link #onRequestSent}
+         */
+        String poll() throws InterruptedException {
+            String event = poll(5000);
+            return "sent".equals(event) ? poll(5000) : event;
+        }
+
+        String poll(long timeoutMillis) throws InterruptedException {
+            return events.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+}
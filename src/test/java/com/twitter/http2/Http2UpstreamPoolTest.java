@@ -0,0 +1,98 @@
+package com.twitter.http2;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+public class Http2UpstreamPoolTest extends TestCase {
+
+    private ServerSocket serverSocket;
+    private Http2UpstreamPool pool;
+    private Http2UpstreamPool.Key key;
+
+    @Override
+    protected void setUp() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        pool = new Http2UpstreamPool(2);
+        key = new Http2UpstreamPool.Key("example.com", (InetSocketAddress) serverSocket.getLocalSocketAddress(), Proxy.NO_PROXY, null);
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        pool.closeAll();
+        serverSocket.close();
+    }
+
+    public void testReleaseRemovesAuthority() throws Exception {
+        assertNull(pool.lookup(key, 0));
+        assertNull(pool.lookup(key, 0));
+        assertEquals(1, pool.getAuthorities());
+        pool.release(key);
+        assertEquals(1, pool.getAuthorities());
+        pool.release(key);
+        assertEquals(0, pool.getAuthorities());
+        assertNull(pool.select(key));
+    }
+
+    public void testConnectionReusedUntilClosed() throws Exception {
+        assertNull(pool.lookup(key, 0));
+        Socket socket = new Socket(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+        Http2TestPeer server = new Http2TestPeer(serverSocket.accept(), true).start();
+        Http2UpstreamConnection connection = pool.register(key, socket, null);
+        assertEquals(1, pool.getConnectionsOpened());
+
+        assertSame(connection, pool.lookup(key, 0));
+        assertSame(connection, pool.lookup(key, 0));
+        assertSame(connection, pool.select(key));
+        assertEquals(2, pool.getHandshakesSaved());
+        assertEquals(1, pool.getAuthorities());
+
+        server.close();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pool.getAuthorities() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, pool.getAuthorities());
+        assertFalse(connection.isUsable());
+
+        // a new entry for the next connection
+        assertNull(pool.lookup(key, 0));
+        assertEquals(1, pool.getAuthorities());
+        pool.release(key);
+        assertEquals(0, pool.getAuthorities());
+    }
+
+    /**
+     * A second caller waits for the connection being opened instead of opening another one.
+     */
+    public void testLookupWaitsForPendingConnection() throws Exception {
+        Http2UpstreamPool pool = new Http2UpstreamPool(1);
+        assertNull(pool.lookup(key, 0));
+        Http2UpstreamConnection[] found = new Http2UpstreamConnection[1];
+        Thread waiter = new Thread(() -> {
+            try {
+                found[0] = pool.lookup(key, 5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        waiter.start();
+        Thread.sleep(100);
+        assertTrue(waiter.isAlive());
+
+        Socket socket = new Socket(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+        Http2TestPeer server = new Http2TestPeer(serverSocket.accept(), true).start();
+        Http2UpstreamConnection connection = pool.register(key, socket, null);
+        waiter.join(5000);
+        assertSame(connection, found[0]);
+
+        connection.close();
+        assertEquals(0, pool.getAuthorities());
+        server.close();
+    }
+}
@@ -0,0 +1,127 @@
+package com.twitter.http2;
+
+import com.github.netguard.vpn.IPacketCapture;
+import com.github.netguard.vpn.InspectorVpn;
+import com.github.netguard.vpn.tcp.h2.CachingHttp2Filter;
+import com.github.netguard.vpn.tcp.h2.CancelResult;
+import com.github.netguard.vpn.tcp.h2.Http2Filter;
+import com.github.netguard.vpn.tcp.h2.Http2Session;
+import com.github.netguard.vpn.tcp.h2.Http2SessionKey;
+import com.github.netguard.vpn.tcp.h2.HttpResponseCache;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import junit.framework.TestCase;
+
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+
+public class HttpFrameForwardTest extends TestCase {
+
+    /**
+     * The server answers the conditional request with a HEADERS frame that ends the stream, the cache completes it
+     * to a 200: the headers must no longer end the stream, the cached body follows in DATA frames.
+     */
+    public void testRevalidated304CompletedFromCache() throws Exception {
+        HttpResponseCache cache = new HttpResponseCache(1024 * 1024);
+        Http2Filter filter = new CachingHttp2Filter(new PassFilter(), cache);
+        try (ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            Http2TestPeer client = new Http2TestPeer(new Socket(serverSocket.getInetAddress(), serverSocket.getLocalPort()), false);
+            Socket clientSide = serverSocket.accept();
+            Socket upstreamSide = new Socket(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+            Http2TestPeer server = new Http2TestPeer(serverSocket.accept(), true);
+            startForwards(clientSide, upstreamSide, filter);
+            client.start();
+            server.start();
+            client.writePreface();
+            client.writeSettings();
+            server.writeSettings();
+
+            client.writeHeaders(1, true, ":method", "GET", ":scheme", "https", ":authority", "example.com", ":path", "/r");
+            Http2TestPeer.Frame request = server.next("HEADERS");
+            assertNull(request.header("if-none-match"));
+            server.writeHeaders(1, false, ":status", "200", "cache-control", "no-cache", "etag", "\"v1\"", "content-type", "text/plain");
+            server.writeData(1, true, "cached body".getBytes());
+            assertEquals("cached body", new String(nextData(client, 1)));
+
+            client.writeHeaders(3, true, ":method", "GET", ":scheme", "https", ":authority", "example.com", ":path", "/r");
+            request = server.next("HEADERS");
+            assertEquals("\"v1\"", request.header("if-none-match"));
+            server.writeHeaders(3, true, ":status", "304", "etag", "\"v1\"");
+
+            Http2TestPeer.Frame headers = client.nextStreamFrame();
+            assertEquals("HEADERS", headers.type);
+            assertEquals(3, headers.streamId);
+            assertEquals("200", headers.header(":status"));
+            assertEquals("REVALIDATED", headers.header(HttpResponseCache.CACHE_HEADER));
+            assertFalse(headers.endStream);
+            Http2TestPeer.Frame data = client.nextStreamFrame();
+            assertEquals("DATA", data.type);
+            assertTrue(data.endStream);
+            assertEquals("cached body", new String(data.data));
+            assertEquals(1, cache.getRevalidatedCount());
+
+            client.close();
+            server.close();
+        }
+    }
+
+    private static byte[] nextData(Http2TestPeer peer, int streamId) throws InterruptedException {
+        Http2TestPeer.Frame frame;
+        do {
+            frame = peer.nextStreamFrame();
+            assertEquals(streamId, frame.streamId);
+        } while (!"DATA".equals(frame.type));
+        assertTrue(frame.endStream);
+        return frame.data;
+    }
+
+    private static void startForwards(Socket clientSide, Socket upstreamSide, Http2Filter filter) throws Exception {
+        IPacketCapture packetCapture = (IPacketCapture) Proxy.newProxyInstance(IPacketCapture.class.getClassLoader(), new Class<?>[]{IPacketCapture.class},
+                (proxy, method, args) -> "getH2Filter".equals(method.getName()) ? filter : null);
+        InspectorVpn vpn = (InspectorVpn) Proxy.newProxyInstance(InspectorVpn.class.getClassLoader(), new Class<?>[]{InspectorVpn.class},
+                (proxy, method, args) -> "getPacketCapture".equals(method.getName()) ? packetCapture : null);
+        InetSocketAddress clientAddress = new InetSocketAddress("10.0.0.2", 50000);
+        InetSocketAddress serverAddress = new InetSocketAddress("1.1.1.1", 443);
+        Http2Session session = new Http2Session(clientAddress.getHostString(), serverAddress.getHostString(), clientAddress.getPort(), serverAddress.getPort(), "example.com");
+        CountDownLatch countDownLatch = new CountDownLatch(2);
+        HttpFrameForward inbound = new HttpFrameForward(clientSide.getInputStream(), upstreamSide.getOutputStream(), true, clientAddress, serverAddress,
+                countDownLatch, clientSide, vpn, "example.com", session, null);
+        HttpFrameForward outbound = new HttpFrameForward(upstreamSide.getInputStream(), clientSide.getOutputStream(), false, clientAddress, serverAddress,
+                countDownLatch, upstreamSide, vpn, "example.com", session, null);
+        inbound.setPeer(outbound);
+        new Thread(inbound, "inbound").start();
+        new Thread(outbound, "outbound").start();
+    }
+
+    private static class PassFilter implements Http2Filter {
+        @Override
+        public boolean filterHost(String hostName, boolean h3) {
+            return true;
+        }
+        @Override
+        public byte[] filterRequest(Http2SessionKey sessionKey, HttpRequest request, HttpHeaders headers, byte[] requestData) {
+            return requestData;
+        }
+        @Override
+        public byte[] filterResponse(Http2SessionKey sessionKey, HttpResponse response, HttpHeaders headers, byte[] responseData) {
+            return responseData;
+        }
+        @Override
+        public byte[] filterPollingRequest(Http2SessionKey sessionKey, HttpRequest request, byte[] requestData, boolean newStream) {
+            return requestData;
+        }
+        @Override
+        public byte[] filterPollingResponse(Http2SessionKey sessionKey, HttpResponse response, byte[] responseData, boolean endStream) {
+            return responseData;
+        }
+        @Override
+        public CancelResult cancelRequest(HttpRequest request, byte[] requestData, boolean polling) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package com.twitter.http2;
+
+import com.github.netguard.vpn.tcp.h2.HttpHeaderBlockDecoder;
+import com.github.netguard.vpn.tcp.h2.HttpHeaderBlockEncoder;
+import com.github.netguard.vpn.tcp.h2.PooledBuffers;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.util.ResourceLeakDetector;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class NetGuardFrameEncoderTest extends TestCase {
+
+    @Override
+    protected void setUp() {
+        ResourceLeakDetector.setLevel(ResourceLeakDetector.Level.PARANOID);
+    }
+
+    public void testSameBytesAsHttpFrameEncoder() {
+        HttpFrameEncoder expected = new HttpFrameEncoder();
+        NetGuardFrameEncoder encoder = new NetGuardFrameEncoder();
+        byte[] data = new byte[100];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        assertFrame(expected.encodeDataFrame(3, true, Unpooled.wrappedBuffer(data)),
+                out -> encoder.writeDataFrame(out, 3, true, data, 0, data.length));
+        assertFrame(expected.encodePriorityFrame(5, true, 3, 200),
+                out -> encoder.writePriorityFrame(out, 5, true, 3, 200));
+        assertFrame(expected.encodeRstStreamFrame(7, 8),
+                out -> encoder.writeRstStreamFrame(out, 7, 8));
+        assertFrame(expected.encodePingFrame(0x1122334455667788L, true),
+                out -> encoder.writePingFrame(out, 0x1122334455667788L, true));
+        assertFrame(expected.encodeGoAwayFrame(9, 1),
+                out -> encoder.writeGoAwayFrame(out, 9, 1));
+        assertFrame(expected.encodeWindowUpdateFrame(0, 0x10000),
+                out -> encoder.writeWindowUpdateFrame(out, 0, 0x10000));
+
+        HttpSettingsFrame settingsFrame = new NetGuardHttpSettingsFrame();
+        settingsFrame.setValue(HttpSettingsFrame.SETTINGS_MAX_CONCURRENT_STREAMS, 100);
+        settingsFrame.setValue(HttpSettingsFrame.SETTINGS_INITIAL_WINDOW_SIZE, 0x10000);
+        assertFrame(expected.encodeSettingsFrame(settingsFrame),
+                out -> encoder.writeSettingsFrame(out, settingsFrame));
+
+        for (int size : new int[]{10, 0x4000, 0x9000}) {
+            byte[] block = new byte[size];
+            // HttpFrameEncoder wraps unretained slices of the header block, so the composite must not be released here
+            assertHeadersFrame(ByteBufUtil.hexDump(expected.encodeHeadersFrame(1, false, false, 0, 16, Unpooled.wrappedBuffer(block))),
+                    out -> encoder.writeHeadersFrame(out, 1, false, false, 0, 16, Unpooled.wrappedBuffer(block)));
+            assertHeadersFrame(ByteBufUtil.hexDump(expected.encodeHeadersFrame(1, true, true, 3, 32, Unpooled.wrappedBuffer(block))),
+                    out -> encoder.writeHeadersFrame(out, 1, true, true, 3, 32, Unpooled.wrappedBuffer(block)));
+        }
+    }
+
+    public void testRoundTripReleasesBuffers() throws IOException {
+        HttpHeaderBlockEncoder headerEncoder = new HttpHeaderBlockEncoder(0x100);
+        NetGuardFrameEncoder encoder = new NetGuardFrameEncoder();
+        HttpHeadersFrame headersFrame = new NetGuardHttpHeadersFrame(1);
+        headersFrame.headers().add(":method", "GET");
+        headersFrame.headers().add(":path", "/index.html");
+        headersFrame.headers().add("user-agent", "Mozilla/5.0");
+
+        ByteBuf out = PooledBuffers.ALLOCATOR.heapBuffer();
+        ByteBuf headerBlock = headerEncoder.encode(headersFrame);
+        encoder.writeHeadersFrame(out, 1, false, false, 0, 16, headerBlock);
+        headerBlock.release();
+        byte[] data = new byte[0x1000];
+        encoder.writeDataFrame(out, 1, false, data, 0, data.length);
+        encoder.writeDataFrame(out, 1, true, data, 0, data.length);
+
+        final List<ByteBuf> received = new ArrayList<>();
+        final HttpHeaderBlockDecoder headerDecoder = new HttpHeaderBlockDecoder(0x4000, 0x10000);
+        final HttpHeadersFrame decoded = new NetGuardHttpHeadersFrame(1);
+        NetGuardFrameDecoder decoder = new NetGuardFrameDecoder(false, new RecordingDelegate() {
+            @Override
+            public void readHeaderBlock(ByteBuf headerBlockFragment) {
+                received.add(headerBlockFragment);
+                try {
+                    headerDecoder.decode(headerBlockFragment, decoded);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                } finally {
+                    headerBlockFragment.release();
+                }
+            }
+            @Override
+            public void readHeaderBlockEnd() {
+                headerDecoder.endHeaderBlock(decoded);
+            }
+            @Override
+            public void readDataFrame(int streamId, boolean endStream, boolean endSegment, ByteBuf data) {
+                received.add(data);
+                data.release();
+            }
+        });
+        decoder.decode(out);
+        out.discardSomeReadBytes();
+
+        assertEquals("/index.html", decoded.headers().get(":path"));
+        assertTrue(received.size() > 1);
+        for (ByteBuf buf : received) {
+            assertEquals(0, buf.refCnt());
+        }
+        assertEquals(1, out.refCnt());
+        assertTrue(out.release());
+    }
+
+    public void testDecodeFramesInChunks() {
+        NetGuardFrameEncoder encoder = new NetGuardFrameEncoder();
+        ByteBuf frames = Unpooled.buffer();
+        frames.writeBytes("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes());
+        encoder.writePingFrame(frames, 1, false);
+        byte[] data = new byte[0x3000];
+        encoder.writeDataFrame(frames, 1, true, data, 0, data.length);
+        encoder.writeWindowUpdateFrame(frames, 0, 0x10000);
+
+        final int[] received = new int[3];
+        NetGuardFrameDecoder decoder = new NetGuardFrameDecoder(true, new RecordingDelegate() {
+            @Override
+            public void readPingFrame(long data, boolean ack) {
+                received[0]++;
+            }
+            @Override
+            public void readDataFrame(int streamId, boolean endStream, boolean endSegment, ByteBuf data) {
+                received[1] += data.readableBytes();
+                data.release();
+            }
+            @Override
+            public void readWindowUpdateFrame(int streamId, int windowSizeIncrement) {
+                received[2] = windowSizeIncrement;
+            }
+        });
+        ByteBuf in = PooledBuffers.ALLOCATOR.heapBuffer();
+        try {
+            // arbitrary socket reads, frames split at any byte
+            while (frames.isReadable()) {
+                in.writeBytes(frames, Math.min(frames.readableBytes(), 7));
+                decoder.decodeFrames(in);
+                in.discardSomeReadBytes();
+            }
+            assertFalse(in.isReadable());
+        } finally {
+            in.release();
+        }
+        assertEquals(1, received[0]);
+        assertEquals(data.length, received[1]);
+        assertEquals(0x10000, received[2]);
+    }
+
+    private interface FrameWriter {
+        void write(ByteBuf out);
+    }
+
+    private static void assertFrame(ByteBuf expected, FrameWriter writer) {
+        ByteBuf out = PooledBuffers.ALLOCATOR.heapBuffer();
+        try {
+            writer.write(out);
+            assertEquals(ByteBufUtil.hexDump(expected), ByteBufUtil.hexDump(out));
+        } finally {
+            expected.release();
+            out.release();
+        }
+    }
+
+    private static void assertHeadersFrame(String expected, FrameWriter writer) {
+        ByteBuf out = PooledBuffers.ALLOCATOR.heapBuffer();
+        try {
+            writer.write(out);
+            assertEquals(expected, ByteBufUtil.hexDump(out));
+        } finally {
+            out.release();
+        }
+    }
+
+    private static class RecordingDelegate implements HttpFrameDecoderDelegate {
+        @Override
+        public void readDataFramePadding(int streamId, boolean endStream, int padding) {
+        }
+        @Override
+        public void readDataFrame(int streamId, boolean endStream, boolean endSegment, ByteBuf data) {
+            data.release();
+        }
+        @Override
+        public void readHeadersFrame(int streamId, boolean endStream, boolean endSegment, boolean exclusive, int dependency, int weight) {
+        }
+        @Override
+        public void readHeaderBlock(ByteBuf headerBlockFragment) {
+            headerBlockFragment.release();
+        }
+        @Override
+        public void readHeaderBlockEnd() {
+        }
+        @Override
+        public void readPriorityFrame(int streamId, boolean exclusive, int dependency, int weight) {
+        }
+        @Override
+        public void readRstStreamFrame(int streamId, int errorCode) {
+        }
+        @Override
+        public void readSettingsFrame(boolean ack) {
+        }
+        @Override
+        public void readSetting(int id, int value) {
+        }
+        @Override
+        public void readSettingsEnd() {
+        }
+        @Override
+        public void readPushPromiseFrame(int streamId, int promisedStreamId) {
+        }
+        @Override
+        public void readPingFrame(long data, boolean ack) {
+        }
+        @Override
+        public void readGoAwayFrame(int lastStreamId, int errorCode) {
+        }
+        @Override
+        public void readWindowUpdateFrame(int streamId, int windowSizeIncrement) {
+        }
+        @Override
+        public void readFrameError(String message) {
+            fail(message);
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package com.twitter.http2;
+
+import com.github.netguard.vpn.IPacketCapture;
+import com.github.netguard.vpn.InspectorVpn;
+import com.github.netguard.vpn.tcp.h2.CancelResult;
+import com.github.netguard.vpn.tcp.h2.Http2Filter;
+import com.github.netguard.vpn.tcp.h2.Http2Session;
+import com.github.netguard.vpn.tcp.h2.Http2SessionKey;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SharedHttpFrameForwardTest extends TestCase {
+
+    private ServerSocket serverSocket;
+    private Http2UpstreamPool pool;
+    private Http2UpstreamPool.Key key;
+    private Http2TestPeer upstream;
+    private Http2UpstreamConnection connection;
+
+    @Override
+    protected void setUp() throws Exception {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        pool = new Http2UpstreamPool(1);
+        key = new Http2UpstreamPool.Key("example.com", (InetSocketAddress) serverSocket.getLocalSocketAddress(), Proxy.NO_PROXY, null);
+        assertNull(pool.lookup(key, 0));
+        Socket socket = new Socket(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+        upstream = new Http2TestPeer(serverSocket.accept(), true).start();
+        connection = pool.register(key, socket, null);
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        pool.closeAll();
+        upstream.close();
+        serverSocket.close();
+    }
+
+    /**
+     * Two client connections use stream ids 1 and 3 each, they share one upstream connection where the requests
+     * get their own ids, and every response goes back to the client stream it belongs to.
+     */
+    public void testStreamIdsRemappedOnSharedConnection() throws Exception {
+        Http2TestPeer[] clients = new Http2TestPeer[2];
+        SharedHttpFrameForward[] forwards = new SharedHttpFrameForward[clients.length];
+        for (int i = 0; i < clients.length; i++) {
+            forwards[i] = startForward(i);
+            clients[i] = clientOf(forwards[i]);
+            clients[i].writeHeaders(1, true, ":method", "GET", ":scheme", "https", ":authority", "example.com", ":path", "/c" + i + "/1");
+            clients[i].writeHeaders(3, false, ":method", "POST", ":scheme", "https", ":authority", "example.com", ":path", "/c" + i + "/3");
+            clients[i].writeData(3, true, ("body" + i).getBytes());
+        }
+
+        Map<Integer, String> paths = new HashMap<>();
+        Map<Integer, String> bodies = new HashMap<>();
+        while (paths.size() < 4 || bodies.size() < 2) {
+            Http2TestPeer.Frame frame = upstream.nextStreamFrame();
+            if ("HEADERS".equals(frame.type)) {
+                paths.put(frame.streamId, frame.header(":path"));
+            } else if ("DATA".equals(frame.type)) {
+                bodies.put(frame.streamId, new String(frame.data));
+            }
+        }
+        Set<Integer> expected = new HashSet<>();
+        for (int id = 1; id <= 7; id += 2) {
+            expected.add(id);
+        }
+        assertEquals(expected, paths.keySet());
+        for (Map.Entry<Integer, String> entry : bodies.entrySet()) {
+            String path = paths.get(entry.getKey());
+            assertTrue(path, path.endsWith("/3"));
+            assertEquals("body" + path.charAt(2), entry.getValue());
+        }
+        for (Map.Entry<Integer, String> entry : paths.entrySet()) {
+            upstream.writeHeaders(entry.getKey(), false, ":status", "200");
+            upstream.writeData(entry.getKey(), true, entry.getValue().getBytes());
+        }
+
+        for (int i = 0; i < clients.length; i++) {
+            Map<Integer, String> responses = new HashMap<>();
+            while (responses.size() < 2) {
+                Http2TestPeer.Frame frame = clients[i].nextStreamFrame();
+                if ("HEADERS".equals(frame.type)) {
+                    assertEquals("200", frame.header(":status"));
+                    assertEquals(String.valueOf(frame.streamId), frame.header("X-Http2-Stream-Id"));
+                } else {
+                    assertEquals("DATA", frame.type);
+                    assertTrue(frame.endStream);
+                    responses.put(frame.streamId, new String(frame.data));
+                }
+            }
+            assertEquals("/c" + i + "/1", responses.get(1));
+            assertEquals("/c" + i + "/3", responses.get(3));
+            assertEquals(0, forwards[i].getBufferedBytes());
+            clients[i].close();
+        }
+        assertEquals(1, pool.getConnectionsOpened());
+    }
+
+    /**
+     * The client gets its receive window back as the request is buffered, a request body over the limit resets
+     * the stream before anything is sent upstream and gives the buffered bytes back.
+     */
+    public void testOversizedRequestIsReset() throws Exception {
+        SharedHttpFrameForward forward = startForward(0);
+        Http2TestPeer client = clientOf(forward);
+        client.writeHeaders(1, false, ":method", "POST", ":scheme", "https", ":authority", "example.com", ":path", "/upload");
+        byte[] chunk = new byte[0x4000];
+        for (int written = 0; written <= SharedHttpFrameForward.MAX_BUFFERED_MESSAGE_SIZE; written += chunk.length) {
+            client.writeData(1, false, chunk);
+        }
+        Http2TestPeer.Frame frame = client.nextStreamFrame();
+        assertEquals("RST_STREAM", frame.type);
+        assertEquals(1, frame.streamId);
+        assertEquals(HttpErrorCode.INTERNAL_ERROR.getCode(), frame.value);
+        assertEquals(0, forward.getBufferedBytes());
+
+        // the connection is still usable
+        client.writeHeaders(3, true, ":method", "GET", ":scheme", "https", ":authority", "example.com", ":path", "/after");
+        Http2TestPeer.Frame request = upstream.next("HEADERS");
+        assertEquals(1, request.streamId);
+        assertEquals("/after", request.header(":path"));
+        client.close();
+    }
+
+    /**
+     * A stream whose client window is used up waits in its own queue, the response of another stream is still
+     * written, and the stalled stream resumes on its WINDOW_UPDATE.
+     */
+    public void testStalledStreamDoesNotBlockOthers() throws Exception {
+        SharedHttpFrameForward forward = startForward(0);
+        Http2TestPeer client = clientOf(forward);
+        client.writeHeaders(1, true, ":method", "GET", ":scheme", "https", ":authority", "example.com", ":path", "/large");
+        Http2TestPeer.Frame large = upstream.next("HEADERS");
+        client.writeHeaders(3, true, ":method", "GET", ":scheme", "https", ":authority", "example.com", ":path", "/small");
+        Http2TestPeer.Frame small = upstream.next("HEADERS");
+
+        upstream.writeHeaders(large.streamId, false, ":status", "200");
+        byte[] chunk = new byte[10000];
+        for (int i = 0; i < 10; i++) {
+            upstream.writeData(large.streamId, i == 9, chunk);
+        }
+        assertEquals("HEADERS", client.nextStreamFrame().type);
+        assertEquals(65535, readData(client, 1, 65535));
+
+        upstream.writeHeaders(small.streamId, false, ":status", "200");
+        upstream.writeData(small.streamId, true, "small".getBytes());
+        client.writeWindowUpdate(0, 1024 * 1024);
+        Http2TestPeer.Frame frame = client.nextStreamFrame();
+        assertEquals("HEADERS", frame.type);
+        assertEquals(3, frame.streamId);
+        frame = client.nextStreamFrame();
+        assertEquals(3, frame.streamId);
+        assertTrue(frame.endStream);
+        assertEquals("small", new String(frame.data));
+
+        client.writeWindowUpdate(1, 1024 * 1024);
+        assertEquals(100000 - 65535, readData(client, 1, 100000 - 65535));
+        assertEquals(0, forward.getBufferedBytes());
+        client.close();
+    }
+
+    /**
+     * A filtered response over the buffered limit is forwarded as it arrives through filterPollingResponse
+     * instead of being reset.
+     */
+    public void testStreamedResponseLargerThanCap() throws Exception {
+        RecordingFilter filter = new RecordingFilter();
+        SharedHttpFrameForward forward = startForward(0, filter);
+        Http2TestPeer client = clientOf(forward);
+        client.writeHeaders(1, true, ":method", "GET", ":scheme", "https", ":authority", "example.com", ":path", "/download");
+        client.writeWindowUpdate(0, Integer.MAX_VALUE - 65535);
+        client.writeWindowUpdate(1, Integer.MAX_VALUE - 65535);
+        Http2TestPeer.Frame request = upstream.next("HEADERS");
+
+        int total = SharedHttpFrameForward.MAX_BUFFERED_MESSAGE_SIZE + 0x10000;
+        upstream.writeHeaders(request.streamId, false, ":status", "200", "content-length", String.valueOf(total));
+        byte[] chunk = new byte[0x4000];
+        for (int written = 0; written < total; written += chunk.length) {
+            upstream.writeData(request.streamId, written + chunk.length == total, chunk);
+        }
+        Http2TestPeer.Frame headers = client.nextStreamFrame();
+        assertEquals("HEADERS", headers.type);
+        assertEquals("200", headers.header(":status"));
+        assertNull(headers.header("content-length"));
+        assertEquals(total, readData(client, 1, total));
+        assertTrue(filter.pollingResponses.get() > 0);
+        assertTrue(filter.pollingEnded);
+        assertEquals(0, forward.getBufferedBytes());
+        client.close();
+    }
+
+    /**
+     * An event stream never ends, every event reaches the client as it arrives.
+     */
+    public void testEventStreamForwardedBeforeEnd() throws Exception {
+        SharedHttpFrameForward forward = startForward(0, new RecordingFilter());
+        Http2TestPeer client = clientOf(forward);
+        client.writeHeaders(1, true, ":method", "GET", ":scheme", "https", ":authority", "example.com", ":path", "/events");
+        Http2TestPeer.Frame request = upstream.next("HEADERS");
+
+        upstream.writeHeaders(request.streamId, false, ":status", "200", "content-type", "text/event-stream");
+        assertEquals("HEADERS", client.nextStreamFrame().type);
+        for (int i = 0; i < 3; i++) {
+            upstream.writeData(request.streamId, false, ("data: " + i + "\n\n").getBytes());
+            Http2TestPeer.Frame frame = client.nextStreamFrame();
+            assertEquals("DATA", frame.type);
+            assertFalse(frame.endStream);
+            assertEquals("data: " + i + "\n\n", new String(frame.data));
+        }
+        client.close();
+    }
+
+    /**
+     * @return bytes of DATA read until the expected length or the end of the stream
+     */
+    private static int readData(Http2TestPeer client, int streamId, int expected) throws InterruptedException {
+        int length = 0;
+        while (length < expected) {
+            Http2TestPeer.Frame frame = client.nextStreamFrame();
+            assertEquals("DATA", frame.type);
+            assertEquals(streamId, frame.streamId);
+            length += frame.data.length;
+            if (frame.endStream) {
+                break;
+            }
+        }
+        return length;
+    }
+
+    private final Map<SharedHttpFrameForward, Http2TestPeer> clients = new HashMap<>();
+
+    private SharedHttpFrameForward startForward(int index) throws Exception {
+        return startForward(index, null);
+    }
+
+    private SharedHttpFrameForward startForward(int index, Http2Filter filter) throws Exception {
+        Socket client = new Socket(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+        Socket socket = serverSocket.accept();
+        InetSocketAddress clientAddress = new InetSocketAddress("10.0.0.2", 40000 + index);
+        InetSocketAddress serverAddress = new InetSocketAddress("1.1.1.1", 443);
+        Http2Session session = new Http2Session(clientAddress.getHostString(), serverAddress.getHostString(), clientAddress.getPort(), serverAddress.getPort(), "example.com");
+        InspectorVpn vpn = null;
+        if (filter != null) {
+            IPacketCapture packetCapture = (IPacketCapture) java.lang.reflect.Proxy.newProxyInstance(IPacketCapture.class.getClassLoader(), new Class<?>[]{IPacketCapture.class},
+                    (proxy, method, args) -> "getH2Filter".equals(method.getName()) ? filter : null);
+            vpn = (InspectorVpn) java.lang.reflect.Proxy.newProxyInstance(InspectorVpn.class.getClassLoader(), new Class<?>[]{InspectorVpn.class},
+                    (proxy, method, args) -> "getPacketCapture".equals(method.getName()) ? packetCapture : null);
+        }
+        SharedHttpFrameForward forward = new SharedHttpFrameForward(socket.getInputStream(), socket.getOutputStream(), clientAddress, serverAddress,
+                new CountDownLatch(1), socket, vpn, "example.com", session, null, pool, key, connection);
+        new Thread(forward, "forward " + index).start();
+
+        Http2TestPeer peer = new Http2TestPeer(client, false).start();
+        peer.writePreface();
+        peer.writeSettings();
+        peer.next("SETTINGS");
+        clients.put(forward, peer);
+        return forward;
+    }
+
+    private Http2TestPeer clientOf(SharedHttpFrameForward forward) {
+        return clients.get(forward);
+    }
+
+    private static class RecordingFilter implements Http2Filter {
+        final AtomicInteger pollingResponses = new AtomicInteger();
+        volatile boolean pollingEnded;
+        @Override
+        public boolean filterHost(String hostName, boolean h3) {
+            return true;
+        }
+        @Override
+        public byte[] filterRequest(Http2SessionKey sessionKey, HttpRequest request, HttpHeaders headers, byte[] requestData) {
+            return requestData;
+        }
+        @Override
+        public byte[] filterResponse(Http2SessionKey sessionKey, HttpResponse response, HttpHeaders headers, byte[] responseData) {
+            return responseData;
+        }
+        @Override
+        public byte[] filterPollingRequest(Http2SessionKey sessionKey, HttpRequest request, byte[] requestData, boolean newStream) {
+            return requestData;
+        }
+        @Override
+        public byte[] filterPollingResponse(Http2SessionKey sessionKey, HttpResponse response, byte[] responseData, boolean endStream) {
+            pollingResponses.incrementAndGet();
+            pollingEnded |= endStream;
+            return responseData;
+        }
+        @Override
+        public CancelResult cancelRequest(HttpRequest request, byte[] requestData, boolean polling) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package tech.httptoolkit.android.vpn;
+
+import eu.faircode.netguard.ServiceSinkhole;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Packets written to the VPN client over a loopback socket, timed until the client has read them all.
+ * <code>legacy</code> is the previous writer: the caller XORs byte by byte, and the writer thread makes
+ * two unbuffered writes per packet. <code>batched</code> is {@link ClientPacketWriter}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClientPacketWriterBenchmark {
+
+	private static final int PACKETS = 1000;
+
+	// pure ACK, Ethernet MTU segment
+	@Param({"40", "1500"})
+	public int size;
+
+	private Socket client;
+	private Socket server;
+	private Thread clientThread;
+	private final AtomicLong received = new AtomicLong();
+	private long sent;
+
+	private ClientPacketWriter writer;
+	private LegacyWriter legacyWriter;
+	private Thread writerThread;
+	private Thread legacyWriterThread;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+			client = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+			server = serverSocket.accept();
+		}
+		server.setTcpNoDelay(true);
+		InputStream in = client.getInputStream();
+		clientThread = new Thread(() -> {
+			byte[] buffer = new byte[256 * 1024];
+			try {
+				int read;
+				while ((read = in.read(buffer)) > 0) {
+					received.addAndGet(read);
+				}
+			} catch (IOException ignored) {
+			}
+		}, "client");
+		clientThread.start();
+
+		writer = new ClientPacketWriter(server.getOutputStream(), null);
+		writerThread = new Thread(writer, "batched writer");
+		writerThread.start();
+		legacyWriter = new LegacyWriter(new DataOutputStream(server.getOutputStream()));
+		legacyWriterThread = new Thread(legacyWriter, "legacy writer");
+		legacyWriterThread.start();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		writer.shutdown();
+		writerThread.interrupt();
+		legacyWriter.shutdown = true;
+		legacyWriterThread.interrupt();
+		server.close();
+		client.close();
+		clientThread.join(1000);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PACKETS)
+	public long legacy() {
+		for (int i = 0; i < PACKETS; i++) {
+			legacyWriter.write(new byte[size]);
+		}
+		return awaitReceived();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PACKETS)
+	public long batched() {
+		for (int i = 0; i < PACKETS; i++) {
+			writer.write(new byte[size]);
+		}
+		return awaitReceived();
+	}
+
+	private long awaitReceived() {
+		sent += (long) PACKETS * (2 + size);
+		while (received.get() < sent) {
+			Thread.yield();
+		}
+		return sent;
+	}
+
+	/**
+	 * The writer as it was before batching.
+	 */
+	private static final class LegacyWriter implements Runnable {
+		private final DataOutput clientWriter;
+		private final BlockingDeque<byte[]> packetQueue = new LinkedBlockingDeque<>();
+		private volatile boolean shutdown;
+
+		LegacyWriter(DataOutput clientWriter) {
+			this.clientWriter = clientWriter;
+		}
+
+		void write(byte[] data) {
+			for (int i = 0; i < data.length; i++) {
+				data[i] ^= ServiceSinkhole.VPN_MAGIC;
+			}
+			packetQueue.addLast(data);
+		}
+
+		@Override
+		public void run() {
+			while (!shutdown) {
+				try {
+					byte[] data = packetQueue.take();
+					clientWriter.writeShort(data.length);
+					clientWriter.write(data);
+				} catch (InterruptedException | IOException ignored) {
+				}
+			}
+		}
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(ClientPacketWriterBenchmark.class.getSimpleName())
+				.build()).run();
+	}
+
+}
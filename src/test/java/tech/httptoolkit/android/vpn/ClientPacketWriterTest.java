@@ -0,0 +1,216 @@
+package tech.httptoolkit.android.vpn;
+
+import eu.faircode.netguard.ServiceSinkhole;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class ClientPacketWriterTest extends TestCase {
+
+	public void testScrambleMatchesByteLoop() {
+		Random random = new Random(42);
+		for (int length = 0; length < 40; length++) {
+			byte[] data = new byte[length + 3];
+			random.nextBytes(data);
+			byte[] expected = data.clone();
+			for (int i = 3; i < data.length; i++) {
+				expected[i] ^= ServiceSinkhole.VPN_MAGIC;
+			}
+			byte[] scrambled = data.clone();
+			ClientPacketWriter.scramble(data, 3, scrambled, 3, length);
+			assertTrue(Arrays.equals(expected, scrambled));
+
+			// in place, as the VPN read loop does
+			ClientPacketWriter.scramble(scrambled, 3, scrambled, 3, length);
+			assertTrue(Arrays.equals(data, scrambled));
+		}
+	}
+
+	/**
+	 * Packets queued while the writer is busy go out in as few writes as fit the batch, framed like
+	 * <code>write_tun</code>, and the arrays handed to the writer are left as they were.
+	 */
+	public void testBatchesFramedPackets() throws Exception {
+		Stream stream = new Stream();
+		ClientPacketWriter writer = new ClientPacketWriter(stream, null);
+		Random random = new Random(7);
+		List<byte[]> packets = new ArrayList<>();
+		int total = 0;
+		for (int i = 0; i < 200; i++) {
+			byte[] packet = new byte[i == 0 ? 0 : 20 + random.nextInt(1500)];
+			random.nextBytes(packet);
+			packets.add(packet);
+			total += 2 + packet.length;
+		}
+		for (byte[] packet : packets) {
+			writer.write(packet.clone());
+		}
+
+		Thread thread = new Thread(writer);
+		thread.start();
+		byte[] written = stream.await(total);
+		writer.shutdown();
+		thread.interrupt();
+		thread.join(1000);
+
+		// a batch wastes less than one frame at its end
+		assertTrue(stream.writes <= total / (ClientPacketWriter.BATCH_SIZE - 1522) + 1);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(written));
+		for (byte[] packet : packets) {
+			byte[] read = new byte[in.readUnsignedShort()];
+			in.readFully(read);
+			ClientPacketWriter.scramble(read, 0, read, 0, read.length);
+			assertTrue(Arrays.equals(packet, read));
+		}
+		assertEquals(0, in.available());
+	}
+
+	public void testWriteBlocksWhileQueueIsFull() throws Exception {
+		Stream stream = new Stream();
+		ClientPacketWriter writer = new ClientPacketWriter(stream, null, 2);
+		writer.write(new byte[10]);
+		writer.write(new byte[10]);
+
+		CountDownLatch written = new CountDownLatch(1);
+		Thread producer = new Thread(() -> {
+			writer.write(new byte[10]);
+			written.countDown();
+		});
+		producer.start();
+		assertFalse(written.await(200, TimeUnit.MILLISECONDS));
+
+		Thread thread = new Thread(writer);
+		thread.start();
+		assertTrue(written.await(5, TimeUnit.SECONDS));
+		assertEquals(36, stream.await(36).length);
+		writer.shutdown();
+		thread.interrupt();
+		thread.join(1000);
+	}
+
+	/**
+	 * While the stream is blocked the writer holds no more than one batch: packets that do not fit stay
+	 * in the bounded queue and keep producers blocked.
+	 */
+	public void testBlockedStreamKeepsBackpressure() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch writing = new CountDownLatch(1);
+		OutputStream stream = new OutputStream() {
+			@Override
+			public void write(int b) {
+				throw new UnsupportedOperationException("single byte write");
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				writing.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+			}
+		};
+		ClientPacketWriter writer = new ClientPacketWriter(stream, null, 4);
+		// two packets fill a batch
+		for (int i = 0; i < 4; i++) {
+			writer.write(new byte[30000]);
+		}
+		Thread thread = new Thread(writer);
+		thread.start();
+		assertTrue(writing.await(5, TimeUnit.SECONDS));
+
+		// the third packet waits for the next batch, the fourth is still queued
+		CountDownLatch accepted = new CountDownLatch(4);
+		Thread producer = new Thread(() -> {
+			for (int i = 0; i < 4; i++) {
+				writer.write(new byte[10]);
+				accepted.countDown();
+			}
+		});
+		producer.start();
+		assertFalse(accepted.await(300, TimeUnit.MILLISECONDS));
+		assertEquals(1, accepted.getCount());
+
+		release.countDown();
+		assertTrue(accepted.await(5, TimeUnit.SECONDS));
+		writer.shutdown();
+		thread.interrupt();
+		thread.join(1000);
+	}
+
+	/**
+	 * A write that fails part way leaves the framing unknown: nothing is resent, the stream is closed
+	 * and producers are no longer held up by the dead writer.
+	 */
+	public void testFailedWriteClosesStream() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		boolean[] closed = new boolean[1];
+		OutputStream stream = new OutputStream() {
+			@Override
+			public void write(int b) {
+				throw new UnsupportedOperationException("single byte write");
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				bytes.write(b, off, len / 2);
+				throw new IOException("broken pipe");
+			}
+
+			@Override
+			public void close() {
+				closed[0] = true;
+			}
+		};
+		ClientPacketWriter writer = new ClientPacketWriter(stream, null, 2);
+		writer.write(new byte[100]);
+		writer.write(new byte[100]);
+
+		Thread thread = new Thread(writer);
+		thread.start();
+		thread.join(5000);
+		assertFalse(thread.isAlive());
+		assertEquals(102, bytes.size());
+		assertTrue(closed[0]);
+
+		writer.write(new byte[10]);
+		writer.write(new byte[10]);
+		writer.write(new byte[10]);
+	}
+
+	private static final class Stream extends OutputStream {
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private volatile int writes;
+
+		@Override
+		public void write(int b) {
+			throw new UnsupportedOperationException("single byte write");
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) {
+			bytes.write(b, off, len);
+			writes++;
+			notifyAll();
+		}
+
+		synchronized byte[] await(int length) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 5000;
+			while (bytes.size() < length && System.currentTimeMillis() < deadline) {
+				wait(100);
+			}
+			return bytes.toByteArray();
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package tech.httptoolkit.android.vpn;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import tech.httptoolkit.android.vpn.transport.PacketHeaderException;
+import tech.httptoolkit.android.vpn.transport.ip.IPPacketFactory;
+import tech.httptoolkit.android.vpn.transport.ip.IPv4Header;
+import tech.httptoolkit.android.vpn.transport.ip.IPv4HeaderView;
+import tech.httptoolkit.android.vpn.transport.tcp.TCPHeader;
+import tech.httptoolkit.android.vpn.transport.tcp.TCPHeaderView;
+import tech.httptoolkit.android.vpn.transport.tcp.TCPPacketFactory;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Session lookup for an inbound TCP ACK, as done by {@link SessionHandler#handlePacket(ByteBuffer)}:
+ * parse the IPv4 and TCP headers, then find the session among 1024 live ones.
+ * <code>stringKey</code> is the previous path: allocated headers, a formatted-String key and containsKey + get on a ConcurrentHashMap,
+ * <code>sessionTable</code> reads the 4-tuple through the reused header views and looks it up in {@link SessionTable}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SessionLookupBenchmark {
+
+	private static final int SESSIONS = 1024;
+	private static final int CLIENT_IP = 0x0a000002;
+
+	private ByteBuffer[] packets;
+	private int next;
+	private SessionManager manager;
+	private Map<String, Session> stringTable;
+	private final IPv4HeaderView ipView = new IPv4HeaderView();
+	private final TCPHeaderView tcpView = new TCPHeaderView();
+
+	@Setup
+	public void setup() {
+		manager = new SessionManager(null);
+		stringTable = new ConcurrentHashMap<>();
+		packets = new ByteBuffer[SESSIONS];
+		for (int i = 0; i < SESSIONS; i++) {
+			int destIp = 0x5db8d800 + (i % 97);
+			int destPort = i % 2 == 0 ? 443 : 80;
+			int sourcePort = 40000 + i;
+			Session session = new Session(CLIENT_IP, sourcePort, destIp, destPort, manager);
+			manager.keepSessionAlive(session);
+			stringTable.put(session.getSessionKey(), session);
+			packets[i] = ackPacket(CLIENT_IP, sourcePort, destIp, destPort);
+		}
+	}
+
+	@Benchmark
+	public Session stringKey() throws PacketHeaderException {
+		ByteBuffer packet = nextPacket();
+		IPv4Header ipHeader = IPPacketFactory.createIPv4Header(packet);
+		TCPHeader tcpHeader = TCPPacketFactory.createTCPHeader(packet);
+		String key = Session.getSessionKey(ipHeader.getDestinationIP(), tcpHeader.getDestinationPort(), ipHeader.getSourceIP(), tcpHeader.getSourcePort());
+		if (stringTable.containsKey(key)) {
+			return stringTable.get(key);
+		}
+		return null;
+	}
+
+	@Benchmark
+	public Session sessionTable() throws PacketHeaderException {
+		ByteBuffer packet = nextPacket();
+		IPv4HeaderView ipHeader = ipView.wrap(packet);
+		TCPHeaderView tcpHeader = tcpView.wrap(packet);
+		return manager.getSession(ipHeader.getDestinationIP(), tcpHeader.getDestinationPort(), ipHeader.getSourceIP(), tcpHeader.getSourcePort());
+	}
+
+	private ByteBuffer nextPacket() {
+		ByteBuffer packet = packets[next++ & (SESSIONS - 1)];
+		packet.rewind();
+		return packet;
+	}
+
+	public static ByteBuffer ackPacket(int sourceIp, int sourcePort, int destIp, int destPort) {
+		ByteBuffer packet = ByteBuffer.allocate(40);
+		packet.put((byte) 0x45).put((byte) 0).putShort((short) 40).putShort((short) 1).putShort((short) 0x4000)
+				.put((byte) 64).put((byte) 6).putShort((short) 0).putInt(sourceIp).putInt(destIp);
+		packet.putShort((short) sourcePort).putShort((short) destPort).putInt(1000).putInt(2000)
+				.put((byte) 0x50).put((byte) 0x10).putShort((short) 65535).putShort((short) 0).putShort((short) 0);
+		packet.flip();
+		return packet;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(SessionLookupBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.build()).run();
+	}
+
+}
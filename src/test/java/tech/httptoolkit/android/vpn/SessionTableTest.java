@@ -0,0 +1,44 @@
+package tech.httptoolkit.android.vpn;
+
+import junit.framework.TestCase;
+
+public class SessionTableTest extends TestCase {
+
+	public void testPutGetRemove() {
+		SessionTable table = new SessionTable();
+		Session[] sessions = new Session[1000];
+		for (int i = 0; i < sessions.length; i++) {
+			sessions[i] = new Session(0x0a000002, 40000 + i, 0x01020300 + (i & 7), 443, null);
+			assertNull(table.put(sessions[i]));
+		}
+		assertEquals(sessions.length, table.size());
+		for (Session session : sessions) {
+			assertSame(session, table.get(session.getDestIp(), session.getDestPort(), session.getSourceIp(), session.getSourcePort()));
+		}
+		// same 4-tuple with source and destination swapped is a different session
+		assertNull(table.get(0x0a000002, 40000, 0x01020300, 443));
+
+		for (int i = 0; i < sessions.length; i += 2) {
+			Session session = sessions[i];
+			assertSame(session, table.remove(session.getDestIp(), session.getDestPort(), session.getSourceIp(), session.getSourcePort()));
+		}
+		assertEquals(sessions.length / 2, table.size());
+		for (int i = 0; i < sessions.length; i++) {
+			Session session = sessions[i];
+			Session found = table.get(session.getDestIp(), session.getDestPort(), session.getSourceIp(), session.getSourcePort());
+			assertSame(i % 2 == 0 ? null : session, found);
+		}
+
+		// re-adding replaces, and churn through tombstones keeps lookups working
+		Session replacement = new Session(0x0a000002, 40001, 0x01020301, 443, null);
+		assertSame(sessions[1], table.put(replacement));
+		for (int round = 0; round < 10_000; round++) {
+			Session session = new Session(0x0a000003, round & 0xffff, 0x01020304, 80, null);
+			table.put(session);
+			assertSame(session, table.remove(0x01020304, 80, 0x0a000003, round & 0xffff));
+		}
+		assertSame(replacement, table.get(0x01020301, 443, 0x0a000002, 40001));
+		assertEquals(sessions.length / 2, table.size());
+	}
+
+}
@@ -0,0 +1,82 @@
+package tech.httptoolkit.android.vpn;
+
+import junit.framework.TestCase;
+import tech.httptoolkit.android.vpn.socket.DataConst;
+import tech.httptoolkit.android.vpn.transport.ip.IPPacketFactory;
+import tech.httptoolkit.android.vpn.transport.ip.IPv4Header;
+import tech.httptoolkit.android.vpn.transport.tcp.TCPHeader;
+import tech.httptoolkit.android.vpn.transport.tcp.TCPPacketFactory;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class SessionTest extends TestCase {
+
+	public void testReceivedDataChunks() {
+		Session session = new Session(0x0a000002, 40000, 0x5db8d822, 443, null);
+		byte[] data = new byte[10_000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) i;
+		}
+		session.addReceivedData(Arrays.copyOfRange(data, 0, 3000));
+		session.addReceivedData(new byte[0]);
+		session.addReceivedData(Arrays.copyOfRange(data, 3000, 3001));
+		session.addReceivedData(Arrays.copyOfRange(data, 3001, data.length));
+		assertEquals(data.length, session.getReceivedDataSize());
+
+		ByteBuffer out = ByteBuffer.allocate(data.length);
+		int[] sizes = {1, 1460, 1539, 1, 2000, 5000};
+		for (int size : sizes) {
+			byte[] chunk = session.getReceivedData(size);
+			assertEquals(Math.min(size, data.length - out.position()), chunk.length);
+			out.put(chunk);
+		}
+		assertFalse(session.hasReceivedData());
+		assertEquals(0, session.getReceivedData(100).length);
+		assertTrue(Arrays.equals(data, out.array()));
+	}
+
+	public void testReceivingBufferPause() {
+		Session session = new Session(0x0a000002, 40000, 0x5db8d822, 443, null);
+		assertTrue(session.canReadUpstream());
+		while (!session.isReceivingBufferFull()) {
+			session.addReceivedData(new byte[DataConst.MAX_RECEIVE_BUFFER_SIZE]);
+		}
+		session.pauseReading();
+		assertFalse(session.canReadUpstream());
+
+		// reads resume once the client has taken half of the buffer, not on the first ACK
+		session.getReceivedData(1460);
+		assertFalse(session.resumeReading());
+		session.getReceivedData(session.getReceivedDataSize() - DataConst.MAX_RECEIVING_BUFFER_SIZE / 2);
+		assertTrue(session.resumeReading());
+		assertTrue(session.canReadUpstream());
+		assertFalse(session.resumeReading());
+	}
+
+	public void testSendingBufferAdvertisedWindow() throws Exception {
+		Session session = new Session(0x0a000002, 40000, 0x5db8d822, 443, null);
+		assertEquals(DataConst.MAX_SENDING_BUFFER_SIZE, session.getReceiveWindow());
+		assertEquals(0xFFFF, session.getAdvertisedWindow());
+
+		byte[] data = new byte[DataConst.MAX_SENDING_BUFFER_SIZE - 1000];
+		assertEquals(data.length, session.setSendingData(ByteBuffer.wrap(data)));
+		assertEquals(1000, session.getAdvertisedWindow());
+		// only what fits is taken, the client resends the rest
+		ByteBuffer more = ByteBuffer.wrap(new byte[3000], 500, 2500);
+		assertEquals(1000, session.setSendingData(more));
+		assertEquals(0, session.getAdvertisedWindow());
+
+		ByteBuffer packet = SessionLookupBenchmark.ackPacket(0x0a000002, 40000, 0x5db8d822, 443);
+		IPv4Header ip = IPPacketFactory.createIPv4Header(packet);
+		TCPHeader tcp = TCPPacketFactory.createTCPHeader(packet);
+		ByteBuffer ack = ByteBuffer.wrap(TCPPacketFactory.createResponseAckData(ip, tcp, 1, session.getAdvertisedWindow()));
+		IPPacketFactory.createIPv4Header(ack);
+		assertEquals(0, TCPPacketFactory.createTCPHeader(ack).getWindowSize());
+
+		assertEquals(DataConst.MAX_SENDING_BUFFER_SIZE, session.getSendingData().length);
+		ack = ByteBuffer.wrap(TCPPacketFactory.createResponseAckData(ip, tcp, 1, session.getAdvertisedWindow()));
+		IPPacketFactory.createIPv4Header(ack);
+		assertEquals(0xFFFF, TCPPacketFactory.createTCPHeader(ack).getWindowSize() & 0xFFFF);
+	}
+}
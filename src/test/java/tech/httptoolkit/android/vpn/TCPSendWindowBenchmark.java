@@ -0,0 +1,268 @@
+package tech.httptoolkit.android.vpn;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import tech.httptoolkit.android.vpn.transport.PacketHeaderException;
+import tech.httptoolkit.android.vpn.transport.ip.IPPacketFactory;
+import tech.httptoolkit.android.vpn.transport.ip.IPv4HeaderView;
+import tech.httptoolkit.android.vpn.transport.tcp.TCPHeaderView;
+import tech.httptoolkit.android.vpn.transport.tcp.TCPPacketFactory;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link TCPSendWindow}: one op moves 1 MiB from the remote host to an iperf-like sink playing the VPN client.
+ * The sink reassembles the segments, ACKs each one cumulatively after <code>rttMillis</code> and advertises a constant window.
+ * <code>window=1460</code> is one segment per round trip, the bigger windows keep many segments in flight
+ * (1048560 needs window scaling). <code>lossInterval</code> drops every Nth first transmission, which is
+ * recovered by fast retransmit when enough segments are in flight and by the retransmission timer otherwise.
+ * With <code>sack</code> the sink reports up to three out-of-order ranges as SACK blocks.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class TCPSendWindowBenchmark {
+
+	private static final int TRANSFER_BYTES = 1 << 20;
+	private static final int MAX_SEGMENT_SIZE = 1460;
+
+	@Param({"1460", "65535", "1048560"})
+	public int window;
+
+	@Param({"0", "100"})
+	public int lossInterval;
+
+	@Param({"1"})
+	public int rttMillis;
+
+	@Param({"false", "true"})
+	public boolean sack;
+
+	private final byte[] chunk = new byte[64 * 1024];
+	private Sink sink;
+	private Thread sinkThread;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		sink = new Sink(window, lossInterval, TimeUnit.MILLISECONDS.toNanos(rttMillis), sack);
+		sinkThread = new Thread(sink, "sink");
+		sinkThread.start();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws InterruptedException {
+		sink.shutdown();
+		sinkThread.interrupt();
+		sinkThread.join();
+	}
+
+	@Benchmark
+	public long transfer() throws Exception {
+		Session session = newSession();
+		CountDownLatch done = sink.start(session);
+		for (int sent = 0; sent < TRANSFER_BYTES; sent += chunk.length) {
+			synchronized (session) {
+				session.addReceivedData(chunk);
+				session.getSendWindow().push(session, sink, System.currentTimeMillis());
+			}
+		}
+		if (!done.await(1, TimeUnit.MINUTES)) {
+			throw new IllegalStateException("transfer stalled");
+		}
+		return session.getSendWindow().getRetransmissions();
+	}
+
+	private Session newSession() throws PacketHeaderException {
+		Session session = new Session(0x0a000002, 40000, 0x5db8d822, 443, null);
+		ByteBuffer packet = SessionLookupBenchmark.ackPacket(0x0a000002, 40000, 0x5db8d822, 443);
+		session.setLastIpHeader(IPPacketFactory.createIPv4Header(packet));
+		session.setLastTcpHeader(TCPPacketFactory.createTCPHeader(packet));
+		session.setMaxSegmentSize(MAX_SEGMENT_SIZE);
+		session.setSendNext(1);
+		session.getSendWindow().init(sink.windowSize, sink.windowScale);
+		return session;
+	}
+
+	/**
+	 * Stands in for the VPN client. All of its state except the ACK queue is guarded by the session lock,
+	 * which both the benchmark thread and the sink thread hold while the window writes to it.
+	 */
+	static final class Sink extends ClientPacketWriter implements Runnable {
+
+		private final int windowSize;
+		private final int windowScale;
+		private final int lossInterval;
+		private final long rttNanos;
+		private final boolean sack;
+
+		private final DelayQueue<Ack> acks = new DelayQueue<>();
+		private final IPv4HeaderView ipView = new IPv4HeaderView();
+		private final TCPHeaderView tcpView = new TCPHeaderView();
+
+		private volatile Session session;
+		private volatile CountDownLatch done;
+		private volatile boolean shutdown;
+
+		// next expected byte, and segments received past a gap
+		private long expected;
+		private final TreeMap<Long, Long> outOfOrder = new TreeMap<>();
+		private final Set<Long> dropped = new HashSet<>();
+		private int segments;
+
+		Sink(int window, int lossInterval, long rttNanos, boolean sack) {
+			super(null, null);
+			int scale = 0;
+			while ((window >> scale) > 0xFFFF) {
+				scale++;
+			}
+			this.windowSize = window >> scale;
+			this.windowScale = scale;
+			this.lossInterval = lossInterval;
+			this.rttNanos = rttNanos;
+			this.sack = sack;
+		}
+
+		CountDownLatch start(Session session) {
+			synchronized (session) {
+				expected = 1;
+				outOfOrder.clear();
+				dropped.clear();
+				segments = 0;
+			}
+			done = new CountDownLatch(1);
+			this.session = session;
+			return done;
+		}
+
+		@Override
+		public void write(byte[] packet) {
+			ByteBuffer buffer = ByteBuffer.wrap(packet);
+			try {
+				ipView.wrap(buffer);
+				tcpView.wrap(buffer);
+			} catch (PacketHeaderException e) {
+				throw new IllegalStateException(e);
+			}
+			long sequence = tcpView.getSequenceNumber() & 0xFFFFFFFFL;
+			long end = sequence + buffer.remaining();
+			if (lossInterval > 0 && ++segments % lossInterval == 0 && dropped.add(sequence)) {
+				return;
+			}
+			if (sequence <= expected) {
+				expected = Math.max(expected, end);
+				Map.Entry<Long, Long> next;
+				while ((next = outOfOrder.firstEntry()) != null && next.getKey() <= expected) {
+					expected = Math.max(expected, next.getValue());
+					outOfOrder.pollFirstEntry();
+				}
+			} else {
+				outOfOrder.merge(sequence, end, Math::max);
+			}
+			int[] edges = new int[6];
+			int blocks = 0;
+			if (sack) {
+				for (Map.Entry<Long, Long> range : outOfOrder.entrySet()) {
+					if (blocks == 3) {
+						break;
+					}
+					edges[2 * blocks] = (int) (long) range.getKey();
+					edges[2 * blocks + 1] = (int) (long) range.getValue();
+					blocks++;
+				}
+			}
+			acks.add(new Ack(session, expected, edges, blocks, System.nanoTime() + rttNanos));
+		}
+
+		@Override
+		public void shutdown() {
+			shutdown = true;
+		}
+
+		@Override
+		public void run() {
+			while (!shutdown) {
+				Ack ack;
+				try {
+					ack = acks.poll(TCPSendWindow.MIN_RTO_MILLIS / 4, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					continue;
+				}
+				Session session = this.session;
+				if (session == null || (ack != null && ack.session != session)) {
+					continue;
+				}
+				synchronized (session) {
+					TCPSendWindow sendWindow = session.getSendWindow();
+					long now = System.currentTimeMillis();
+					if (ack != null) {
+						sendWindow.onSelectiveAck(ack.edges, ack.blocks);
+						sendWindow.onAck(session, this, ack.number, windowSize, true, now);
+					}
+					sendWindow.onTimer(session, this, now);
+					sendWindow.push(session, this, now);
+					if (ack != null && ack.number == 1 + TRANSFER_BYTES) {
+						done.countDown();
+					}
+				}
+			}
+		}
+	}
+
+	private static final class Ack implements Delayed {
+		final Session session;
+		final long number;
+		final int[] edges;
+		final int blocks;
+		final long dueNanos;
+
+		Ack(Session session, long number, int[] edges, int blocks, long dueNanos) {
+			this.session = session;
+			this.number = number;
+			this.edges = edges;
+			this.blocks = blocks;
+			this.dueNanos = dueNanos;
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed o) {
+			return Long.compare(dueNanos, ((Ack) o).dueNanos);
+		}
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(TCPSendWindowBenchmark.class.getSimpleName())
+				.build()).run();
+	}
+
+}
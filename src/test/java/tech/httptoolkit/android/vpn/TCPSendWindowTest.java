@@ -0,0 +1,263 @@
+package tech.httptoolkit.android.vpn;
+
+import junit.framework.TestCase;
+import tech.httptoolkit.android.vpn.transport.ip.IPPacketFactory;
+import tech.httptoolkit.android.vpn.transport.ip.IPv4HeaderView;
+import cn.hutool.core.util.HexUtil;
+import tech.httptoolkit.android.vpn.transport.tcp.TCPHeaderView;
+import tech.httptoolkit.android.vpn.transport.tcp.TCPOptionsTest;
+import tech.httptoolkit.android.vpn.transport.tcp.TCPPacketFactory;
+import tech.httptoolkit.android.vpn.util.PacketUtil;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TCPSendWindowTest extends TestCase {
+
+	private static final int MSS = 1000;
+
+	private Capture capture;
+	private Session session;
+	private TCPSendWindow window;
+
+	@Override
+	protected void setUp() throws Exception {
+		capture = new Capture();
+		session = new Session(0x0a000002, 40000, 0x5db8d822, 443, null);
+		ByteBuffer packet = SessionLookupBenchmark.ackPacket(0x0a000002, 40000, 0x5db8d822, 443);
+		session.setLastIpHeader(IPPacketFactory.createIPv4Header(packet));
+		session.setLastTcpHeader(TCPPacketFactory.createTCPHeader(packet));
+		session.setMaxSegmentSize(MSS);
+		session.setSendNext(1);
+		window = session.getSendWindow();
+	}
+
+	public void testWindowBoundsSegmentsInFlight() throws Exception {
+		window.init(4 * MSS, 0);
+		session.addReceivedData(new byte[10 * MSS]);
+		assertEquals(4, window.push(session, capture, 0));
+		assertEquals(4 * MSS, window.getBytesInFlight());
+		assertSegment(0, 1, MSS);
+		assertSegment(3, 1 + 3 * MSS, MSS);
+
+		// two segments acked, the window slides by two
+		window.onAck(session, capture, 1 + 2 * MSS, 4 * MSS, true, 10);
+		assertEquals(2, window.push(session, capture, 10));
+		assertSegment(5, 1 + 5 * MSS, MSS);
+		assertEquals(6 * MSS + 1, session.getSendNext());
+
+		// the window shrinks, nothing more goes out until it opens again
+		window.onAck(session, capture, 1 + 4 * MSS, MSS, true, 20);
+		assertEquals(0, window.push(session, capture, 20));
+		window.onAck(session, capture, 1 + 6 * MSS, 8 * MSS, true, 30);
+		assertEquals(4, window.push(session, capture, 30));
+		assertFalse(session.hasReceivedData());
+		assertTrue(capture.last().isPsh);
+
+		window.onAck(session, capture, 1 + 10 * MSS, 8 * MSS, true, 40);
+		assertTrue(window.isEmpty());
+		assertEquals(0, window.getTimerDeadline());
+		assertEquals(0, window.getRetransmissions());
+	}
+
+	public void testScaledWindow() throws Exception {
+		window.init(0xFFFF, 4);
+		window.onAck(session, capture, 1, 0x1000, true, 0);
+		assertEquals(0x10000, window.getClientWindow());
+		session.addReceivedData(new byte[100 * MSS]);
+		assertEquals(65, window.push(session, capture, 0));
+		assertEquals(65 * MSS, window.getBytesInFlight());
+	}
+
+	public void testFastRetransmit() throws Exception {
+		window.init(8 * MSS, 0);
+		session.addReceivedData(new byte[8 * MSS]);
+		window.push(session, capture, 0);
+		window.onAck(session, capture, 1 + MSS, 8 * MSS, true, 5);
+		int sent = capture.packets.size();
+
+		// the second segment is lost, every later one is answered with the same ACK
+		window.onAck(session, capture, 1 + MSS, 8 * MSS, true, 6);
+		window.onAck(session, capture, 1 + MSS, 8 * MSS, true, 6);
+		assertEquals(sent, capture.packets.size());
+		window.onAck(session, capture, 1 + MSS, 8 * MSS, true, 7);
+		assertEquals(sent + 1, capture.packets.size());
+		assertSegment(sent, 1 + MSS, MSS);
+		window.onAck(session, capture, 1 + MSS, 8 * MSS, true, 7);
+		assertEquals(sent + 1, capture.packets.size());
+		// neither are ACKs that carry data or update the window counted as duplicates
+		window.onAck(session, capture, 1 + MSS, 8 * MSS, false, 7);
+		window.onAck(session, capture, 1 + MSS, 9 * MSS, true, 7);
+		assertEquals(sent + 1, capture.packets.size());
+
+		// the retransmission fills the gap, and the cumulative ACK covers everything
+		window.onAck(session, capture, 1 + 8 * MSS, 8 * MSS, true, 8);
+		assertTrue(window.isEmpty());
+		assertEquals(1, window.getRetransmissions());
+	}
+
+	/**
+	 * replays the SACK blocks a Linux client sent when the first and third segment were lost
+	 */
+	public void testSelectiveAckRecovery() throws Exception {
+		session.setSendNext(TCPOptionsTest.DATA_START);
+		window.init(0xffd7, 10);
+		session.addReceivedData(new byte[8 * MSS]);
+		assertEquals(8, window.push(session, capture, 0));
+
+		// the window changes with every ACK, so only the SACK blocks tell about the losses
+		assertFalse(replay(TCPOptionsTest.SACK_1, 1));
+		assertFalse(replay(TCPOptionsTest.SACK_2, 2));
+		assertEquals(8, capture.packets.size());
+
+		// a third SACKed segment starts the recovery, and both holes are resent at once
+		int[] edges = {(int) (TCPOptionsTest.DATA_START + 4 * MSS), (int) (TCPOptionsTest.DATA_START + 5 * MSS)};
+		window.onSelectiveAck(edges, 1);
+		window.onAck(session, capture, TCPOptionsTest.DATA_START, 0x70, true, 3);
+		assertEquals(10, capture.packets.size());
+		assertSegment(8, TCPOptionsTest.DATA_START, MSS);
+		assertSegment(9, TCPOptionsTest.DATA_START + 2 * MSS, MSS);
+		window.onAck(session, capture, TCPOptionsTest.DATA_START, 0x70, true, 4);
+		assertEquals(10, capture.packets.size());
+
+		// the partial ACK does not resend the third segment again, it is in flight already
+		window.onAck(session, capture, TCPOptionsTest.DATA_START + 2 * MSS, 0x70, true, 5);
+		assertEquals(10, capture.packets.size());
+		// the remaining segments are lost too, the client SACKs nothing past them
+		window.onAck(session, capture, TCPOptionsTest.DATA_START + 5 * MSS, 0x70, true, 6);
+		assertEquals(11, capture.packets.size());
+		assertSegment(10, TCPOptionsTest.DATA_START + 5 * MSS, MSS);
+		window.onAck(session, capture, TCPOptionsTest.DATA_START + 8 * MSS, 0x70, true, 7);
+		assertTrue(window.isEmpty());
+		assertEquals(3, window.getRetransmissions());
+	}
+
+	/**
+	 * @return true if the recorded ACK made the window resend something
+	 */
+	private boolean replay(String hex, long now) throws Exception {
+		ByteBuffer packet = ByteBuffer.wrap(HexUtil.decodeHex(hex));
+		new IPv4HeaderView().wrap(packet);
+		TCPHeaderView tcp = new TCPHeaderView().wrap(packet);
+		int[] edges = new int[8];
+		int sent = capture.packets.size();
+		window.onSelectiveAck(edges, tcp.getSelectiveAckBlocks(edges));
+		window.onAck(session, capture, tcp.getAckNumber(), tcp.getWindowSize(), true, now);
+		return capture.packets.size() > sent;
+	}
+
+	public void testRetransmissionTimeout() throws Exception {
+		window.init(8 * MSS, 0);
+		session.addReceivedData(new byte[2 * MSS]);
+		window.push(session, capture, 0);
+		long rto = window.getRto();
+		assertEquals(0 + rto, window.getTimerDeadline());
+
+		assertTrue(window.onTimer(session, capture, rto - 1));
+		assertEquals(2, capture.packets.size());
+		assertTrue(window.onTimer(session, capture, rto));
+		assertSegment(2, 1, MSS);
+		assertEquals(2 * rto, window.getRto());
+
+		// the RTT sample of a retransmitted segment is ambiguous and ignored,
+		// and the partial ACK resends the next segment right away
+		window.onAck(session, capture, 1 + MSS, 8 * MSS, true, rto + 1);
+		assertEquals(2 * rto, window.getRto());
+		assertSegment(3, 1 + MSS, MSS);
+
+		for (int i = 2; i < TCPSendWindow.MAX_TRANSMISSIONS; i++) {
+			assertTrue(window.onTimer(session, capture, window.getTimerDeadline()));
+		}
+		assertTrue(window.getRto() <= TCPSendWindow.MAX_RTO_MILLIS);
+		assertFalse(window.onTimer(session, capture, window.getTimerDeadline()));
+	}
+
+	public void testRttEstimate() throws Exception {
+		window.init(8 * MSS, 0);
+		session.addReceivedData(new byte[MSS]);
+		window.push(session, capture, 0);
+		window.onAck(session, capture, 1 + MSS, 8 * MSS, true, 500);
+		// srtt 500, rttvar 250
+		assertEquals(1500, window.getRto());
+		for (int i = 0; i < 50; i++) {
+			session.addReceivedData(new byte[MSS]);
+			window.push(session, capture, i * 100);
+			window.onAck(session, capture, session.getSendNext(), 8 * MSS, true, i * 100 + 5);
+		}
+		assertEquals(TCPSendWindow.MIN_RTO_MILLIS, window.getRto());
+	}
+
+	public void testZeroWindowProbe() throws Exception {
+		window.init(0, 0);
+		session.addReceivedData(new byte[3 * MSS]);
+		assertEquals(0, window.push(session, capture, 0));
+		assertTrue(window.getTimerDeadline() > 0);
+
+		assertTrue(window.onTimer(session, capture, window.getTimerDeadline()));
+		assertEquals(1, capture.packets.size());
+		assertSegment(0, 1, 1);
+
+		// the probe is acked and the window opens
+		window.onAck(session, capture, 2, 4 * MSS, true, 2000);
+		assertEquals(3, window.push(session, capture, 2000));
+		assertSegment(3, 2 + 2 * MSS, MSS - 1);
+	}
+
+	public void testSequenceWrap() throws Exception {
+		window.init(4 * MSS, 0);
+		session.setSendNext(0xFFFFFFFFL - MSS);
+		session.addReceivedData(new byte[3 * MSS]);
+		assertEquals(3, window.push(session, capture, 0));
+		// the client's ACK numbers are read as signed ints
+		window.onAck(session, capture, (int) (0xFFFFFFFFL + MSS), 4 * MSS, true, 1);
+		assertEquals(MSS, window.getBytesInFlight());
+		window.onAck(session, capture, (int) (0xFFFFFFFFL + 2 * MSS), 4 * MSS, true, 2);
+		assertTrue(window.isEmpty());
+	}
+
+	private void assertSegment(int index, long sequence, int length) {
+		Segment segment = capture.packets.get(index);
+		assertEquals(sequence & 0xFFFFFFFFL, segment.sequence);
+		assertEquals(length, segment.length);
+	}
+
+	private static final class Segment {
+		final long sequence;
+		final int length;
+		final boolean isPsh;
+
+		Segment(long sequence, int length, boolean isPsh) {
+			this.sequence = sequence;
+			this.length = length;
+			this.isPsh = isPsh;
+		}
+	}
+
+	private static final class Capture extends ClientPacketWriter {
+		final List<Segment> packets = new ArrayList<>();
+
+		Capture() {
+			super(null, null);
+		}
+
+		@Override
+		public void write(byte[] data) {
+			try {
+				ByteBuffer buffer = ByteBuffer.wrap(data);
+				IPv4HeaderView ip = new IPv4HeaderView().wrap(buffer);
+				TCPHeaderView tcp = new TCPHeaderView().wrap(buffer);
+				// retransmissions are patched in place, their checksum must still hold
+				assertTrue(PacketUtil.isValidTCPChecksum(ip.getSourceIP(), ip.getDestinationIP(),
+						data, (short) (data.length - 20), 20));
+				packets.add(new Segment(tcp.getSequenceNumber() & 0xFFFFFFFFL, buffer.remaining(), tcp.isPSH()));
+			} catch (Exception e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		Segment last() {
+			return packets.get(packets.size() - 1);
+		}
+	}
+}
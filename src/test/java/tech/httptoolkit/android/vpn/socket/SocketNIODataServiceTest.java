@@ -0,0 +1,119 @@
+package tech.httptoolkit.android.vpn.socket;
+
+import com.github.netguard.vpn.PortRedirector;
+import eu.faircode.netguard.Allowed;
+import junit.framework.TestCase;
+import tech.httptoolkit.android.vpn.ClientPacketWriter;
+import tech.httptoolkit.android.vpn.SessionHandler;
+import tech.httptoolkit.android.vpn.SessionManager;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SocketNIODataServiceTest extends TestCase {
+
+	private static final int SESSIONS = 64;
+	private static final int DATAGRAMS = 5;
+
+	/**
+	 * UDP sessions spread over three selector threads: each is registered and woken up for writes
+	 * from the VPN thread, and every reply from the echo server comes back through its own thread.
+	 * Datagrams queued on a session before its thread writes them go out together, so payload bytes are counted.
+	 */
+	public void testShardedSessions() throws Exception {
+		DatagramChannel echo = DatagramChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+		InetSocketAddress echoAddress = (InetSocketAddress) echo.getLocalAddress();
+		Thread echoThread = new Thread(() -> {
+			ByteBuffer buffer = ByteBuffer.allocate(2048);
+			try {
+				while (true) {
+					buffer.clear();
+					SocketAddress from = echo.receive(buffer);
+					buffer.flip();
+					echo.send(buffer, from);
+				}
+			} catch (Exception ignored) {
+			}
+		}, "echo");
+		echoThread.start();
+
+		Capture capture = new Capture();
+		SocketNIODataService service = new SocketNIODataService(capture, 3);
+		Thread serviceThread = new Thread(service, "nio");
+		serviceThread.start();
+		SessionManager manager = new SessionManager(new EchoRedirector(echoAddress));
+		SessionHandler handler = new SessionHandler(manager, service, capture, null, null);
+		try {
+			for (int round = 0; round < DATAGRAMS; round++) {
+				for (int i = 0; i < SESSIONS; i++) {
+					handler.handlePacket(udpPacket(0x0a000002, 40000 + i, 0x08080808, 53, new byte[]{(byte) i, (byte) round}));
+				}
+			}
+			assertTrue("echoed " + capture.echoed.get() + " bytes", capture.await(SESSIONS * DATAGRAMS * 2, 10000));
+			assertEquals(3, capture.threads.size());
+		} finally {
+			service.shutdown();
+			serviceThread.interrupt();
+			serviceThread.join(5000);
+			echo.close();
+			echoThread.join(5000);
+		}
+		assertFalse(serviceThread.isAlive());
+	}
+
+	private static ByteBuffer udpPacket(int sourceIp, int sourcePort, int destIp, int destPort, byte[] payload) {
+		ByteBuffer packet = ByteBuffer.allocate(28 + payload.length);
+		packet.put((byte) 0x45).put((byte) 0).putShort((short) packet.capacity()).putShort((short) 1).putShort((short) 0x4000)
+				.put((byte) 64).put((byte) 17).putShort((short) 0).putInt(sourceIp).putInt(destIp);
+		packet.putShort((short) sourcePort).putShort((short) destPort).putShort((short) (8 + payload.length)).putShort((short) 0);
+		packet.put(payload);
+		packet.flip();
+		return packet;
+	}
+
+	private static final class EchoRedirector implements PortRedirector {
+		private final InetSocketAddress echo;
+
+		EchoRedirector(InetSocketAddress echo) {
+			this.echo = echo;
+		}
+
+		@Override
+		public Allowed redirectTcp(String saddr, int sport, String daddr, int dport) {
+			return null;
+		}
+
+		@Override
+		public Allowed redirectUdp(String saddr, int sport, String daddr, int dport) {
+			return new Allowed(echo.getHostString(), echo.getPort());
+		}
+	}
+
+	private static final class Capture extends ClientPacketWriter {
+		final AtomicInteger echoed = new AtomicInteger();
+		final Set<String> threads = ConcurrentHashMap.newKeySet();
+
+		Capture() {
+			super(null, null);
+		}
+
+		@Override
+		public void write(byte[] data) {
+			threads.add(Thread.currentThread().getName());
+			echoed.addAndGet(data.length - 28);
+		}
+
+		boolean await(int bytes, long timeoutMillis) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + timeoutMillis;
+			while (echoed.get() < bytes && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			return echoed.get() == bytes;
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package tech.httptoolkit.android.vpn.transport.tcp;
+
+import junit.framework.TestCase;
+import tech.httptoolkit.android.vpn.transport.ip.IPPacketFactory;
+import tech.httptoolkit.android.vpn.transport.ip.IPv4Header;
+import tech.httptoolkit.android.vpn.transport.ip.IPv4HeaderView;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+public class TCPHeaderViewTest extends TestCase {
+
+	/**
+	 * the views must read the same values as the allocating factories, including sign quirks of the old parser
+	 */
+	public void testSameAsFactory() throws Exception {
+		Random random = new Random(42);
+		IPv4HeaderView ipView = new IPv4HeaderView();
+		TCPHeaderView tcpView = new TCPHeaderView();
+		IPv4Header retainedIp = null;
+		TCPHeader retainedTcp = null;
+		for (int i = 0; i < 10_000; i++) {
+			ByteBuffer packet = randomPacket(random);
+
+			IPv4Header ip = IPPacketFactory.createIPv4Header(packet);
+			TCPHeader tcp = TCPPacketFactory.createTCPHeader(packet);
+			int payloadPosition = packet.position();
+
+			packet.rewind();
+			ipView.wrap(packet);
+			tcpView.wrap(packet);
+			assertEquals(payloadPosition, packet.position());
+
+			retainedIp = ipView.copyTo(retainedIp);
+			retainedTcp = tcpView.copyTo(retainedTcp);
+			assertTrue(Arrays.equals(IPPacketFactory.createIPv4HeaderData(ip), IPPacketFactory.createIPv4HeaderData(retainedIp)));
+			assertEquals(ip.getTotalLength(), retainedIp.getTotalLength());
+			assertEquals(ip.getSourceIP(), ipView.getSourceIP());
+			assertEquals(ip.getDestinationIP(), ipView.getDestinationIP());
+			assertEquals(ip.getProtocol(), ipView.getProtocol());
+			assertTcpEquals(tcp, retainedTcp);
+			assertEquals(tcp.isSYN(), tcpView.isSYN());
+			assertEquals(tcp.isACK(), tcpView.isACK());
+			assertEquals(tcp.isFIN(), tcpView.isFIN());
+			assertEquals(tcp.isRST(), tcpView.isRST());
+			assertEquals(tcp.isPSH(), tcpView.isPSH());
+		}
+	}
+
+	private static void assertTcpEquals(TCPHeader expected, TCPHeader actual) {
+		assertEquals(expected.getSourcePort(), actual.getSourcePort());
+		assertEquals(expected.getDestinationPort(), actual.getDestinationPort());
+		assertEquals(expected.getSequenceNumber(), actual.getSequenceNumber());
+		assertEquals(expected.getAckNumber(), actual.getAckNumber());
+		assertEquals(expected.getDataOffset(), actual.getDataOffset());
+		assertEquals(expected.isNS(), actual.isNS());
+		assertEquals(expected.getTcpFlags(), actual.getTcpFlags());
+		assertEquals(expected.isCWR(), actual.isCWR());
+		assertEquals(expected.isECE(), actual.isECE());
+		assertEquals(expected.isURG(), actual.isURG());
+		assertEquals(expected.getWindowSize(), actual.getWindowSize());
+		assertEquals(expected.getChecksum(), actual.getChecksum());
+		assertEquals(expected.getUrgentPointer(), actual.getUrgentPointer());
+		assertNull(actual.getOptions());
+		assertEquals(expected.getMaxSegmentSize(), actual.getMaxSegmentSize());
+		assertEquals(expected.getWindowScale(), actual.getWindowScale());
+		assertEquals(expected.hasWindowScale(), actual.hasWindowScale());
+		assertEquals(expected.isSelectiveAckPermitted(), actual.isSelectiveAckPermitted());
+		assertEquals(expected.getTimeStampSender(), actual.getTimeStampSender());
+		assertEquals(expected.getTimeStampReplyTo(), actual.getTimeStampReplyTo());
+	}
+
+	/**
+	 * IPv4 + TCP packet with random fields, and a random selection of well formed SYN-style options
+	 */
+	private static ByteBuffer randomPacket(Random random) {
+		ByteBuffer options = ByteBuffer.allocate(40);
+		if (random.nextBoolean()) {
+			options.put((byte) 2).put((byte) 4).putShort((short) random.nextInt());
+		}
+		if (random.nextBoolean()) {
+			options.put((byte) 1).put((byte) 3).put((byte) 3).put((byte) random.nextInt(15));
+		}
+		if (random.nextBoolean()) {
+			options.put((byte) 4).put((byte) 2);
+		}
+		if (random.nextBoolean()) {
+			options.put((byte) 1).put((byte) 1).put((byte) 8).put((byte) 10).putInt(random.nextInt()).putInt(random.nextInt());
+		}
+		while (options.position() % 4 != 0) {
+			options.put((byte) 0);
+		}
+		int optionsLength = options.position();
+		int payload = random.nextInt(64);
+		ByteBuffer packet = ByteBuffer.allocate(20 + 20 + optionsLength + payload);
+		packet.put((byte) 0x45).put((byte) random.nextInt()).putShort((short) packet.capacity())
+				.putShort((short) random.nextInt()).putShort((short) (random.nextInt() & 0x7fff))
+				.put((byte) random.nextInt()).put((byte) 6).putShort((short) random.nextInt())
+				.putInt(random.nextInt()).putInt(random.nextInt());
+		packet.putShort((short) random.nextInt()).putShort((short) random.nextInt())
+				.putInt(random.nextInt()).putInt(random.nextInt())
+				.put((byte) (((5 + optionsLength / 4) << 4) | random.nextInt(2))).put((byte) random.nextInt())
+				.putShort((short) random.nextInt()).putShort((short) random.nextInt()).putShort((short) random.nextInt());
+		packet.put(options.array(), 0, optionsLength);
+		packet.rewind();
+		return packet;
+	}
+
+}
@@ -0,0 +1,113 @@
+package tech.httptoolkit.android.vpn.transport.tcp;
+
+import cn.hutool.core.util.HexUtil;
+import junit.framework.TestCase;
+import tech.httptoolkit.android.vpn.Packet;
+import tech.httptoolkit.android.vpn.transport.ip.IPPacketFactory;
+import tech.httptoolkit.android.vpn.transport.ip.IPv4Header;
+import tech.httptoolkit.android.vpn.transport.ip.IPv4HeaderView;
+import tech.httptoolkit.android.vpn.util.PacketUtil;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Option handling against headers recorded from a Linux loopback connection.
+ */
+public class TCPOptionsTest extends TestCase {
+
+	// SYN: MSS 65495, SACK permitted, timestamps, window scale 10
+	public static final String SYN = "4500003c829940004006ba207f0000017f000001da74b04318d1bf4000000000a002ffd7fe3000000204ffd70402080ac39e5412000000000103030a";
+	// ACK finishing the handshake, timestamps only
+	public static final String ACK = "45000034829a40004006ba277f0000017f000001da74b04318d1bf41e0109c2780100040fe2800000101080ac39e54124a03edf2";
+	// duplicate ACK with one SACK block, 1000-1999 bytes past the ACK
+	public static final String SACK_1 = "45000040829b40004006ba1a7f0000017f000001da74b04318d1bf41e0109c27b0100040fe3400000101080ac39e54db4a03edf20101050ae010a00fe010a3f7";
+	// duplicate ACK with two SACK blocks, the newest first, and a window changed by the receiver
+	public static final String SACK_2 = "45000048829c40004006ba117f0000017f000001da74b04318d1bf41e0109c27d0100070fe3c00000101080ac39e550d4a03edf201010512e010a7dfe010abc7e010a00fe010a3f7";
+	// acknowledgment number of the duplicate ACKs, the first data byte of the server
+	public static final long DATA_START = 0xe0109c27L;
+
+	public void testSynOptions() throws Exception {
+		ByteBuffer packet = ByteBuffer.wrap(HexUtil.decodeHex(SYN));
+		IPPacketFactory.createIPv4Header(packet);
+		TCPHeader tcp = TCPPacketFactory.createTCPHeader(packet);
+		assertEquals(65495, tcp.getMaxSegmentSize());
+		assertTrue(tcp.hasWindowScale());
+		assertEquals(10, tcp.getWindowScale());
+		assertTrue(tcp.isSelectiveAckPermitted());
+
+		packet.rewind();
+		new IPv4HeaderView().wrap(packet);
+		TCPHeaderView view = new TCPHeaderView().wrap(packet);
+		assertEquals(65495, view.getMaxSegmentSize());
+		assertTrue(view.hasWindowScale());
+		assertEquals(10, view.getWindowScale());
+		assertTrue(view.isSelectiveAckPermitted());
+		assertEquals(0, view.getSelectiveAckBlocks(new int[8]));
+	}
+
+	public void testSynAckAnswersOptions() throws Exception {
+		ByteBuffer packet = ByteBuffer.wrap(HexUtil.decodeHex(SYN));
+		IPv4Header ip = IPPacketFactory.createIPv4Header(packet);
+		TCPHeader tcp = TCPPacketFactory.createTCPHeader(packet);
+		Packet synAck = TCPPacketFactory.createSynAckPacketData(ip, tcp, 0xFFFF, 3);
+		byte[] data = synAck.getBuffer();
+		assertEquals(20 + 32, data.length);
+
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		IPv4HeaderView ipView = new IPv4HeaderView().wrap(buffer);
+		TCPHeaderView view = new TCPHeaderView().wrap(buffer);
+		assertEquals(data.length, ipView.getTotalLength());
+		assertTrue(view.isSYN() && view.isACK());
+		assertEquals(tcp.getSequenceNumber() + 1, view.getAckNumber());
+		assertEquals(0xFFFF, view.getWindowSize() & 0xFFFF);
+		assertEquals(65495, view.getMaxSegmentSize());
+		assertTrue(view.isSelectiveAckPermitted());
+		assertTrue(view.hasWindowScale());
+		assertEquals(3, view.getWindowScale());
+		assertEquals(0, view.getTimeStampSender());
+		assertTrue(PacketUtil.isValidTCPChecksum(ipView.getSourceIP(), ipView.getDestinationIP(),
+				data, (short) 32, 20));
+	}
+
+	public void testSynAckWithoutOptions() throws Exception {
+		ByteBuffer packet = ByteBuffer.wrap(HexUtil.decodeHex(ACK));
+		IPv4Header ip = IPPacketFactory.createIPv4Header(packet);
+		TCPHeader tcp = TCPPacketFactory.createTCPHeader(packet);
+		assertFalse(tcp.hasWindowScale());
+		byte[] data = TCPPacketFactory.createSynAckPacketData(ip, tcp, 0xFFFF, 3).getBuffer();
+		assertEquals(40, data.length);
+
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		new IPv4HeaderView().wrap(buffer);
+		TCPHeaderView view = new TCPHeaderView().wrap(buffer);
+		assertEquals(5, view.getDataOffset());
+		assertFalse(view.hasWindowScale());
+		assertFalse(view.isSelectiveAckPermitted());
+	}
+
+	public void testSelectiveAckBlocks() throws Exception {
+		int[] edges = new int[8];
+		TCPHeaderView view = wrap(SACK_1);
+		assertEquals(1, view.getSelectiveAckBlocks(edges));
+		assertEquals((int) (DATA_START + 1000), edges[0]);
+		assertEquals((int) (DATA_START + 2000), edges[1]);
+		assertFalse(view.hasWindowScale());
+
+		view = wrap(SACK_2);
+		assertEquals(2, view.getSelectiveAckBlocks(edges));
+		assertEquals((int) (DATA_START + 3000), edges[0]);
+		assertEquals((int) (DATA_START + 4000), edges[1]);
+		assertEquals((int) (DATA_START + 1000), edges[2]);
+		assertEquals((int) (DATA_START + 2000), edges[3]);
+
+		// blocks that do not fit are left out
+		assertEquals(1, view.getSelectiveAckBlocks(new int[2]));
+		assertEquals(0, wrap(ACK).getSelectiveAckBlocks(edges));
+	}
+
+	static TCPHeaderView wrap(String hex) throws Exception {
+		ByteBuffer packet = ByteBuffer.wrap(HexUtil.decodeHex(hex));
+		new IPv4HeaderView().wrap(packet);
+		return new TCPHeaderView().wrap(packet);
+	}
+}
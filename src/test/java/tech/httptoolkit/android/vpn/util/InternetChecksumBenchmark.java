@@ -0,0 +1,85 @@
+package tech.httptoolkit.android.vpn.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checksums of the packets the TCP, UDP and ICMP factories build. <code>legacy*</code> is the previous code
+ * adding one byte pair at a time (and copying the segment behind a pseudo header for TCP), the others use {@link InternetChecksum}.
+ * <code>ackUpdate</code> is what a retransmission costs now: the ack number and window patched in, whatever the size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InternetChecksumBenchmark {
+
+	private static final int SOURCE_IP = 0x5db8d822;
+	private static final int DESTINATION_IP = 0x0a000002;
+
+	// IP header, pure ACK, default MSS segment, Ethernet MTU segment, large segment over a big MTU
+	@Param({"20", "40", "576", "1500", "16384"})
+	public int size;
+
+	private byte[] packet;
+	private int ackNumber;
+
+	@Setup
+	public void setup() {
+		packet = new byte[size];
+		new Random(42).nextBytes(packet);
+	}
+
+	@Benchmark
+	public byte[] legacyChecksum() {
+		return LegacyChecksum.calculateChecksum(packet, 0, size);
+	}
+
+	@Benchmark
+	public int checksum() {
+		return InternetChecksum.checksum(packet, 0, size);
+	}
+
+	@Benchmark
+	public byte[] legacyTcpChecksum() {
+		return LegacyChecksum.calculateTCPHeaderChecksum(packet, 0, size, DESTINATION_IP, SOURCE_IP);
+	}
+
+	@Benchmark
+	public int tcpChecksum() {
+		return InternetChecksum.tcpChecksum(packet, 0, size, SOURCE_IP, DESTINATION_IP);
+	}
+
+	@Benchmark
+	public byte[] ackUpdate() {
+		InternetChecksum.replace32(packet, 8, ++ackNumber, 16);
+		InternetChecksum.replace16(packet, 14, ackNumber & 0xFFFF, 16);
+		return packet;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(InternetChecksumBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.build()).run();
+	}
+
+}
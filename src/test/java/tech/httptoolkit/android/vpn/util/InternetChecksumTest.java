@@ -0,0 +1,119 @@
+package tech.httptoolkit.android.vpn.util;
+
+import junit.framework.TestCase;
+import tech.httptoolkit.android.vpn.SessionLookupBenchmark;
+import tech.httptoolkit.android.vpn.transport.ip.IPPacketFactory;
+import tech.httptoolkit.android.vpn.transport.ip.IPv4Header;
+import tech.httptoolkit.android.vpn.transport.tcp.TCPHeader;
+import tech.httptoolkit.android.vpn.transport.tcp.TCPPacketFactory;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * property tests of {@link InternetChecksum} against {@link LegacyChecksum}, the byte pair at a time implementation
+ */
+public class InternetChecksumTest extends TestCase {
+
+	private final Random random = new Random(42);
+
+	public void testSameAsLegacy() {
+		for (int i = 0; i < 10_000; i++) {
+			byte[] data = randomData(random.nextInt(1000) * 2);
+			assertEquals(LegacyChecksum.toInt(LegacyChecksum.calculateChecksum(data, 0, data.length)),
+					InternetChecksum.checksum(data, 0, data.length));
+			assertTrue(Arrays.equals(LegacyChecksum.calculateChecksum(data, 0, data.length),
+					PacketUtil.calculateChecksum(data, 0, data.length)));
+		}
+	}
+
+	/**
+	 * the legacy code read past an odd length, the engine pads the last byte with zero as RFC 1071 says
+	 */
+	public void testOddLength() {
+		for (int i = 0; i < 10_000; i++) {
+			int length = random.nextInt(1000) * 2 + 1;
+			byte[] padded = randomData(length + 1);
+			padded[length] = 0;
+			byte[] data = Arrays.copyOf(padded, length);
+			assertEquals(LegacyChecksum.toInt(LegacyChecksum.calculateChecksum(padded, 0, padded.length)),
+					InternetChecksum.checksum(data, 0, data.length));
+		}
+	}
+
+	public void testTcpSameAsLegacy() {
+		for (int i = 0; i < 10_000; i++) {
+			int offset = random.nextInt(64);
+			int length = 20 + random.nextInt(1500);
+			byte[] data = randomData(offset + length + random.nextInt(8));
+			int sourceIp = random.nextInt();
+			int destinationIp = random.nextInt();
+			byte[] expected = LegacyChecksum.calculateTCPHeaderChecksum(data, offset, length, destinationIp, sourceIp);
+			assertEquals(LegacyChecksum.toInt(expected),
+					InternetChecksum.tcpChecksum(data, offset, length, sourceIp, destinationIp));
+			assertTrue(Arrays.equals(expected, PacketUtil.calculateTCPHeaderChecksum(data, offset, length, destinationIp, sourceIp)));
+		}
+	}
+
+	public void testIncrementalUpdate() {
+		for (int i = 0; i < 10_000; i++) {
+			int length = 20 + random.nextInt(200);
+			byte[] data = randomData(length);
+			int sourceIp = random.nextInt();
+			int destinationIp = random.nextInt();
+			data[16] = data[17] = 0;
+			PacketUtil.writeShortToBytes((short) InternetChecksum.tcpChecksum(data, 0, length, sourceIp, destinationIp), data, 16);
+
+			for (int change = 0; change < 4; change++) {
+				// any aligned field in the header except the checksum itself
+				int field = random.nextInt(5) * 4;
+				if (random.nextBoolean()) {
+					InternetChecksum.replace32(data, field == 16 ? 12 : field, random.nextInt(), 16);
+				} else {
+					InternetChecksum.replace16(data, field == 16 ? 18 : field, random.nextInt() & 0xFFFF, 16);
+				}
+				assertTrue(PacketUtil.isValidTCPChecksum(sourceIp, destinationIp, data, (short) length, 0));
+			}
+		}
+	}
+
+	/**
+	 * a retransmission patched in place carries the same TCP segment as a packet built from scratch
+	 */
+	public void testUpdateResponsePacketData() throws Exception {
+		ByteBuffer packet = SessionLookupBenchmark.ackPacket(0x0a000002, 40000, 0x5db8d822, 443);
+		IPv4Header ip = IPPacketFactory.createIPv4Header(packet);
+		TCPHeader tcp = TCPPacketFactory.createTCPHeader(packet);
+		for (int i = 0; i < 1000; i++) {
+			byte[] payload = randomData(1 + random.nextInt(1460));
+			long sequence = random.nextInt() & 0xFFFFFFFFL;
+			long ackNumber = random.nextInt() & 0xFFFFFFFFL;
+			int window = random.nextInt() & 0xFFFF;
+			byte[] sent = TCPPacketFactory.createResponsePacketData(ip, tcp, payload, true,
+					random.nextInt() & 0xFFFFFFFFL, sequence, 0, 0, random.nextInt() & 0xFFFF);
+			TCPPacketFactory.updateResponsePacketData(sent, ackNumber, window);
+			byte[] expected = TCPPacketFactory.createResponsePacketData(ip, tcp, payload, true,
+					ackNumber, sequence, 0, 0, window);
+
+			assertEquals(expected.length, sent.length);
+			assertTrue(PacketUtil.isValidTCPChecksum(0x5db8d822, 0x0a000002, sent, (short) (sent.length - 20), 20));
+			// the checksums may differ between 0x0000 and 0xFFFF, which are the same value (RFC 1624 section 3)
+			sent[36] = sent[37] = expected[36] = expected[37] = 0;
+			assertTrue(Arrays.equals(Arrays.copyOfRange(expected, 20, expected.length), Arrays.copyOfRange(sent, 20, sent.length)));
+		}
+	}
+
+	/**
+	 * random bytes, sometimes all ones to drive the carries
+	 */
+	private byte[] randomData(int length) {
+		byte[] data = new byte[length];
+		if (random.nextInt(10) == 0) {
+			Arrays.fill(data, (byte) 0xFF);
+		} else {
+			random.nextBytes(data);
+		}
+		return data;
+	}
+}
@@ -0,0 +1,67 @@
+package tech.httptoolkit.android.vpn.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The checksum code PacketUtil had before {@link InternetChecksum}, kept as the reference for its tests and benchmarks.
+ */
+final class LegacyChecksum {
+
+	private LegacyChecksum() {
+	}
+
+	static byte[] calculateChecksum(byte[] data, int offset, int length){
+		int start = offset;
+		int sum = 0;
+		while(start < length){
+			sum += PacketUtil.getNetworkInt(data, start, 2);
+			start = start + 2;
+		}
+		//carry over one's complement
+		while((sum >> 16) > 0){
+			sum = (sum & 0xffff) + (sum >> 16);
+		}
+		//flip the bit to get one' complement
+		sum = ~sum;
+
+		//extract the last two byte of int
+		byte[] checksum = new byte[2];
+		checksum[0] = (byte)(sum >> 8);
+		checksum[1] = (byte)sum;
+
+		return checksum;
+	}
+
+	static byte[] calculateTCPHeaderChecksum(byte[] data, int offset, int tcplength, int destip, int sourceip){
+		int buffersize = tcplength + 12;
+		boolean odd = false;
+		if(buffersize % 2 != 0){
+			buffersize++;
+			odd = true;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(buffersize);
+		buffer.order(ByteOrder.BIG_ENDIAN);
+
+		//create virtual header
+		buffer.putInt(sourceip);
+		buffer.putInt(destip);
+		buffer.put((byte)0);//reserved => 0
+		buffer.put((byte)6);//tcp protocol => 6
+		buffer.putShort((short)tcplength);
+
+		//add actual header + data
+		buffer.put(data, offset, tcplength);
+
+		//padding last byte to zero
+		if(odd){
+			buffer.put((byte)0);
+		}
+		byte[] tcparray = buffer.array();
+		return calculateChecksum(tcparray, 0, buffersize);
+	}
+
+	static int toInt(byte[] checksum) {
+		return ((checksum[0] & 0xFF) << 8) | (checksum[1] & 0xFF);
+	}
+}